@@ -0,0 +1,12 @@
+#!/bin/sh
+# Builds the JMH suites and runs them, writing JSON results named after the
+# git revision to benchmarks/results/ (compare two with jmh.morethan.io or jq).
+# Extra arguments go to JMH, e.g.  ./run_jmh.sh SendLoop -f 2
+cd "$(dirname "$0")" || exit 2
+mvn -B -q package || exit 2
+
+mkdir -p results
+rev=$(git rev-parse --short HEAD 2>/dev/null || echo local)
+out="results/jmh-$rev-$(date +%Y%m%d-%H%M%S).json"
+java -jar target/benchmarks.jar -rf json -rff "$out" "$@" || exit 1
+echo "Results: benchmarks/$out"
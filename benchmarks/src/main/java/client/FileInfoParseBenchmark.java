@@ -0,0 +1,95 @@
+package client;
+
+import common.FrameCodec;
+import common.LineIO;
+import common.Protocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the FILE_INFO header that precedes every file, as
+ * ClientSession.readFileInfo does: text lines (name, then size, mtime and
+ * offset taken from the right) with and without RESUME, and the binary
+ * FILE_INFO frame under FRAMED.
+ *
+ * Each invocation parses a batch of {@link #BATCH} headers for a share of
+ * nested lecture files; the reported time is per header.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileInfoParseBenchmark {
+
+    static final int BATCH = 1024;
+
+    private final String[] plainLines = new String[BATCH];
+    private final String[] resumeLines = new String[BATCH];
+    private byte[] frames;
+
+    @Setup
+    public void headers() throws IOException {
+        Random random = new Random(23);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        FrameCodec codec = new FrameCodec(new LineIO(new ByteArrayInputStream(new byte[0]), encoded));
+        for (int i = 0; i < BATCH; i++) {
+            String name = "week" + (i % 14 + 1) + "/lecture " + i + (i % 3 == 0 ? " notes.pdf" : ".mp4");
+            long size = random.nextInt(Integer.MAX_VALUE) * (long) (1 + random.nextInt(8));
+            long mtime = 1_700_000_000_000L + random.nextInt(1_000_000_000);
+            long offset = i % 5 == 0 ? size / 2 : 0;
+            plainLines[i] = Protocol.FILE_INFO_PREFIX + name + Protocol.DELIMITER + size;
+            resumeLines[i] = plainLines[i] + Protocol.DELIMITER + mtime + Protocol.DELIMITER + offset;
+            codec.writeFileInfo(name, size, mtime, offset);
+        }
+        codec.flush();
+        frames = encoded.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void text(Blackhole sink) {
+        for (String line : plainLines)
+            sink.consume(ClientSession.parseFileInfo(line, false));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void textResume(Blackhole sink) {
+        for (String line : resumeLines)
+            sink.consume(ClientSession.parseFileInfo(line, true));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void framed(Blackhole sink) throws IOException {
+        LineIO io = new LineIO(new ByteArrayInputStream(frames), OutputStream.nullOutputStream());
+        FrameCodec codec = new FrameCodec(io);
+        for (int i = 0; i < BATCH; i++) {
+            if (codec.readHeader() != FrameCodec.T_FILE_INFO)
+                throw new IOException("not a FILE_INFO frame");
+            long size = codec.readLongField();
+            long mtime = codec.readLongField();
+            long offset = codec.readLongField();
+            sink.consume(new ClientSession.FileInfo(codec.readTextPayload(), size, mtime, offset));
+        }
+    }
+}
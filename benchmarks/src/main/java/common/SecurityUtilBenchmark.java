@@ -0,0 +1,56 @@
+package common;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The login path: the board hashes the password, the server checks the
+ * hash against the credential store in constant time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SecurityUtilBenchmark {
+
+    // Not final, so that the JIT cannot fold them into constants
+    private String password = "pass123";
+    private String hash = SecurityUtil.hashPassword("pass123");
+    private String wrongHash = SecurityUtil.hashPassword("pass124");
+
+    @Benchmark
+    public String hashPassword() {
+        return SecurityUtil.hashPassword(password);
+    }
+
+    @Benchmark
+    public boolean verifyPassword() {
+        return SecurityUtil.verifyPassword(password, hash);
+    }
+
+    @Benchmark
+    public boolean authenticate() {
+        return SecurityUtil.authenticate("faculty1", hash);
+    }
+
+    @Benchmark
+    public boolean authenticateWrongPassword() {
+        return SecurityUtil.authenticate("faculty1", wrongHash);
+    }
+
+    @Benchmark
+    public boolean authenticateUnknownUser() {
+        return SecurityUtil.authenticate("faculty9", hash);
+    }
+}
@@ -0,0 +1,44 @@
+package server;
+
+import client.Client;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The two formatSize implementations side by side, for a size in each unit:
+ * ClientHandler's integer arithmetic, which sizes every file in the server
+ * log, and Client's String.format version, which labels every row of the
+ * file list and the progress bar ten times a second.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FormatSizeBenchmark {
+
+    /** 512 B, 1.5 KB, 700 MB and 4.2 GB */
+    @Param({ "512", "1536", "734003200", "4509715660" })
+    public long bytes;
+
+    @Benchmark
+    public String server() {
+        return ClientHandler.formatSize(bytes);
+    }
+
+    @Benchmark
+    public String client() {
+        return Client.formatSize(bytes);
+    }
+}
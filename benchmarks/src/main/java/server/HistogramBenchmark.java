@@ -0,0 +1,61 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What ServerMetrics costs a transfer: Histogram.record, alone and with
+ * four threads recording into one histogram, and fileSent (two histograms
+ * and two counters) as every file completion pays it. Values vary so the
+ * increments spread over many buckets, as real latencies do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistogramBenchmark {
+
+    /** One histogram shared by every benchmark thread */
+    @State(Scope.Benchmark)
+    public static class Shared {
+        final Histogram histogram = new Histogram("ns");
+    }
+
+    /** Each thread's own run of values */
+    @State(Scope.Thread)
+    public static class Values {
+        long next = 1_000;
+
+        long next() {
+            next = next * 6364136223846793005L + 1442695040888963407L;
+            return (next >>> 40) + 1_000;
+        }
+    }
+
+    @Benchmark
+    public void record(Shared shared, Values values) {
+        shared.histogram.record(values.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended(Shared shared, Values values) {
+        shared.histogram.record(values.next());
+    }
+
+    @Benchmark
+    public void fileSent(Values values) {
+        ServerMetrics.fileSent(1L << 20, System.nanoTime() - values.next());
+    }
+}
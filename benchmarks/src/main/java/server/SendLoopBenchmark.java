@@ -0,0 +1,135 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending one file to a board, as ClientHandler.transferFile does, over
+ * loopback to a thread that discards what it reads.
+ *
+ * streamLoop is FileSender.sendStream's read/write loop with the buffer
+ * size as a parameter (the protocol uses Protocol.BUFFER_SIZE, 8 KB);
+ * sendStream and sendZeroCopy are the real FileSender paths. One
+ * operation sends the whole file, so MB/s is fileMb / (ms/op) * 1000.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendLoopBenchmark {
+
+    /** A file on disk and a loopback connection whose far end discards everything. */
+    @State(Scope.Thread)
+    public static class Connection {
+        @Param({ "16" })
+        public int fileMb;
+
+        Path file;
+        FileChannel channel;
+        ServerSocketChannel listener;
+        SocketChannel socket;
+        OutputStream out;
+        long size;
+
+        @Setup(Level.Trial)
+        public void open() throws IOException {
+            size = fileMb * 1024L * 1024;
+            file = Files.createTempFile("jmh-send", ".bin");
+            byte[] block = new byte[1024 * 1024];
+            new Random(23).nextBytes(block);
+            try (OutputStream write = Files.newOutputStream(file)) {
+                for (long written = 0; written < size; written += block.length)
+                    write.write(block);
+            }
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+
+            listener = ServerSocketChannel.open();
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            socket = SocketChannel.open(listener.getLocalAddress());
+            SocketChannel receiver = listener.accept();
+            Thread drain = new Thread(() -> discard(receiver), "discard");
+            drain.setDaemon(true);
+            drain.start();
+            out = socket.socket().getOutputStream();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+            listener.close();
+            channel.close();
+            Files.deleteIfExists(file);
+        }
+
+        private static void discard(SocketChannel receiver) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+            try (receiver) {
+                while (receiver.read(buffer) >= 0)
+                    buffer.clear();
+            } catch (IOException e) {
+                // sender gone
+            }
+        }
+    }
+
+    /** Heap buffer size for streamLoop. */
+    @State(Scope.Thread)
+    public static class Buffer {
+        @Param({ "4096", "8192", "65536", "262144" })
+        public int bufferSize;
+    }
+
+    @Benchmark
+    public long streamLoop(Connection connection, Buffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.bufferSize];
+        ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+        long sent = 0;
+        while (sent < connection.size) {
+            wrapped.clear();
+            wrapped.limit((int) Math.min(bytes.length, connection.size - sent));
+            int n = connection.channel.read(wrapped, sent);
+            if (n == -1)
+                break;
+            connection.out.write(bytes, 0, n);
+            sent += n;
+        }
+        connection.out.flush();
+        return sent;
+    }
+
+    @Benchmark
+    public long sendStream(Connection connection) throws IOException {
+        return FileSender.sendStream(connection.channel, 0, connection.size, connection.out, null, 0);
+    }
+
+    @Benchmark
+    public long sendZeroCopy(Connection connection) throws IOException {
+        return FileSender.sendZeroCopy(connection.channel, 0, connection.size, connection.socket, null);
+    }
+}
@@ -8,7 +8,7 @@ REM ── Check Java ──
 java -version >nul 2>&1
 if errorlevel 1 (
     echo [ERROR] Java is not installed or not in PATH.
-    echo         Install JDK 8+ from https://adoptium.net/
+    echo         Install JDK 17+ from https://adoptium.net/
     pause
     exit /b 1
 )
@@ -34,7 +34,7 @@ mkdir build\client 2>nul
 
 REM ── Compile common module first (no dependencies) ──
 echo [1/3] Compiling common module...
-javac -d build -cp src src\common\SecurityUtil.java src\common\Protocol.java
+javac -d build -cp src src\common\*.java
 if errorlevel 1 (
     echo [ERROR] Common module compilation failed.
     pause
@@ -44,7 +44,7 @@ echo       OK
 
 REM ── Compile server (depends on common) ──
 echo [2/3] Compiling server module...
-javac -d build -cp "build;src" src\server\Server.java src\server\ClientHandler.java
+javac -d build -cp "build;src" src\server\*.java
 if errorlevel 1 (
     echo [ERROR] Server module compilation failed.
     pause
@@ -54,7 +54,7 @@ echo       OK
 
 REM ── Compile client (depends on common) ──
 echo [3/3] Compiling client module...
-javac -d build -cp "build;src" src\client\Client.java
+javac -d build -cp "build;src" src\client\*.java
 if errorlevel 1 (
     echo [ERROR] Client module compilation failed.
     pause
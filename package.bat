@@ -9,13 +9,13 @@ echo [1/4] Compiling sources...
 if exist build rmdir /s /q build
 mkdir build 2>nul
 
-javac -d build -cp src src\common\SecurityUtil.java src\common\Protocol.java
+javac -d build -cp src src\common\*.java
 if %errorlevel% neq 0 ( echo [ERROR] Compilation failed. & pause & exit /b 1 )
 
-javac -d build -cp "build;src" src\server\Server.java src\server\ClientHandler.java
+javac -d build -cp "build;src" src\server\*.java
 if %errorlevel% neq 0 ( echo [ERROR] Compilation failed. & pause & exit /b 1 )
 
-javac -d build -cp "build;src" src\client\Client.java
+javac -d build -cp "build;src" src\client\*.java
 if %errorlevel% neq 0 ( echo [ERROR] Compilation failed. & pause & exit /b 1 )
 echo       Compiled OK
 
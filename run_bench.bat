@@ -0,0 +1,39 @@
+@echo off
+echo ========================================
+echo  LAN File Sharing — Benchmarks
+echo ========================================
+echo.
+
+REM ── Auto-build if needed ──
+if not exist "build\server" (
+    echo Build not found — compiling...
+    call build.bat
+    if %errorlevel% neq 0 (
+        echo [ERROR] Build failed. Cannot run benchmarks.
+        pause
+        exit /b 1
+    )
+)
+
+REM ── Compile benchmark sources (never packaged into the JARs) ──
+javac -d build -cp "build;src" src\bench\*.java
+if errorlevel 1 (
+    echo [ERROR] Benchmark compilation failed.
+    pause
+    exit /b 1
+)
+
+REM ── Parse benchmark name ──
+set BENCH=ZeroCopyBenchmark
+if not "%~1"=="" set BENCH=%~1
+
+echo Running bench.%BENCH% %2 %3 %4 %5 %6
+echo.
+
+java -cp "build" bench.%BENCH% %2 %3 %4 %5 %6
+
+if %errorlevel% neq 0 (
+    echo.
+    echo [ERROR] Benchmark exited with code %errorlevel%
+)
+pause
@@ -0,0 +1,16 @@
+@echo off
+REM LAN File Sharing — command-line client
+REM Usage: run_cli.bat [options] <faculty>   (events on stdout, messages on stderr)
+
+REM ── Auto-build if needed ──
+if not exist "build\client" (
+    echo Build not found — compiling... 1>&2
+    call build.bat < nul > nul
+    if errorlevel 1 (
+        echo [ERROR] Build failed. Cannot start client. 1>&2
+        exit /b 2
+    )
+)
+
+java -cp "build" client.CliClient %*
+exit /b %errorlevel%
@@ -0,0 +1,16 @@
+#!/bin/sh
+# LAN File Sharing — command-line client (Linux / macOS)
+# Usage: ./run_cli.sh [options] <faculty>     (see --help for options)
+cd "$(dirname "$0")" || exit 2
+
+# ── Auto-build if needed (common + client only) ──
+if [ ! -d build/client ]; then
+    echo "Build not found — compiling..." >&2
+    mkdir -p build
+    javac -encoding UTF-8 -d build -cp src src/common/*.java && javac -encoding UTF-8 -d build -cp build:src src/client/*.java || {
+        echo "[ERROR] Build failed. Cannot start client." >&2
+        exit 2
+    }
+fi
+
+exec java -cp build client.CliClient "$@"
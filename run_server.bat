@@ -23,7 +23,7 @@ echo Starting server for: %FACULTY%
 echo Press Ctrl+C to stop.
 echo.
 
-java -cp "build" server.Server %FACULTY%
+java -cp "build" server.Server %FACULTY% %2 %3 %4
 
 if %errorlevel% neq 0 (
     echo.
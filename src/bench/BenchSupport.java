@@ -0,0 +1,140 @@
+package bench;
+
+import client.ClientSession;
+import server.ClientHandler;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Scratch folders and loopback plumbing for the tests and benchmarks in
+ * this package.
+ *
+ * create() makes a share plus folders for the server's compressed copies
+ * and hash index, and points lanshare.compressCache and lanshare.hashIndex
+ * at them so a run never touches the real cache folders. close() deletes
+ * every folder it made and puts back the properties it set.
+ */
+final class BenchSupport implements AutoCloseable {
+
+    /** Folder to share */
+    final Path share;
+    /** Compressed copies (lanshare.compressCache) */
+    final Path copies;
+    /** Hash index (lanshare.hashIndex) */
+    final Path hashes;
+
+    private final String prefix;
+    private final Deque<Path> dirs = new ArrayDeque<>();
+    private final Map<String, String> saved = new LinkedHashMap<>();
+
+    private BenchSupport(String prefix) throws IOException {
+        this.prefix = prefix;
+        share = dir("share");
+        copies = dir("copies");
+        hashes = dir("hashes");
+        set("lanshare.compressCache", copies.toString());
+        set("lanshare.hashIndex", hashes.toString());
+    }
+
+    /** Temp folders named {@code prefix-share}, {@code prefix-copies} and so on. */
+    static BenchSupport create(String prefix) throws IOException {
+        return new BenchSupport(prefix);
+    }
+
+    /** Another temp folder, {@code prefix-role}, deleted by close(). */
+    Path dir(String role) throws IOException {
+        Path dir = Files.createTempDirectory(prefix + "-" + role);
+        dirs.push(dir);
+        return dir;
+    }
+
+    /** A folder for the boards' chunk store, set as lanshare.chunkStore. */
+    Path chunkStore() throws IOException {
+        Path store = dir("store");
+        set("lanshare.chunkStore", store.toString());
+        return store;
+    }
+
+    /** Turns off the boards' encrypted cache and delta sync, so every byte comes from the server. */
+    BenchSupport noBoardCache() {
+        set("lanshare.cache", "false");
+        set("lanshare.delta", "false");
+        return this;
+    }
+
+    /** Sets a system property until close(). */
+    void set(String key, String value) {
+        String old = System.setProperty(key, value);
+        if (!saved.containsKey(key))
+            saved.put(key, old);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Map.Entry<String, String> property : saved.entrySet()) {
+            if (property.getValue() == null)
+                System.clearProperty(property.getKey());
+            else
+                System.setProperty(property.getKey(), property.getValue());
+        }
+        saved.clear();
+        while (!dirs.isEmpty())
+            deleteTree(dirs.pop());
+    }
+
+    /** Deletes {@code dir} and everything under it; nothing if it is gone. */
+    static void deleteTree(Path dir) throws IOException {
+        if (!Files.exists(dir))
+            return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(p);
+        }
+    }
+
+    /** Empties {@code dir}, as logging out empties a board's download folder. */
+    static void clear(Path dir) throws IOException {
+        deleteTree(dir);
+        Files.createDirectories(dir);
+    }
+
+    /** Serves {@code share} as {@code faculty} on a loopback port, a thread per connection. */
+    static ServerSocketChannel listen(Path share, String faculty) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        AtomicInteger active = new AtomicInteger();
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket s = server.accept().socket();
+                    active.incrementAndGet();
+                    new Thread(new ClientHandler(s, share.toString(), faculty, active)).start();
+                }
+            } catch (IOException e) {
+                // server closed
+            }
+        }, "accept-" + faculty);
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+
+    /** Connects {@code session} to a loopback server; an IOException if the login is refused. */
+    static void login(ClientSession session, int port, String user, String password) throws IOException {
+        if (!session.connect("127.0.0.1", port, user, password))
+            throw new IOException("authentication failed");
+    }
+}
@@ -0,0 +1,140 @@
+package bench;
+
+import client.ClientSession;
+import client.DownloadListener;
+import client.DownloadScheduler;
+import client.Prefetcher;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Loopback test for browse-first sessions.
+ *
+ * Shares a term's worth of lectures, one folder per week with the newest
+ * week modified last, and compares the time until a board has something
+ * to show: the whole share downloaded, or the listing alone. A Prefetcher
+ * is then given a budget of two weeks; a file from the oldest week is
+ * double-clicked while it runs and must arrive intact ahead of the
+ * prefetching, which must stay within the budget and begin with the
+ * newest week.
+ *
+ * Usage:
+ * java -cp build bench.BrowseFirstTest [weeks] [MB per file]
+ * Default: 12 weeks of 4 files x 4 MB. Exits with status 1 on failure.
+ */
+public class BrowseFirstTest {
+
+    private static final String USER = "faculty1";
+    private static final String PASSWORD = "pass123";
+    private static final int FILES_PER_WEEK = 4;
+
+    public static void main(String[] args) throws Exception {
+        int weeks = args.length > 0 ? Integer.parseInt(args[0]) : 12;
+        int fileBytes = (args.length > 1 ? Integer.parseInt(args[1]) : 4) * 1024 * 1024;
+
+        BenchSupport env = BenchSupport.create("browse").noBoardCache();
+        Path share = env.share;
+        Path downloads = env.dir("board");
+        Random random = new Random(15);
+        long now = System.currentTimeMillis();
+        for (int week = 1; week <= weeks; week++) {
+            for (int i = 0; i < FILES_PER_WEEK; i++) {
+                Path file = share.resolve(String.format("week%02d/lecture%d.pdf", week, i));
+                Files.createDirectories(file.getParent());
+                byte[] body = new byte[fileBytes];
+                random.nextBytes(body);
+                Files.write(file, body);
+                Files.setLastModifiedTime(file, FileTime.fromMillis(now - (weeks - week) * 7L * 86_400_000));
+            }
+        }
+
+        ServerSocketChannel server = BenchSupport.listen(share, USER);
+        int port = server.socket().getLocalPort();
+
+        boolean ok = true;
+        int fileCount = weeks * FILES_PER_WEEK;
+
+        // Download everything at login, as before
+        long start = System.nanoTime();
+        try (ClientSession session = new ClientSession(downloads)) {
+            BenchSupport.login(session, port, USER, PASSWORD);
+            ok &= session.downloadAll(new DownloadListener() {
+            }) == fileCount;
+        }
+        double full = (System.nanoTime() - start) / 1e6;
+        BenchSupport.clear(downloads);
+
+        // Listing only, then on demand
+        start = System.nanoTime();
+        try (ClientSession session = new ClientSession(downloads)) {
+            session.setBrowse(true);
+            BenchSupport.login(session, port, USER, PASSWORD);
+            List<DownloadScheduler.Job> files = session.browse(new DownloadListener() {
+            });
+            double listing = (System.nanoTime() - start) / 1e6;
+            ok &= files.size() == fileCount && isEmpty(downloads);
+            System.out.printf("Time to a usable file list: %.0f ms downloading all %d files, %.0f ms browsing%n",
+                    full, fileCount, listing);
+
+            long budget = 2L * FILES_PER_WEEK * fileBytes;
+            AtomicInteger order = new AtomicInteger();
+            String[] firstName = new String[1];
+            Prefetcher prefetcher = new Prefetcher(session, downloads, files, budget, new DownloadListener() {
+                @Override
+                public void onFileCompleted(int fileNum, int count, String fileName, long fileSize) {
+                    if (order.incrementAndGet() == 1)
+                        firstName[0] = fileName;
+                }
+            });
+            DownloadScheduler.Job wanted = files.stream()
+                    .filter(job -> job.name.equals("week01/lecture2.pdf")).findFirst().orElseThrow();
+            long clicked = System.nanoTime();
+            var request = prefetcher.request(wanted);
+            prefetcher.start();
+            ok &= request.get(30, TimeUnit.SECONDS);
+            System.out.printf("Double-clicked %s: open after %.0f ms%n", wanted.name,
+                    (System.nanoTime() - clicked) / 1e6);
+            ok &= wanted.name.equals(firstName[0]);
+            ok &= Files.mismatch(share.resolve(wanted.name), downloads.resolve(wanted.name)) == -1;
+
+            // Let the prefetcher spend its budget, then check what it chose
+            long deadline = System.nanoTime() + 30_000_000_000L;
+            while (prefetcher.prefetchedBytes() < budget && System.nanoTime() < deadline)
+                Thread.sleep(20);
+            Thread.sleep(200);
+            prefetcher.stop();
+            System.out.printf("Prefetched %,d of %,d bytes budget; %d of %d files now local%n",
+                    prefetcher.prefetchedBytes(), budget, order.get(), fileCount);
+            ok &= prefetcher.prefetchedBytes() <= budget && order.get() < fileCount;
+
+            // After the request, its own week is taken first, then the newest
+            for (int i = 0; i < FILES_PER_WEEK; i++) {
+                String recent = String.format("week%02d/lecture%d.pdf", weeks, i);
+                String sibling = String.format("week01/lecture%d.pdf", i);
+                ok &= prefetcher.isFetched(recent) && prefetcher.isFetched(sibling);
+                ok &= Files.mismatch(share.resolve(recent), downloads.resolve(recent)) == -1;
+            }
+            ok &= !prefetcher.isFetched(String.format("week%02d/lecture0.pdf", weeks / 2));
+        }
+
+        System.out.println(ok ? "PASS: listing first, requested file first, prefetch within budget" : "FAIL");
+        server.close();
+        env.close();
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean isEmpty(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            return paths.noneMatch(Files::isRegularFile);
+        }
+    }
+}
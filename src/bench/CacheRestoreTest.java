@@ -0,0 +1,87 @@
+package bench;
+
+import client.ClientSession;
+import client.DownloadListener;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Loopback test for the encrypted cache (CONTENT_ID): a board logs out and
+ * back in.
+ *
+ * The first session downloads the share, filling a fresh cache. The
+ * download folder is then emptied, as logout does, and the same faculty
+ * logs in again: every file must be restored from the cache with no file
+ * bytes fetched. Finally another faculty logs in on the same board sharing
+ * the same files; its key must not open the first faculty's entries,
+ * so everything is fetched again.
+ *
+ * Usage:
+ * java -cp build bench.CacheRestoreTest [fileMB]
+ * Default: a 100 MB presentation plus a few small files. Exits with
+ * status 1 on failure.
+ */
+public class CacheRestoreTest {
+
+    private static final String PASSWORD = "pass123";
+
+    public static void main(String[] args) throws Exception {
+        int fileMb = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+
+        BenchSupport env = BenchSupport.create("cache");
+        env.chunkStore();
+        Path share = env.share;
+        Path downloads = env.dir("board");
+
+        Random random = new Random(12);
+        long total = 0;
+        int[] sizes = { fileMb * 1024 * 1024, 2 * 1024 * 1024, 40 * 1024, 900 };
+        String[] names = { "lecture.pptx", "notes.pdf", "syllabus.docx", "readme.txt" };
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] data = new byte[sizes[i]];
+            random.nextBytes(data);
+            Files.write(share.resolve(names[i]), data);
+            total += data.length;
+        }
+
+        ServerSocketChannel first = BenchSupport.listen(share, "faculty1");
+        ServerSocketChannel other = BenchSupport.listen(share, "faculty2");
+        int port = first.socket().getLocalPort();
+
+        boolean ok = session("First login", port, "faculty1", downloads, share, names, 0);
+        BenchSupport.clear(downloads);
+        ok &= session("Second login", port, "faculty1", downloads, share, names, total);
+        BenchSupport.clear(downloads);
+        ok &= session("Other faculty", other.socket().getLocalPort(), "faculty2", downloads, share, names, 0);
+
+        System.out.println(ok ? "PASS: restored without fetching, unreadable to others" : "FAIL");
+        first.close();
+        other.close();
+        env.close();
+        System.exit(ok ? 0 : 1);
+    }
+
+    /** Downloads the share and checks every copy and how much came from the cache. */
+    private static boolean session(String label, int port, String user, Path downloads, Path share,
+            String[] names, long expectRestored) throws IOException {
+        long start = System.nanoTime();
+        try (ClientSession session = new ClientSession(downloads)) {
+            BenchSupport.login(session, port, user, PASSWORD);
+            int received = session.downloadAll(new DownloadListener() {
+            });
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%-13s: %,d bytes restored from the cache, %.1f s%n", label,
+                    session.restoredBytes(), seconds);
+            boolean ok = received == names.length && session.restoredBytes() == expectRestored;
+            for (String name : names) {
+                Path copy = downloads.resolve(name);
+                ok &= Files.exists(copy) && Files.mismatch(share.resolve(name), copy) == -1;
+            }
+            return ok;
+        }
+    }
+}
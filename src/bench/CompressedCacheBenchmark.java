@@ -0,0 +1,248 @@
+package bench;
+
+import client.ClientSession;
+import client.DownloadListener;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Multi-process benchmark for the server's compressed cache: what thirty
+ * boards pulling the same CSV cost the faculty PC.
+ *
+ * The server runs as a separate JVM (this class with the "serve"
+ * argument) so that its CPU time can be measured on its own, once with
+ * the cache turned off and once with it on. Each time a class of boards
+ * downloads the share together, in this process, with COMPRESS. Without
+ * the cache every board's copy is deflated again; with it the first
+ * request builds the copy and the rest are sent from it.
+ *
+ * It then checks the other half of the cache: a file added to the share
+ * afterwards is compressed in the background without being asked for,
+ * and a share larger than a small quota leaves no more than the quota on
+ * disk once every board has it.
+ *
+ * Usage:
+ * java -cp build bench.CompressedCacheBenchmark [boards] [MB]
+ * Default: 8 boards, a 64 MB CSV. Exits with status 1 on failure.
+ */
+public class CompressedCacheBenchmark {
+
+    private static final String USER = "faculty1";
+    private static final String PASSWORD = "pass123";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("serve")) {
+            serve(Path.of(args[1]));
+            return;
+        }
+        int boards = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int fileBytes = (args.length > 1 ? Integer.parseInt(args[1]) : 64) * 1024 * 1024;
+        BenchSupport env = BenchSupport.create("cache").noBoardCache();
+        Path share = env.share;
+        Path cache = env.copies;
+        Random random = new Random(17);
+        writeCsv(share.resolve("results.csv"), fileBytes, random);
+        boolean ok = true;
+
+        System.out.printf("%d boards fetching a %,d byte CSV%n", boards, fileBytes);
+        System.out.printf("%-10s %14s %10s%n", "cache", "server CPU s", "seconds");
+        double[] cpu = new double[2];
+        for (int run = 0; run < 2; run++) {
+            boolean cached = run == 1;
+            try (ServerProcess server = new ServerProcess(env, cached ? 1L << 40 : 0)) {
+                long start = System.nanoTime();
+                ok &= downloadTogether(server.port, share, boards);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                cpu[run] = server.cpuSeconds();
+                System.out.printf("%-10s %14.2f %10.2f%n", cached ? "on" : "off", cpu[run], seconds);
+
+                if (cached) {
+                    // Added after the last board logged in: compressed before anyone asks
+                    int before = copies(cache).size();
+                    writeCsv(share.resolve("results-week2.csv"), fileBytes / 4, random);
+                    long deadline = System.nanoTime() + 20_000_000_000L;
+                    while (copies(cache).size() == before && System.nanoTime() < deadline)
+                        Thread.sleep(50);
+                    boolean warmed = copies(cache).size() > before;
+                    System.out.println("New file compressed in the background: " + (warmed ? "yes" : "NO"));
+                    ok &= warmed;
+                }
+            }
+        }
+        ok &= cpu[1] * 2 < cpu[0];
+        env.close();
+
+        // Quota: twenty copies of about 2 MB each into a 16 MB cache
+        env = BenchSupport.create("cache").noBoardCache();
+        share = env.share;
+        cache = env.copies;
+        for (int week = 1; week <= 20; week++)
+            writeCsv(share.resolve(String.format("week%02d.csv", week)), 4 * 1024 * 1024, random);
+        long quota = 16L * 1024 * 1024;
+        try (ServerProcess server = new ServerProcess(env, quota)) {
+            ok &= downloadTogether(server.port, share, 2);
+        }
+        long used = 0;
+        for (Path copy : copies(cache))
+            used += Files.size(copy);
+        System.out.printf("Quota %,d bytes: %d copies of 20 files left, %,d bytes%n", quota, copies(cache).size(),
+                used);
+        ok &= used <= quota && copies(cache).size() < 20;
+        env.close();
+
+        System.out.println(ok ? "PASS: compressed once, warmed in the background, within quota" : "FAIL");
+        System.exit(ok ? 0 : 1);
+    }
+
+    /** Downloads the share on {@code boards} sessions at once; true if every copy is identical. */
+    private static boolean downloadTogether(int port, Path share, int boards) throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        List<Path> dirs = new ArrayList<>();
+        AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < boards; i++) {
+            Path dir = Files.createTempDirectory("cache-board");
+            dirs.add(dir);
+            Thread board = new Thread(() -> {
+                try (ClientSession session = new ClientSession(dir)) {
+                    session.setSplitThreshold(0);
+                    session.setPoolSize(1);
+                    session.setMulticast(false);
+                    BenchSupport.login(session, port, USER, PASSWORD);
+                    session.downloadAll(new DownloadListener() {
+                    });
+                } catch (IOException e) {
+                    System.err.println("Board failed: " + e.getMessage());
+                    failures.incrementAndGet();
+                }
+            }, "board-" + i);
+            board.start();
+            threads.add(board);
+        }
+        for (Thread board : threads)
+            board.join();
+
+        boolean identical = failures.get() == 0;
+        for (Path dir : dirs) {
+            try (Stream<Path> files = Files.list(share)) {
+                for (Path source : (Iterable<Path>) files::iterator) {
+                    Path copy = dir.resolve(source.getFileName());
+                    identical &= Files.exists(copy) && Files.mismatch(source, copy) == -1;
+                }
+            }
+            BenchSupport.deleteTree(dir);
+        }
+        return identical;
+    }
+
+    /** Copies in the cache folder. */
+    private static List<Path> copies(Path cache) throws IOException {
+        try (Stream<Path> files = Files.list(cache)) {
+            return files.filter(p -> p.toString().endsWith(".z")).toList();
+        }
+    }
+
+    private static void writeCsv(Path file, int bytes, Random random) throws IOException {
+        StringBuilder csv = new StringBuilder("student,quiz1,quiz2,midterm,final\n");
+        while (csv.length() < bytes)
+            csv.append(String.format("S%06d,%d,%d,%.1f,%.1f%n", random.nextInt(1_000_000), random.nextInt(11),
+                    random.nextInt(11), random.nextDouble() * 100, random.nextDouble() * 100));
+        Files.writeString(file, csv.substring(0, bytes));
+    }
+
+    /**
+     * The "serve" child: accepts sessions on a loopback port, printing
+     * PORT first, then its CPU time in ns for each "cpu" line on stdin,
+     * until stdin closes.
+     */
+    private static void serve(Path share) throws IOException {
+        ServerSocketChannel server = BenchSupport.listen(share, USER);
+        System.out.println("PORT " + server.socket().getLocalPort());
+        System.out.flush();
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        while (in.readLine() != null) {
+            System.out.println("CPU " + ZeroCopyBenchmark.processCpuNanos());
+            System.out.flush();
+        }
+        server.close();
+    }
+
+    /**
+     * A "serve" child sharing {@code env.share} with its hash index and
+     * compressed copies in env's folders and the given cache quota (0 = no
+     * cache); its cache log lines are echoed.
+     */
+    private static final class ServerProcess implements AutoCloseable {
+        final Process process;
+        final BufferedReader out;
+        final int port;
+        private long cpuNanos = -1;
+
+        ServerProcess(BenchSupport env, long quota) throws IOException {
+            process = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin" + File.separator
+                    + "java", "-cp", System.getProperty("java.class.path"), "-Dlanshare.hashIndex=" + env.hashes,
+                    "-Dlanshare.compressCache=" + env.copies, "-Dlanshare.compressCacheBytes=" + quota,
+                    CompressedCacheBenchmark.class.getName(), "serve", env.share.toString())
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            String line = out.readLine();
+            if (line == null || !line.startsWith("PORT "))
+                throw new IOException("server did not start: " + line);
+            port = Integer.parseInt(line.substring(5));
+            Thread echo = new Thread(this::echo, "server-log");
+            echo.setDaemon(true);
+            echo.start();
+        }
+
+        private void echo() {
+            try {
+                String line;
+                while ((line = out.readLine()) != null) {
+                    if (line.startsWith("CPU ")) {
+                        synchronized (this) {
+                            cpuNanos = Long.parseLong(line.substring(4));
+                            notifyAll();
+                        }
+                    } else if (line.contains("Compressed cache")) {
+                        System.out.println("  " + line);
+                    }
+                }
+            } catch (IOException e) {
+                // child gone
+            }
+        }
+
+        /** CPU time the child has used so far. */
+        synchronized double cpuSeconds() throws Exception {
+            cpuNanos = -1;
+            process.getOutputStream().write("cpu\n".getBytes(StandardCharsets.UTF_8));
+            process.getOutputStream().flush();
+            while (cpuNanos < 0 && process.isAlive())
+                wait(100);
+            return cpuNanos / 1e9;
+        }
+
+        @Override
+        public void close() throws IOException {
+            process.getOutputStream().close();
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
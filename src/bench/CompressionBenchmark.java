@@ -0,0 +1,206 @@
+package bench;
+
+import client.ClientSession;
+import client.DownloadListener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Compares a session with and without COMPRESS.
+ *
+ * The share mixes what a lecture folder holds: notes, a CSV of results,
+ * source code, a video and an opaque binary; the text files and the
+ * opaque ones are shared by two servers so each kind is measured on its
+ * own. Each session runs on one connection through a relay that counts
+ * the bytes on the wire and can be held to a given link speed. The text
+ * files should shrink several times over; the video (by extension) and the binary (by entropy) must
+ * cost no more than sent raw. The server log shows the ratio and deflate
+ * time of every file.
+ *
+ * Usage:
+ * java -cp build bench.CompressionBenchmark [Mbit/s] [MB per file]
+ * Default: unthrottled, 16 MB per file. Exits with status 1 on failure.
+ */
+public class CompressionBenchmark {
+
+    private static final String USER = "faculty1";
+    private static final String PASSWORD = "pass123";
+    private static final String[] TEXT = { "notes.txt", "results.csv", "Sources.java" };
+    private static final String[] OPAQUE = { "lecture.mp4", "model.bin" };
+
+    public static void main(String[] args) throws Exception {
+        double mbits = args.length > 0 ? Double.parseDouble(args[0]) : 0;
+        int fileBytes = (args.length > 1 ? Integer.parseInt(args[1]) : 16) * 1024 * 1024;
+
+        BenchSupport env = BenchSupport.create("compress").noBoardCache();
+        Path[] shares = { env.share, env.dir("opaque") };
+        Path downloads = env.dir("board");
+        writeShare(shares[0], shares[1], fileBytes);
+        ServerSocketChannel[] servers = { BenchSupport.listen(shares[0], USER), BenchSupport.listen(shares[1], USER) };
+
+        long shareBytes = (long) fileBytes * (TEXT.length + OPAQUE.length);
+        boolean ok = true;
+        long[] wire = new long[2];
+        for (int run = 0; run < 2; run++) {
+            boolean compress = run == 1;
+            long[] perKind = new long[2];
+            for (int kind = 0; kind < 2; kind++) {
+                String[] names = kind == 0 ? TEXT : OPAQUE;
+                BenchSupport.clear(downloads);
+                Relay relay = new Relay(servers[kind].socket().getLocalPort(), mbits);
+                long start = System.nanoTime();
+                int received = download(relay.port(), downloads, compress);
+                relay.join();
+                double seconds = (System.nanoTime() - start) / 1e9;
+                perKind[kind] = relay.relayed();
+                for (String name : names)
+                    ok &= Files.mismatch(shares[kind].resolve(name), downloads.resolve(name)) == -1;
+                ok &= received == names.length;
+                System.out.printf("%-12s %-7s: %,13d bytes on the wire for %,d of file, %.2f s%n",
+                        compress ? "compressed" : "plain", kind == 0 ? "text" : "opaque", perKind[kind],
+                        (long) fileBytes * names.length, seconds);
+            }
+            wire[run] = perKind[0] + perKind[1];
+            if (compress) {
+                ok &= perKind[0] * 3 < (long) fileBytes * TEXT.length;
+                ok &= perKind[1] <= (long) fileBytes * OPAQUE.length + 64 * 1024;
+            }
+        }
+        System.out.printf("Whole share: %,d bytes, %,d on the wire plain, %,d compressed (%.1fx)%n",
+                shareBytes, wire[0], wire[1], (double) wire[0] / wire[1]);
+
+        System.out.println(ok ? "PASS: text shrank, compressed formats sent as is, files identical" : "FAIL");
+        for (ServerSocketChannel server : servers)
+            server.close();
+        env.close();
+        System.exit(ok ? 0 : 1);
+    }
+
+    /** Downloads a share on the main connection only. */
+    private static int download(int port, Path downloads, boolean compress) throws IOException {
+        try (ClientSession session = new ClientSession(downloads)) {
+            session.setSplitThreshold(0);
+            session.setPoolSize(1);
+            session.setMulticast(false);
+            session.setCompress(compress);
+            BenchSupport.login(session, port, USER, PASSWORD);
+            return session.downloadAll(new DownloadListener() {
+            });
+        }
+    }
+
+    private static void writeShare(Path share, Path opaque, int fileBytes) throws IOException {
+        Random random = new Random(16);
+        String[] words = { "the", "lecture", "covers", "sorting", "graphs", "and", "dynamic", "programming",
+                "for", "week", "students", "should", "read", "chapter", "before", "class", "exercise", "notes" };
+        StringBuilder notes = new StringBuilder();
+        while (notes.length() < fileBytes)
+            notes.append(words[random.nextInt(words.length)]).append(random.nextInt(12) == 0 ? ".\n" : " ");
+        Files.writeString(share.resolve("notes.txt"), notes.substring(0, fileBytes));
+
+        StringBuilder csv = new StringBuilder("student,quiz1,quiz2,midterm,final\n");
+        while (csv.length() < fileBytes)
+            csv.append(String.format("S%06d,%d,%d,%.1f,%.1f%n", random.nextInt(1_000_000), random.nextInt(11),
+                    random.nextInt(11), random.nextDouble() * 100, random.nextDouble() * 100));
+        Files.writeString(share.resolve("results.csv"), csv.substring(0, fileBytes));
+
+        StringBuilder sources = new StringBuilder();
+        try (Stream<Path> files = Files.walk(Path.of("src"))) {
+            for (Path file : (Iterable<Path>) files.filter(p -> p.toString().endsWith(".java"))::iterator)
+                sources.append(Files.readString(file));
+        } catch (IOException e) {
+            // not run from the project folder: fall back to the notes
+        }
+        if (sources.length() == 0)
+            sources.append(notes, 0, Math.min(notes.length(), 1 << 20));
+        byte[] source = sources.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] code = new byte[fileBytes];
+        for (int i = 0; i < fileBytes; i += source.length)
+            System.arraycopy(source, 0, code, i, Math.min(source.length, fileBytes - i));
+        Files.write(share.resolve("Sources.java"), code);
+
+        byte[] body = new byte[fileBytes];
+        for (String name : OPAQUE) {
+            random.nextBytes(body);
+            Files.write(opaque.resolve(name), body);
+        }
+    }
+
+    /** Single-connection TCP relay that counts server-to-client bytes, optionally at a fixed rate. */
+    private static final class Relay {
+        private final ServerSocket listener;
+        private final AtomicLong relayed = new AtomicLong();
+        private final Thread thread;
+
+        Relay(int serverPort, double mbits) throws IOException {
+            listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            thread = new Thread(() -> run(serverPort, mbits), "relay");
+            thread.start();
+        }
+
+        int port() {
+            return listener.getLocalPort();
+        }
+
+        long relayed() {
+            return relayed.get();
+        }
+
+        void join() throws InterruptedException {
+            thread.join();
+        }
+
+        private void run(int serverPort, double mbits) {
+            try (ServerSocket l = listener;
+                    Socket client = l.accept();
+                    Socket server = new Socket(InetAddress.getLoopbackAddress(), serverPort)) {
+                Thread upstream = new Thread(() -> pump(client, server, 0, null));
+                upstream.setDaemon(true);
+                upstream.start();
+                pump(server, client, mbits, relayed);
+            } catch (IOException e) {
+                // either side gone
+            }
+        }
+
+        private static void pump(Socket from, Socket to, double mbits, AtomicLong counter) {
+            byte[] buf = new byte[64 * 1024];
+            long start = System.nanoTime();
+            try {
+                InputStream in = from.getInputStream();
+                OutputStream out = to.getOutputStream();
+                long total = 0;
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                    total += n;
+                    if (counter != null)
+                        counter.set(total);
+                    if (mbits > 0) {
+                        // Hold the average to the link speed
+                        long due = (long) (total * 8 / (mbits * 1e6) * 1e9) - (System.nanoTime() - start);
+                        if (due > 0)
+                            Thread.sleep(due / 1_000_000, (int) (due % 1_000_000));
+                    }
+                }
+                to.shutdownOutput();
+            } catch (IOException e) {
+                // connection torn down
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
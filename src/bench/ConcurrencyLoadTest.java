@@ -0,0 +1,195 @@
+package bench;
+
+import common.LineIO;
+import common.Protocol;
+import common.SecurityUtil;
+import server.ClientHandler;
+import server.Server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test: N simulated smart boards log in at once and download the whole
+ * share, comparing platform-thread and virtual-thread handler execution.
+ *
+ * For each mode, ClientHandlers are served from an in-process accept loop
+ * on an ephemeral loopback port (the same structure as Server.start()),
+ * and the test reports session throughput plus p50/p95/p99/max latency
+ * from connect to TRANSFER_COMPLETE.
+ *
+ * Modes:
+ * - platform-10 : fixed pool of 10 threads (the historical default)
+ * - platform-N : fixed pool of N threads
+ * - virtual-N : virtual thread per client, N-permit semaphore (skipped
+ * before Java 21, where VIRTUAL falls back to a cached platform pool)
+ *
+ * Usage:
+ * java -cp build bench.ConcurrencyLoadTest [clients] [files] [fileKB] [limit]
+ * Defaults: 500 clients, 4 files of 256 KB, limit 500.
+ */
+public class ConcurrencyLoadTest {
+
+    private static final String USER = "faculty1";
+    private static final String PASSWORD = "pass123";
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int fileKb = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+        int limit = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+
+        BenchSupport env = BenchSupport.create("loadtest");
+        Path share = env.share;
+        byte[] content = new byte[fileKb * 1024];
+        new Random(7).nextBytes(content);
+        for (int i = 0; i < files; i++)
+            Files.write(share.resolve("file" + i + ".bin"), content);
+
+        System.out.printf("%d clients, %d x %d KB files, Java %s%n",
+                clients, files, fileKb, System.getProperty("java.version"));
+        System.out.printf("%-14s %9s %9s %9s %9s %9s %9s %7s%n",
+                "mode", "sess/s", "MB/s", "p50 ms", "p95 ms", "p99 ms", "max ms", "failed");
+
+        run("platform-10", Server.Engine.BLOCKING, 10, share, clients);
+        run("platform-" + limit, Server.Engine.BLOCKING, limit, share, clients);
+        if (Server.hasVirtualThreads())
+            run("virtual-" + limit, Server.Engine.VIRTUAL, limit, share, clients);
+        else
+            System.out.printf("%-14s skipped: virtual threads need Java 21+%n", "virtual-" + limit);
+
+        env.close();
+    }
+
+    private static void run(String label, Server.Engine engine, int limit,
+            Path share, int clients) throws Exception {
+        ExecutorService executor = Server.newHandlerExecutor(engine, limit);
+        Semaphore permits = engine == Server.Engine.VIRTUAL ? new Semaphore(limit) : null;
+        AtomicInteger active = new AtomicInteger();
+
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), clients);
+            int port = ((InetSocketAddress) listener.getLocalAddress()).getPort();
+
+            Thread acceptor = new Thread(() -> acceptLoop(listener, executor, permits, share, active));
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            long[] latencies = new long[clients];
+            AtomicLong bytes = new AtomicLong();
+            AtomicInteger failed = new AtomicInteger();
+            CountDownLatch start = new CountDownLatch(1);
+            Thread[] boards = new Thread[clients];
+
+            for (int i = 0; i < clients; i++) {
+                int idx = i;
+                boards[i] = new Thread(() -> {
+                    try {
+                        start.await();
+                        long t0 = System.nanoTime();
+                        bytes.addAndGet(downloadAll(port));
+                        latencies[idx] = System.nanoTime() - t0;
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        latencies[idx] = Long.MAX_VALUE;
+                    }
+                });
+                boards[i].start();
+            }
+
+            long t0 = System.nanoTime();
+            start.countDown();
+            for (Thread t : boards)
+                t.join();
+            double wallSec = (System.nanoTime() - t0) / 1e9;
+
+            long[] ok = Arrays.stream(latencies).filter(l -> l != Long.MAX_VALUE).sorted().toArray();
+            System.out.printf("%-14s %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %7d%n", label,
+                    ok.length / wallSec,
+                    bytes.get() / (1024.0 * 1024) / wallSec,
+                    percentileMs(ok, 50), percentileMs(ok, 95), percentileMs(ok, 99),
+                    percentileMs(ok, 100), failed.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void acceptLoop(ServerSocketChannel listener, ExecutorService executor,
+            Semaphore permits, Path share, AtomicInteger active) {
+        while (listener.isOpen()) {
+            try {
+                if (permits != null)
+                    permits.acquire();
+                Socket socket = listener.socket().accept();
+                active.incrementAndGet();
+                ClientHandler handler = new ClientHandler(socket, share.toString(), USER, active);
+                executor.submit(() -> {
+                    try {
+                        handler.run();
+                    } finally {
+                        if (permits != null)
+                            permits.release();
+                    }
+                });
+            } catch (IOException | InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /** Minimal lock-step client: login, then READY / FILE_RECEIVED per file. */
+    private static long downloadAll(int port) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 30_000);
+            socket.setSoTimeout(Protocol.SOCKET_TIMEOUT_MS * 2);
+            LineIO io = new LineIO(socket.getInputStream(), socket.getOutputStream());
+
+            io.writeLine(USER);
+            io.sendLine(SecurityUtil.hashPassword(PASSWORD));
+            if (!Protocol.AUTH_SUCCESS.equals(io.readLine()))
+                throw new IOException("auth failed");
+
+            String count = io.readLine();
+            if (count == null || !count.startsWith(Protocol.FILE_COUNT_PREFIX))
+                throw new IOException("unexpected: " + count);
+            int n = Integer.parseInt(count.substring(Protocol.FILE_COUNT_PREFIX.length()));
+
+            byte[] buf = new byte[Protocol.BUFFER_SIZE];
+            long total = 0;
+            for (int i = 0; i < n; i++) {
+                String info = io.readLine();
+                long size = Long.parseLong(info.substring(info.lastIndexOf(Protocol.DELIMITER) + 1));
+                io.sendLine(Protocol.READY);
+                for (long left = size; left > 0;) {
+                    int r = io.read(buf, 0, (int) Math.min(buf.length, left));
+                    if (r < 0)
+                        throw new IOException("EOF mid-file");
+                    left -= r;
+                }
+                total += size;
+                io.sendLine(Protocol.FILE_RECEIVED);
+            }
+            io.readLine(); // TRANSFER_COMPLETE
+            return total;
+        }
+    }
+
+    private static double percentileMs(long[] sorted, int pct) {
+        if (sorted.length == 0)
+            return Double.NaN;
+        int idx = (int) Math.ceil(pct / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(idx, sorted.length - 1))] / 1e6;
+    }
+}
@@ -0,0 +1,88 @@
+package bench;
+
+import client.ClientSession;
+import client.DownloadListener;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Loopback test for DELTA: one slide edited in a large presentation.
+ *
+ * A board downloads the share once (filling a fresh chunk store), the
+ * faculty "edits" the presentation — a few bytes changed in one place,
+ * a block inserted in another, so everything after it moves — and the
+ * board logs in again with an emptied download folder, as after logout.
+ * The second session must rebuild the file byte-identically while
+ * fetching only the chunks around the two edits.
+ *
+ * Usage:
+ * java -cp build bench.DeltaSyncTest [fileMB]
+ * Default: a 300 MB file. Exits with status 1 on failure.
+ */
+public class DeltaSyncTest {
+
+    private static final String USER = "faculty1";
+    private static final String PASSWORD = "pass123";
+
+    public static void main(String[] args) throws Exception {
+        int fileMb = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+
+        BenchSupport env = BenchSupport.create("delta");
+        env.chunkStore();
+        Path share = env.share;
+        Path downloads = env.dir("board");
+
+        Random random = new Random(11);
+        byte[] deck = new byte[fileMb * 1024 * 1024];
+        random.nextBytes(deck);
+        Path file = share.resolve("lecture.pptx");
+        Files.write(file, deck);
+
+        ServerSocketChannel server = BenchSupport.listen(share, USER);
+        int port = server.socket().getLocalPort();
+
+        boolean ok = session("First session", port, downloads, file);
+
+        // Edit one slide: overwrite 200 bytes a third of the way in and
+        // insert 5 KB at two thirds, shifting the rest of the file
+        byte[] edited = new byte[deck.length + 5 * 1024];
+        int insertAt = deck.length / 3 * 2;
+        System.arraycopy(deck, 0, edited, 0, insertAt);
+        byte[] inserted = new byte[5 * 1024];
+        random.nextBytes(inserted);
+        System.arraycopy(inserted, 0, edited, insertAt, inserted.length);
+        System.arraycopy(deck, insertAt, edited, insertAt + inserted.length, deck.length - insertAt);
+        Arrays.fill(edited, deck.length / 3, deck.length / 3 + 200, (byte) 7);
+        Files.write(file, edited);
+        Thread.sleep(1000); // until the server's manifest has seen the edit
+
+        BenchSupport.clear(downloads);
+        ok &= session("After the edit", port, downloads, file);
+
+        System.out.println(ok ? "PASS: rebuilt file is identical" : "FAIL");
+        server.close();
+        env.close();
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean session(String label, int port, Path downloads, Path source) throws IOException {
+        long start = System.nanoTime();
+        try (ClientSession session = new ClientSession(downloads)) {
+            BenchSupport.login(session, port, USER, PASSWORD);
+            int received = session.downloadAll(new DownloadListener() {
+            });
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long size = Files.size(source);
+            long fetched = session.deltaReusedBytes() > 0 ? session.deltaFetchedBytes() : size;
+            System.out.printf("%-15s: %,d of %,d bytes fetched (%.2f%%), %,d reused, %.1f s%n", label,
+                    fetched, size, 100.0 * fetched / size, session.deltaReusedBytes(), seconds);
+            Path copy = downloads.resolve(source.getFileName());
+            return received == 1 && Files.exists(copy) && Files.mismatch(source, copy) == -1;
+        }
+    }
+}
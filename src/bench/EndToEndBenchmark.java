@@ -0,0 +1,436 @@
+package bench;
+
+import client.ClientSession;
+import client.DownloadListener;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import server.Server;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end benchmark: a real Server on an ephemeral loopback port,
+ * sharing a generated folder, downloaded by K boards at once.
+ *
+ * The server runs in a separate JVM (this class with the "serve"
+ * argument), so that its CPU time and heap allocation can be measured
+ * apart from the boards'. It reports both on request: process CPU time,
+ * and bytes allocated as the bytes every GC freed plus the growth of the
+ * heap in use. Any lanshare.* system properties given to the benchmark
+ * are passed on to the server.
+ *
+ * The boards are ClientSessions in this JVM, as headless as
+ * client.CliClient, with multicast and the chunk cache off so that every
+ * byte crosses the socket. After one warm-up download, all K start
+ * together; per engine the benchmark reports aggregate MB/s, time to first
+ * byte per session (connect to the first file byte on disk), p50/p99 file
+ * completion latency (file start to file complete), and the server's CPU
+ * seconds and allocation rate.
+ *
+ * Share layout: {@code files} files, all at the top of the folder (the NIO
+ * engine shares no subfolders), sized by {@code distribution} around
+ * {@code meanKB}:
+ * - fixed: every file meanKB
+ * - uniform: 1 KB to twice meanKB
+ * - lognormal: mostly small slides and a few large videos (sigma 1),
+ * capped at 64 x meanKB
+ *
+ * Usage:
+ * java -cp build bench.EndToEndBenchmark [clients] [files] [meanKB] [distribution] [engines] [maxClients]
+ * Default: 20 clients, 200 files, 512 KB lognormal, engines blocking,nio,
+ * maxClients 0 (each engine's default). Exits with status 1 if any
+ * session failed.
+ */
+public class EndToEndBenchmark {
+
+    private static final String USER = "faculty1";
+    private static final String PASSWORD = "pass123";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("serve")) {
+            serve(Path.of(args[1]), Server.Engine.valueOf(args[2]), Integer.parseInt(args[3]));
+            return;
+        }
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int meanKb = args.length > 2 ? Integer.parseInt(args[2]) : 512;
+        String distribution = args.length > 3 ? args[3] : "lognormal";
+        String[] engines = (args.length > 4 ? args[4] : "blocking,nio").split(",");
+        int maxClients = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+
+        BenchSupport env = BenchSupport.create("e2e");
+        Path share = env.share;
+        Path boards = env.dir("boards");
+        long shareBytes = generateShare(share, files, meanKb * 1024L, distribution);
+        System.out.printf("%d boards, %d files (%s around %d KB, %.1f MB in all), Java %s, %d CPU(s)%n%n",
+                clients, files, distribution, meanKb, shareBytes / 1048576.0, System.getProperty("java.version"),
+                Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-9s %8s %7s %9s %9s %9s %9s %8s %9s %9s%n", "engine", "MB/s", "failed", "TTFB p50",
+                "TTFB p99", "file p50", "file p99", "CPU s", "alloc/s", "alloc/MB");
+
+        boolean ok = true;
+        for (String name : engines) {
+            Server.Engine engine = Server.Engine.valueOf(name.trim().toUpperCase());
+            try (ServerProcess server = new ServerProcess(share, engine, maxClients)) {
+                // One board first: class loading, JIT, page cache and the server's hash index
+                Round warmUp = new Round(server.port, boards, 1);
+                warmUp.run();
+                if (warmUp.failed.get() > 0)
+                    throw new IOException("warm-up download failed against " + name);
+
+                long[] before = server.stats();
+                Round round = new Round(server.port, boards, clients);
+                long wall = round.run();
+                long[] after = server.stats();
+
+                double seconds = wall / 1e9;
+                double mb = round.bytes.get() / 1048576.0;
+                double cpu = (after[0] - before[0]) / 1e9;
+                double allocMb = (after[1] - before[1]) / 1048576.0;
+                long[] ttfb = sorted(round.firstByteNanos);
+                long[] perFile = round.fileNanos.stream().mapToLong(Long::longValue).sorted().toArray();
+                System.out.printf("%-9s %8.1f %7d %8.1fms %8.1fms %8.1fms %8.1fms %8.2f %7.0fMB %7.2fMB%n",
+                        engine.name().toLowerCase(), mb / seconds, round.failed.get(), percentileMs(ttfb, 50),
+                        percentileMs(ttfb, 99), percentileMs(perFile, 50), percentileMs(perFile, 99), cpu,
+                        allocMb / seconds, mb == 0 ? 0 : allocMb / mb);
+                ok &= round.failed.get() == 0;
+            }
+        }
+
+        System.out.println(ok ? "PASS: every session received the whole share" : "FAIL: some sessions failed");
+        env.close();
+        System.exit(ok ? 0 : 1);
+    }
+
+    // ──────────────────────────────────────────────
+    // Boards
+    // ──────────────────────────────────────────────
+
+    /** K boards downloading the whole share at once. */
+    private static final class Round {
+        final int port;
+        final Path boards;
+        final int clients;
+        final long[] firstByteNanos;
+        final ConcurrentLinkedQueue<Long> fileNanos = new ConcurrentLinkedQueue<>();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicInteger failed = new AtomicInteger();
+
+        Round(int port, Path boards, int clients) {
+            this.port = port;
+            this.boards = boards;
+            this.clients = clients;
+            this.firstByteNanos = new long[clients];
+        }
+
+        /** Runs every board; returns the wall time in ns. */
+        long run() throws Exception {
+            CountDownLatch go = new CountDownLatch(1);
+            Thread[] threads = new Thread[clients];
+            for (int i = 0; i < clients; i++) {
+                int id = i;
+                threads[i] = new Thread(() -> board(id, go), "board-" + (i + 1));
+                threads[i].start();
+            }
+            long start = System.nanoTime();
+            go.countDown();
+            for (Thread thread : threads)
+                thread.join();
+            long wall = System.nanoTime() - start;
+            for (int i = 0; i < clients; i++)
+                BenchSupport.deleteTree(boards.resolve("board-" + (i + 1)));
+            return wall;
+        }
+
+        private void board(int id, CountDownLatch go) {
+            Path downloads = boards.resolve("board-" + (id + 1));
+            Map<Integer, Long> startedAt = new ConcurrentHashMap<>();
+            AtomicLong firstByte = new AtomicLong();
+            AtomicInteger fileCount = new AtomicInteger(-1);
+            boolean ok = false;
+            try {
+                Files.createDirectories(downloads);
+                go.await();
+                long start = System.nanoTime();
+                DownloadListener listener = new DownloadListener() {
+                    @Override
+                    public void onFileCount(int count) {
+                        fileCount.set(count);
+                    }
+
+                    @Override
+                    public void onFileStarted(int fileNum, int count, String fileName, long fileSize) {
+                        startedAt.put(fileNum, System.nanoTime());
+                    }
+
+                    @Override
+                    public void onProgress(int fileNum, int count, long bytesReceived, long fileSize) {
+                        if (bytesReceived > 0)
+                            firstByte.compareAndSet(0, System.nanoTime());
+                    }
+
+                    @Override
+                    public void onFileCompleted(int fileNum, int count, String fileName, long fileSize) {
+                        long now = System.nanoTime();
+                        firstByte.compareAndSet(0, now);
+                        Long started = startedAt.remove(fileNum);
+                        if (started != null)
+                            fileNanos.add(now - started);
+                        bytes.addAndGet(fileSize);
+                    }
+                };
+                try (ClientSession session = new ClientSession(downloads)) {
+                    session.setMulticast(false);
+                    session.setCache(false);
+                    session.setDelta(false);
+                    if (session.connect("127.0.0.1", port, USER, PASSWORD))
+                        ok = session.downloadAll(listener) == fileCount.get();
+                }
+                firstByteNanos[id] = firstByte.get() == 0 ? 0 : firstByte.get() - start;
+            } catch (IOException e) {
+                System.err.println("Board " + (id + 1) + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!ok)
+                failed.incrementAndGet();
+        }
+    }
+
+    // ──────────────────────────────────────────────
+    // Server child
+    // ──────────────────────────────────────────────
+
+    /**
+     * The "serve" child: runs a Server on an ephemeral port, prints PORT,
+     * then answers each STATS line on stdin with "STATS cpuNanos
+     * allocatedBytes" until stdin closes.
+     */
+    private static void serve(Path share, Server.Engine engine, int maxClients) throws Exception {
+        // Only replies go to stdout; the banner and log (which binds System.out on first use) are dropped
+        PrintStream replies = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        HeapAllocation allocation = new HeapAllocation();
+        Server server = new Server(USER, engine, maxClients);
+        server.setPort(0);
+        server.setSharedFolder(share.toString());
+        Thread serving = new Thread(server::start, "server");
+        serving.setDaemon(true);
+        serving.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (server.localPort() <= 0) {
+            if (!serving.isAlive() || System.nanoTime() > deadline)
+                throw new IOException("server did not start");
+            Thread.sleep(20);
+        }
+        replies.println("PORT " + server.localPort());
+
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals("STATS"))
+                replies.println("STATS " + os.getProcessCpuTime() + " " + allocation.allocated());
+        }
+        server.stop();
+    }
+
+    /** Heap bytes allocated since construction: bytes freed by every GC, plus growth of the heap in use. */
+    private static final class HeapAllocation {
+        private final Set<String> heapPools = new HashSet<>();
+        private final AtomicLong freed = new AtomicLong();
+        private final long startUsed;
+
+        HeapAllocation() {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+                if (pool.getType() == MemoryType.HEAP)
+                    heapPools.add(pool.getName());
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (!(gc instanceof NotificationEmitter emitter))
+                    continue;
+                emitter.addNotificationListener((notification, handback) -> {
+                    String type = notification.getType();
+                    if (!type.equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+                        return;
+                    var info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData())
+                            .getGcInfo();
+                    freed.addAndGet(used(info.getMemoryUsageBeforeGc()) - used(info.getMemoryUsageAfterGc()));
+                }, null, null);
+            }
+            startUsed = heapUsed();
+        }
+
+        long allocated() {
+            return freed.get() + heapUsed() - startUsed;
+        }
+
+        private long heapUsed() {
+            long used = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+                if (heapPools.contains(pool.getName()))
+                    used += pool.getUsage().getUsed();
+            return used;
+        }
+
+        private long used(Map<String, MemoryUsage> pools) {
+            long used = 0;
+            for (Map.Entry<String, MemoryUsage> pool : pools.entrySet())
+                if (heapPools.contains(pool.getKey()))
+                    used += pool.getValue().getUsed();
+            return used;
+        }
+    }
+
+    /**
+     * A "serve" child, given this JVM's lanshare.* properties (so its hash
+     * index and compressed copies land in the BenchSupport folders); its
+     * PORT and STATS lines are read.
+     */
+    private static final class ServerProcess implements AutoCloseable {
+        final Process process;
+        final int port;
+        private final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+
+        ServerProcess(Path share, Server.Engine engine, int maxClients) throws IOException {
+            List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            for (String key : System.getProperties().stringPropertyNames())
+                if (key.startsWith("lanshare."))
+                    command.add("-D" + key + "=" + System.getProperty(key));
+            command.add(EndToEndBenchmark.class.getName());
+            command.add("serve");
+            command.add(share.toString());
+            command.add(engine.name());
+            command.add(Integer.toString(maxClients));
+            process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+
+            BufferedReader out = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            Thread reader = new Thread(() -> {
+                try {
+                    String line;
+                    while ((line = out.readLine()) != null)
+                        if (line.startsWith("PORT ") || line.startsWith("STATS "))
+                            replies.add(line);
+                } catch (IOException e) {
+                    // child gone
+                }
+            }, "server-out");
+            reader.setDaemon(true);
+            reader.start();
+            String line = reply();
+            if (line == null || !line.startsWith("PORT "))
+                throw new IOException("server did not start: " + line);
+            port = Integer.parseInt(line.substring(5));
+        }
+
+        /** {cpu ns, allocated bytes} of the server so far. */
+        long[] stats() throws IOException {
+            OutputStream in = process.getOutputStream();
+            in.write("STATS\n".getBytes(StandardCharsets.UTF_8));
+            in.flush();
+            String line = reply();
+            if (line == null || !line.startsWith("STATS "))
+                throw new IOException("no stats from the server: " + line);
+            String[] fields = line.split(" ");
+            return new long[] { Long.parseLong(fields[1]), Long.parseLong(fields[2]) };
+        }
+
+        private String reply() throws IOException {
+            try {
+                return replies.poll(60, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            process.getOutputStream().close();
+            try {
+                if (!process.waitFor(30, TimeUnit.SECONDS))
+                    process.destroy();
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // ──────────────────────────────────────────────
+    // Helpers
+    // ──────────────────────────────────────────────
+
+    /** Writes the share; returns its size in bytes. */
+    private static long generateShare(Path share, int files, long mean, String distribution) throws IOException {
+        Random random = new Random(24);
+        byte[] block = new byte[1024 * 1024];
+        random.nextBytes(block);
+        long total = 0;
+        for (int i = 0; i < files; i++) {
+            long size = switch (distribution) {
+                case "fixed" -> mean;
+                case "uniform" -> 1024 + (long) (random.nextDouble() * (2 * mean - 1024));
+                case "lognormal" -> Math.min(64 * mean,
+                        (long) (mean / Math.exp(0.5) * Math.exp(random.nextGaussian())));
+                default -> throw new IllegalArgumentException("Unknown distribution: " + distribution);
+            };
+            try (OutputStream out = Files.newOutputStream(share.resolve(String.format("file%04d.bin", i)))) {
+                int offset = random.nextInt(block.length);
+                for (long written = 0; written < size;) {
+                    int n = (int) Math.min(block.length - offset, size - written);
+                    out.write(block, offset, n);
+                    written += n;
+                    offset = 0;
+                }
+            }
+            total += size;
+        }
+        return total;
+    }
+
+    private static long[] sorted(long[] values) {
+        return Arrays.stream(values).filter(v -> v > 0).sorted().toArray();
+    }
+
+    /** Nearest-rank percentile of sorted nanosecond values, in ms. */
+    private static double percentileMs(long[] sorted, int pct) {
+        if (sorted.length == 0)
+            return Double.NaN;
+        int index = (int) Math.ceil(pct / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+}
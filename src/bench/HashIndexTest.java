@@ -0,0 +1,273 @@
+package bench;
+
+import client.ClientSession;
+import client.DownloadListener;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Test for the server's hash index and for what boards do with subtree
+ * hashes.
+ *
+ * The server runs as a separate JVM (this class with the "serve"
+ * argument) so that it can be restarted. The first start hashes the share;
+ * the second must find every file in the index instead of reading it.
+ *
+ * Against the restarted server a board then resumes a partial whose bytes
+ * were damaged on disk past 10 MB: it must keep only the leaves before the
+ * damage and fetch the rest, not trust the partial and throw the whole
+ * file away at the end. Last, the file is fetched as parallel ranges, each
+ * chunk checked against its leaves as it lands.
+ *
+ * Usage:
+ * java -cp build bench.HashIndexTest [MB]
+ * Default: a 48 MB file. Exits with status 1 on failure.
+ */
+public class HashIndexTest {
+
+    private static final String USER = "faculty1";
+    private static final String PASSWORD = "pass123";
+
+    /** Where the partial is damaged */
+    private static final long DAMAGE_AT = 10 * 1024 * 1024 + 12_345;
+    private static final long LEAF = 1024 * 1024;
+
+    /** Allowance for headers, hashes and the small file */
+    private static final long CONTROL_SLACK = 256 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("serve")) {
+            serve(Path.of(args[1]));
+            return;
+        }
+        int fileBytes = (args.length > 0 ? Integer.parseInt(args[0]) : 48) * 1024 * 1024;
+        BenchSupport env = BenchSupport.create("hashes").noBoardCache();
+        Path share = env.share;
+        Path downloads = env.dir("board");
+        byte[] content = new byte[fileBytes];
+        new Random(19).nextBytes(content);
+        Path source = share.resolve("lecture.bin");
+        Files.write(source, content);
+        Files.writeString(share.resolve("notes.txt"), "slides follow");
+        boolean ok = true;
+
+        System.out.printf("%-10s %10s %s%n", "start", "seconds", "manifest");
+        for (int start = 1; start <= 2; start++) {
+            try (ServerProcess server = new ServerProcess(share, env.hashes, env.copies)) {
+                long begin = System.nanoTime();
+                browse(server.port, downloads);
+                String line = server.manifestLine();
+                double seconds = (System.nanoTime() - begin) / 1e9;
+                System.out.printf("%-10s %10.2f %s%n", start == 1 ? "first" : "restart", seconds, line);
+                ok &= line != null && line.contains(start == 1 ? "hashed 2 file(s)" : "hashed 0 file(s)");
+                if (start == 1)
+                    continue;
+
+                // A partial from an earlier session, damaged on disk
+                byte[] partial = Arrays.copyOf(content, fileBytes / 2);
+                partial[(int) DAMAGE_AT] ^= 0x20;
+                Files.write(downloads.resolve("lecture.bin.part"), partial);
+                Properties meta = new Properties();
+                meta.setProperty("name", "lecture.bin");
+                meta.setProperty("size", Long.toString(fileBytes));
+                meta.setProperty("lastModified", Long.toString(Files.getLastModifiedTime(source).toMillis()));
+                try (OutputStream out = Files.newOutputStream(downloads.resolve("lecture.bin.part.meta"))) {
+                    meta.store(out, null);
+                }
+                long kept = DAMAGE_AT - DAMAGE_AT % LEAF;
+                long relayed = download(server.port, downloads, 0);
+                boolean identical = identical(source, downloads);
+                System.out.printf("resume: kept %,d of %,d partial bytes, relayed %,d, %s%n", kept, partial.length,
+                        relayed, identical ? "identical" : "DAMAGED");
+                ok &= identical && relayed <= fileBytes - kept + CONTROL_SLACK;
+
+                BenchSupport.clear(downloads);
+                relayed = download(server.port, downloads, fileBytes / 4);
+                identical = identical(source, downloads);
+                System.out.printf("ranges: relayed %,d, %s%n", relayed, identical ? "identical" : "DAMAGED");
+                ok &= identical;
+            }
+        }
+
+        System.out.println(ok ? "PASS: restart read the index; hashes kept the good part of a damaged partial"
+                : "FAIL");
+        env.close();
+        System.exit(ok ? 0 : 1);
+    }
+
+    /** Logs in for the listing only, which starts the server hashing. */
+    private static void browse(int port, Path downloads) throws IOException {
+        try (ClientSession session = new ClientSession(downloads)) {
+            session.setBrowse(true);
+            BenchSupport.login(session, port, USER, PASSWORD);
+            session.browse(new DownloadListener() {
+            });
+        }
+    }
+
+    /** Downloads the share through the pool under CHECKSUM; returns the bytes the server sent. */
+    private static long download(int port, Path downloads, long splitThreshold) throws IOException {
+        Relay relay = new Relay(port);
+        try (ClientSession session = new ClientSession(downloads)) {
+            session.setMulticast(false);
+            session.setChecksum(true);
+            session.setPoolSize(3);
+            session.setSplitThreshold(splitThreshold);
+            BenchSupport.login(session, relay.port(), USER, PASSWORD);
+            session.downloadAll(new DownloadListener() {
+            });
+        } finally {
+            relay.close();
+        }
+        return relay.relayed();
+    }
+
+    private static boolean identical(Path source, Path downloads) throws IOException {
+        Path copy = downloads.resolve(source.getFileName());
+        return Files.exists(copy) && Files.mismatch(source, copy) == -1;
+    }
+
+    /**
+     * The "serve" child: accepts sessions on a loopback port, printing
+     * PORT first, then its log, until stdin closes.
+     */
+    private static void serve(Path share) throws IOException {
+        ServerSocketChannel server = BenchSupport.listen(share, USER);
+        System.out.println("PORT " + server.socket().getLocalPort());
+        System.out.flush();
+        while (System.in.read() != -1) {
+            // wait for the parent to close stdin
+        }
+        server.close();
+    }
+
+    /**
+     * A "serve" child with its hash index in {@code index} and compressed
+     * copies in {@code copies}; its manifest log lines are kept.
+     */
+    private static final class ServerProcess implements AutoCloseable {
+        final Process process;
+        final int port;
+        private final BlockingQueue<String> manifest = new LinkedBlockingQueue<>();
+
+        ServerProcess(Path share, Path index, Path copies) throws IOException {
+            process = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin" + File.separator
+                    + "java", "-cp", System.getProperty("java.class.path"), "-Dlanshare.hashIndex=" + index,
+                    "-Dlanshare.compressCache=" + copies, HashIndexTest.class.getName(), "serve", share.toString())
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            BufferedReader out = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            String line = out.readLine();
+            if (line == null || !line.startsWith("PORT "))
+                throw new IOException("server did not start: " + line);
+            port = Integer.parseInt(line.substring(5));
+            Thread echo = new Thread(() -> {
+                try {
+                    String next;
+                    while ((next = out.readLine()) != null)
+                        if (next.contains("Manifest: hashed"))
+                            manifest.add(next.substring(next.indexOf("Manifest:")));
+                } catch (IOException e) {
+                    // child gone
+                }
+            }, "server-log");
+            echo.setDaemon(true);
+            echo.start();
+        }
+
+        /** The next "Manifest: hashed" line, or null if none comes within a minute. */
+        String manifestLine() throws InterruptedException {
+            return manifest.poll(60, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void close() throws IOException {
+            process.getOutputStream().close();
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** TCP relay for any number of connections that counts the server's bytes. */
+    private static final class Relay {
+        private final ServerSocket listener;
+        private final AtomicLong relayed = new AtomicLong();
+
+        Relay(int serverPort) throws IOException {
+            listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket client = listener.accept();
+                        Socket server = new Socket(InetAddress.getLoopbackAddress(), serverPort);
+                        start(() -> pump(client, server, null), "relay-up");
+                        start(() -> pump(server, client, relayed), "relay-down");
+                    }
+                } catch (IOException e) {
+                    // relay closed
+                }
+            }, "relay-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int port() {
+            return listener.getLocalPort();
+        }
+
+        long relayed() {
+            return relayed.get();
+        }
+
+        void close() throws IOException {
+            listener.close();
+        }
+
+        private static void start(Runnable task, String name) {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private static void pump(Socket from, Socket to, AtomicLong counted) {
+            byte[] buf = new byte[64 * 1024];
+            try {
+                InputStream in = from.getInputStream();
+                OutputStream out = to.getOutputStream();
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                    if (counted != null)
+                        counted.addAndGet(n);
+                }
+                to.shutdownOutput();
+            } catch (IOException e) {
+                // connection torn down
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package bench;
+
+import client.ClientSession;
+import client.DownloadListener;
+import common.FrameCodec;
+import common.Protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Loopback test for CHECKSUM: what a board does with bytes damaged on the
+ * way.
+ *
+ * Every connection goes through a relay that parses the server's frames
+ * and flips one byte in the middle of every seventh DATA payload — the
+ * kind of damage a faulty switch or NIC passes on whenever TCP's own
+ * checksum happens to miss it. The share is downloaded on the main
+ * connection (plain and with COMPRESS), and through the pool with one
+ * file large enough to be split into ranges; every copy must come out
+ * identical with frames repaired along the way. The same download without
+ * CHECKSUM shows the damage reaching the disk unnoticed.
+ *
+ * Usage:
+ * java -cp build bench.IntegrityTest [MB per file]
+ * Default: 16 MB per file. Exits with status 1 on failure.
+ */
+public class IntegrityTest {
+
+    private static final String USER = "faculty1";
+    private static final String PASSWORD = "pass123";
+
+    /** One DATA frame in this many is damaged */
+    private static final int DAMAGE_EVERY = 7;
+
+    public static void main(String[] args) throws Exception {
+        int fileBytes = (args.length > 0 ? Integer.parseInt(args[0]) : 16) * 1024 * 1024;
+
+        BenchSupport env = BenchSupport.create("integrity").noBoardCache();
+        Path share = env.share;
+        Path downloads = env.dir("board");
+        writeShare(share, fileBytes);
+        int fileCount = 3;
+
+        ServerSocketChannel server = BenchSupport.listen(share, USER);
+        int port = server.socket().getLocalPort();
+        try (ClientSession session = new ClientSession(downloads)) {
+            // First login starts the server hashing the share
+            session.setBrowse(true);
+            BenchSupport.login(session, port, USER, PASSWORD);
+            session.browse(new DownloadListener() {
+            });
+        }
+        Thread.sleep(2000);
+
+        Relay relay = new Relay(port);
+        boolean ok = true;
+        System.out.printf("%-28s %8s %10s %s%n", "download", "damaged", "repaired", "copies");
+        for (int run = 0; run < 4; run++) {
+            boolean checksum = run < 3;
+            boolean compress = run == 1 || run == 2;
+            boolean pool = run == 2;
+            String label = pool ? "pool + ranges, compressed" : (compress ? "main, compressed" : "main")
+                    + (checksum ? "" : ", no CHECKSUM");
+
+            BenchSupport.clear(downloads);
+            long damagedBefore = relay.damaged();
+            long repaired;
+            int received;
+            try (ClientSession session = new ClientSession(downloads)) {
+                session.setMulticast(false);
+                session.setCompress(compress);
+                session.setChecksum(checksum);
+                session.setPoolSize(pool ? 3 : 1);
+                session.setSplitThreshold(pool ? fileBytes / 2 : 0);
+                BenchSupport.login(session, relay.port(), USER, PASSWORD);
+                received = session.downloadAll(new DownloadListener() {
+                });
+                repaired = session.repairedFrames();
+            }
+            long damaged = relay.damaged() - damagedBefore;
+            boolean identical = received == fileCount;
+            try (Stream<Path> files = Files.list(share)) {
+                for (Path source : (Iterable<Path>) files::iterator) {
+                    Path copy = downloads.resolve(source.getFileName());
+                    identical &= Files.exists(copy) && Files.mismatch(source, copy) == -1;
+                }
+            }
+            System.out.printf("%-28s %8d %10d %s%n", label, damaged, repaired,
+                    identical ? "identical" : "DAMAGED");
+            ok &= damaged > 0;
+            ok &= checksum ? identical && repaired > 0 : !identical;
+        }
+
+        System.out.println(ok ? "PASS: damaged frames caught and fetched again; unnoticed without CHECKSUM" : "FAIL");
+        relay.close();
+        server.close();
+        env.close();
+        System.exit(ok ? 0 : 1);
+    }
+
+    /** Notes and a CSV that compress, and a binary that does not. */
+    private static void writeShare(Path share, int fileBytes) throws IOException {
+        Random random = new Random(18);
+        String[] words = { "the", "lecture", "covers", "sorting", "graphs", "and", "dynamic", "programming" };
+        StringBuilder notes = new StringBuilder();
+        while (notes.length() < fileBytes)
+            notes.append(words[random.nextInt(words.length)]).append(random.nextInt(12) == 0 ? ".\n" : " ");
+        Files.writeString(share.resolve("notes.txt"), notes.substring(0, fileBytes));
+
+        StringBuilder csv = new StringBuilder("student,quiz1,quiz2,midterm,final\n");
+        while (csv.length() < fileBytes)
+            csv.append(String.format("S%06d,%d,%d,%.1f,%.1f%n", random.nextInt(1_000_000), random.nextInt(11),
+                    random.nextInt(11), random.nextDouble() * 100, random.nextDouble() * 100));
+        Files.writeString(share.resolve("results.csv"), csv.substring(0, fileBytes));
+
+        byte[] body = new byte[fileBytes];
+        random.nextBytes(body);
+        Files.write(share.resolve("model.bin"), body);
+    }
+
+    /**
+     * TCP relay for any number of connections that damages the server's
+     * DATA frames: it passes the text lines up to AUTH_SUCCESS through, then
+     * reads frame by frame.
+     */
+    private static final class Relay {
+        private final ServerSocket listener;
+        private final AtomicLong damaged = new AtomicLong();
+
+        Relay(int serverPort) throws IOException {
+            listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket client = listener.accept();
+                        Socket server = new Socket(InetAddress.getLoopbackAddress(), serverPort);
+                        start(() -> pump(client, server), "relay-up");
+                        start(() -> damage(server, client), "relay-down");
+                    }
+                } catch (IOException e) {
+                    // relay closed
+                }
+            }, "relay-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int port() {
+            return listener.getLocalPort();
+        }
+
+        /** DATA frames damaged so far. */
+        long damaged() {
+            return damaged.get();
+        }
+
+        void close() throws IOException {
+            listener.close();
+        }
+
+        private static void start(Runnable task, String name) {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private static void pump(Socket from, Socket to) {
+            byte[] buf = new byte[64 * 1024];
+            try {
+                InputStream in = from.getInputStream();
+                OutputStream out = to.getOutputStream();
+                int n;
+                while ((n = in.read(buf)) != -1)
+                    out.write(buf, 0, n);
+                to.shutdownOutput();
+            } catch (IOException e) {
+                // connection torn down
+            }
+        }
+
+        private void damage(Socket from, Socket to) {
+            try (from; to) {
+                DataInputStream in = new DataInputStream(from.getInputStream());
+                OutputStream out = to.getOutputStream();
+                String line;
+                do {
+                    line = readLine(in, out);
+                } while (line != null && !line.equals(Protocol.AUTH_SUCCESS));
+
+                byte[] header = new byte[FrameCodec.HEADER_SIZE];
+                byte[] payload = new byte[Protocol.FRAME_DATA_SIZE + FrameCodec.CRC_SIZE];
+                int frames = 0;
+                while (line != null) {
+                    in.readFully(header);
+                    int length = ((header[2] & 0xFF) << 24) | ((header[3] & 0xFF) << 16)
+                            | ((header[4] & 0xFF) << 8) | (header[5] & 0xFF);
+                    if (length > payload.length)
+                        payload = new byte[length];
+                    in.readFully(payload, 0, length);
+                    int skip = (header[1] & FrameCodec.FLAG_CRC) != 0 ? FrameCodec.CRC_SIZE : 0;
+                    if (header[0] == FrameCodec.T_DATA && length - skip > 16 && ++frames % DAMAGE_EVERY == 0) {
+                        payload[skip + (length - skip) / 2] ^= 0x20;
+                        damaged.incrementAndGet();
+                    }
+                    out.write(header);
+                    out.write(payload, 0, length);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // connection torn down
+            }
+        }
+
+        /** Copies one text line through; null at end of stream. */
+        private static String readLine(InputStream in, OutputStream out) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                out.write(b);
+                if (b == '\n') {
+                    out.flush();
+                    return line.toString(StandardCharsets.UTF_8).strip();
+                }
+                line.write(b);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package bench;
+
+import server.FileSender;
+import server.ServerLog;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Benchmark for the server's logging: the old synchronous println against
+ * ServerLog, with many session threads logging at once.
+ *
+ * System.out is replaced by a console that takes a while to show each
+ * flush, as a Windows console window does. The old Server.log formatted a
+ * timestamp and printed under System.out's lock, so every thread waited
+ * for every other thread's line; ServerLog only queues the line.
+ *
+ * 1. Log calls: each thread logs a burst of lines; reports the wall time,
+ * the slowest single call and how many lines reached the console (a
+ * burst larger than ServerLog's buffer, on fewer cores than threads, can
+ * outrun its writer; the surplus is dropped and counted).
+ * 2. Transfer loop: each thread sends a file over loopback with
+ * FileSender, logging progress every MB (the DEBUG "Sent" line); reports
+ * aggregate throughput without logging, with the old println and with
+ * ServerLog. Passes if ServerLog keeps at least 85% of the unlogged rate.
+ *
+ * Usage:
+ * java -cp build bench.LoggingBenchmark [threads] [console us per flush] [MB per transfer]
+ * Default: 30 threads, 200 us, 64 MB. Exits with status 1 on failure.
+ */
+public class LoggingBenchmark {
+
+    private static final DateTimeFormatter LOG_FMT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    /** Lines each thread logs in part 1 */
+    private static final int LINES_PER_THREAD = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        long flushMicros = args.length > 1 ? Long.parseLong(args[1]) : 200;
+        long transferBytes = (args.length > 2 ? Long.parseLong(args[2]) : 64) * 1024 * 1024;
+
+        // Swapped in before ServerLog's writer starts, so both paths print to it
+        PrintStream report = System.out;
+        SlowConsole console = new SlowConsole(flushMicros);
+        System.setOut(new PrintStream(console, true));
+        ServerLog.setLevel(ServerLog.Level.DEBUG);
+
+        report.printf("%d threads, console %d us per flush%n%n", threads, flushMicros);
+        report.printf("%-10s %12s %14s %12s%n", "log calls", "wall ms", "max call us", "lines shown");
+        for (String mode : new String[] { "println", "ServerLog" }) {
+            Consumer<String> log = mode.equals("println") ? LoggingBenchmark::println : ServerLog::info;
+            long before = console.lines();
+            long[] worst = new long[1];
+            long nanos = runThreads(threads, t -> {
+                long slowest = 0;
+                for (int i = 0; i < LINES_PER_THREAD; i++) {
+                    long start = System.nanoTime();
+                    log.accept("[10.0.0." + t + "]     Sent " + i + ".0 MB / 64.0 MB");
+                    slowest = Math.max(slowest, System.nanoTime() - start);
+                }
+                synchronized (worst) {
+                    worst[0] = Math.max(worst[0], slowest);
+                }
+            });
+            ServerLog.flush();
+            report.printf("%-10s %12.1f %14.0f %12d%n", mode, nanos / 1e6, worst[0] / 1e3,
+                    console.lines() - before);
+        }
+
+        Path file = Files.createTempFile("logging-bench", ".bin");
+        writeRandomFile(file, transferBytes);
+        report.printf("%n%-10s %12s %14s%n", "transfers", "MB/s", "lines shown");
+        double[] rates = new double[3];
+        String[] modes = { "no log", "println", "ServerLog" };
+        for (int m = 0; m < modes.length; m++) {
+            String mode = modes[m];
+            LongConsumer[] progress = new LongConsumer[threads];
+            for (int t = 0; t < threads; t++) {
+                String prefix = "[10.0.0." + t + "]     Sent ";
+                progress[t] = switch (mode) {
+                    case "println" -> sent -> println(prefix + sent / (1024 * 1024) + " MB");
+                    case "ServerLog" -> sent -> ServerLog.debug(prefix + sent / (1024 * 1024) + " MB");
+                    default -> null;
+                };
+            }
+            long before = console.lines();
+            long nanos = transferAll(file, transferBytes, progress);
+            ServerLog.flush();
+            rates[m] = threads * transferBytes / (1024.0 * 1024) / (nanos / 1e9);
+            report.printf("%-10s %12.1f %14d%n", mode, rates[m], console.lines() - before);
+        }
+        Files.deleteIfExists(file);
+
+        boolean ok = rates[2] >= rates[0] * 0.85;
+        report.println(ok ? "PASS: transfers keep their rate with ServerLog logging every MB"
+                : "FAIL: ServerLog slowed the transfers");
+        System.exit(ok ? 0 : 1);
+    }
+
+    /** The old Server.log: format a timestamp, then print under System.out's lock. */
+    private static void println(String message) {
+        System.out.println("[" + LocalDateTime.now().format(LOG_FMT) + "] " + message);
+    }
+
+    /** Runs {@code body} on {@code threads} threads started together; returns the wall time in ns. */
+    private static long runThreads(int threads, ThreadBody body) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> running = new ArrayList<>();
+        AtomicLong failures = new AtomicLong();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    body.run(id);
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    e.printStackTrace();
+                }
+            }, "session-" + t);
+            thread.start();
+            running.add(thread);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : running)
+            thread.join();
+        if (failures.get() > 0)
+            throw new IOException(failures.get() + " thread(s) failed");
+        return System.nanoTime() - begin;
+    }
+
+    @FunctionalInterface
+    private interface ThreadBody {
+        void run(int thread) throws Exception;
+    }
+
+    /** Sends {@code file} once per entry of {@code progress}, in parallel, each to a discarding receiver. */
+    private static long transferAll(Path file, long size, LongConsumer[] progress) throws Exception {
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), progress.length);
+            int port = listener.socket().getLocalPort();
+            Thread acceptor = new Thread(() -> {
+                try {
+                    for (int i = 0; i < progress.length; i++) {
+                        SocketChannel receiver = listener.accept();
+                        Thread drain = new Thread(() -> discard(receiver), "receiver-" + i);
+                        drain.setDaemon(true);
+                        drain.start();
+                    }
+                } catch (IOException e) {
+                    // listener closed
+                }
+            }, "accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            return runThreads(progress.length, t -> {
+                try (SocketChannel sender = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                        port)); FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    long sent = FileSender.send(channel, 0, size, sender.socket(), progress[t]);
+                    if (sent != size)
+                        throw new IOException("sent " + sent + " of " + size);
+                }
+            });
+        }
+    }
+
+    private static void discard(SocketChannel receiver) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        try (receiver) {
+            while (receiver.read(buffer) >= 0)
+                buffer.clear();
+        } catch (IOException e) {
+            // sender gone
+        }
+    }
+
+    private static void writeRandomFile(Path file, long size) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        new Random(20).nextBytes(block);
+        try (RandomAccessFile out = new RandomAccessFile(file.toFile(), "rw")) {
+            for (long written = 0; written < size; written += block.length)
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+        }
+    }
+
+    /** A console that discards its bytes but takes {@code flushMicros} to show each flush. */
+    private static final class SlowConsole extends OutputStream {
+        private final long flushNanos;
+        private final AtomicLong lines = new AtomicLong();
+
+        SlowConsole(long flushMicros) {
+            this.flushNanos = flushMicros * 1000;
+        }
+
+        long lines() {
+            return lines.get();
+        }
+
+        @Override
+        public void write(int b) {
+            if (b == '\n')
+                lines.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++)
+                if (b[i] == '\n')
+                    lines.incrementAndGet();
+        }
+
+        @Override
+        public void flush() {
+            long until = System.nanoTime() + flushNanos;
+            while (System.nanoTime() < until)
+                LockSupport.parkNanos(until - System.nanoTime());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package bench;
+
+import server.ManifestCache;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares a per-session directory scan with the shared ManifestCache.
+ *
+ * A folder of many small files is listed by N simultaneous "sessions",
+ * first the old way (listFiles plus length() and lastModified() per file)
+ * and then by reading the cache's snapshot. Afterwards a file is added,
+ * changed and deleted to measure how long the watcher takes to notice.
+ *
+ * Usage:
+ * java -cp build bench.ManifestBenchmark [files] [sessions]
+ * Default: 5000 files, 30 sessions. Exits with status 1 if a change is
+ * not picked up.
+ */
+public class ManifestBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+
+        BenchSupport env = BenchSupport.create("manifest");
+        Path share = env.share;
+        byte[] body = new byte[512];
+        for (int i = 0; i < fileCount; i++)
+            Files.write(share.resolve(String.format("slide%05d.txt", i)), body);
+
+        ExecutorService pool = Executors.newFixedThreadPool(sessions);
+        String folder = share.toString();
+
+        for (int round = 0; round < 3; round++) {
+            double scan = burst(pool, sessions, () -> {
+                long total = 0;
+                for (File file : new File(folder).listFiles(File::isFile))
+                    total += file.length() + file.lastModified();
+                return total;
+            });
+            long start = System.nanoTime();
+            ManifestCache cache = ManifestCache.of(folder);
+            double first = (System.nanoTime() - start) / 1e6;
+            double cached = burst(pool, sessions, () -> {
+                long total = 0;
+                for (ManifestCache.Entry entry : cache.snapshot().entries())
+                    total += entry.size + entry.lastModified;
+                return total;
+            });
+            System.out.printf("Round %d: %d sessions x %d files — scan %.1f ms, cached %.2f ms"
+                    + " (first listing %.1f ms)%n", round + 1, sessions, fileCount, scan, cached, first);
+        }
+        pool.shutdown();
+
+        ManifestCache cache = ManifestCache.of(folder);
+        Path added = share.resolve("added.txt");
+        boolean ok = true;
+        long start = System.nanoTime();
+        Files.write(added, new byte[1234]);
+        ok &= awaitChange("create", cache, start, () -> cache.snapshot().get("added.txt") != null
+                && cache.snapshot().get("added.txt").size == 1234);
+        start = System.nanoTime();
+        Files.write(added, new byte[4321]);
+        ok &= awaitChange("modify", cache, start, () -> cache.snapshot().get("added.txt").size == 4321);
+        start = System.nanoTime();
+        Files.delete(added);
+        ok &= awaitChange("delete", cache, start, () -> cache.snapshot().get("added.txt") == null);
+
+        System.out.println(ok ? "PASS" : "FAIL: change not seen");
+        env.close();
+        System.exit(ok ? 0 : 1);
+    }
+
+    /** Runs one listing per session at once; returns the wall time in ms. */
+    private static double burst(ExecutorService pool, int sessions, Callable<Long> listing) throws Exception {
+        List<Callable<Long>> tasks = new ArrayList<>();
+        for (int i = 0; i < sessions; i++)
+            tasks.add(listing);
+        long start = System.nanoTime();
+        for (Future<Long> f : pool.invokeAll(tasks))
+            f.get();
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    private static boolean awaitChange(String label, ManifestCache cache, long start, Callable<Boolean> seen)
+            throws Exception {
+        while (System.nanoTime() - start < 10_000_000_000L) {
+            if (seen.call()) {
+                System.out.printf("%-6s seen after %.0f ms%n", label, (System.nanoTime() - start) / 1e6);
+                return true;
+            }
+            Thread.sleep(5);
+        }
+        System.out.println(label + " not seen within 10 s");
+        return false;
+    }
+}
@@ -0,0 +1,153 @@
+package bench;
+
+import client.ClientSession;
+import client.DownloadListener;
+import server.ClientHandler;
+import server.MulticastDistributor;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback test for multicast distribution with simulated packet loss.
+ *
+ * A ClientHandler accept loop and a MulticastDistributor are run in-process
+ * on the loopback interface. N sessions log in together, each dropping a
+ * fraction of the datagrams it receives; NACK repair and the TCP fallback
+ * must still leave every board with byte-identical files.
+ *
+ * The report compares what the server sent (multicast data + repairs +
+ * TCP fallback) with what N unicast downloads would have cost.
+ *
+ * Usage:
+ * java -cp build bench.MulticastLoopbackTest [clients] [files] [fileMB] [loss]
+ * Defaults: 8 clients, 3 files of 8 MB, 5% loss. Exits with status 1 on
+ * failure.
+ */
+public class MulticastLoopbackTest {
+
+    private static final String USER = "faculty1";
+    private static final String PASSWORD = "pass123";
+    private static final String GROUP = "239.255.50.51";
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int fileCount = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int fileMb = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        double loss = args.length > 3 ? Double.parseDouble(args[3]) : 0.05;
+
+        BenchSupport env = BenchSupport.create("multicast");
+        env.chunkStore();
+        NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        env.set("lanshare.multicastIf", loopback.getName());
+        env.set("lanshare.multicastLoss", Double.toString(loss));
+
+        Path share = env.share;
+        Random random = new Random(5);
+        long shareBytes = 0;
+        for (int i = 0; i < fileCount; i++) {
+            byte[] content = new byte[fileMb * 1024 * 1024 + random.nextInt(4096)];
+            random.nextBytes(content);
+            Files.write(share.resolve("handout-" + i + ".bin"), content);
+            shareBytes += content.length;
+        }
+
+        int groupPort;
+        try (DatagramSocket probe = new DatagramSocket()) {
+            groupPort = probe.getLocalPort();
+        }
+        MulticastDistributor distributor = new MulticastDistributor(share.toString(),
+                new InetSocketAddress(InetAddress.getByName(GROUP), groupPort), loopback,
+                MulticastDistributor.DEFAULT_RATE);
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        int port = server.socket().getLocalPort();
+        AtomicInteger active = new AtomicInteger();
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket s = server.accept().socket();
+                    active.incrementAndGet();
+                    new Thread(new ClientHandler(s, share.toString(), USER, active, distributor, null)).start();
+                }
+            } catch (IOException e) {
+                // server closed
+            }
+        }, "accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        System.out.printf("%d client(s), %d file(s), %,d bytes shared, %.0f%% simulated loss%n",
+                clients, fileCount, shareBytes, loss * 100);
+
+        List<Path> downloads = new ArrayList<>();
+        List<Thread> boards = new ArrayList<>();
+        AtomicInteger received = new AtomicInteger();
+        AtomicLong multicastBytes = new AtomicLong();
+        AtomicLong fallbackBytes = new AtomicLong();
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            Path dir = env.dir("board");
+            downloads.add(dir);
+            Thread board = new Thread(() -> {
+                try (ClientSession session = new ClientSession(dir)) {
+                    BenchSupport.login(session, port, USER, PASSWORD);
+                    received.addAndGet(session.downloadAll(new DownloadListener() {
+                    }));
+                    multicastBytes.addAndGet(session.multicastBytes());
+                    fallbackBytes.addAndGet(session.fallbackBytes());
+                } catch (IOException e) {
+                    System.out.println("  session failed: " + e.getMessage());
+                }
+            }, "board-" + i);
+            boards.add(board);
+            board.start();
+        }
+        for (Thread board : boards)
+            board.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        boolean identical = true;
+        for (Path dir : downloads) {
+            try (var files = Files.list(share)) {
+                for (Path source : (Iterable<Path>) files::iterator) {
+                    Path copy = dir.resolve(source.getFileName());
+                    if (!Files.exists(copy) || Files.mismatch(source, copy) != -1)
+                        identical = false;
+                }
+            }
+        }
+
+        long unicast = shareBytes * clients;
+        long sent = distributor.dataBytes() + distributor.repairBytes() + fallbackBytes.get();
+        System.out.printf("Multicast data : %,d bytes%n", distributor.dataBytes());
+        System.out.printf("NACK repairs   : %,d bytes%n", distributor.repairBytes());
+        System.out.printf("TCP fallback   : %,d bytes (boards got %,d by multicast)%n",
+                fallbackBytes.get(), multicastBytes.get());
+        System.out.printf("Server total   : %,d bytes vs %,d unicast (%.1f%%) in %.1f s%n",
+                sent, unicast, 100.0 * sent / unicast, seconds);
+
+        boolean ok = identical && received.get() == clients * fileCount;
+        System.out.println(ok ? "PASS: every board has identical files"
+                : "FAIL: received " + received.get() + "/" + clients * fileCount
+                        + " identical=" + identical);
+
+        distributor.close();
+        server.close();
+        env.close();
+        System.exit(ok ? 0 : 1);
+    }
+}
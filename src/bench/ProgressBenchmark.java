@@ -0,0 +1,176 @@
+package bench;
+
+import client.ClientSession;
+import client.DownloadListener;
+import client.ProgressMeter;
+
+import javax.swing.DefaultListModel;
+import javax.swing.JList;
+import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark for the client's progress display: what showing progress costs
+ * the download it shows.
+ *
+ * A large file is downloaded over loopback three ways: headless (no GUI
+ * work at all), with a Swing event per progress callback — a fresh task
+ * formatting the bar's text for every buffer, as the client used to — and
+ * with ProgressMeter sampling the counters ten times a second. The bar
+ * and list are real Swing components updated on the EDT, just not on
+ * screen. Reports throughput and the EDT events posted; each mode is run
+ * several times and the median kept.
+ *
+ * Usage:
+ * java -cp build bench.ProgressBenchmark [MB] [runs]
+ * Default: 512 MB, 3 runs per mode. Exits with status 1 if the meter
+ * costs more than 10% of the headless rate.
+ */
+public class ProgressBenchmark {
+
+    private static final String USER = "faculty1";
+    private static final String PASSWORD = "pass123";
+
+    public static void main(String[] args) throws Exception {
+        int fileMb = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        if (System.getenv("DISPLAY") == null && !System.getProperty("os.name").startsWith("Windows"))
+            System.setProperty("java.awt.headless", "true");
+        BenchSupport env = BenchSupport.create("progress").noBoardCache();
+        Path share = env.share;
+        Path downloads = env.dir("board");
+        writeFile(share.resolve("lecture.mp4"), fileMb * 1024L * 1024);
+        ServerSocketChannel server = BenchSupport.listen(share, USER);
+        int port = server.socket().getLocalPort();
+
+        String[] modes = { "headless", "per-buffer events", "ProgressMeter" };
+        double[] rates = new double[modes.length];
+        System.out.printf("%d MB file, %d run(s) per mode%n", fileMb, runs);
+        System.out.printf("%-18s %10s %12s %14s%n", "mode", "MB/s", "EDT events", "CPU s per GB");
+        download(port, downloads, "headless", new AtomicLong()); // warm-up
+        for (int m = 0; m < modes.length; m++) {
+            double[] mbps = new double[runs];
+            double[] cpu = new double[runs];
+            long events = 0;
+            for (int r = 0; r < runs; r++) {
+                AtomicLong posted = new AtomicLong();
+                long cpuBefore = processCpuNanos();
+                long start = System.nanoTime();
+                download(port, downloads, modes[m], posted);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                mbps[r] = fileMb / seconds;
+                cpu[r] = (processCpuNanos() - cpuBefore) / 1e9 / (fileMb / 1024.0);
+                events = posted.get();
+            }
+            rates[m] = median(mbps);
+            System.out.printf("%-18s %10.1f %12d %14.2f%n", modes[m], rates[m], events, median(cpu));
+        }
+
+        boolean ok = rates[2] >= rates[0] * 0.9;
+        System.out.println(ok ? "PASS: the sampled meter keeps the headless rate"
+                : "FAIL: the meter slowed the download");
+        server.close();
+        env.close();
+        System.exit(ok ? 0 : 1);
+    }
+
+    /** Downloads the share once, showing progress the given way; counts EDT events in {@code posted}. */
+    private static void download(int port, Path downloads, String mode, AtomicLong posted) throws Exception {
+        JProgressBar bar = new JProgressBar(0, 100);
+        bar.setStringPainted(true);
+        DefaultListModel<String> rows = new DefaultListModel<>();
+        new JList<>(rows);
+        rows.addElement("  lecture.mp4    0%");
+
+        DownloadListener listener;
+        ProgressMeter meter = null;
+        if (mode.equals("ProgressMeter")) {
+            ProgressMeter sampled = new ProgressMeter(bar, (fileNum, percent) -> {
+                posted.incrementAndGet();
+                rows.set(0, "  lecture.mp4  " + percent + "%");
+            });
+            meter = sampled;
+            listener = new DownloadListener() {
+                @Override
+                public void onFileStarted(int fileNum, int fileCount, String fileName, long fileSize) {
+                    sampled.started(fileNum, fileCount, fileSize);
+                }
+
+                @Override
+                public void onProgress(int fileNum, int fileCount, long bytesReceived, long fileSize) {
+                    sampled.progress(fileNum, bytesReceived);
+                }
+
+                @Override
+                public void onFileCompleted(int fileNum, int fileCount, String fileName, long fileSize) {
+                    sampled.completed(fileNum, fileSize);
+                }
+            };
+        } else if (mode.equals("per-buffer events")) {
+            listener = new DownloadListener() {
+                @Override
+                public void onProgress(int fileNum, int fileCount, long bytesReceived, long fileSize) {
+                    int percent = (int) (bytesReceived * 100 / fileSize);
+                    posted.incrementAndGet();
+                    SwingUtilities.invokeLater(() -> {
+                        bar.setValue(percent);
+                        bar.setString(String.format("%.1f MB / %.1f MB  (%d%%)", bytesReceived / 1048576.0,
+                                fileSize / 1048576.0, percent));
+                        rows.set(0, String.format("  %-42s %.1f MB  %3d%%", "lecture.mp4", fileSize / 1048576.0,
+                                percent));
+                    });
+                }
+            };
+        } else {
+            listener = new DownloadListener() {
+            };
+        }
+
+        try (ClientSession session = new ClientSession(downloads)) {
+            session.setMulticast(false);
+            session.setPoolSize(1);
+            session.setSplitThreshold(0);
+            BenchSupport.login(session, port, USER, PASSWORD);
+            if (session.downloadAll(listener) != 1)
+                throw new IOException("download failed");
+        }
+        // The run ends when the EDT has shown the last of it
+        SwingUtilities.invokeAndWait(() -> {
+        });
+        if (meter != null) {
+            ProgressMeter stopped = meter;
+            SwingUtilities.invokeAndWait(stopped::stop);
+        }
+        Files.delete(downloads.resolve("lecture.mp4"));
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /** CPU time of the whole process (download, EDT and server threads), or 0 where the JVM cannot tell. */
+    private static long processCpuNanos() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os)
+            return os.getProcessCpuTime();
+        return 0;
+    }
+
+    private static void writeFile(Path file, long size) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        new Random(21).nextBytes(block);
+        try (var out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length)
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package bench;
+
+import client.ClientSession;
+import client.DownloadListener;
+import server.ClientHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fault-injection test for resumable downloads.
+ *
+ * A ClientHandler is served on an ephemeral loopback port, and the client
+ * reaches it through a relay that can cut the connection after a given
+ * number of server-to-client bytes — a Wi-Fi drop in the middle of a file.
+ *
+ * 1. Session one goes through a relay that cuts at ~60% of the large file.
+ * 2. Session two goes through a relay that never cuts.
+ * The test passes if the second session moved only the missing part of
+ * the file (plus control traffic) and the result is byte-identical.
+ *
+ * It is then run again with a logout in between, as the GUI does it:
+ * session one parks its partial in the encrypted ChunkStore (a temp
+ * folder here) and the download folder is wiped, so session two must
+ * unpark it before offering RESUME.
+ *
+ * Usage:
+ * java -cp build bench.ResumeFaultTest [sizeMB]
+ * Default: 64 MB. Exits with status 1 on failure.
+ */
+public class ResumeFaultTest {
+
+    private static final String USER = "faculty1";
+    private static final String PASSWORD = "pass123";
+
+    /** Allowance for headers, frame overhead and the small file */
+    private static final long CONTROL_SLACK = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        long bigSize = sizeMb * 1024L * 1024;
+
+        BenchSupport env = BenchSupport.create("resume");
+        Path share = env.share;
+        Path store = env.chunkStore();
+        byte[] content = new byte[(int) bigSize];
+        new Random(11).nextBytes(content);
+        Files.write(share.resolve("lecture.bin"), content);
+        Files.write(share.resolve("notes.txt"), "slides follow".getBytes());
+
+        ServerSocketChannel server = BenchSupport.listen(share, USER);
+        int serverPort = server.socket().getLocalPort();
+
+        System.out.println("── Reconnect ──");
+        boolean ok = cutAndResume(serverPort, bigSize, content, store, false);
+        System.out.println("── Logout and login ──");
+        ok &= cutAndResume(serverPort, bigSize, content, store, true);
+
+        server.close();
+        env.close();
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean cutAndResume(int serverPort, long bigSize, byte[] content, Path store, boolean logout)
+            throws Exception {
+        Path downloads = Files.createTempDirectory("resume-client");
+
+        // ── Session 1: connection dies part-way through the large file ──
+        long cutAt = bigSize * 6 / 10;
+        Relay first = new Relay(serverPort, cutAt);
+        int got1 = download(first.port(), downloads, logout, logout);
+        first.join();
+        Path part = downloads.resolve("lecture.bin.part");
+        long partial = Files.exists(part) ? Files.size(part) : 0;
+        System.out.printf("Session 1: cut after %,d bytes, %d file(s) done, partial %,d bytes%n",
+                first.relayed(), got1, partial);
+        long parked = 0;
+        if (logout) {
+            // What Client.cleanup() leaves behind: an empty download folder
+            BenchSupport.clear(downloads);
+            parked = parkedFiles(store);
+            System.out.println("Logged out: " + parked + " partial(s) parked, download folder wiped");
+        }
+
+        // ── Session 2: clean connection, should fetch only the remainder ──
+        Relay second = new Relay(serverPort, Long.MAX_VALUE);
+        int got2 = download(second.port(), downloads, logout, false);
+        second.join();
+        long expected = bigSize - partial;
+        System.out.printf("Session 2: relayed %,d bytes for %,d missing, %d file(s) done%n",
+                second.relayed(), expected, got2);
+
+        Path result = downloads.resolve("lecture.bin");
+        boolean identical = Files.exists(result)
+                && MessageDigest.isEqual(sha256(Files.readAllBytes(result)), sha256(content));
+        boolean ok = partial > 0
+                && second.relayed() <= expected + CONTROL_SLACK
+                && identical
+                && !Files.exists(part)
+                && (!logout || parked == 1 && parkedFiles(store) == 0);
+
+        System.out.println(ok ? "PASS: only the missing bytes were re-sent"
+                : "FAIL: partial=" + partial + " identical=" + identical + " parked=" + parked);
+        BenchSupport.deleteTree(downloads);
+        return ok;
+    }
+
+    private static long parkedFiles(Path store) throws IOException {
+        try (var paths = Files.list(store)) {
+            return paths.filter(p -> p.getFileName().toString().endsWith(".prt")).count();
+        }
+    }
+
+    /**
+     * @param cache  whether the cache, which holds parked partials, is on
+     * @param logout park partials before closing, as Client.cleanup() does
+     */
+    private static int download(int port, Path downloads, boolean cache, boolean logout) {
+        try (ClientSession session = new ClientSession(downloads)) {
+            // The proxy only cuts the main connection, so keep the body on it
+            // rather than on range connections
+            session.setSplitThreshold(0);
+            session.setPoolSize(1);
+            session.setDelta(false);
+            session.setCache(cache);
+            BenchSupport.login(session, port, USER, PASSWORD);
+            System.out.println("  negotiated " + session.handshake());
+            try {
+                return session.downloadAll(new DownloadListener() {
+                });
+            } finally {
+                if (logout)
+                    session.parkPartials();
+            }
+        } catch (IOException e) {
+            System.out.println("  session ended: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    private static byte[] sha256(byte[] data) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(data);
+    }
+
+    /**
+     * Single-connection TCP relay that counts server-to-client bytes and
+     * resets both sides once {@code cutAfter} have passed.
+     */
+    private static final class Relay {
+        private final ServerSocket listener;
+        private final AtomicLong relayed = new AtomicLong();
+        private final Thread thread;
+
+        Relay(int serverPort, long cutAfter) throws IOException {
+            listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            thread = new Thread(() -> run(serverPort, cutAfter), "relay");
+            thread.start();
+        }
+
+        int port() {
+            return listener.getLocalPort();
+        }
+
+        long relayed() {
+            return relayed.get();
+        }
+
+        void join() throws InterruptedException {
+            thread.join();
+        }
+
+        private void run(int serverPort, long cutAfter) {
+            try (ServerSocket l = listener;
+                    Socket client = l.accept();
+                    Socket server = new Socket(InetAddress.getLoopbackAddress(), serverPort)) {
+                Thread upstream = new Thread(() -> pump(client, server, Long.MAX_VALUE, null));
+                upstream.setDaemon(true);
+                upstream.start();
+                pump(server, client, cutAfter, relayed);
+                if (relayed.get() >= cutAfter) {
+                    // Abortive close, like a dropped link
+                    client.setSoLinger(true, 0);
+                    server.setSoLinger(true, 0);
+                }
+            } catch (IOException e) {
+                // either side gone
+            }
+        }
+
+        private static void pump(Socket from, Socket to, long limit, AtomicLong counter) {
+            byte[] buf = new byte[64 * 1024];
+            try {
+                InputStream in = from.getInputStream();
+                OutputStream out = to.getOutputStream();
+                long total = 0;
+                int n;
+                while (total < limit && (n = in.read(buf, 0, (int) Math.min(buf.length, limit - total))) != -1) {
+                    out.write(buf, 0, n);
+                    total += n;
+                    if (counter != null)
+                        counter.set(total);
+                }
+                if (total < limit)
+                    to.shutdownOutput();
+            } catch (IOException e) {
+                // connection torn down
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package bench;
+
+import client.ClientSession;
+import client.DownloadListener;
+import server.ClientHandler;
+import server.SwarmTracker;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multi-process test for peer swarming: how much the faculty PC uploads as
+ * the number of boards grows.
+ *
+ * A ClientHandler accept loop with a SwarmTracker runs in this process.
+ * For each client count, that many boards are started as separate JVMs
+ * (this class with the "board" argument) and download the share together
+ * with -Dlanshare.swarm=true. Boards keep seeding until every board of the
+ * run has finished, as they would while still logged in on a real LAN.
+ *
+ * The report compares the bytes the server sent on range connections with
+ * what the same number of unicast downloads would have cost.
+ *
+ * Usage:
+ * java -cp build bench.SwarmTest [maxClients] [files] [fileMB]
+ * Defaults: up to 8 boards (1, 2, 4, 8), 2 files of 16 MB. Exits with
+ * status 1 if any board ends up with a missing or different file.
+ */
+public class SwarmTest {
+
+    private static final String USER = "faculty1";
+    private static final String PASSWORD = "pass123";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("board")) {
+            board(Integer.parseInt(args[1]), Path.of(args[2]));
+            return;
+        }
+        int maxClients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int fileCount = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int fileMb = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+        BenchSupport env = BenchSupport.create("swarm");
+        Path share = env.share;
+        Path store = env.dir("store");
+        Random random = new Random(10);
+        long shareBytes = 0;
+        for (int i = 0; i < fileCount; i++) {
+            byte[] content = new byte[fileMb * 1024 * 1024 + random.nextInt(4096)];
+            random.nextBytes(content);
+            Files.write(share.resolve("lecture-" + i + ".bin"), content);
+            shareBytes += content.length;
+        }
+
+        SwarmTracker tracker = new SwarmTracker(share.toString());
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        int port = server.socket().getLocalPort();
+        AtomicInteger active = new AtomicInteger();
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket s = server.accept().socket();
+                    active.incrementAndGet();
+                    new Thread(new ClientHandler(s, share.toString(), USER, active, null, tracker)).start();
+                }
+            } catch (IOException e) {
+                // server closed
+            }
+        }, "accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        System.out.printf("%d file(s), %,d bytes shared%n", fileCount, shareBytes);
+        System.out.printf("%-8s %16s %16s %8s %8s%n", "boards", "server sent", "unicast", "ratio", "seconds");
+
+        boolean ok = true;
+        for (int clients = 1; clients <= maxClients; clients *= 2) {
+            long before = tracker.uploadBytes();
+            List<Process> boards = new ArrayList<>();
+            List<Path> downloads = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                Path dir = Files.createTempDirectory("swarm-board");
+                downloads.add(dir);
+                boards.add(new ProcessBuilder(javaExecutable(), "-cp", System.getProperty("java.class.path"),
+                        "-Dlanshare.swarm=true", "-Dlanshare.chunkStore=" + store, SwarmTest.class.getName(), "board",
+                        Integer.toString(port), dir.toString())
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start());
+            }
+
+            // Each board prints one DONE line, then seeds until its stdin closes
+            int received = 0;
+            for (Process board : boards) {
+                BufferedReader out = new BufferedReader(
+                        new InputStreamReader(board.getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                while ((line = out.readLine()) != null && !line.startsWith("DONE"))
+                    System.out.println("  " + line);
+                if (line != null) {
+                    System.out.println("  " + line);
+                    received += Integer.parseInt(line.split(" ")[1]);
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            for (Process board : boards) {
+                board.getOutputStream().close();
+                board.waitFor();
+            }
+
+            boolean identical = received == clients * fileCount;
+            for (Path dir : downloads) {
+                try (var files = Files.list(share)) {
+                    for (Path source : (Iterable<Path>) files::iterator) {
+                        Path copy = dir.resolve(source.getFileName());
+                        if (!Files.exists(copy) || Files.mismatch(source, copy) != -1)
+                            identical = false;
+                    }
+                }
+                BenchSupport.deleteTree(dir);
+            }
+
+            long sent = tracker.uploadBytes() - before;
+            long unicast = shareBytes * clients;
+            System.out.printf("%-8d %,16d %,16d %7.1f%% %8.1f%s%n", clients, sent, unicast,
+                    100.0 * sent / unicast, seconds, identical ? "" : "  FAIL");
+            ok &= identical;
+        }
+
+        System.out.println(ok ? "PASS: every board has identical files" : "FAIL: some boards differ");
+        server.close();
+        env.close();
+        System.exit(ok ? 0 : 1);
+    }
+
+    /** One board: download, report, then keep seeding until the parent closes stdin. */
+    private static void board(int port, Path dir) throws IOException {
+        try (ClientSession session = new ClientSession(dir)) {
+            BenchSupport.login(session, port, USER, PASSWORD);
+            int received = session.downloadAll(new DownloadListener() {
+            });
+            System.out.printf("DONE %d peer=%d server=%d%n", received,
+                    session.swarmPeerBytes(), session.swarmServerBytes());
+            System.out.flush();
+            while (System.in.read() != -1) {
+                // seeding
+            }
+        }
+    }
+
+    private static String javaExecutable() {
+        return System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    }
+}
@@ -0,0 +1,98 @@
+package bench;
+
+import client.ClientSession;
+import client.DownloadListener;
+import common.SharedPath;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * Loopback test for TREE: a shared folder with nested course material.
+ *
+ * Builds a tree of small files three folders deep, downloads it, and
+ * checks that every file arrived at the same relative path. A folder is
+ * then added while the server runs and the board logs in again, to check
+ * the manifest picked it up. Finally a handful of hostile names are run
+ * past SharedPath.
+ *
+ * Usage:
+ * java -cp build bench.TreeShareTest [files]
+ * Default: 20,000 files. Exits with status 1 on failure.
+ */
+public class TreeShareTest {
+
+    private static final String USER = "faculty1";
+    private static final String PASSWORD = "pass123";
+
+    public static void main(String[] args) throws Exception {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+
+        BenchSupport env = BenchSupport.create("tree").noBoardCache();
+        Path share = env.share;
+        Path downloads = env.dir("board");
+        for (int i = 0; i < fileCount; i++) {
+            Path file = share.resolve(String.format("unit%02d/week%02d/lab%d/notes%05d.txt",
+                    i % 10, i / 10 % 12, i / 120 % 3, i));
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, "file " + i + "\n");
+        }
+        Files.writeString(share.resolve("syllabus.txt"), "top level\n");
+
+        ServerSocketChannel server = BenchSupport.listen(share, USER);
+        int port = server.socket().getLocalPort();
+
+        boolean ok = session("Full tree", port, share, downloads, fileCount + 1);
+
+        // A new folder while the server runs: the watcher must list it
+        Path added = share.resolve("unit99/extra/late.txt");
+        Files.createDirectories(added.getParent());
+        Files.writeString(added, "added later\n");
+        Thread.sleep(1000);
+        ok &= session("After mkdir", port, share, downloads, fileCount + 2);
+
+        String[] hostile = { "../escape.txt", "a/../../b", "/etc/passwd", "C:\\Windows\\x", "a//b",
+                "a/./b", "..", "dir/", "c:evil", "nul\u0000byte" };
+        for (String name : hostile) {
+            if (SharedPath.isSafe(name, true)) {
+                System.out.println("Accepted hostile name " + name);
+                ok = false;
+            }
+        }
+        ok &= SharedPath.isSafe("unit01/week02/notes.txt", true) && !SharedPath.isSafe("unit01/notes.txt", false);
+
+        System.out.println(ok ? "PASS: tree recreated, hostile names rejected" : "FAIL");
+        server.close();
+        env.close();
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean session(String label, int port, Path share, Path downloads, int expected)
+            throws IOException {
+        BenchSupport.clear(downloads);
+        System.gc();
+        long start = System.nanoTime();
+        try (ClientSession session = new ClientSession(downloads)) {
+            BenchSupport.login(session, port, USER, PASSWORD);
+            int received = session.downloadAll(new DownloadListener() {
+            });
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Runtime rt = Runtime.getRuntime();
+            System.out.printf("%-10s: %,d of %,d files in %.1f s (heap in use %,d KB)%n", label, received,
+                    expected, seconds, (rt.totalMemory() - rt.freeMemory()) / 1024);
+
+            int matching = 0;
+            try (Stream<Path> files = Files.walk(share)) {
+                for (Path source : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                    Path copy = downloads.resolve(share.relativize(source));
+                    if (Files.exists(copy) && Files.mismatch(source, copy) == -1)
+                        matching++;
+                }
+            }
+            return received == expected && matching == expected;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package bench;
+
+import server.FileSender;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * Loopback benchmark comparing the two FileSender send paths.
+ *
+ * A file of the requested size is streamed over a loopback TCP connection
+ * to a receiver thread that discards the bytes. For each path the benchmark
+ * reports throughput, sender-thread CPU per GB and whole-process CPU per GB
+ * (which includes kernel time spent in sendfile/copy on Linux).
+ *
+ * Usage:
+ * java -cp build bench.ZeroCopyBenchmark [sizeMB] [iterations]
+ * Defaults: 512 MB, 5 iterations per path (first one is warm-up).
+ */
+public class ZeroCopyBenchmark {
+
+    private static final double GB = 1024.0 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        long sizeMb = args.length > 0 ? Long.parseLong(args[0]) : 512;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Path file = Files.createTempFile("zerocopy-bench", ".bin");
+        file.toFile().deleteOnExit();
+        writeRandomFile(file, sizeMb * 1024 * 1024);
+
+        System.out.printf("File: %s (%d MB), %d iteration(s) per path%n", file, sizeMb, iterations);
+        System.out.printf("%-12s %12s %16s %18s%n", "path", "MB/s", "sender CPU s/GB", "process CPU s/GB");
+
+        for (String mode : new String[] { "stream", "zero-copy" }) {
+            Result total = new Result();
+            for (int i = 0; i < iterations; i++) {
+                Result r = runOnce(file, mode.equals("zero-copy"));
+                if (i > 0 || iterations == 1)
+                    total.add(r);
+            }
+            System.out.printf("%-12s %12.1f %16.3f %18.3f%n", mode,
+                    total.bytes / (1024.0 * 1024) / (total.wallNanos / 1e9),
+                    total.senderCpuNanos / 1e9 / (total.bytes / GB),
+                    total.processCpuNanos / 1e9 / (total.bytes / GB));
+        }
+        Files.deleteIfExists(file);
+    }
+
+    private static Result runOnce(Path file, boolean zeroCopy) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            Thread receiver = new Thread(() -> drain(listener), "bench-receiver");
+            receiver.start();
+
+            try (SocketChannel sender = SocketChannel.open(listener.getLocalAddress());
+                    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                long cpu0 = threads.getCurrentThreadCpuTime();
+                long proc0 = processCpuNanos();
+                long t0 = System.nanoTime();
+
+                long sent = zeroCopy
+                        ? FileSender.sendZeroCopy(channel, 0, size, sender, null)
+                        : FileSender.sendStream(channel, 0, size, sender.socket().getOutputStream(), null, 0);
+                sender.shutdownOutput();
+                receiver.join();
+
+                Result r = new Result();
+                r.wallNanos = System.nanoTime() - t0;
+                r.senderCpuNanos = threads.getCurrentThreadCpuTime() - cpu0;
+                r.processCpuNanos = processCpuNanos() - proc0;
+                r.bytes = sent;
+                return r;
+            }
+        }
+    }
+
+    private static void drain(ServerSocketChannel listener) {
+        try (SocketChannel in = listener.accept()) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(256 * 1024);
+            while (in.read(buf) != -1)
+                buf.clear();
+        } catch (IOException e) {
+            System.err.println("Receiver error: " + e.getMessage());
+        }
+    }
+
+    private static void writeRandomFile(Path file, long size) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            for (long written = 0; written < size; written += block.length)
+                raf.write(block, 0, (int) Math.min(block.length, size - written));
+        }
+    }
+
+    /** Process CPU time (user + system), or -1 if the JVM does not expose it. */
+    static long processCpuNanos() {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        return -1;
+    }
+
+    private static final class Result {
+        long bytes;
+        long wallNanos;
+        long senderCpuNanos;
+        long processCpuNanos;
+
+        void add(Result r) {
+            bytes += r.bytes;
+            wallNanos += r.wallNanos;
+            senderCpuNanos += r.senderCpuNanos;
+            processCpuNanos += r.processCpuNanos;
+        }
+    }
+}
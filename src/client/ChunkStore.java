@@ -0,0 +1,581 @@
+package client;
+
+import common.ChunkRecipe;
+import common.ContentChunker;
+import common.Protocol;
+import common.ResumePoint;
+import common.SharedPath;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encrypted, content-addressed store of earlier downloads, kept outside
+ * the temp folder so that it survives logout.
+ *
+ * Files are identified by their content id — the id of their ChunkRecipe,
+ * which the server announces under CONTENT_ID — and reused in two ways: a
+ * file whose id is held is restored whole without any transfer, and under
+ * DELTA the chunks of any held file can be copied into a new version.
+ *
+ * Nothing is kept in the clear. The key is derived with PBKDF2 from the
+ * faculty's password (and a per-store salt) at login and forgotten on
+ * close, so files are only readable — and only materialized into
+ * TEMP_FOLDER — during that faculty's session. Each retained file is an
+ * {@code <entry>.dat} of AES-GCM records, one per chunk, next to an
+ * {@code <entry>.idx} holding its encrypted recipe; the entry name is an
+ * HMAC of the content id, so the directory listing does not reveal what
+ * is cached. Entries another faculty's key cannot open are left alone but
+ * still count towards the size limit, and the least recently used entries
+ * are evicted first once it is exceeded (use is recorded on the .idx).
+ *
+ * Partial downloads can be parked here too, so that a logout, which wipes
+ * TEMP_FOLDER, does not throw away what RESUME needs: each is a
+ * {@code <entry>.prt} holding its sealed ResumePoint line and then its
+ * bytes as sealed records, named by an HMAC of its file name. The next
+ * login by the same faculty unparks them back into .part files and
+ * deletes them; they are not counted towards the size limit.
+ */
+final class ChunkStore implements Closeable {
+
+    static final String DATA_SUFFIX = ".dat";
+    static final String INDEX_SUFFIX = ".idx";
+    static final String SALT_FILE = "store.salt";
+    static final String PARKED_SUFFIX = ".prt";
+
+    /** Keeps parked entry names apart from content ids */
+    private static final String PARKED_PREFIX = "partial" + Protocol.DELIMITER;
+
+    static final int KEY_ITERATIONS = 120_000;
+    static final int NONCE_SIZE = 12;
+    static final int TAG_SIZE = 16;
+
+    /** Bytes an encrypted record adds to its chunk */
+    static final int RECORD_OVERHEAD = NONCE_SIZE + TAG_SIZE;
+
+    /** Where one chunk can be read from. */
+    static final class Location {
+        final String entry;
+        final int chunk;
+        final long offset;
+        final int length;
+
+        Location(String entry, int chunk, long offset, int length) {
+            this.entry = entry;
+            this.chunk = chunk;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final Path dir;
+    private final long limit;
+    private final SecureRandom random = new SecureRandom();
+
+    // All guarded by this
+    private final Map<String, Location> chunks = new HashMap<>();
+    private final Map<String, ChunkRecipe> recipes = new HashMap<>(); // by entry
+    private final Set<String> foreign = new HashSet<>(); // entries this key cannot open
+    private long storedBytes;
+    private final byte[] encryptionKey;
+    private final byte[] nameKey;
+    private final byte[] record = new byte[ContentChunker.MAX_CHUNK + RECORD_OVERHEAD];
+    private final MessageDigest sha256;
+
+    /**
+     * Opens (or creates) the store in {@code dir} with the key of one
+     * faculty and loads the entries that key can open.
+     *
+     * @param limit bytes on disk after which the oldest entries are evicted
+     */
+    ChunkStore(Path dir, long limit, String username, char[] password) throws IOException {
+        this.dir = dir;
+        this.limit = limit;
+        Files.createDirectories(dir);
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+            byte[] keys = deriveKeys(username, password, salt());
+            encryptionKey = Arrays.copyOfRange(keys, 0, 32);
+            nameKey = Arrays.copyOfRange(keys, 32, 64);
+            Arrays.fill(keys, (byte) 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot derive the cache key: " + e.getMessage(), e);
+        }
+        load();
+    }
+
+    /** The store for this machine: lanshare.chunkStore, else Protocol.CHUNK_STORE_FOLDER. */
+    static ChunkStore open(String username, char[] password) throws IOException {
+        return new ChunkStore(Paths.get(System.getProperty("lanshare.chunkStore", Protocol.CHUNK_STORE_FOLDER)),
+                Long.getLong("lanshare.chunkStoreBytes", Protocol.CHUNK_STORE_LIMIT), username, password);
+    }
+
+    private byte[] salt() throws IOException {
+        Path file = dir.resolve(SALT_FILE);
+        if (Files.isRegularFile(file) && Files.size(file) == 16)
+            return Files.readAllBytes(file);
+        byte[] salt = new byte[16];
+        random.nextBytes(salt);
+        Files.write(file, salt);
+        return salt;
+    }
+
+    /** 64 bytes: the AES key, then the HMAC key for entry names. */
+    private static byte[] deriveKeys(String username, char[] password, byte[] storeSalt)
+            throws GeneralSecurityException {
+        byte[] user = username.getBytes(StandardCharsets.UTF_8);
+        byte[] salt = Arrays.copyOf(storeSalt, storeSalt.length + user.length);
+        System.arraycopy(user, 0, salt, storeSalt.length, user.length);
+        PBEKeySpec spec = new PBEKeySpec(password, salt, KEY_ITERATIONS, 512);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private synchronized void load() throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, "*" + INDEX_SUFFIX)) {
+            for (Path index : entries) {
+                String name = index.getFileName().toString();
+                String entry = name.substring(0, name.length() - INDEX_SUFFIX.length());
+                Path data = dir.resolve(entry + DATA_SUFFIX);
+                if (!Files.isRegularFile(data)) {
+                    Files.deleteIfExists(index);
+                    continue;
+                }
+                long diskBytes = Files.size(data) + Files.size(index);
+                storedBytes += diskBytes;
+
+                ChunkRecipe recipe;
+                try {
+                    recipe = readIndex(entry, index);
+                } catch (GeneralSecurityException | IOException e) {
+                    foreign.add(entry); // another faculty's, or damaged
+                    continue;
+                }
+                if (recipe == null || Files.size(data) != recipe.size() + (long) recipe.count() * RECORD_OVERHEAD) {
+                    System.err.println("Dropping damaged cache entry " + entry);
+                    remove(entry);
+                    continue;
+                }
+                add(entry, recipe);
+            }
+        }
+    }
+
+    /** Chunks this session can reuse; 0 means there is nothing to reuse yet. */
+    synchronized int chunkCount() {
+        return chunks.size();
+    }
+
+    /** Whether a file with this content id can be restored. */
+    synchronized boolean contains(String contentId) {
+        return recipes.containsKey(entryName(contentId));
+    }
+
+    /** Where a chunk with this hash can be read, or null. */
+    synchronized Location find(byte[] hash) {
+        return chunks.get(key(hash));
+    }
+
+    /**
+     * Decrypts a chunk into {@code buffer} and checks it still has the hash
+     * it was stored under.
+     *
+     * @return false if it is gone or fails to decrypt; its entry is then dropped
+     */
+    synchronized boolean read(Location location, byte[] hash, byte[] buffer) {
+        try (FileChannel channel = FileChannel.open(dir.resolve(location.entry + DATA_SUFFIX),
+                StandardOpenOption.READ)) {
+            readRecord(channel, location, hash, buffer);
+            touch(location.entry);
+            return true;
+        } catch (IOException | GeneralSecurityException e) {
+            System.err.println("Cache entry " + location.entry + " unusable (" + e.getMessage() + ")");
+            remove(location.entry);
+            return false;
+        }
+    }
+
+    /**
+     * Decrypts a whole cached file to {@code destination}.
+     *
+     * @return false if it is not held or could not be restored intact
+     */
+    synchronized boolean restore(String contentId, Path destination) {
+        String entry = entryName(contentId);
+        ChunkRecipe recipe = recipes.get(entry);
+        if (recipe == null)
+            return false;
+        byte[] buffer = new byte[ContentChunker.MAX_CHUNK];
+        try (FileChannel in = FileChannel.open(dir.resolve(entry + DATA_SUFFIX), StandardOpenOption.READ);
+                OutputStream out = Files.newOutputStream(destination)) {
+            long offset = 0;
+            for (int i = 0; i < recipe.count(); i++) {
+                readRecord(in, new Location(entry, i, offset, recipe.length(i)), recipe.hash(i), buffer);
+                out.write(buffer, 0, recipe.length(i));
+                offset += recipe.length(i) + RECORD_OVERHEAD;
+            }
+            touch(entry);
+            return true;
+        } catch (IOException | GeneralSecurityException e) {
+            System.err.println("Cache entry " + entry + " unusable (" + e.getMessage() + ")");
+            remove(entry);
+            return false;
+        }
+    }
+
+    /** Keeps a downloaded file, chunking it first. */
+    void retain(Path file) throws IOException {
+        retain(file, ContentChunker.chunk(file));
+    }
+
+    /**
+     * Keeps an encrypted copy of a downloaded file whose chunks are already
+     * known, then evicts the least recently used entries if the store is
+     * over its limit.
+     */
+    synchronized void retain(Path file, ChunkRecipe recipe) throws IOException {
+        if (recipe.count() == 0 || Files.size(file) != recipe.size())
+            return;
+        String entry = entryName(recipe.id());
+        if (recipes.containsKey(entry)) {
+            touch(entry);
+            return;
+        }
+
+        Path data = dir.resolve(entry + DATA_SUFFIX);
+        Path index = dir.resolve(entry + INDEX_SUFFIX);
+        Path temp = dir.resolve(entry + DATA_SUFFIX + ".tmp");
+        byte[] buffer = new byte[ContentChunker.MAX_CHUNK];
+        try {
+            try (InputStream in = Files.newInputStream(file); OutputStream out = Files.newOutputStream(temp)) {
+                for (int i = 0; i < recipe.count(); i++) {
+                    int length = recipe.length(i);
+                    readFully(in, buffer, length);
+                    sha256.update(buffer, 0, length);
+                    if (!recipe.matches(i, sha256.digest()))
+                        throw new IOException(file.getFileName() + " does not match its recipe");
+                    out.write(record, 0, seal(aad(entry, i), buffer, length, record));
+                }
+            }
+            writeIndex(entry, index, recipe);
+            Files.move(temp, data, StandardCopyOption.REPLACE_EXISTING);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot encrypt " + file.getFileName() + ": " + e.getMessage(), e);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        storedBytes += Files.size(data) + Files.size(index);
+        add(entry, recipe);
+        evict(entry);
+    }
+
+    // ──────────────────────────────────────────────
+    // Parked partials
+    // ──────────────────────────────────────────────
+
+    /**
+     * Seals the partial download {@code part}, which holds the first bytes
+     * of {@code point}'s file, replacing any parked copy of the same name.
+     */
+    synchronized void park(ResumePoint point, Path part) throws IOException {
+        String entry = entryName(PARKED_PREFIX + point.name);
+        Path parked = dir.resolve(entry + PARKED_SUFFIX);
+        Path temp = dir.resolve(entry + PARKED_SUFFIX + ".tmp");
+        long length = Files.size(part);
+        byte[] header = new ResumePoint(point.name, point.size, point.lastModified, length).toLine()
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] buffer = new byte[ContentChunker.MAX_CHUNK];
+        byte[] sealed = new byte[header.length + RECORD_OVERHEAD];
+        try {
+            try (InputStream in = Files.newInputStream(part);
+                    DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp))) {
+                out.writeInt(sealed.length);
+                out.write(sealed, 0, seal(aad(entry, -1), header, header.length, sealed));
+                int chunk = 0;
+                for (long left = length; left > 0; left -= buffer.length, chunk++) {
+                    int n = (int) Math.min(buffer.length, left);
+                    readFully(in, buffer, n);
+                    out.write(record, 0, seal(aad(entry, chunk), buffer, n, record));
+                }
+            }
+            Files.move(temp, parked, StandardCopyOption.REPLACE_EXISTING);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot encrypt " + part.getFileName() + ": " + e.getMessage(), e);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Decrypts every partial this key parked back into {@code downloadDir}
+     * as a .part file and sidecar, and deletes it from the store. A partial
+     * already on disk wins over its parked copy.
+     *
+     * @return how many were restored
+     */
+    synchronized int unpark(Path downloadDir) {
+        int restored = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, "*" + PARKED_SUFFIX)) {
+            for (Path parked : entries) {
+                String name = parked.getFileName().toString();
+                String entry = name.substring(0, name.length() - PARKED_SUFFIX.length());
+                ResumePoint point;
+                try (DataInputStream in = new DataInputStream(Files.newInputStream(parked))) {
+                    point = readParkedHeader(entry, in);
+                    if (point == null)
+                        continue; // another faculty's
+                    Path target = SharedPath.resolve(downloadDir, point.name, true);
+                    Path part = PartialDownloads.partPath(target);
+                    if (!Files.exists(part) && !Files.exists(target)) {
+                        Files.createDirectories(target.getParent());
+                        try (OutputStream out = Files.newOutputStream(part)) {
+                            unsealRecords(entry, in, point.offset, out);
+                        }
+                        PartialDownloads.writeMeta(target, point.size, point.lastModified);
+                        restored++;
+                    }
+                } catch (IOException | GeneralSecurityException | IllegalArgumentException e) {
+                    System.err.println("Parked partial " + entry + " unusable (" + e.getMessage() + ")");
+                }
+                Files.deleteIfExists(parked);
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot read parked partials: " + e.getMessage());
+        }
+        return restored;
+    }
+
+    /** @return the parked ResumePoint, or null if this key did not park it */
+    private ResumePoint readParkedHeader(String entry, DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < RECORD_OVERHEAD || length > record.length)
+            throw new IOException("bad header");
+        byte[] sealed = new byte[length];
+        in.readFully(sealed);
+        byte[] plain = new byte[length - RECORD_OVERHEAD];
+        try {
+            unseal(aad(entry, -1), sealed, length, plain);
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+        ResumePoint point = ResumePoint.parse(new String(plain, StandardCharsets.UTF_8));
+        if (!entryName(PARKED_PREFIX + point.name).equals(entry))
+            throw new IOException("parked under another name");
+        return point;
+    }
+
+    private void unsealRecords(String entry, DataInputStream in, long length, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        byte[] buffer = new byte[ContentChunker.MAX_CHUNK];
+        int chunk = 0;
+        for (long left = length; left > 0; left -= buffer.length, chunk++) {
+            int size = (int) Math.min(buffer.length, left) + RECORD_OVERHEAD;
+            in.readFully(record, 0, size);
+            out.write(buffer, 0, unseal(aad(entry, chunk), record, size, buffer));
+        }
+    }
+
+    /** Bytes on disk, including entries this session cannot open. */
+    synchronized long storedBytes() {
+        return storedBytes;
+    }
+
+    /** Forgets the key; the store cannot be used afterwards. */
+    @Override
+    public synchronized void close() {
+        Arrays.fill(encryptionKey, (byte) 0);
+        Arrays.fill(nameKey, (byte) 0);
+        chunks.clear();
+        recipes.clear();
+    }
+
+    // ──────────────────────────────────────────────
+    // Entries
+    // ──────────────────────────────────────────────
+
+    private void add(String entry, ChunkRecipe recipe) {
+        recipes.put(entry, recipe);
+        long offset = 0;
+        for (int i = 0; i < recipe.count(); i++) {
+            chunks.putIfAbsent(key(recipe.hash(i)), new Location(entry, i, offset, recipe.length(i)));
+            offset += recipe.length(i) + RECORD_OVERHEAD;
+        }
+    }
+
+    private void remove(String entry) {
+        Path data = dir.resolve(entry + DATA_SUFFIX);
+        Path index = dir.resolve(entry + INDEX_SUFFIX);
+        try {
+            if (Files.exists(data))
+                storedBytes -= Files.size(data);
+            if (Files.exists(index))
+                storedBytes -= Files.size(index);
+            Files.deleteIfExists(index);
+            Files.deleteIfExists(data);
+        } catch (IOException e) {
+            System.err.println("Could not delete cache entry " + entry + ": " + e.getMessage());
+        }
+        foreign.remove(entry);
+        if (recipes.remove(entry) == null)
+            return;
+        for (Iterator<Location> it = chunks.values().iterator(); it.hasNext(); ) {
+            if (it.next().entry.equals(entry))
+                it.remove();
+        }
+        // Another entry may hold the same chunks
+        for (String other : new ArrayList<>(recipes.keySet()))
+            add(other, recipes.get(other));
+    }
+
+    /** Drops least recently used entries, of any faculty, until under the limit; never {@code keep}. */
+    private void evict(String keep) {
+        if (storedBytes <= limit)
+            return;
+        List<String> entries = new ArrayList<>(recipes.keySet());
+        entries.addAll(foreign);
+        Map<String, Long> used = new HashMap<>();
+        for (String entry : entries) {
+            try {
+                used.put(entry, Files.getLastModifiedTime(dir.resolve(entry + INDEX_SUFFIX)).toMillis());
+            } catch (IOException e) {
+                used.put(entry, 0L);
+            }
+        }
+        entries.sort(Comparator.comparing(used::get));
+        for (String entry : entries) {
+            if (storedBytes <= limit)
+                break;
+            if (!entry.equals(keep))
+                remove(entry);
+        }
+    }
+
+    /** Marks an entry as just used. */
+    private void touch(String entry) throws IOException {
+        Files.setLastModifiedTime(dir.resolve(entry + INDEX_SUFFIX), FileTime.fromMillis(System.currentTimeMillis()));
+    }
+
+    // ──────────────────────────────────────────────
+    // Encryption
+    // ──────────────────────────────────────────────
+
+    /** Entry file name for a content id: HMAC-SHA256 under the name key, Base64url. */
+    private String entryName(String contentId) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(nameKey, "HmacSHA256"));
+            byte[] tag = mac.doFinal(contentId.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(tag);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void readRecord(FileChannel channel, Location location, byte[] hash, byte[] buffer)
+            throws IOException, GeneralSecurityException {
+        int size = location.length + RECORD_OVERHEAD;
+        ByteBuffer dst = ByteBuffer.wrap(record, 0, size);
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, location.offset + dst.position()) < 0)
+                throw new IOException("ends early");
+        }
+        int n = unseal(aad(location.entry, location.chunk), record, size, buffer);
+        sha256.update(buffer, 0, n);
+        if (n != location.length || !MessageDigest.isEqual(sha256.digest(), hash))
+            throw new IOException("chunk " + location.chunk + " does not match its hash");
+    }
+
+    /** Encrypts {@code length} bytes of {@code plain} into {@code out} as nonce + ciphertext + tag. */
+    private int seal(byte[] aad, byte[] plain, int length, byte[] out) throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(encryptionKey, "AES"),
+                new GCMParameterSpec(TAG_SIZE * 8, nonce));
+        cipher.updateAAD(aad);
+        System.arraycopy(nonce, 0, out, 0, NONCE_SIZE);
+        return NONCE_SIZE + cipher.doFinal(plain, 0, length, out, NONCE_SIZE);
+    }
+
+    /** Reverses {@link #seal}; throws unless the record was sealed with this key and AAD. */
+    private int unseal(byte[] aad, byte[] sealed, int length, byte[] out) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(encryptionKey, "AES"),
+                new GCMParameterSpec(TAG_SIZE * 8, sealed, 0, NONCE_SIZE));
+        cipher.updateAAD(aad);
+        return cipher.doFinal(sealed, NONCE_SIZE, length - NONCE_SIZE, out, 0);
+    }
+
+    /** Binds a record to its entry and position, so records cannot be swapped. */
+    private static byte[] aad(String entry, int chunk) {
+        return (entry + Protocol.DELIMITER + chunk).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** The .idx holds the sealed recipe encoding (the content id is its hash). */
+    private void writeIndex(String entry, Path index, ChunkRecipe recipe) throws IOException, GeneralSecurityException {
+        byte[] plain = recipe.encode();
+        byte[] sealed = new byte[plain.length + RECORD_OVERHEAD];
+        Files.write(index, Arrays.copyOf(sealed, seal(aad(entry, -1), plain, plain.length, sealed)));
+    }
+
+    /** @return the recipe, or null if it decrypts but is not the entry it claims to be */
+    private ChunkRecipe readIndex(String entry, Path index) throws IOException, GeneralSecurityException {
+        byte[] sealed = Files.readAllBytes(index);
+        if (sealed.length < RECORD_OVERHEAD)
+            throw new IOException("index too short");
+        byte[] plain = new byte[sealed.length - RECORD_OVERHEAD];
+        int n = unseal(aad(entry, -1), sealed, sealed.length, plain);
+        ChunkRecipe recipe = ChunkRecipe.decode(plain, n);
+        return entryName(recipe.id()).equals(entry) ? recipe : null;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int filled = 0;
+        while (filled < length) {
+            int n = in.read(buffer, filled, length - filled);
+            if (n < 0)
+                throw new IOException("file ended early");
+            filled += n;
+        }
+    }
+
+    private static String key(byte[] hash) {
+        return Base64.getEncoder().encodeToString(hash);
+    }
+}
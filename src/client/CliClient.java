@@ -0,0 +1,555 @@
+package client;
+
+import common.Protocol;
+
+import java.io.Console;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Command-line client: downloads the share without a GUI, for machines
+ * that pre-stage content and for load-testing the server.
+ *
+ * It logs in and downloads through ClientSession just as the GUI does,
+ * finding the server by the faculty's hostname and then by UDP discovery
+ * unless --server names it. Progress goes to stdout one event per line,
+ * as key=value text or as JSON; diagnostics go to stderr. Downloads are
+ * kept (the GUI deletes its folder on exit).
+ *
+ * With --load=N it instead starts N sessions at once, each into its own
+ * folder (removed afterwards unless --keep), and reports aggregate
+ * throughput and percentiles of the connect (TCP, HELLO and login) and
+ * per-file latencies. Load sessions neither restore from nor fill the
+ * chunk cache, so every byte crosses the network.
+ *
+ * The password is read from LANSHARE_PASSWORD, else from the console.
+ */
+public class CliClient {
+
+    // ══════════════════════════════════════════════
+    // EXIT CODES
+    // ══════════════════════════════════════════════
+
+    /** Every file was received intact (every session, under --load) */
+    static final int EXIT_OK = 0;
+    /** Some files, or some load sessions, failed */
+    static final int EXIT_INCOMPLETE = 1;
+    static final int EXIT_USAGE = 2;
+    /** The server could not be reached */
+    static final int EXIT_UNREACHABLE = 3;
+    static final int EXIT_AUTH_FAILED = 4;
+    /** The server answered with an error instead of a file list */
+    static final int EXIT_SERVER_ERROR = 5;
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: java -cp build client.CliClient [options] <faculty>",
+            "  --server=HOST[:PORT]  connect here instead of the faculty's hostname or discovery",
+            "                        (an IPv6 address with a port goes in brackets: [fe80::1]:5060)",
+            "  --dir=PATH            download folder (default " + defaultFolder() + ")",
+            "  --format=text|json    progress as key=value lines (default) or JSON lines",
+            "  --quiet               no per-file events, only the summary",
+            "  --pool=N              pooled connections (default " + DownloadScheduler.DEFAULT_POOL_SIZE + ")",
+            "  --no-multicast --no-compress --no-checksum --no-cache",
+            "  --load=N              N concurrent sessions; reports throughput and latency percentiles",
+            "  --keep                keep the load sessions' downloads",
+            "Exit codes: 0 ok, 1 incomplete, 2 usage, 3 unreachable, 4 login rejected, 5 server error");
+
+    // ══════════════════════════════════════════════
+    // OPTIONS
+    // ══════════════════════════════════════════════
+
+    private String username;
+    private String password;
+    private String server;
+    private int port = Protocol.PORT;
+    private Path folder = Paths.get(defaultFolder());
+    private boolean json;
+    private boolean quiet;
+    private int poolSize = -1;
+    private boolean multicast = true;
+    private boolean compress = true;
+    private boolean checksum = true;
+    private boolean cache = true;
+    private int load;
+    private boolean keep;
+
+    /** Where events go; everything else the client prints goes to stderr */
+    private final PrintStream out;
+
+    CliClient(PrintStream out) {
+        this.out = out;
+    }
+
+    public static void main(String[] args) {
+        // Sessions print diagnostics to System.out; keep stdout for events
+        PrintStream events = System.out;
+        System.setOut(System.err);
+        System.exit(new CliClient(events).run(args));
+    }
+
+    /** Runs with {@code args}; returns the exit code. */
+    int run(String[] args) {
+        try {
+            parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return EXIT_USAGE;
+        }
+        if (password == null) {
+            password = System.getenv("LANSHARE_PASSWORD");
+            Console console = System.console();
+            if (password == null && console != null) {
+                char[] typed = console.readPassword("Password for %s: ", username);
+                password = typed == null ? null : new String(typed);
+            }
+            if (password == null) {
+                System.err.println("No password: set LANSHARE_PASSWORD or run from a console");
+                return EXIT_USAGE;
+            }
+        }
+        try {
+            return load > 0 ? runLoad() : runSingle();
+        } catch (IOException e) {
+            System.err.println("Failed: " + e.getMessage());
+            return EXIT_INCOMPLETE;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return EXIT_INCOMPLETE;
+        }
+    }
+
+    private void parse(String[] args) {
+        for (String arg : args) {
+            String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : null;
+            String name = value == null ? arg : arg.substring(0, arg.indexOf('='));
+            switch (name) {
+                case "--server" -> server(required(name, value));
+                case "--dir" -> folder = Paths.get(required(name, value));
+                case "--format" -> {
+                    if (!required(name, value).equals("text") && !value.equals("json"))
+                        throw new IllegalArgumentException("--format must be text or json");
+                    json = value.equals("json");
+                }
+                case "--quiet" -> quiet = true;
+                case "--pool" -> poolSize = number(name, value);
+                case "--no-multicast" -> multicast = false;
+                case "--no-compress" -> compress = false;
+                case "--no-checksum" -> checksum = false;
+                case "--no-cache" -> cache = false;
+                case "--load" -> load = number(name, value);
+                case "--keep" -> keep = true;
+                default -> {
+                    if (arg.startsWith("-") || username != null)
+                        throw new IllegalArgumentException("Unknown argument: " + arg);
+                    username = arg;
+                }
+            }
+        }
+        if (username == null)
+            throw new IllegalArgumentException("No faculty given");
+        if (server == null && Protocol.getHostnameForFaculty(username) == null)
+            throw new IllegalArgumentException("Unknown faculty '" + username + "': give --server");
+    }
+
+    /**
+     * Splits HOST[:PORT]. An IPv6 address takes a port only in brackets,
+     * as in [fe80::1]:5060; unbracketed, more than one ':' means a bare host.
+     */
+    private void server(String value) {
+        String portPart;
+        if (value.startsWith("[")) {
+            int close = value.indexOf(']');
+            String rest = close < 0 ? "" : value.substring(close + 1);
+            if (close < 2 || !(rest.isEmpty() || rest.startsWith(":")))
+                throw new IllegalArgumentException("--server must be HOST[:PORT] or [ADDRESS][:PORT]");
+            server = value.substring(1, close);
+            portPart = rest.isEmpty() ? null : rest.substring(1);
+        } else {
+            int colon = value.indexOf(':');
+            boolean hostOnly = colon < 0 || colon != value.lastIndexOf(':');
+            server = hostOnly ? value : value.substring(0, colon);
+            portPart = hostOnly ? null : value.substring(colon + 1);
+        }
+        if (portPart != null)
+            port = number("--server", portPart);
+    }
+
+    private static String required(String name, String value) {
+        if (value == null || value.isEmpty())
+            throw new IllegalArgumentException(name + " needs a value");
+        return value;
+    }
+
+    private static int number(String name, String value) {
+        try {
+            int n = Integer.parseInt(required(name, value));
+            if (n > 0)
+                return n;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(name + " needs a positive number");
+    }
+
+    /** The GUI's folder on Windows; elsewhere a folder of the same name under the temp directory. */
+    private static String defaultFolder() {
+        if (System.getProperty("os.name", "").startsWith("Windows"))
+            return Protocol.TEMP_FOLDER;
+        return Paths.get(System.getProperty("java.io.tmpdir"), "TempClassFiles").toString();
+    }
+
+    /** Broadcasts for the server; its reply also moves {@link #port} if it listens elsewhere. */
+    private String discover() {
+        InetSocketAddress found = ServerDiscovery.discover();
+        if (found == null)
+            return null;
+        port = found.getPort();
+        return found.getHostString();
+    }
+
+    private ClientSession newSession(Path downloads) {
+        ClientSession session = new ClientSession(downloads);
+        if (poolSize > 0)
+            session.setPoolSize(poolSize);
+        session.setMulticast(multicast);
+        session.setCompress(compress);
+        session.setChecksum(checksum);
+        session.setCache(cache);
+        session.setDelta(cache);
+        return session;
+    }
+
+    // ══════════════════════════════════════════════
+    // SINGLE SESSION
+    // ══════════════════════════════════════════════
+
+    private int runSingle() throws IOException {
+        Files.createDirectories(folder);
+        List<String> tried = new ArrayList<>();
+        String hostname = server != null ? server : Protocol.getHostnameForFaculty(username);
+        ClientSession session = null;
+        long connectNanos = 0;
+        boolean rejected = false;
+        for (int attempt = 0; attempt < 2 && session == null && !rejected; attempt++) {
+            String address = attempt == 0 ? hostname : server == null ? discover() : null;
+            if (address == null)
+                continue;
+            tried.add(address);
+            ClientSession candidate = newSession(folder);
+            long start = System.nanoTime();
+            try {
+                if (candidate.connect(address, port, username, password)) {
+                    session = candidate;
+                    connectNanos = System.nanoTime() - start;
+                    String hello = candidate.handshake().toLine();
+                    event("connected", "server", address, "port", port, "ms", millis(connectNanos), "version",
+                            candidate.handshake().version(), "features",
+                            hello.substring(hello.indexOf(Protocol.DELIMITER, Protocol.HELLO_PREFIX.length()) + 1));
+                    continue;
+                }
+                rejected = true;
+            } catch (IOException e) {
+                System.err.println("Connection failed to " + address + ": " + e.getMessage());
+            }
+            candidate.close();
+        }
+        if (session == null) {
+            event("failed", "reason", rejected ? "login rejected" : "unreachable", "tried", String.join(",", tried));
+            return rejected ? EXIT_AUTH_FAILED : EXIT_UNREACHABLE;
+        }
+
+        Progress progress = new Progress(!quiet);
+        long start = System.nanoTime();
+        int received;
+        try {
+            received = session.downloadAll(progress);
+        } finally {
+            session.close();
+        }
+        long nanos = System.nanoTime() - start;
+        event("finished", "files", received, "of", progress.fileCount, "bytes", progress.bytes.get(),
+                "seconds", Math.round(nanos / 1e7) / 100.0, "mbps", megabytesPerSecond(progress.bytes.get(), nanos),
+                "folder", folder.toAbsolutePath().toString());
+        if (progress.serverError != null)
+            return EXIT_SERVER_ERROR;
+        return received == progress.fileCount ? EXIT_OK : EXIT_INCOMPLETE;
+    }
+
+    // ══════════════════════════════════════════════
+    // LOAD GENERATION
+    // ══════════════════════════════════════════════
+
+    private int runLoad() throws IOException, InterruptedException {
+        String address = server != null ? server : Protocol.getHostnameForFaculty(username);
+        if (server == null) {
+            try {
+                InetAddress.getByName(address);
+            } catch (UnknownHostException e) {
+                address = discover();
+                if (address == null) {
+                    event("failed", "reason", "unreachable", "tried", Protocol.getHostnameForFaculty(username));
+                    return EXIT_UNREACHABLE;
+                }
+            }
+        }
+        cache = false;
+        Files.createDirectories(folder);
+
+        String target = address;
+        long[] connectNanos = new long[load];
+        long[] sessionNanos = new long[load];
+        Queue<Long> fileNanos = new ConcurrentLinkedQueue<>();
+        AtomicLong bytes = new AtomicLong();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        AtomicInteger files = new AtomicInteger();
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] sessions = new Thread[load];
+        for (int i = 0; i < load; i++) {
+            int id = i;
+            sessions[i] = new Thread(() -> {
+                Path downloads = folder.resolve(String.format("session-%03d", id + 1));
+                Progress progress = new Progress(false);
+                progress.fileNanos = fileNanos;
+                boolean ok = false;
+                try {
+                    Files.createDirectories(downloads);
+                    go.await();
+                    long start = System.nanoTime();
+                    try (ClientSession session = newSession(downloads)) {
+                        if (!session.connect(target, port, username, password)) {
+                            rejected.incrementAndGet();
+                        } else {
+                            connectNanos[id] = System.nanoTime() - start;
+                            int received = session.downloadAll(progress);
+                            ok = received == progress.fileCount && progress.serverError == null;
+                            files.addAndGet(received);
+                        }
+                    }
+                    sessionNanos[id] = System.nanoTime() - start;
+                } catch (IOException e) {
+                    System.err.println("Session " + (id + 1) + ": " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                bytes.addAndGet(progress.bytes.get());
+                if (!ok)
+                    failed.incrementAndGet();
+                if (!quiet)
+                    event("session", "id", id + 1, "ok", ok, "files", progress.completed.get(), "bytes",
+                            progress.bytes.get(), "connectMs", millis(connectNanos[id]), "ms",
+                            millis(sessionNanos[id]));
+            }, "load-" + (i + 1));
+            sessions[i].start();
+        }
+
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread session : sessions)
+            session.join();
+        long wall = System.nanoTime() - start;
+
+        long[] connects = Arrays.stream(connectNanos).filter(n -> n > 0).sorted().toArray();
+        long[] perFile = fileNanos.stream().mapToLong(Long::longValue).sorted().toArray();
+        event("load", "sessions", load, "failed", failed.get(), "files", files.get(), "bytes", bytes.get(),
+                "seconds", Math.round(wall / 1e7) / 100.0, "mbps", megabytesPerSecond(bytes.get(), wall),
+                "connectP50Ms", percentileMs(connects, 50), "connectP95Ms", percentileMs(connects, 95),
+                "connectP99Ms", percentileMs(connects, 99), "connectMaxMs", percentileMs(connects, 100),
+                "fileP50Ms", percentileMs(perFile, 50), "fileP95Ms", percentileMs(perFile, 95),
+                "fileP99Ms", percentileMs(perFile, 99), "fileMaxMs", percentileMs(perFile, 100));
+
+        if (!keep) {
+            for (int i = 0; i < load; i++)
+                deleteTree(folder.resolve(String.format("session-%03d", i + 1)));
+        }
+        if (rejected.get() == load)
+            return EXIT_AUTH_FAILED;
+        if (connects.length == 0)
+            return EXIT_UNREACHABLE;
+        return failed.get() == 0 ? EXIT_OK : EXIT_INCOMPLETE;
+    }
+
+    // ══════════════════════════════════════════════
+    // PROGRESS
+    // ══════════════════════════════════════════════
+
+    /** Counts a session's bytes and file latencies and, if {@code verbose}, reports each step. */
+    private final class Progress implements DownloadListener {
+        private final boolean verbose;
+        private final Map<Integer, Long> startedAt = new ConcurrentHashMap<>();
+        /** Last whole percentage reported per file, so that a file reports at most 101 progress events */
+        private final Map<Integer, Integer> reported = new ConcurrentHashMap<>();
+        private final AtomicInteger totalReported = new AtomicInteger(-1);
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicInteger completed = new AtomicInteger();
+        volatile int fileCount;
+        volatile String serverError;
+        /** Where completed files' latencies go, if anywhere */
+        Queue<Long> fileNanos;
+
+        Progress(boolean verbose) {
+            this.verbose = verbose;
+        }
+
+        @Override
+        public void onNoFiles() {
+            if (verbose)
+                event("empty");
+        }
+
+        @Override
+        public void onServerError(String message) {
+            serverError = message;
+            event("serverError", "message", message);
+        }
+
+        @Override
+        public void onFileCount(int fileCount) {
+            this.fileCount = fileCount;
+            if (verbose)
+                event("files", "count", fileCount);
+        }
+
+        @Override
+        public void onFileStarted(int fileNum, int fileCount, String fileName, long fileSize) {
+            startedAt.put(fileNum, System.nanoTime());
+            if (verbose)
+                event("started", "file", fileNum, "of", fileCount, "name", fileName, "size", fileSize);
+        }
+
+        @Override
+        public void onProgress(int fileNum, int fileCount, long bytesReceived, long fileSize) {
+            if (!verbose || fileSize <= 0)
+                return;
+            int percent = (int) (bytesReceived * 100 / fileSize);
+            Integer last = reported.put(fileNum, percent);
+            if (last == null || last != percent)
+                event("progress", "file", fileNum, "bytes", bytesReceived, "size", fileSize, "percent", percent);
+        }
+
+        @Override
+        public void onTotalProgress(long bytesReceived, long totalBytes) {
+            if (!verbose || totalBytes <= 0)
+                return;
+            int percent = (int) (bytesReceived * 100 / totalBytes);
+            int last = totalReported.get();
+            if (percent != last && totalReported.compareAndSet(last, percent))
+                event("total", "bytes", bytesReceived, "size", totalBytes, "percent", percent);
+        }
+
+        @Override
+        public void onFileCompleted(int fileNum, int fileCount, String fileName, long fileSize) {
+            Long started = startedAt.remove(fileNum);
+            reported.remove(fileNum);
+            long nanos = started == null ? 0 : System.nanoTime() - started;
+            if (fileNanos != null && started != null)
+                fileNanos.add(nanos);
+            bytes.addAndGet(fileSize);
+            completed.incrementAndGet();
+            if (verbose)
+                event("completed", "file", fileNum, "of", fileCount, "name", fileName, "size", fileSize, "ms",
+                        millis(nanos));
+        }
+    }
+
+    /**
+     * Prints one event line: {@code type key=value ...}, or a JSON object
+     * with an "event" member under --format=json.
+     */
+    private void event(String type, Object... fields) {
+        StringBuilder line = new StringBuilder(128);
+        if (json)
+            line.append("{\"event\":\"").append(type).append('"');
+        else
+            line.append(type);
+        for (int i = 0; i < fields.length; i += 2) {
+            Object value = fields[i + 1];
+            boolean text = value instanceof String;
+            if (json) {
+                line.append(",\"").append(fields[i]).append("\":");
+                if (text)
+                    quote(line, (String) value);
+                else
+                    line.append(value);
+            } else {
+                line.append(' ').append(fields[i]).append('=');
+                String shown = String.valueOf(value);
+                if (text && (shown.isEmpty() || shown.contains(" ") || shown.contains("\"")))
+                    quote(line, shown);
+                else
+                    line.append(shown);
+            }
+        }
+        if (json)
+            line.append('}');
+        synchronized (out) {
+            out.println(line);
+        }
+    }
+
+    /** Appends {@code s} as a JSON string literal (also used for text values with spaces). */
+    private static void quote(StringBuilder line, String s) {
+        line.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> line.append("\\\"");
+                case '\\' -> line.append("\\\\");
+                case '\n' -> line.append("\\n");
+                case '\r' -> line.append("\\r");
+                case '\t' -> line.append("\\t");
+                default -> {
+                    if (c < 0x20)
+                        line.append(String.format("\\u%04x", (int) c));
+                    else
+                        line.append(c);
+                }
+            }
+        }
+        line.append('"');
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1_000_000;
+    }
+
+    private static double megabytesPerSecond(long bytes, long nanos) {
+        return nanos <= 0 ? 0 : Math.round(bytes / (1024.0 * 1024) / (nanos / 1e9) * 10) / 10.0;
+    }
+
+    /** Nearest-rank percentile of sorted nanosecond values, in ms (-1 if there are none). */
+    private static double percentileMs(long[] sorted, int pct) {
+        if (sorted.length == 0)
+            return -1;
+        int index = (int) Math.ceil(pct / 100.0 * sorted.length) - 1;
+        return Math.round(sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e4) / 100.0;
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        if (!Files.exists(dir))
+            return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(p);
+        }
+    }
+}
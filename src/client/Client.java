@@ -2,6 +2,7 @@ package client;
 
 import common.Protocol;
 import common.SecurityUtil;
+import common.SharedPath;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
@@ -10,18 +11,25 @@ import java.awt.*;
 import java.awt.event.*;
 import java.awt.geom.RoundRectangle2D;
 import java.io.*;
-import java.net.*;
+import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 /**
  * GUI client application for the LAN File Sharing System.
  *
  * Features:
  * - Clean, modern login interface with gradient background
+ * - Browse-first: the share's listing appears at once, files are fetched
+ *   on double-click and prefetched newest first in the background
  * - Real-time progress bar during file downloads
  * - File manager with sizes and open-folder button
  * - Secure exit with temp-file cleanup
@@ -72,11 +80,19 @@ public class Client {
 
     private JFrame loginFrame;
     private JFrame fileFrame;
-    private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    private ClientSession session;
     private final List<String> downloadedFiles = new ArrayList<>();
 
+    /** Browse-first unless -Dlanshare.browse=false; otherwise everything is downloaded at login */
+    private static final boolean BROWSE_FIRST = Boolean.parseBoolean(System.getProperty("lanshare.browse", "true"));
+
+    /** The share's listing, one entry per list row (browse mode only), and who fetches it */
+    private volatile List<DownloadScheduler.Job> manifest;
+    private volatile Prefetcher prefetcher;
+
+    /** Samples download progress into the list and bar while this window is open */
+    private volatile ProgressMeter meter;
+
     // ══════════════════════════════════════════════
     // ENTRY POINT
     // ══════════════════════════════════════════════
@@ -249,12 +265,13 @@ public class Client {
         JPanel header = new JPanel(new BorderLayout());
         header.setOpaque(false);
 
-        JLabel headerTitle = new JLabel("Downloaded Files");
+        JLabel headerTitle = new JLabel(BROWSE_FIRST ? "Shared Files" : "Downloaded Files");
         headerTitle.setFont(new Font("Segoe UI", Font.BOLD, 22));
         headerTitle.setForeground(FM_TEXT);
         header.add(headerTitle, BorderLayout.WEST);
 
-        JLabel headerSub = new JLabel("Files are saved to C:\\TempClassFiles");
+        JLabel headerSub = new JLabel(BROWSE_FIRST ? "Double-click a file to open it"
+                : "Files are saved to C:\\TempClassFiles");
         headerSub.setFont(new Font("Segoe UI", Font.PLAIN, 12));
         headerSub.setForeground(new Color(120, 125, 150));
         header.add(headerSub, BorderLayout.EAST);
@@ -310,7 +327,12 @@ public class Client {
         JButton openBtn = makeFMButton("Open Folder", new Color(80, 170, 120));
         JButton exitBtn = makeFMButton("Exit", new Color(200, 70, 70));
 
-        refreshBtn.addActionListener(e -> refreshFileList(listModel));
+        refreshBtn.addActionListener(e -> {
+            if (manifest != null)
+                showManifest(listModel);
+            else
+                refreshFileList(listModel);
+        });
         openBtn.addActionListener(e -> openTempFolder());
         exitBtn.addActionListener(e -> exitApplication());
 
@@ -331,8 +353,21 @@ public class Client {
 
         fileFrame.setVisible(true);
 
+        fileList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2)
+                    openOnDemand(fileList.locationToIndex(e.getPoint()), statusLabel);
+            }
+        });
+
         // Start downloads
-        new Thread(() -> downloadFiles(listModel, progressBar, statusLabel)).start();
+        new Thread(() -> {
+            if (session.canBrowse())
+                browseFiles(listModel, progressBar, statusLabel);
+            else
+                downloadFiles(listModel, progressBar, statusLabel);
+        }).start();
     }
 
     // ══════════════════════════════════════════════
@@ -347,16 +382,16 @@ public class Client {
         }
 
         // Try 1: Hostname
-        if (tryConnect(hostname, username, password)) {
+        if (tryConnect(hostname, Protocol.PORT, username, password)) {
             return true;
         }
 
         System.out.println("Hostname connection failed. Trying Auto-Discovery...");
 
-        // Try 2: Auto-Discovery (IP)
-        String discoveredIp = discoverServerIp();
-        if (discoveredIp != null) {
-            if (tryConnect(discoveredIp, username, password)) {
+        // Try 2: Auto-Discovery (IP, and port if the server moved off the default)
+        InetSocketAddress discovered = ServerDiscovery.discover();
+        if (discovered != null) {
+            if (tryConnect(discovered.getHostString(), discovered.getPort(), username, password)) {
                 return true;
             }
         }
@@ -369,7 +404,7 @@ public class Client {
                 JOptionPane.QUESTION_MESSAGE);
 
         if (manualIp != null && !manualIp.trim().isEmpty()) {
-            if (tryConnect(manualIp.trim(), username, password)) {
+            if (tryConnect(manualIp.trim(), Protocol.PORT, username, password)) {
                 return true;
             }
         }
@@ -377,27 +412,20 @@ public class Client {
         return false;
     }
 
-    private boolean tryConnect(String address, String username, String password) {
+    private boolean tryConnect(String address, int port, String username, String password) {
+        ClientSession attempt = new ClientSession(Paths.get(Protocol.TEMP_FOLDER));
+        attempt.setBrowse(BROWSE_FIRST);
         try {
             System.out.println("Connecting to " + address + "...");
-            socket = new Socket();
-            socket.connect(new InetSocketAddress(address, Protocol.PORT), 10000); // 10s timeout
-            socket.setSoTimeout(Protocol.SOCKET_TIMEOUT_MS);
-
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            // Send username + SHA-256 hash
-            out.println(username);
-            out.println(SecurityUtil.hashPassword(password));
-
-            String response = in.readLine();
-            return Protocol.AUTH_SUCCESS.equals(response);
-
+            if (attempt.connect(address, port, username, password)) {
+                session = attempt;
+                return true;
+            }
         } catch (IOException e) {
             System.err.println("Connection failed to " + address + ": " + e.getMessage());
-            return false;
         }
+        attempt.close();
+        return false;
     }
 
     // ══════════════════════════════════════════════
@@ -408,131 +436,234 @@ public class Client {
             JProgressBar progressBar, JLabel statusLabel) {
         try {
             createTempFolder();
-            String response = in.readLine();
-
-            if (Protocol.NO_FILES.equals(response)) {
-                updateUI(() -> {
-                    statusLabel.setText("No files available on server.");
-                    progressBar.setValue(100);
-                    progressBar.setString("No files");
-                    listModel.clear();
-                    listModel.addElement("  (no files on server)");
-                });
-                return;
-            }
-
-            if (response != null && response.startsWith(Protocol.ERROR_PREFIX)) {
-                String err = response.substring(Protocol.ERROR_PREFIX.length());
-                updateUI(() -> {
-                    statusLabel.setText("Server error: " + err);
-                    progressBar.setForeground(CLR_ERROR);
-                });
-                return;
-            }
 
-            if (response == null || !response.startsWith(Protocol.FILE_COUNT_PREFIX)) {
-                updateUI(() -> statusLabel.setText("Unexpected server response."));
-                return;
-            }
-
-            int fileCount = Integer.parseInt(response.substring(Protocol.FILE_COUNT_PREFIX.length()));
-            updateUI(() -> {
-                listModel.clear();
-                statusLabel.setText("Downloading " + fileCount + " file(s)...");
-            });
-
-            int successCount = 0;
+            // List row per file (EDT only); percentages and the bar are sampled by the meter
+            Map<Integer, Integer> rowOf = new HashMap<>();
+            ProgressMeter meter = new ProgressMeter(progressBar,
+                    (fileNum, percent) -> setRowProgress(listModel, rowOf.get(fileNum), percent));
+            this.meter = meter;
+
+            session.downloadAll(new DownloadListener() {
+                @Override
+                public void onNoFiles() {
+                    updateUI(() -> {
+                        meter.stop();
+                        statusLabel.setText("No files available on server.");
+                        progressBar.setValue(100);
+                        progressBar.setString("No files");
+                        listModel.clear();
+                        listModel.addElement("  (no files on server)");
+                    });
+                }
 
-            for (int i = 0; i < fileCount; i++) {
-                String fileInfo = in.readLine();
-                if (fileInfo == null || !fileInfo.startsWith(Protocol.FILE_INFO_PREFIX))
-                    break;
+                @Override
+                public void onServerError(String err) {
+                    updateUI(() -> {
+                        meter.stop();
+                        statusLabel.setText("Server error: " + err);
+                        progressBar.setForeground(CLR_ERROR);
+                    });
+                }
 
-                String payload = fileInfo.substring(Protocol.FILE_INFO_PREFIX.length());
-                int lastColon = payload.lastIndexOf(Protocol.DELIMITER);
-                if (lastColon <= 0)
-                    break;
+                @Override
+                public void onFileCount(int fileCount) {
+                    updateUI(() -> {
+                        listModel.clear();
+                        statusLabel.setText("Downloading " + fileCount + " file(s)...");
+                    });
+                }
 
-                String fileName = payload.substring(0, lastColon);
-                long fileSize = Long.parseLong(payload.substring(lastColon + 1));
+                @Override
+                public void onFileStarted(int fileNum, int fileCount, String fileName, long fileSize) {
+                    final String entry = progressRow(fileName, fileSize, 0);
+                    meter.started(fileNum, fileCount, fileSize);
+                    updateUI(() -> {
+                        statusLabel.setText("Downloading (" + fileNum + "/" + fileCount + "): " + fileName);
+                        rowOf.put(fileNum, listModel.size());
+                        listModel.addElement(entry);
+                    });
+                }
 
-                final int fileNum = i + 1;
-                updateUI(() -> statusLabel.setText("Downloading (" + fileNum + "/" + fileCount + "): " + fileName));
+                @Override
+                public void onProgress(int fileNum, int fileCount, long bytesReceived, long fileSize) {
+                    // Called for every buffer, from several threads when pooled: just a store
+                    meter.progress(fileNum, bytesReceived);
+                }
 
-                out.println(Protocol.READY);
+                @Override
+                public void onTotalProgress(long bytesReceived, long totalBytes) {
+                    meter.total(bytesReceived, totalBytes);
+                }
 
-                boolean ok = downloadFile(fileName, fileSize, progressBar, fileNum, fileCount);
-                if (ok) {
-                    downloadedFiles.add(fileName);
+                @Override
+                public void onFileCompleted(int fileNum, int fileCount, String fileName, long fileSize) {
                     final String entry = String.format("  %-42s %s", fileName, formatSize(fileSize));
-                    updateUI(() -> listModel.addElement(entry));
-                    out.println(Protocol.FILE_RECEIVED);
-                    successCount++;
-                } else {
-                    out.println(Protocol.FILE_ERROR);
-                    break;
+                    meter.completed(fileNum, fileSize);
+                    updateUI(() -> {
+                        downloadedFiles.add(fileName);
+                        Integer row = rowOf.get(fileNum);
+                        if (row != null)
+                            listModel.set(row, entry);
+                        else
+                            listModel.addElement(entry);
+                    });
                 }
-            }
 
-            in.readLine(); // consume TRANSFER_COMPLETE
-
-            final int sc = successCount;
-            updateUI(() -> {
-                statusLabel.setText("Done — " + sc + " file(s) downloaded successfully.");
-                statusLabel.setForeground(CLR_SUCCESS);
-                progressBar.setValue(100);
-                progressBar.setString("Complete ✓");
-                progressBar.setForeground(CLR_SUCCESS);
+                @Override
+                public void onFinished(int successCount) {
+                    updateUI(() -> {
+                        meter.stop();
+                        statusLabel.setText("Done — " + successCount + " file(s) downloaded successfully.");
+                        statusLabel.setForeground(CLR_SUCCESS);
+                        progressBar.setValue(100);
+                        progressBar.setString("Complete ✓");
+                        progressBar.setForeground(CLR_SUCCESS);
+                    });
+                }
             });
 
         } catch (Exception e) {
             System.err.println("Download error: " + e.getMessage());
             updateUI(() -> {
+                if (meter != null)
+                    meter.stop();
                 statusLabel.setText("Error: " + e.getMessage());
                 statusLabel.setForeground(CLR_ERROR);
             });
         }
     }
 
-    private boolean downloadFile(String fileName, long fileSize,
-            JProgressBar progressBar,
-            int currentFile, int totalFiles) {
-        Path filePath = Paths.get(Protocol.TEMP_FOLDER, fileName);
+    // ══════════════════════════════════════════════
+    // NETWORK — Browse & fetch on demand
+    // ══════════════════════════════════════════════
+
+    /**
+     * Shows the share's listing as soon as it arrives, then leaves the
+     * Prefetcher to fetch files: double-clicked ones first, the newest
+     * ones while the board is idle.
+     */
+    private void browseFiles(DefaultListModel<String> listModel,
+            JProgressBar progressBar, JLabel statusLabel) {
+        try {
+            createTempFolder();
+            List<DownloadScheduler.Job> files = session.browse(new DownloadListener() {
+                @Override
+                public void onNoFiles() {
+                    updateUI(() -> {
+                        statusLabel.setText("No files available on server.");
+                        progressBar.setValue(100);
+                        progressBar.setString("No files");
+                        listModel.clear();
+                        listModel.addElement("  (no files on server)");
+                    });
+                }
+
+                @Override
+                public void onServerError(String err) {
+                    updateUI(() -> {
+                        statusLabel.setText("Server error: " + err);
+                        progressBar.setForeground(CLR_ERROR);
+                    });
+                }
+            });
+            if (files.isEmpty())
+                return;
 
-        try (FileOutputStream fos = new FileOutputStream(filePath.toFile());
-                BufferedOutputStream bos = new BufferedOutputStream(fos, Protocol.BUFFER_SIZE)) {
+            // fileNum is the 1-based position in the listing, so row = fileNum - 1
+            ProgressMeter meter = new ProgressMeter(null,
+                    (fileNum, percent) -> setRowProgress(listModel, fileNum - 1, percent));
+            this.meter = meter;
+            AtomicInteger local = new AtomicInteger();
+            DownloadListener rows = new DownloadListener() {
+                @Override
+                public void onFileStarted(int fileNum, int fileCount, String fileName, long fileSize) {
+                    final String entry = progressRow(fileName, fileSize, 0);
+                    meter.started(fileNum, fileCount, fileSize);
+                    updateUI(() -> {
+                        statusLabel.setText("Fetching: " + fileName);
+                        listModel.set(fileNum - 1, entry);
+                    });
+                }
 
-            DataInputStream dis = new DataInputStream(socket.getInputStream());
-            byte[] buffer = new byte[Protocol.BUFFER_SIZE];
-            long totalRead = 0;
+                @Override
+                public void onProgress(int fileNum, int fileCount, long bytesReceived, long fileSize) {
+                    meter.progress(fileNum, bytesReceived);
+                }
 
-            while (totalRead < fileSize) {
-                int toRead = (int) Math.min(buffer.length, fileSize - totalRead);
-                int bytesRead = dis.read(buffer, 0, toRead);
-                if (bytesRead == -1)
-                    break;
+                @Override
+                public void onFileCompleted(int fileNum, int fileCount, String fileName, long fileSize) {
+                    final String entry = String.format("  %-42s %s", fileName, formatSize(fileSize));
+                    final int done = local.incrementAndGet();
+                    meter.completed(fileNum, fileSize);
+                    updateUI(() -> {
+                        downloadedFiles.add(fileName);
+                        listModel.set(fileNum - 1, entry);
+                        showFetched(done, fileCount, progressBar, statusLabel);
+                    });
+                }
+            };
 
-                bos.write(buffer, 0, bytesRead);
-                totalRead += bytesRead;
+            Prefetcher fetcher = new Prefetcher(session, Paths.get(Protocol.TEMP_FOLDER), files,
+                    Long.getLong("lanshare.prefetchBytes", Prefetcher.DEFAULT_BUDGET), rows);
+            updateUI(() -> {
+                manifest = files;
+                prefetcher = fetcher;
+                showManifest(listModel);
+                showFetched(0, files.size(), progressBar, statusLabel);
+                fetcher.start();
+            });
 
-                final int fileProgress = (int) ((totalRead * 100) / fileSize);
-                final int overall = (int) (((currentFile - 1) * 100L + fileProgress) / totalFiles);
-                final long tr = totalRead;
+        } catch (Exception e) {
+            System.err.println("Browse error: " + e.getMessage());
+            updateUI(() -> {
+                statusLabel.setText("Error: " + e.getMessage());
+                statusLabel.setForeground(CLR_ERROR);
+            });
+        }
+    }
 
+    /** Fetches the file on {@code row} if it is not here yet, then opens it. */
+    private void openOnDemand(int row, JLabel statusLabel) {
+        List<DownloadScheduler.Job> files = manifest;
+        Prefetcher fetcher = prefetcher;
+        if (files == null || fetcher == null || row < 0 || row >= files.size())
+            return;
+        DownloadScheduler.Job job = files.get(row);
+        if (!fetcher.isFetched(job.name))
+            statusLabel.setText("Fetching " + job.name + "...");
+        fetcher.request(job).thenAccept(ok -> {
+            if (!ok) {
                 updateUI(() -> {
-                    progressBar.setValue(overall);
-                    progressBar.setString(formatSize(tr) + " / " + formatSize(fileSize) + "  (" + overall + "%)");
+                    statusLabel.setText("Could not fetch " + job.name);
+                    statusLabel.setForeground(CLR_ERROR);
                 });
+                return;
             }
-            bos.flush();
-            return totalRead == fileSize;
+            try {
+                Desktop.getDesktop().open(Paths.get(Protocol.TEMP_FOLDER).resolve(job.name).toFile());
+            } catch (IOException | UnsupportedOperationException e) {
+                updateUI(() -> statusLabel.setText("Fetched " + job.name + " — cannot open it: " + e.getMessage()));
+            }
+        });
+    }
 
-        } catch (IOException e) {
-            System.err.println("Error downloading " + fileName + ": " + e.getMessage());
-            return false;
+    /** One row per file of the listing; files not fetched yet are marked (EDT only). */
+    private void showManifest(DefaultListModel<String> listModel) {
+        listModel.clear();
+        for (DownloadScheduler.Job job : manifest) {
+            boolean local = prefetcher != null && prefetcher.isFetched(job.name);
+            listModel.addElement(String.format(local ? "  %-42s %s" : "  %-42s %s  on server", job.name,
+                    formatSize(job.size)));
         }
     }
 
+    private static void showFetched(int done, int fileCount, JProgressBar progressBar, JLabel statusLabel) {
+        statusLabel.setForeground(new Color(150, 155, 175));
+        statusLabel.setText(fileCount + " file(s) on server — double-click to open");
+        progressBar.setValue(fileCount == 0 ? 100 : (int) (done * 100L / fileCount));
+        progressBar.setString(done + " / " + fileCount + " fetched");
+    }
+
     // ══════════════════════════════════════════════
     // EXIT & CLEANUP
     // ══════════════════════════════════════════════
@@ -557,20 +688,21 @@ public class Client {
     }
 
     private void cleanup() {
-        try {
-            if (out != null)
-                out.close();
-        } catch (Exception ignored) {
+        if (meter != null) {
+            meter.stop();
+            meter = null;
         }
-        try {
-            if (in != null)
-                in.close();
-        } catch (Exception ignored) {
+        if (prefetcher != null) {
+            prefetcher.stop();
+            prefetcher = null;
         }
-        try {
-            if (socket != null)
-                socket.close();
-        } catch (Exception ignored) {
+        manifest = null;
+        if (session != null) {
+            int parked = session.parkPartials();
+            if (parked > 0)
+                System.out.println("Parked " + parked + " partial download(s) for the next login.");
+            session.close();
+            session = null;
         }
         deleteTempFiles();
         System.out.println("Cleanup complete — all temp files removed.");
@@ -580,16 +712,18 @@ public class Client {
         Path tempPath = Paths.get(Protocol.TEMP_FOLDER);
         if (!Files.exists(tempPath))
             return;
-        try {
-            Files.list(tempPath).filter(Files::isRegularFile).forEach(path -> {
+        // Deepest first, so each subfolder is empty by the time it is reached
+        try (Stream<Path> paths = Files.walk(tempPath)) {
+            paths.sorted(Comparator.reverseOrder()).filter(path -> !path.equals(tempPath)).forEach(path -> {
                 try {
                     Files.delete(path);
-                    System.out.println("Deleted: " + path.getFileName());
+                    if (!Files.isDirectory(path))
+                        System.out.println("Deleted: " + tempPath.relativize(path));
                 } catch (IOException e) {
                     System.err.println("Could not delete " + path);
                 }
             });
-        } catch (IOException e) {
+        } catch (IOException | UncheckedIOException e) {
             System.err.println("Error scanning temp folder: " + e.getMessage());
         }
     }
@@ -608,16 +742,18 @@ public class Client {
         model.clear();
         Path tempPath = Paths.get(Protocol.TEMP_FOLDER);
         if (Files.exists(tempPath)) {
-            try {
-                Files.list(tempPath).filter(Files::isRegularFile).sorted().forEach(path -> {
+            try (Stream<Path> paths = Files.walk(tempPath)) {
+                paths.filter(Files::isRegularFile)
+                        .filter(path -> !PartialDownloads.isPartial(path)).sorted().forEach(path -> {
+                    String name = SharedPath.of(tempPath, path);
                     try {
                         long size = Files.size(path);
-                        model.addElement(String.format("  %-42s %s", path.getFileName(), formatSize(size)));
+                        model.addElement(String.format("  %-42s %s", name, formatSize(size)));
                     } catch (IOException ignored) {
-                        model.addElement("  " + path.getFileName());
+                        model.addElement("  " + name);
                     }
                 });
-            } catch (IOException e) {
+            } catch (IOException | UncheckedIOException e) {
                 model.addElement("  Error reading folder.");
             }
         }
@@ -637,7 +773,7 @@ public class Client {
         }
     }
 
-    private static String formatSize(long bytes) {
+    public static String formatSize(long bytes) {
         if (bytes < 1024)
             return bytes + " B";
         if (bytes < 1024 * 1024)
@@ -647,44 +783,22 @@ public class Client {
         return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
     }
 
-    private void updateUI(Runnable task) {
-        SwingUtilities.invokeLater(task);
+    /** List entry for a file that is still arriving. */
+    private static String progressRow(String fileName, long fileSize, int percent) {
+        return String.format("  %-42s %s  %3d%%", fileName, formatSize(fileSize), percent);
     }
 
-    // ──────────────────────────────────────────────
-    // UDP Auto-Discovery
-    // ──────────────────────────────────────────────
-
-    /**
-     * Broadcasts a UDP packet to find the server's IP address.
-     * Use this if hostname resolution fails.
-     */
-    private String discoverServerIp() {
-        System.out.println("Attempting UDP Auto-Discovery...");
-        try (DatagramSocket socket = new DatagramSocket()) {
-            socket.setBroadcast(true);
-            socket.setSoTimeout(2000); // Wait up to 2 seconds
-
-            byte[] reqData = Protocol.DISCOVER_SERVER_REQUEST.getBytes();
-            DatagramPacket reqPacket = new DatagramPacket(
-                    reqData, reqData.length, InetAddress.getByName("255.255.255.255"), Protocol.DISCOVERY_PORT);
-            socket.send(reqPacket);
-
-            byte[] resBuffer = new byte[1024];
-            DatagramPacket resPacket = new DatagramPacket(resBuffer, resBuffer.length);
-            socket.receive(resPacket);
-
-            String response = new String(resPacket.getData(), 0, resPacket.getLength()).trim();
-            if (Protocol.DISCOVER_SERVER_RESPONSE.equals(response)) {
-                String serverIp = resPacket.getAddress().getHostAddress();
-                System.out.println("Auto-Discovery Successful! Server found at: " + serverIp);
-                return serverIp;
-            }
+    /** Rewrites the trailing percentage of an in-progress row (EDT only). */
+    private static void setRowProgress(DefaultListModel<String> listModel, Integer row, int percent) {
+        if (row == null || row >= listModel.size())
+            return;
+        String current = listModel.get(row);
+        if (current.endsWith("%"))
+            listModel.set(row, current.substring(0, current.length() - 4) + String.format("%3d%%", percent));
+    }
 
-        } catch (Exception e) {
-            System.err.println("Auto-Discovery failed: " + e.getMessage());
-        }
-        return null;
+    private void updateUI(Runnable task) {
+        SwingUtilities.invokeLater(task);
     }
 
     // ──────────────────────────────────────────────
@@ -0,0 +1,1505 @@
+package client;
+
+import common.ChunkRecipe;
+import common.FrameCodec;
+import common.Handshake;
+import common.LineIO;
+import common.MerkleTree;
+import common.Protocol;
+import common.ResumePoint;
+import common.SecurityUtil;
+import common.SharedPath;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * One authenticated connection to a faculty server, and the download loop
+ * that runs on it. Holds no GUI state — progress is reported through a
+ * DownloadListener.
+ *
+ * On connect the session offers protocol v2 features (see Handshake). If
+ * the server turns out to predate HELLO, it reconnects once and speaks the
+ * original lock-step protocol.
+ *
+ * When RESUME is agreed, files arrive as .part files (see PartialDownloads)
+ * and any left over from an interrupted session are continued from where
+ * they stopped.
+ *
+ * When SPLIT is agreed, files at or above the threshold arrive as header
+ * only; under MANIFEST every file does. Those files are fetched after the
+ * main loop by a DownloadScheduler, over extra connections opened with
+ * {@link #openRangeConnection()}.
+ *
+ * When MULTICAST is agreed, the session joins the server's multicast group
+ * right after login (see MulticastReceiver); every file arrives header only
+ * and its body comes over UDP. Once the server sends MULTICAST_DONE, gaps
+ * the NACK repairs could not fill are fetched over one range connection.
+ *
+ * When SWARM is agreed (opt-in), every file arrives header only and a
+ * SwarmDownloader fetches it chunk by chunk from other boards, going to
+ * the server only for chunks no board holds yet. The session keeps its
+ * TRACKER connection and SwarmPeer open until close(), so the board goes
+ * on seeding after its own download has finished.
+ *
+ * When DELTA is agreed, files are header only as under MANIFEST, and
+ * before the pool starts a DeltaSync rebuilds every file it can from the
+ * ChunkStore, fetching only the chunks that changed. Under CONTENT_ID,
+ * files the store holds whole are first restored from it without any
+ * transfer. Whatever arrives is retained, encrypted, for the next session;
+ * the store's key is derived from the password at login and dropped on
+ * close().
+ *
+ * When TREE is agreed, names are paths relative to the shared folder; each
+ * is checked with SharedPath and its folders are created under the
+ * download folder as its header arrives. Header-only files are kept in a
+ * JobSpool and fetched a page at a time, so a long manifest is never held
+ * in memory whole.
+ *
+ * In browse mode (see {@link #setBrowse}) the session offers MANIFEST
+ * but neither MULTICAST nor SWARM, and {@link #browse} reads the header-only
+ * listing without fetching anything; files are then fetched one request at
+ * a time with {@link #fetch}, usually by a Prefetcher.
+ *
+ * When FRAMED is agreed, everything after the AUTH line is read and written
+ * through a FrameCodec; the download loops themselves do not change. With
+ * COMPRESS as well, on the main and range connections alike, DATA frames
+ * may arrive deflated and are inflated by the codec. With CHECKSUM, every
+ * frame is checked against its CRC32C and damaged ones are fetched again
+ * by range, and each file is checked against the root of its hash tree.
+ */
+public class ClientSession implements Closeable {
+
+    /** Connect timeout for a single attempt (10 seconds) */
+    private static final int CONNECT_TIMEOUT_MS = 10_000;
+
+    /** Times a range connection asks again for frames that keep arriving damaged */
+    static final int MAX_REPAIRS = 3;
+
+    /** Features offered in the HELLO line */
+    private static final List<String> OFFERED_FEATURES = List.of(Protocol.FEATURE_PIPELINE,
+            Protocol.FEATURE_FRAMED, Protocol.FEATURE_RESUME, Protocol.FEATURE_TREE);
+
+    private final Path downloadDir;
+
+    /** Files at least this large are fetched in parallel ranges (0 = never) */
+    private long splitThreshold = Long.getLong("lanshare.splitBytes", Protocol.SPLIT_THRESHOLD);
+
+    /** Pooled connections for manifest downloads (1 = classic single stream) */
+    private int poolSize = Integer.getInteger("lanshare.poolSize", DownloadScheduler.DEFAULT_POOL_SIZE);
+
+    private DownloadScheduler.Strategy strategy =
+            DownloadScheduler.Strategy.parse(System.getProperty("lanshare.schedule"));
+
+    /** Whether MULTICAST is offered on the next connect */
+    private boolean multicast = Boolean.parseBoolean(System.getProperty("lanshare.multicast", "true"));
+
+    /** Whether DELTA is offered */
+    private boolean delta = Boolean.parseBoolean(System.getProperty("lanshare.delta", "true"));
+
+    /** Whether CONTENT_ID is offered (restoring unchanged files from the ChunkStore) */
+    private boolean cache = Boolean.parseBoolean(System.getProperty("lanshare.cache", "true"));
+
+    /** Whether SWARM is offered on the next connect (instead of MULTICAST) */
+    private boolean swarm = Boolean.getBoolean("lanshare.swarm");
+
+    /** Whether COMPRESS is offered (deflated DATA frames, FRAMED only) */
+    private boolean compress = Boolean.parseBoolean(System.getProperty("lanshare.compress", "true"));
+
+    /** Whether CHECKSUM is offered (a CRC32C per DATA frame and a hash tree per file, FRAMED only) */
+    private boolean checksum = Boolean.parseBoolean(System.getProperty("lanshare.checksum", "true"));
+
+    /** Frames that failed their CRC32C and were fetched again; shared with side connections */
+    private AtomicLong repairedFrames = new AtomicLong();
+
+    /** One whole DATA frame under CHECKSUM, allocated on first use */
+    private byte[] frame;
+
+    /** Whether the next connect asks for the listing only (see browse()) */
+    private boolean browseOnly = Boolean.getBoolean("lanshare.browse");
+
+    /** Files announced by the last browse(), for listener callbacks */
+    private int browsedCount;
+
+    // Kept so that range connections can log in the same way
+    private String address;
+    private int port;
+    private String username;
+    private String hashedPassword;
+
+    private Socket socket;
+    private LineIO io;
+    private Handshake handshake = new Handshake(1, Map.of());
+
+    /** Frame codec once FRAMED is in effect, otherwise null (text lines) */
+    private FrameCodec codec;
+
+    /** Header-only files announced by the main loop, fetched once it finishes */
+    private final JobSpool splitFiles = new JobSpool();
+
+    /** Listening to the server's multicast group (MULTICAST only), else null */
+    private MulticastReceiver receiver;
+
+    // Where the bodies of the last multicast session came from
+    private long multicastBytes;
+    private long fallbackBytes;
+
+    /** Opened at login when DELTA or CONTENT_ID is agreed, or for parking (see parking()), else null */
+    private ChunkStore chunkStore;
+
+    // What the last session restored from the cache, reused and fetched
+    private long restoredBytes;
+    private long deltaReusedBytes;
+    private long deltaFetchedBytes;
+
+    // Swarm membership, kept until close() so the board can keep seeding
+    private SwarmPeer swarmPeer;
+    private TrackerClient tracker;
+    private String swarmToken;
+
+    // Where the bodies of the last swarm session came from
+    private long swarmPeerBytes;
+    private long swarmServerBytes;
+
+    /**
+     * @param downloadDir folder that received files are written to
+     */
+    public ClientSession(Path downloadDir) {
+        this.downloadDir = downloadDir;
+    }
+
+    // ──────────────────────────────────────────────
+    // Connect & authenticate
+    // ──────────────────────────────────────────────
+
+    /**
+     * Connects and logs in.
+     *
+     * @return true on AUTH_SUCCESS, false if the server rejected the login
+     * @throws IOException if the server cannot be reached
+     */
+    public boolean connect(String address, int port, String username, String password) throws IOException {
+        String hashedPassword = SecurityUtil.hashPassword(password);
+        this.address = address;
+        this.port = port;
+        this.username = username;
+        this.hashedPassword = hashedPassword;
+
+        Handshake offer = Handshake.offer(Protocol.PROTOCOL_VERSION, OFFERED_FEATURES);
+        if (splitThreshold > 0)
+            offer = offer.with(Protocol.FEATURE_SPLIT, Long.toString(splitThreshold));
+        if (poolSize > 1 || browseOnly)
+            offer = offer.with(Protocol.FEATURE_MANIFEST, null);
+        if (delta)
+            offer = offer.with(Protocol.FEATURE_DELTA, null);
+        if (cache)
+            offer = offer.with(Protocol.FEATURE_CONTENT_ID, null);
+        if (compress)
+            offer = offer.with(Protocol.FEATURE_COMPRESS, null);
+        if (checksum)
+            offer = offer.with(Protocol.FEATURE_CHECKSUM, null);
+        // Both push every file at once, which browsing is meant to avoid
+        if (swarm && !browseOnly)
+            offer = offer.with(Protocol.FEATURE_SWARM, null);
+        else if (multicast && !browseOnly)
+            offer = offer.with(Protocol.FEATURE_MULTICAST, null);
+
+        // Send HELLO and credentials in one go — an old server must not be
+        // left waiting for a password line that we are holding back
+        open(address, port);
+        io.writeLine(offer.toLine());
+        io.writeLine(username);
+        io.sendLine(hashedPassword);
+
+        String response = io.readLine();
+        if (Handshake.isHello(response)) {
+            handshake = Handshake.parse(response);
+            if (!Protocol.AUTH_SUCCESS.equals(io.readLine()))
+                return false;
+            if (handshake.has(Protocol.FEATURE_FRAMED))
+                codec = new FrameCodec(io);
+            if (handshake.has(Protocol.FEATURE_DELTA) || handshake.has(Protocol.FEATURE_CONTENT_ID) || parking())
+                openChunkStore(username, password);
+            if (handshake.has(Protocol.FEATURE_RESUME)) {
+                // Partials parked at the last logout go back on disk first
+                if (chunkStore != null && parking())
+                    unparkPartials();
+                sendResumePoints();
+            }
+            if (handshake.has(Protocol.FEATURE_MULTICAST))
+                joinMulticast(handshake.value(Protocol.FEATURE_MULTICAST));
+            return true;
+        }
+
+        closeSocket();
+        if (!Protocol.AUTH_FAILED.equals(response))
+            return false;
+
+        // The server read our HELLO as a username: retry as a v1 client
+        System.out.println("Server does not support protocol negotiation — using lock-step mode.");
+        open(address, port);
+        io.writeLine(username);
+        io.sendLine(hashedPassword);
+        return Protocol.AUTH_SUCCESS.equals(io.readLine());
+    }
+
+    /**
+     * Opens another authenticated connection to the same server that only
+     * serves GET_RANGE requests (see {@link #fetchRange}).
+     *
+     * @throws IOException if it cannot connect, log in, or agree on RANGES
+     */
+    ClientSession openRangeConnection() throws IOException {
+        ClientSession range = openSideConnection(Protocol.FEATURE_RANGES, true);
+        range.socket.setTcpNoDelay(true); // many small request/reply exchanges
+        return range;
+    }
+
+    /**
+     * Opens a connection to the server's swarm tracker; requests go through
+     * {@link #sendRequest} and {@link #readReply} as text lines.
+     *
+     * @throws IOException if it cannot connect, log in, or agree on TRACKER
+     */
+    ClientSession openTrackerConnection() throws IOException {
+        ClientSession tracker = openSideConnection(Protocol.FEATURE_TRACKER, false);
+        tracker.socket.setSoTimeout(0); // stays open, mostly idle, while this board seeds
+        tracker.socket.setTcpNoDelay(true);
+        return tracker;
+    }
+
+    /**
+     * Logs in on a new connection that offers only {@code feature} (and
+     * FRAMED if asked, with COMPRESS and CHECKSUM if the main connection
+     * agreed them).
+     */
+    private ClientSession openSideConnection(String feature, boolean framed) throws IOException {
+        ClientSession side = new ClientSession(downloadDir);
+        List<String> features = new ArrayList<>(List.of(feature));
+        if (framed)
+            features.add(Protocol.FEATURE_FRAMED);
+        if (framed && handshake.has(Protocol.FEATURE_COMPRESS))
+            features.add(Protocol.FEATURE_COMPRESS);
+        if (framed && handshake.has(Protocol.FEATURE_CHECKSUM))
+            features.add(Protocol.FEATURE_CHECKSUM);
+        side.repairedFrames = repairedFrames;
+        try {
+            side.open(address, port);
+            side.io.writeLine(Handshake.offer(Protocol.PROTOCOL_VERSION, features).toLine());
+            side.io.writeLine(username);
+            side.io.sendLine(hashedPassword);
+
+            String response = side.io.readLine();
+            if (!Handshake.isHello(response))
+                throw new IOException("Server refused " + feature + " connection");
+            side.handshake = Handshake.parse(response);
+            if (!side.handshake.has(feature) || !Protocol.AUTH_SUCCESS.equals(side.io.readLine()))
+                throw new IOException("Server refused " + feature + " connection");
+            if (side.handshake.has(Protocol.FEATURE_FRAMED))
+                side.codec = new FrameCodec(side.io);
+            return side;
+        } catch (IOException | RuntimeException e) {
+            side.close();
+            throw e;
+        }
+    }
+
+    /** Sends one text line on a side connection. */
+    void sendRequest(String line) throws IOException {
+        io.sendLine(line);
+    }
+
+    /** Reads one text line from a side connection (null at end of stream). */
+    String readReply() throws IOException {
+        return io.readLine();
+    }
+
+    /** Sets the SPLIT threshold offered on the next connect (0 disables splitting). */
+    public void setSplitThreshold(long bytes) {
+        splitThreshold = bytes;
+    }
+
+    /** Sets the connection pool size for the next connect (1 disables MANIFEST). */
+    public void setPoolSize(int connections) {
+        poolSize = connections;
+    }
+
+    /** Sets the order in which pooled downloads are scheduled. */
+    public void setStrategy(DownloadScheduler.Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /** Sets whether MULTICAST is offered on the next connect. */
+    public void setMulticast(boolean enabled) {
+        multicast = enabled;
+    }
+
+    /** Sets whether DELTA is offered on the next connect. */
+    public void setDelta(boolean enabled) {
+        delta = enabled;
+    }
+
+    /** Sets whether CONTENT_ID is offered on the next connect. */
+    public void setCache(boolean enabled) {
+        cache = enabled;
+    }
+
+    /** Sets whether COMPRESS is offered on the next connect. */
+    public void setCompress(boolean enabled) {
+        compress = enabled;
+    }
+
+    /** Sets whether CHECKSUM is offered on the next connect. */
+    public void setChecksum(boolean enabled) {
+        checksum = enabled;
+    }
+
+    /** Sets whether SWARM is offered on the next connect; it takes precedence over MULTICAST. */
+    public void setSwarm(boolean enabled) {
+        swarm = enabled;
+    }
+
+    /**
+     * Sets whether the next connect asks for the listing only, so that
+     * {@link #browse} can be used instead of {@link #downloadAll}.
+     */
+    public void setBrowse(boolean enabled) {
+        browseOnly = enabled;
+    }
+
+    private void open(String address, int port) throws IOException {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT_MS);
+        socket.setSoTimeout(Protocol.SOCKET_TIMEOUT_MS);
+        io = new LineIO(socket.getInputStream(), socket.getOutputStream());
+    }
+
+    /** The protocol version and features agreed with the server. */
+    public Handshake handshake() {
+        return handshake;
+    }
+
+    // ──────────────────────────────────────────────
+    // Downloads
+    // ──────────────────────────────────────────────
+
+    /**
+     * Receives every file the server shares into the download folder.
+     *
+     * @return the number of files received intact
+     */
+    public int downloadAll(DownloadListener listener) throws IOException {
+        int fileCount = readFileCount(listener);
+        if (fileCount < 0)
+            return 0;
+
+        splitFiles.clear();
+        int successCount = handshake.has(Protocol.FEATURE_PIPELINE)
+                ? downloadPipelined(fileCount, listener)
+                : downloadLockStep(fileCount, listener);
+        if (handshake.has(Protocol.FEATURE_MULTICAST))
+            successCount += downloadMulticast(fileCount, listener);
+        else if (handshake.has(Protocol.FEATURE_SWARM))
+            successCount += downloadSwarm(fileCount, listener);
+        else
+            successCount += downloadSplitFiles(fileCount, listener);
+
+        listener.onFinished(successCount);
+        return successCount;
+    }
+
+    /**
+     * Reads the reply to the login: FILE_COUNT, NO_FILES or an error.
+     *
+     * @return the number of files announced, or -1 if there are none to read
+     */
+    private int readFileCount(DownloadListener listener) throws IOException {
+        String response = codec != null ? readFramedListing() : io.readLine();
+
+        if (Protocol.NO_FILES.equals(response)) {
+            listener.onNoFiles();
+            return -1;
+        }
+
+        if (response != null && response.startsWith(Protocol.ERROR_PREFIX)) {
+            listener.onServerError(response.substring(Protocol.ERROR_PREFIX.length()));
+            return -1;
+        }
+
+        if (response == null || !response.startsWith(Protocol.FILE_COUNT_PREFIX))
+            throw new IOException("Unexpected server response.");
+
+        int fileCount = Integer.parseInt(response.substring(Protocol.FILE_COUNT_PREFIX.length()));
+        listener.onFileCount(fileCount);
+        return fileCount;
+    }
+
+    /** Original protocol: READY and FILE_RECEIVED round trips per file. */
+    private int downloadLockStep(int fileCount, DownloadListener listener) throws IOException {
+        int successCount = 0;
+
+        for (int i = 0; i < fileCount; i++) {
+            FileInfo info = readFileInfo();
+            if (info == null)
+                break;
+
+            int fileNum = i + 1;
+            if (isSplit(info)) {
+                splitFiles.add(info.toJob(fileNum));
+                continue;
+            }
+            listener.onFileStarted(fileNum, fileCount, info.name, info.size);
+            sendSignal(FrameCodec.T_READY, Protocol.READY);
+
+            if (receiveFile(info, fileNum, fileCount, listener)) {
+                listener.onFileCompleted(fileNum, fileCount, info.name, info.size);
+                sendSignal(FrameCodec.T_FILE_RECEIVED, Protocol.FILE_RECEIVED);
+                successCount++;
+            } else {
+                sendSignal(FrameCodec.T_FILE_ERROR, Protocol.FILE_ERROR);
+                break;
+            }
+        }
+
+        readTransferComplete();
+        return successCount;
+    }
+
+    /**
+     * Pipelined protocol: bodies arrive back-to-back; we ACK every
+     * ACK_WINDOW files and once after TRANSFER_COMPLETE.
+     */
+    private int downloadPipelined(int fileCount, DownloadListener listener) throws IOException {
+        int successCount = 0;
+        int handled = 0; // files taken off the stream, split ones included
+
+        for (int i = 0; i < fileCount; i++) {
+            FileInfo info = readFileInfo();
+            if (info == null)
+                throw new IOException("Malformed file header in pipelined stream");
+
+            int fileNum = i + 1;
+            if (isSplit(info)) {
+                splitFiles.add(info.toJob(fileNum));
+            } else {
+                listener.onFileStarted(fileNum, fileCount, info.name, info.size);
+
+                if (!receiveFile(info, fileNum, fileCount, listener)) {
+                    // The rest of the stream cannot be trusted any more
+                    sendSignal(FrameCodec.T_FILE_ERROR, Protocol.FILE_ERROR);
+                    return successCount;
+                }
+                listener.onFileCompleted(fileNum, fileCount, info.name, info.size);
+                successCount++;
+            }
+            handled++;
+
+            if (handled % Protocol.ACK_WINDOW == 0)
+                sendAck(handled);
+        }
+
+        readTransferComplete();
+        sendAck(handled);
+        return successCount;
+    }
+
+    /**
+     * Parses FILE_INFO:<name>:<size> (plus :<mtime>:<offset> under RESUME),
+     * or returns null if malformed.
+     */
+    private FileInfo readFileInfo() throws IOException {
+        if (codec != null) {
+            byte type = codec.readHeader();
+            String contentId = null;
+            byte[] rootHash = null;
+            while (type == FrameCodec.T_CONTENT_ID || type == FrameCodec.T_FILE_HASH) {
+                if (type == FrameCodec.T_CONTENT_ID)
+                    contentId = codec.readTextPayload();
+                else
+                    rootHash = codec.readBytesPayload();
+                type = codec.readHeader();
+            }
+            if (type != FrameCodec.T_FILE_INFO)
+                return null;
+            long size = codec.readLongField();
+            long lastModified = codec.readLongField();
+            long offset = codec.readLongField();
+            FileInfo info = new FileInfo(codec.readTextPayload(), size, lastModified, offset);
+            info.rootHash = rootHash;
+            return checked(info.withContentId(contentId));
+        }
+
+        String fileInfo = io.readLine();
+        String contentId = null;
+        if (fileInfo != null && fileInfo.startsWith(Protocol.CONTENT_ID_PREFIX)) {
+            contentId = fileInfo.substring(Protocol.CONTENT_ID_PREFIX.length());
+            fileInfo = io.readLine();
+        }
+        FileInfo info = parseFileInfo(fileInfo, handshake.has(Protocol.FEATURE_RESUME));
+        return info == null ? null : checked(info.withContentId(contentId));
+    }
+
+    /**
+     * Parses a text FILE_INFO line, with mtime and offset if {@code resume};
+     * null if it is not one.
+     */
+    static FileInfo parseFileInfo(String fileInfo, boolean resume) {
+        if (fileInfo == null || !fileInfo.startsWith(Protocol.FILE_INFO_PREFIX))
+            return null;
+
+        // Numeric fields are taken from the right; the name is whatever is left
+        String rest = fileInfo.substring(Protocol.FILE_INFO_PREFIX.length());
+        long[] fields = new long[resume ? 3 : 1];
+        for (int i = fields.length - 1; i >= 0; i--) {
+            int colon = rest.lastIndexOf(Protocol.DELIMITER);
+            if (colon <= 0)
+                return null;
+            fields[i] = Long.parseLong(rest.substring(colon + 1));
+            rest = rest.substring(0, colon);
+        }
+        return fields.length == 3
+                ? new FileInfo(rest, fields[0], fields[1], fields[2])
+                : new FileInfo(rest, fields[0], 0, 0);
+    }
+
+    /**
+     * Rejects a name that could leave the download folder, and creates the
+     * folders a TREE name needs.
+     */
+    private FileInfo checked(FileInfo info) throws IOException {
+        boolean nested = handshake.has(Protocol.FEATURE_TREE);
+        Path target = SharedPath.resolve(downloadDir, info.name, nested);
+        if (nested && !target.getParent().equals(downloadDir.toAbsolutePath().normalize()))
+            Files.createDirectories(target.getParent());
+        return info;
+    }
+
+    /**
+     * Writes the incoming body to disk. Under RESUME it goes to the .part
+     * file, appended at the offset the server chose, and is renamed into
+     * place only once complete. Under CHECKSUM, frames that arrived damaged
+     * are fetched again on a range connection, and the file must then match
+     * the hash tree root the server announced (if it had one yet).
+     */
+    private boolean receiveFile(FileInfo info, int fileNum, int fileCount, DownloadListener listener) {
+        Path filePath = downloadDir.resolve(info.name);
+        boolean resumable = handshake.has(Protocol.FEATURE_RESUME);
+        Path writePath = resumable ? PartialDownloads.partPath(filePath) : filePath;
+
+        try {
+            if (resumable)
+                preparePartial(info, filePath);
+            IntegrityCheck check = new IntegrityCheck(info.rootHash).resumeFrom(writePath, info.offset);
+            List<long[]> damaged = new ArrayList<>();
+
+            long totalRead;
+            try (FileOutputStream fos = new FileOutputStream(writePath.toFile(), info.offset > 0);
+                    BufferedOutputStream bos = new BufferedOutputStream(fos, Protocol.BUFFER_SIZE)) {
+                totalRead = codec != null
+                        ? copyFramedBody(bos, info, fileNum, fileCount, listener, check, damaged)
+                        : copyRawBody(bos, info, fileNum, fileCount, listener);
+                bos.flush();
+            }
+            if (totalRead != info.size)
+                return false;
+            if (!damaged.isEmpty())
+                repair(info.name, writePath, damaged);
+            if (!check.verify(writePath, info.size)) {
+                System.err.println(info.name + " does not match the server's hash — discarding it");
+                if (resumable)
+                    PartialDownloads.discard(filePath);
+                else
+                    Files.deleteIfExists(filePath);
+                return false;
+            }
+
+            if (resumable)
+                PartialDownloads.complete(filePath);
+            return true;
+
+        } catch (IOException e) {
+            System.err.println("Error downloading " + info.name + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Gets the .part file ready for a body starting at {@code info.offset}:
+     * a fresh sidecar for a new download, or the existing partial cut back
+     * to exactly the offset the server is resuming from.
+     */
+    private void preparePartial(FileInfo info, Path filePath) throws IOException {
+        if (info.offset == 0) {
+            PartialDownloads.writeMeta(filePath, info.size, info.lastModified);
+            return;
+        }
+
+        Path part = PartialDownloads.partPath(filePath);
+        if (!Files.exists(part) || Files.size(part) < info.offset) {
+            // The server is resuming from bytes we no longer have
+            PartialDownloads.discard(filePath);
+            throw new IOException("partial file is missing or shorter than offset " + info.offset);
+        }
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+            channel.truncate(info.offset);
+        }
+        System.out.println("Resuming " + info.name + " at byte " + info.offset);
+    }
+
+    /** Copies the raw body bytes following a FILE_INFO line. */
+    private long copyRawBody(OutputStream out, FileInfo info, int fileNum, int fileCount,
+            DownloadListener listener) throws IOException {
+        byte[] buffer = new byte[Protocol.BUFFER_SIZE];
+        long totalRead = info.offset;
+
+        while (totalRead < info.size) {
+            int toRead = (int) Math.min(buffer.length, info.size - totalRead);
+            int bytesRead = io.read(buffer, 0, toRead);
+            if (bytesRead == -1)
+                break;
+
+            out.write(buffer, 0, bytesRead);
+            totalRead += bytesRead;
+            listener.onProgress(fileNum, fileCount, totalRead, info.size);
+        }
+        return totalRead;
+    }
+
+    /**
+     * Copies DATA frames until the LAST one. Under CHECKSUM each frame is
+     * read whole and checked first; a damaged one is written as zeros and
+     * its range added to {@code damaged}, to be fetched again once the body
+     * is complete.
+     */
+    private long copyFramedBody(OutputStream out, FileInfo info, int fileNum, int fileCount,
+            DownloadListener listener, IntegrityCheck check, List<long[]> damaged) throws IOException {
+        byte[] buffer = new byte[Protocol.BUFFER_SIZE];
+        long totalRead = info.offset;
+        boolean checked = handshake.has(Protocol.FEATURE_CHECKSUM);
+
+        do {
+            codec.expect(FrameCodec.T_DATA);
+            if (checked) {
+                int expected = expectedFrameLength(info.name, totalRead, info.size);
+                int n = codec.readCheckedData(frame());
+                if (n == expected) {
+                    out.write(frame, 0, n);
+                    check.update(frame, n, totalRead);
+                } else {
+                    damaged.add(new long[] { totalRead, expected });
+                    out.write(new byte[expected]);
+                }
+                totalRead += expected;
+                listener.onProgress(fileNum, fileCount, totalRead, info.size);
+                continue;
+            }
+            int bytesRead;
+            while ((bytesRead = codec.readData(buffer, 0, buffer.length)) != -1) {
+                out.write(buffer, 0, bytesRead);
+                check.update(buffer, bytesRead, totalRead);
+                totalRead += bytesRead;
+                listener.onProgress(fileNum, fileCount, totalRead, info.size);
+            }
+        } while (!codec.isLast());
+        return totalRead;
+    }
+
+    /**
+     * File bytes the DATA frame at {@code position} must carry under
+     * CHECKSUM: FRAME_DATA_SIZE, or whatever is left before {@code end}.
+     */
+    private static int expectedFrameLength(String name, long position, long end) throws IOException {
+        if (position > end)
+            throw new IOException("Server sent more of " + name + " than announced");
+        return (int) Math.min(Protocol.FRAME_DATA_SIZE, end - position);
+    }
+
+    private byte[] frame() {
+        if (frame == null)
+            frame = new byte[Protocol.FRAME_DATA_SIZE];
+        return frame;
+    }
+
+    /** Fetches the frames of a body that arrived damaged again, over a range connection. */
+    private void repair(String name, Path file, List<long[]> damaged) throws IOException {
+        try (ClientSession range = openRangeConnection();
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            for (long[] frame : damaged)
+                range.fetchRange(name, frame[0], frame[1], channel, n -> { });
+        }
+        repairedFrames.addAndGet(damaged.size());
+        System.out.println("Re-fetched " + damaged.size() + " damaged frame(s) of " + name);
+    }
+
+    /** DATA frames that failed their CRC32C this session and were fetched again. */
+    public long repairedFrames() {
+        return repairedFrames.get();
+    }
+
+    // ──────────────────────────────────────────────
+    // Browsing
+    // ──────────────────────────────────────────────
+
+    /**
+     * True if the server sends every file header only, so the listing can
+     * be read without the bodies (MANIFEST was agreed).
+     */
+    public boolean canBrowse() {
+        return handshake.has(Protocol.FEATURE_MANIFEST);
+    }
+
+    /**
+     * Reads the server's listing without fetching any file. Only the
+     * listing callbacks (onNoFiles, onServerError, onFileCount) are made.
+     *
+     * @return every shared file, in the order announced
+     * @throws IllegalStateException unless {@link #canBrowse()}
+     */
+    public List<DownloadScheduler.Job> browse(DownloadListener listener) throws IOException {
+        if (!canBrowse())
+            throw new IllegalStateException("The server did not agree to MANIFEST");
+        int fileCount = readFileCount(listener);
+        if (fileCount < 0)
+            return List.of();
+
+        splitFiles.clear();
+        if (handshake.has(Protocol.FEATURE_PIPELINE))
+            downloadPipelined(fileCount, listener);
+        else
+            downloadLockStep(fileCount, listener);
+        List<DownloadScheduler.Job> files = splitFiles.all();
+        splitFiles.clear();
+        browsedCount = fileCount;
+        return files;
+    }
+
+    /**
+     * Fetches files from the last {@link #browse} listing, restoring or
+     * delta-syncing them from the cache where it can. Callers take turns:
+     * one fetch runs at a time.
+     *
+     * @return the number of files received intact
+     */
+    public synchronized int fetch(List<DownloadScheduler.Job> files, DownloadListener listener) {
+        return downloadPage(files, 0, browsedCount, listener);
+    }
+
+    // ──────────────────────────────────────────────
+    // Split files (parallel ranges)
+    // ──────────────────────────────────────────────
+
+    /** Mirrors the server's rule for which files come without a body. */
+    private boolean isSplit(FileInfo info) {
+        return handshake.has(Protocol.FEATURE_MANIFEST) || handshake.has(Protocol.FEATURE_DELTA)
+                || handshake.has(Protocol.FEATURE_MULTICAST)
+                || handshake.has(Protocol.FEATURE_SWARM) || info.size >= agreedSplitThreshold();
+    }
+
+    private long agreedSplitThreshold() {
+        String threshold = handshake.value(Protocol.FEATURE_SPLIT);
+        return threshold == null ? Long.MAX_VALUE : Long.parseLong(threshold);
+    }
+
+    /**
+     * Fetches every header-only file over pooled / parallel range
+     * connections, after delta-syncing what the ChunkStore can rebuild.
+     * Works through the spool a page at a time.
+     */
+    private int downloadSplitFiles(int fileCount, DownloadListener listener) {
+        restoredBytes = 0;
+        deltaReusedBytes = 0;
+        deltaFetchedBytes = 0;
+        int successCount = 0;
+        long pagesBytes = 0;
+        try (JobSpool.Pages pages = splitFiles.pages()) {
+            List<DownloadScheduler.Job> page;
+            while ((page = pages.next()) != null) {
+                successCount += downloadPage(page, pagesBytes, fileCount, listener);
+                for (DownloadScheduler.Job job : page)
+                    pagesBytes += job.size;
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read the spooled manifest: " + e.getMessage());
+        }
+        splitFiles.clear();
+        return successCount;
+    }
+
+    /**
+     * One page of header-only files: restored, delta-synced, then pooled.
+     *
+     * @param bytesBefore bytes of the pages already done, for total progress
+     */
+    private int downloadPage(List<DownloadScheduler.Job> page, long bytesBefore, int fileCount,
+            DownloadListener listener) {
+        List<DownloadScheduler.Job> jobs = page;
+        List<DownloadScheduler.Job> synced = new ArrayList<>();
+        DeltaSync deltaSync = null;
+        if (chunkStore != null && handshake.has(Protocol.FEATURE_CONTENT_ID))
+            jobs = restoreCached(jobs, fileCount, listener, synced);
+        if (chunkStore != null && handshake.has(Protocol.FEATURE_DELTA)) {
+            deltaSync = new DeltaSync(this, downloadDir, chunkStore);
+            jobs = deltaSync.run(jobs, fileCount, listener, synced);
+            deltaReusedBytes += deltaSync.reusedBytes();
+            deltaFetchedBytes += deltaSync.fetchedBytes();
+        }
+        for (DownloadScheduler.Job job : synced)
+            bytesBefore += job.size;
+
+        long threshold = agreedSplitThreshold();
+        int pool = handshake.has(Protocol.FEATURE_MANIFEST) ? poolSize : 1;
+        int successCount = synced.size() + new DownloadScheduler(this, downloadDir, pool, strategy,
+                threshold == Long.MAX_VALUE ? 0 : threshold)
+                .withinSession(bytesBefore, splitFiles.totalBytes())
+                .run(jobs, fileCount, listener);
+        if (caching())
+            retain(page, deltaSync);
+        return successCount;
+    }
+
+    // ──────────────────────────────────────────────
+    // Delta sync
+    // ──────────────────────────────────────────────
+
+    /** Whether downloaded files are kept in the ChunkStore, not just parked partials. */
+    private boolean caching() {
+        return chunkStore != null
+                && (handshake.has(Protocol.FEATURE_DELTA) || handshake.has(Protocol.FEATURE_CONTENT_ID));
+    }
+
+    /** Whether partials are parked in the ChunkStore at logout: RESUME agreed and the cache not turned off. */
+    private boolean parking() {
+        return cache && handshake.has(Protocol.FEATURE_RESUME);
+    }
+
+    /** Unlocks the cache with a key derived from this login; without it every file is fetched. */
+    private void openChunkStore(String username, String password) {
+        try {
+            chunkStore = ChunkStore.open(username, password.toCharArray());
+        } catch (IOException e) {
+            System.err.println("Cache unavailable (" + e.getMessage() + ") — files will be fetched in full");
+        }
+    }
+
+    /**
+     * Restores every job whose announced content the cache holds.
+     *
+     * @param completed receives each job restored
+     * @return the jobs still to be fetched
+     */
+    private List<DownloadScheduler.Job> restoreCached(List<DownloadScheduler.Job> jobs, int fileCount,
+            DownloadListener listener, List<DownloadScheduler.Job> completed) {
+        List<DownloadScheduler.Job> remaining = new ArrayList<>();
+        for (DownloadScheduler.Job job : jobs) {
+            if (job.contentId == null || !chunkStore.contains(job.contentId)) {
+                remaining.add(job);
+                continue;
+            }
+            Path target = downloadDir.resolve(job.name);
+            PartialDownloads.discard(target);
+            listener.onFileStarted(job.fileNum, fileCount, job.name, job.size);
+            try {
+                if (!chunkStore.restore(job.contentId, PartialDownloads.partPath(target))
+                        || Files.size(PartialDownloads.partPath(target)) != job.size)
+                    throw new IOException("cache entry unusable");
+                PartialDownloads.complete(target);
+            } catch (IOException e) {
+                System.err.println("Could not restore " + job.name + " from the cache: " + e.getMessage());
+                PartialDownloads.discard(target);
+                remaining.add(job);
+                continue;
+            }
+            restoredBytes += job.size;
+            listener.onProgress(job.fileNum, fileCount, job.size, job.size);
+            listener.onFileCompleted(job.fileNum, fileCount, job.name, job.size);
+            completed.add(job);
+        }
+        return remaining;
+    }
+
+    /** Keeps this session's downloads, encrypted, in the ChunkStore for the next one. */
+    private void retain(List<DownloadScheduler.Job> page, DeltaSync deltaSync) {
+        for (DownloadScheduler.Job job : page) {
+            Path target = downloadDir.resolve(job.name);
+            if (!Files.isRegularFile(target))
+                continue;
+            if (job.contentId != null && chunkStore.contains(job.contentId))
+                continue; // restored from it, or already held
+            try {
+                ChunkRecipe recipe = deltaSync == null ? null : deltaSync.recipe(job.name);
+                if (recipe != null)
+                    chunkStore.retain(target, recipe);
+                else
+                    chunkStore.retain(target);
+            } catch (IOException e) {
+                System.err.println("Could not retain " + job.name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /** File bytes the last session restored whole from the cache. */
+    public long restoredBytes() {
+        return restoredBytes;
+    }
+
+    /** File bytes the last DELTA session copied from the chunk store. */
+    public long deltaReusedBytes() {
+        return deltaReusedBytes;
+    }
+
+    /** File bytes of delta-synced files the last session still had to fetch. */
+    public long deltaFetchedBytes() {
+        return deltaFetchedBytes;
+    }
+
+    /**
+     * Fetches {@code length} bytes of {@code name} from {@code offset} on a
+     * range connection and writes them at the same offset of {@code target}.
+     *
+     * @param progress receives the number of bytes written by each write
+     */
+    void fetchRange(String name, long offset, long length, FileChannel target,
+            LongConsumer progress) throws IOException {
+        fetchRange(name, offset, length, (buffer, n, position) -> {
+            writeFully(target, buffer, n, position);
+            progress.accept(n);
+        });
+    }
+
+    /**
+     * Receives the bytes of a range request as they are read. Each byte is
+     * written once, in order except under CHECKSUM, where frames that were
+     * damaged are fetched again after the rest of the range.
+     */
+    interface RangeSink {
+        /** {@code n} bytes of {@code buffer} belong at file offset {@code position}. */
+        void write(byte[] buffer, int n, long position) throws IOException;
+    }
+
+    /**
+     * Fetches {@code length} bytes of {@code name} from {@code offset} on a
+     * range connection and hands them to {@code sink}.
+     *
+     * @throws IOException if the range could not be fetched, or under
+     *         CHECKSUM, if frames were still damaged after MAX_REPAIRS
+     *         requests for them
+     */
+    void fetchRange(String name, long offset, long length, RangeSink sink) throws IOException {
+        byte[] buffer = new byte[Protocol.BUFFER_SIZE];
+        long position = offset;
+
+        if (codec != null) {
+            List<long[]> damaged = new ArrayList<>();
+            position = readFramedRange(name, offset, length, sink, buffer, damaged);
+            for (int attempt = 1; !damaged.isEmpty(); attempt++) {
+                if (attempt > MAX_REPAIRS)
+                    throw new IOException(damaged.size() + " frame(s) of " + name + " still damaged after "
+                            + MAX_REPAIRS + " attempts");
+                repairedFrames.addAndGet(damaged.size());
+                List<long[]> retry = damaged;
+                damaged = new ArrayList<>();
+                for (long[] frame : retry)
+                    readFramedRange(name, frame[0], frame[1], sink, buffer, damaged);
+            }
+        } else {
+            io.sendLine(Protocol.GET_RANGE_PREFIX + offset + Protocol.DELIMITER + length
+                    + Protocol.DELIMITER + name);
+            String reply = io.readLine();
+            if (reply == null || !reply.equals(Protocol.RANGE_OK_PREFIX + length))
+                throw new IOException("Range refused: " + reply);
+            while (position < offset + length) {
+                int n = io.read(buffer, 0, (int) Math.min(buffer.length, offset + length - position));
+                if (n == -1)
+                    break;
+                sink.write(buffer, n, position);
+                position += n;
+            }
+        }
+
+        if (position != offset + length)
+            throw new IOException("Range of " + name + " ended early at " + position);
+    }
+
+    /**
+     * Sends one GET_RANGE on a FRAMED connection and hands its DATA frames
+     * to {@code sink}. Under CHECKSUM, frames that fail their check are
+     * added to {@code damaged} as {offset, length} instead.
+     *
+     * @return the file offset after the last frame
+     */
+    private long readFramedRange(String name, long offset, long length, RangeSink sink, byte[] buffer,
+            List<long[]> damaged) throws IOException {
+        codec.writeGetRange(name, offset, length);
+        codec.flush();
+        boolean checked = handshake.has(Protocol.FEATURE_CHECKSUM);
+        long position = offset;
+        do {
+            byte type = codec.readHeader();
+            if (type == FrameCodec.T_ERROR)
+                throw new IOException("Server: " + codec.readTextPayload());
+            if (type != FrameCodec.T_DATA)
+                throw new IOException("Unexpected frame type " + type);
+            if (checked) {
+                int expected = expectedFrameLength(name, position, offset + length);
+                int n = codec.readCheckedData(frame());
+                if (n == expected)
+                    sink.write(frame, n, position);
+                else
+                    damaged.add(new long[] { position, expected });
+                position += expected;
+                continue;
+            }
+            int n;
+            while ((n = codec.readData(buffer, 0, buffer.length)) != -1) {
+                sink.write(buffer, n, position);
+                position += n;
+            }
+        } while (!codec.isLast());
+        return position;
+    }
+
+    /**
+     * Asks a range connection for leaf hashes {@code [first, first + count)}
+     * of the hash tree of {@code name}, a file of {@code size} bytes, and
+     * checks them against its {@code root} (see MerkleTree).
+     *
+     * @return the hashes, HASH_SIZE bytes each, or null without CHECKSUM
+     * @throws IOException if the server has none, or they do not lead to {@code root}
+     */
+    byte[] fetchHashes(String name, long size, byte[] root, int first, int count) throws IOException {
+        if (!handshake.has(Protocol.FEATURE_CHECKSUM))
+            return null;
+        codec.writeGetHashes(name, first, count);
+        codec.flush();
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        byte[] buffer = new byte[Protocol.BUFFER_SIZE];
+        do {
+            byte type = codec.readHeader();
+            if (type == FrameCodec.T_ERROR)
+                throw new IOException("Server: " + codec.readTextPayload());
+            if (type != FrameCodec.T_HASHES)
+                throw new IOException("Unexpected frame type " + type);
+            int n;
+            while ((n = codec.readPayload(buffer, 0, buffer.length)) != -1)
+                reply.write(buffer, 0, n);
+        } while (!codec.isLast());
+
+        byte[] encoded = reply.toByteArray();
+        int length = count * MerkleTree.HASH_SIZE;
+        if (encoded.length < length)
+            throw new IOException("Too few hashes for " + name);
+        byte[] hashes = Arrays.copyOf(encoded, length);
+        byte[] proof = Arrays.copyOfRange(encoded, length, encoded.length);
+        if (!MerkleTree.verify(root, MerkleTree.leafCount(size), first, hashes, proof))
+            throw new IOException("Hashes of " + name + " do not lead to its root");
+        return hashes;
+    }
+
+    /** Asks a range connection for the content-defined chunks of {@code name} (DELTA). */
+    ChunkRecipe fetchRecipe(String name) throws IOException {
+        if (codec != null) {
+            codec.writeText(FrameCodec.T_GET_RECIPE, name);
+            codec.flush();
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            byte[] buffer = new byte[Protocol.BUFFER_SIZE];
+            do {
+                byte type = codec.readHeader();
+                if (type == FrameCodec.T_ERROR)
+                    throw new IOException("Server: " + codec.readTextPayload());
+                if (type != FrameCodec.T_RECIPE)
+                    throw new IOException("Unexpected frame type " + type);
+                int n;
+                while ((n = codec.readPayload(buffer, 0, buffer.length)) != -1)
+                    encoded.write(buffer, 0, n);
+            } while (!codec.isLast());
+            return ChunkRecipe.decode(encoded.toByteArray(), encoded.size());
+        }
+
+        io.sendLine(Protocol.GET_RECIPE_PREFIX + name);
+        String reply = io.readLine();
+        if (reply == null || !reply.startsWith(Protocol.RECIPE_PREFIX))
+            throw new IOException("Recipe refused: " + reply);
+        try {
+            int count = Integer.parseInt(reply.substring(Protocol.RECIPE_PREFIX.length()));
+            ChunkRecipe.Builder recipe = new ChunkRecipe.Builder();
+            for (int i = 0; i < count; i++) {
+                String line = io.readLine();
+                if (line == null)
+                    throw new IOException("Recipe for " + name + " ended early");
+                int colon = line.indexOf(Protocol.DELIMITER);
+                recipe.add(Integer.parseInt(line.substring(0, colon)),
+                        Base64.getDecoder().decode(line.substring(colon + 1)));
+            }
+            return recipe.build();
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed recipe for " + name + ": " + e.getMessage());
+        }
+    }
+
+    static void writeFully(FileChannel target, byte[] buffer, int n, long position) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(buffer, 0, n);
+        while (src.hasRemaining())
+            position += target.write(src, position);
+    }
+
+    // ──────────────────────────────────────────────
+    // Multicast
+    // ──────────────────────────────────────────────
+
+    /** Starts listening on the agreed group; without it every file falls back to TCP. */
+    private void joinMulticast(String groupSpec) {
+        try {
+            receiver = new MulticastReceiver(groupSpec, socket.getInetAddress(), downloadDir);
+        } catch (IOException e) {
+            System.err.println("Could not join multicast group " + groupSpec + ": " + e.getMessage()
+                    + " — files will be fetched over TCP");
+        }
+    }
+
+    /**
+     * Waits for the server's multicast round to end, then moves complete
+     * files into place and fetches the gaps in the rest over TCP.
+     */
+    private int downloadMulticast(int fileCount, DownloadListener listener) {
+        multicastBytes = 0;
+        fallbackBytes = 0;
+        List<DownloadScheduler.Job> jobs;
+        try {
+            jobs = splitFiles.all();
+        } catch (IOException e) {
+            System.err.println("Could not read the spooled manifest: " + e.getMessage());
+            jobs = List.of();
+        }
+        splitFiles.clear();
+        if (receiver != null)
+            receiver.expect(jobs, fileCount, listener);
+
+        try {
+            awaitMulticastDone();
+        } catch (IOException e) {
+            System.err.println("Lost the session before the multicast round ended: " + e.getMessage());
+        }
+        if (receiver != null) {
+            receiver.close();
+            multicastBytes = receiver.receivedBytes();
+        }
+
+        int successCount = 0;
+        ClientSession repair = null;
+        try {
+            for (DownloadScheduler.Job job : jobs) {
+                MulticastReceiver.FileState state = receiver == null ? null : receiver.state(job.name);
+                if (state == null)
+                    listener.onFileStarted(job.fileNum, fileCount, job.name, job.size);
+                Path target = downloadDir.resolve(job.name);
+                try {
+                    if (state == null || state.size != job.size) {
+                        // Never announced to us: fetch the whole file
+                        if (repair == null)
+                            repair = openRangeConnection();
+                        fetchGaps(repair, target, job, List.of(new long[] { 0, job.size }), true);
+                    } else if (!state.isComplete()) {
+                        if (repair == null)
+                            repair = openRangeConnection();
+                        fetchGaps(repair, target, job, state.missingRanges(), false);
+                    }
+                    PartialDownloads.complete(target);
+                    listener.onProgress(job.fileNum, fileCount, job.size, job.size);
+                    listener.onFileCompleted(job.fileNum, fileCount, job.name, job.size);
+                    successCount++;
+                } catch (IOException e) {
+                    System.err.println("Error downloading " + job.name + ": " + e.getMessage());
+                    if (repair != null)
+                        repair.close();
+                    repair = null;
+                }
+            }
+        } finally {
+            if (repair != null)
+                repair.close();
+        }
+
+        if (receiver != null)
+            System.out.printf("Multicast: %,d bytes received, %,d bytes repaired over TCP%n",
+                    multicastBytes, fallbackBytes);
+        receiver = null;
+        return successCount;
+    }
+
+    /** Fetches {offset, length} ranges of one file into its .part file. */
+    private void fetchGaps(ClientSession repair, Path target, DownloadScheduler.Job job,
+            List<long[]> gaps, boolean fresh) throws IOException {
+        try (FileChannel channel = FileChannel.open(PartialDownloads.partPath(target),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (fresh)
+                channel.truncate(0);
+            for (long[] gap : gaps)
+                repair.fetchRange(job.name, gap[0], gap[1], channel, n -> fallbackBytes += n);
+        }
+    }
+
+    /** Blocks (without the usual read timeout) until MULTICAST_DONE. */
+    private void awaitMulticastDone() throws IOException {
+        socket.setSoTimeout(0);
+        try {
+            if (codec != null) {
+                codec.expect(FrameCodec.T_MULTICAST_DONE);
+            } else {
+                String line = io.readLine();
+                if (!Protocol.MULTICAST_DONE.equals(line))
+                    throw new IOException("Expected " + Protocol.MULTICAST_DONE + ", got " + line);
+            }
+        } finally {
+            socket.setSoTimeout(Protocol.SOCKET_TIMEOUT_MS);
+        }
+    }
+
+    /** Distinct file bytes the last session received by multicast. */
+    public long multicastBytes() {
+        return multicastBytes;
+    }
+
+    /** File bytes the last session had to fetch over TCP instead. */
+    public long fallbackBytes() {
+        return fallbackBytes;
+    }
+
+    // ──────────────────────────────────────────────
+    // Swarm
+    // ──────────────────────────────────────────────
+
+    /**
+     * Joins the swarm on first use and fetches every header-only file from
+     * peers and the server. If the tracker cannot be used, the files are
+     * fetched from the server like any other split download.
+     */
+    private int downloadSwarm(int fileCount, DownloadListener listener) {
+        swarmPeerBytes = 0;
+        swarmServerBytes = 0;
+        try {
+            if (tracker == null) {
+                swarmPeer = new SwarmPeer();
+                tracker = new TrackerClient(this);
+                swarmToken = tracker.join(swarmPeer.port());
+                swarmPeer.setToken(swarmToken);
+            }
+            SwarmDownloader downloader = new SwarmDownloader(this, downloadDir, tracker, swarmPeer, swarmToken);
+            int successCount = downloader.run(splitFiles.all(), fileCount, listener);
+            splitFiles.clear();
+            swarmPeerBytes = downloader.peerBytes();
+            swarmServerBytes = downloader.serverBytes();
+            return successCount;
+        } catch (IOException e) {
+            System.err.println("Swarm unavailable (" + e.getMessage() + ") — fetching from the server");
+            leaveSwarm();
+            return downloadSplitFiles(fileCount, listener);
+        }
+    }
+
+    private void leaveSwarm() {
+        if (tracker != null) {
+            tracker.close();
+            tracker = null;
+        }
+        if (swarmPeer != null) {
+            swarmPeer.close();
+            swarmPeer = null;
+        }
+    }
+
+    /** File bytes the last swarm session got from other boards. */
+    public long swarmPeerBytes() {
+        return swarmPeerBytes;
+    }
+
+    /** File bytes the last swarm session had to get from the server. */
+    public long swarmServerBytes() {
+        return swarmServerBytes;
+    }
+
+    /** File bytes this board has served to other boards so far. */
+    public long swarmUploadedBytes() {
+        return swarmPeer == null ? 0 : swarmPeer.uploadedBytes();
+    }
+
+    // ──────────────────────────────────────────────
+    // Framed / text messages
+    // ──────────────────────────────────────────────
+
+    /**
+     * Reads the framed reply to a login and renders it as the equivalent
+     * text line, so downloadAll() handles both encodings the same way.
+     */
+    private String readFramedListing() throws IOException {
+        byte type = codec.readHeader();
+        switch (type) {
+            case FrameCodec.T_NO_FILES:
+                return Protocol.NO_FILES;
+            case FrameCodec.T_ERROR:
+                return Protocol.ERROR_PREFIX + codec.readTextPayload();
+            case FrameCodec.T_FILE_COUNT:
+                return Protocol.FILE_COUNT_PREFIX + codec.readIntPayload();
+            default:
+                throw new IOException("Unexpected frame type " + type);
+        }
+    }
+
+    private void unparkPartials() {
+        int restored = chunkStore.unpark(downloadDir);
+        if (restored > 0)
+            System.out.println("Restored " + restored + " partial file(s) parked at logout.");
+    }
+
+    /**
+     * Seals every partial download into the ChunkStore, so the folder can
+     * be wiped at logout and the next login by this faculty still resumes
+     * them. Call before close().
+     *
+     * @return how many were parked (0 without RESUME or with the cache off)
+     */
+    public int parkPartials() {
+        if (chunkStore == null || !parking())
+            return 0;
+        int parked = 0;
+        for (ResumePoint point : PartialDownloads.list(downloadDir)) {
+            try {
+                Path target = SharedPath.resolve(downloadDir, point.name, true);
+                chunkStore.park(point, PartialDownloads.partPath(target));
+                parked++;
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Cannot park " + point.name + ": " + e.getMessage());
+            }
+        }
+        return parked;
+    }
+
+    /** Lists the partial files in the download folder, ended by READY. */
+    private void sendResumePoints() throws IOException {
+        List<ResumePoint> points = PartialDownloads.list(downloadDir);
+        for (ResumePoint point : points) {
+            if (codec != null)
+                codec.writeResume(point);
+            else
+                io.writeLine(point.toLine());
+        }
+        sendSignal(FrameCodec.T_READY, Protocol.READY);
+        if (!points.isEmpty())
+            System.out.println("Offered " + points.size() + " partial file(s) for resume.");
+    }
+
+    private void sendSignal(byte frameType, String line) throws IOException {
+        if (codec != null) {
+            codec.writeEmpty(frameType);
+            codec.flush();
+        } else {
+            io.sendLine(line);
+        }
+    }
+
+    private void sendAck(int count) throws IOException {
+        if (codec != null) {
+            codec.writeInt(FrameCodec.T_ACK, count);
+            codec.flush();
+        } else {
+            io.sendLine(Protocol.ACK_PREFIX + count);
+        }
+    }
+
+    private void readTransferComplete() throws IOException {
+        if (codec != null) {
+            // Frames are self-delimiting, so a failed file's leftover DATA
+            // frames can simply be skipped
+            while (codec.readHeader() != FrameCodec.T_TRANSFER_COMPLETE) {
+            }
+        } else
+            io.readLine();
+    }
+
+    // ──────────────────────────────────────────────
+    // Cleanup
+    // ──────────────────────────────────────────────
+
+    @Override
+    public void close() {
+        if (receiver != null) {
+            receiver.close();
+            receiver = null;
+        }
+        leaveSwarm();
+        splitFiles.clear();
+        if (chunkStore != null) {
+            chunkStore.close();
+            chunkStore = null;
+        }
+        closeSocket();
+    }
+
+    private void closeSocket() {
+        try {
+            if (io != null)
+                io.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            if (socket != null)
+                socket.close();
+        } catch (IOException ignored) {
+        }
+        if (codec != null)
+            codec.end();
+        io = null;
+        socket = null;
+        codec = null;
+    }
+
+    /** What a FILE_INFO line announces (mtime and offset are 0 without RESUME). */
+    static final class FileInfo {
+        final String name;
+        final long size;
+        final long lastModified;
+        final long offset;
+
+        /** Preceding CONTENT_ID, else null */
+        String contentId;
+
+        /** Preceding FILE_HASH, the root of the file's hash tree (CHECKSUM), else null */
+        byte[] rootHash;
+
+        FileInfo(String name, long size, long lastModified, long offset) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.offset = offset;
+        }
+
+        FileInfo withContentId(String contentId) {
+            this.contentId = contentId;
+            return this;
+        }
+
+        DownloadScheduler.Job toJob(int fileNum) {
+            DownloadScheduler.Job job = new DownloadScheduler.Job(fileNum, name, size, lastModified);
+            job.contentId = contentId;
+            job.rootHash = rootHash;
+            return job;
+        }
+    }
+}
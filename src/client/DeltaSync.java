@@ -0,0 +1,240 @@
+package client;
+
+import common.ChunkRecipe;
+import common.ContentChunker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rebuilds files from chunks already in the ChunkStore, fetching only the
+ * chunks that changed (DELTA).
+ *
+ * For every file of at least MIN_FILE_SIZE the server's recipe is fetched
+ * over one range connection — even when the store is empty, so the file
+ * can be retained afterwards without chunking it locally. Chunks the
+ * store holds are copied from it; runs of missing chunks are fetched with
+ * a single GET_RANGE each and hashed against the recipe as they arrive.
+ * Files with nothing in the store, and files whose delta fails, are
+ * handed back for a normal download.
+ */
+final class DeltaSync {
+
+    /** Smaller files are simply downloaded: a recipe round trip costs more than it saves */
+    static final long MIN_FILE_SIZE = 1024 * 1024;
+
+    private final ClientSession origin;
+    private final Path downloadDir;
+    private final ChunkStore store;
+
+    /** Recipes fetched this session, so downloaded files can be retained without re-chunking */
+    private final Map<String, ChunkRecipe> recipes = new HashMap<>();
+
+    private long reusedBytes;
+    private long fetchedBytes;
+
+    DeltaSync(ClientSession origin, Path downloadDir, ChunkStore store) {
+        this.origin = origin;
+        this.downloadDir = downloadDir;
+        this.store = store;
+    }
+
+    /**
+     * Delta-syncs every job the store can help with.
+     *
+     * @param completed receives each job finished here
+     * @return the jobs still to be downloaded in full
+     */
+    List<DownloadScheduler.Job> run(List<DownloadScheduler.Job> jobs, int fileCount, DownloadListener listener,
+            List<DownloadScheduler.Job> completed) {
+        List<DownloadScheduler.Job> remaining = new ArrayList<>();
+        ClientSession range = null;
+        byte[] buffer = new byte[ContentChunker.MAX_CHUNK];
+        try {
+            for (DownloadScheduler.Job job : jobs) {
+                if (job.size < MIN_FILE_SIZE) {
+                    remaining.add(job);
+                    continue;
+                }
+                try {
+                    if (range == null)
+                        range = origin.openRangeConnection();
+                    ChunkRecipe recipe = range.fetchRecipe(job.name);
+                    if (recipe.size() != job.size)
+                        throw new IOException("changed on the server");
+                    recipes.put(job.name, recipe);
+                    if (!sync(range, job, recipe, buffer, fileCount, listener)) {
+                        remaining.add(job);
+                        continue;
+                    }
+                    completed.add(job);
+                } catch (IOException e) {
+                    System.err.println("Delta sync of " + job.name + " failed (" + e.getMessage()
+                            + ") — downloading it in full");
+                    PartialDownloads.discard(downloadDir.resolve(job.name));
+                    remaining.add(job);
+                    if (range != null) {
+                        range.close();
+                        range = null;
+                    }
+                }
+            }
+        } finally {
+            if (range != null)
+                range.close();
+        }
+        return remaining;
+    }
+
+    /**
+     * Assembles one file from the store and the server.
+     *
+     * @return false if the store holds none of its chunks (nothing was written)
+     */
+    private boolean sync(ClientSession range, DownloadScheduler.Job job, ChunkRecipe recipe, byte[] buffer,
+            int fileCount, DownloadListener listener) throws IOException {
+        List<ChunkStore.Location> held = new ArrayList<>(recipe.count());
+        boolean any = false;
+        for (int i = 0; i < recipe.count(); i++) {
+            ChunkStore.Location location = store.find(recipe.hash(i));
+            held.add(location);
+            any |= location != null;
+        }
+        if (!any)
+            return false;
+
+        Path target = downloadDir.resolve(job.name);
+        PartialDownloads.discard(target);
+        listener.onFileStarted(job.fileNum, fileCount, job.name, job.size);
+        long done = 0;
+        long reused = 0;
+        try (FileChannel channel = FileChannel.open(PartialDownloads.partPath(target),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            int i = 0;
+            while (i < recipe.count()) {
+                ChunkStore.Location location = held.get(i);
+                if (location != null && store.read(location, recipe.hash(i), buffer)) {
+                    write(channel, buffer, recipe.length(i), recipe.offset(i));
+                    reused += recipe.length(i);
+                    done += recipe.length(i);
+                    i++;
+                } else {
+                    // A run of chunks the store lacks: one range request
+                    int end = i + 1;
+                    while (end < recipe.count() && held.get(end) == null)
+                        end++;
+                    long offset = recipe.offset(i);
+                    long length = recipe.offset(end - 1) + recipe.length(end - 1) - offset;
+                    VerifyingSink sink = new VerifyingSink(channel, recipe, i);
+                    range.fetchRange(job.name, offset, length, sink);
+                    sink.finish(end);
+                    done += length;
+                    i = end;
+                }
+                listener.onProgress(job.fileNum, fileCount, done, job.size);
+            }
+        }
+        PartialDownloads.complete(target);
+        reusedBytes += reused;
+        fetchedBytes += job.size - reused;
+        listener.onFileCompleted(job.fileNum, fileCount, job.name, job.size);
+        return true;
+    }
+
+    /** The server's recipe for a file fetched this session, or null. */
+    ChunkRecipe recipe(String name) {
+        return recipes.get(name);
+    }
+
+    /** File bytes copied from the store instead of downloaded. */
+    long reusedBytes() {
+        return reusedBytes;
+    }
+
+    /** File bytes of delta-synced files that had to come from the server. */
+    long fetchedBytes() {
+        return fetchedBytes;
+    }
+
+    private static void write(FileChannel channel, byte[] buffer, int n, long position) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(buffer, 0, n);
+        while (src.hasRemaining())
+            position += channel.write(src, position);
+    }
+
+    /**
+     * Writes fetched bytes and checks each chunk's hash as its last byte
+     * arrives. If bytes arrive out of order (a frame fetched again under
+     * CHECKSUM), the remaining chunks are checked by {@link #finish} instead.
+     */
+    private static final class VerifyingSink implements ClientSession.RangeSink {
+        private final FileChannel channel;
+        private final ChunkRecipe recipe;
+        private final MessageDigest sha256;
+        private int chunk;
+        private long chunkEnd;
+        private long next;
+        private boolean inOrder = true;
+
+        VerifyingSink(FileChannel channel, ChunkRecipe recipe, int firstChunk) throws IOException {
+            this.channel = channel;
+            this.recipe = recipe;
+            this.chunk = firstChunk;
+            this.chunkEnd = recipe.offset(firstChunk) + recipe.length(firstChunk);
+            this.next = recipe.offset(firstChunk);
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("SHA-256 not available", e);
+            }
+        }
+
+        @Override
+        public void write(byte[] buffer, int n, long position) throws IOException {
+            DeltaSync.write(channel, buffer, n, position);
+            if (position != next)
+                inOrder = false;
+            if (!inOrder)
+                return;
+            next += n;
+            int off = 0;
+            while (off < n) {
+                int take = (int) Math.min(n - off, chunkEnd - (position + off));
+                sha256.update(buffer, off, take);
+                off += take;
+                if (position + off == chunkEnd) {
+                    if (!recipe.matches(chunk, sha256.digest()))
+                        throw new IOException("chunk " + chunk + " does not match the recipe");
+                    if (++chunk < recipe.count())
+                        chunkEnd = recipe.offset(chunk) + recipe.length(chunk);
+                }
+            }
+        }
+
+        /** Checks, from the file, the chunks before {@code end} not checked as they arrived. */
+        void finish(int end) throws IOException {
+            if (inOrder)
+                return;
+            sha256.reset();
+            for (; chunk < end; chunk++) {
+                ByteBuffer data = ByteBuffer.allocate(recipe.length(chunk));
+                while (data.hasRemaining())
+                    if (channel.read(data, recipe.offset(chunk) + data.position()) < 0)
+                        throw new IOException("chunk " + chunk + " is missing");
+                sha256.update(data.flip());
+                if (!recipe.matches(chunk, sha256.digest()))
+                    throw new IOException("chunk " + chunk + " does not match the recipe");
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package client;
+
+/**
+ * Callbacks fired by ClientSession while a share is being downloaded.
+ *
+ * Methods are called on the downloading thread, or — for pooled
+ * downloads (see DownloadScheduler) — concurrently from several worker
+ * threads, so implementations must be thread-safe; GUI implementations
+ * must hand work to the EDT themselves. Every method has an empty default
+ * so implementations only override what they display.
+ */
+public interface DownloadListener {
+
+    /** The server has no files to share. */
+    default void onNoFiles() {
+    }
+
+    /** The server reported an error instead of a file list. */
+    default void onServerError(String message) {
+    }
+
+    /** The server announced how many files it will send. */
+    default void onFileCount(int fileCount) {
+    }
+
+    /**
+     * A file is about to be received.
+     *
+     * @param fileNum 1-based index of the file in this session
+     */
+    default void onFileStarted(int fileNum, int fileCount, String fileName, long fileSize) {
+    }
+
+    /** More bytes of the current file have been written to disk. */
+    default void onProgress(int fileNum, int fileCount, long bytesReceived, long fileSize) {
+    }
+
+    /**
+     * Bytes received across all files of a pooled download, once the total
+     * size of the share is known.
+     */
+    default void onTotalProgress(long bytesReceived, long totalBytes) {
+    }
+
+    /** A file has been received completely. */
+    default void onFileCompleted(int fileNum, int fileCount, String fileName, long fileSize) {
+    }
+
+    /** The session ended; {@code successCount} files were received intact. */
+    default void onFinished(int successCount) {
+    }
+}
@@ -0,0 +1,259 @@
+package client;
+
+import common.Protocol;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a manifest of files over a small pool of range connections.
+ *
+ * Each worker owns one RANGES connection and takes the next file from a
+ * shared queue, ordered by the chosen Strategy, so one large video no
+ * longer holds up every small handout behind it. Files at or above the
+ * split threshold are handed to a RangeDownloader instead, which spreads
+ * that one file over several streams of its own.
+ *
+ * Per-file progress goes to onProgress and the session total to
+ * onTotalProgress; both are called from the worker threads.
+ */
+public final class DownloadScheduler {
+
+    /** Order in which queued files are handed to workers. */
+    public enum Strategy {
+        /** Biggest files first: the long transfers start early and overlap the rest */
+        LARGEST_FIRST,
+        /** Smallest files first: most files are usable as soon as possible */
+        SHORTEST_FIRST;
+
+        /** Parses "largest"/"shortest" (or the enum name), defaulting to LARGEST_FIRST. */
+        public static Strategy parse(String value) {
+            if (value == null)
+                return LARGEST_FIRST;
+            String v = value.trim().toUpperCase();
+            return v.startsWith("SHORT") || v.startsWith("SMALL") ? SHORTEST_FIRST : LARGEST_FIRST;
+        }
+    }
+
+    /** Connections in the pool unless configured otherwise */
+    public static final int DEFAULT_POOL_SIZE = 4;
+
+    /** Attempts per file before it is reported as failed */
+    static final int MAX_ATTEMPTS = 2;
+
+    /** One file to fetch, with its 1-based index in the session. */
+    public static final class Job {
+        public final int fileNum;
+        public final String name;
+        public final long size;
+        public final long lastModified;
+        int attempts;
+
+        /** Announced under CONTENT_ID, else null */
+        String contentId;
+
+        /** Root of the file's hash tree announced under CHECKSUM, else null */
+        byte[] rootHash;
+
+        Job(int fileNum, String name, long size, long lastModified) {
+            this.fileNum = fileNum;
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final ClientSession origin;
+    private final Path downloadDir;
+    private final int poolSize;
+    private final Strategy strategy;
+    private final long splitThreshold;
+
+    private final ConcurrentLinkedQueue<Job> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicInteger succeeded = new AtomicInteger();
+
+    private int fileCount;
+    private long totalBytes;
+    private long sessionBytes;
+    private DownloadListener listener;
+
+    /**
+     * @param origin         the logged-in session whose server and
+     *                       credentials the pool reuses
+     * @param splitThreshold files at least this large use a RangeDownloader
+     *                       (0 = never)
+     */
+    DownloadScheduler(ClientSession origin, Path downloadDir, int poolSize,
+            Strategy strategy, long splitThreshold) {
+        this.origin = origin;
+        this.downloadDir = downloadDir;
+        this.poolSize = Math.max(1, poolSize);
+        this.strategy = strategy;
+        this.splitThreshold = splitThreshold;
+    }
+
+    /**
+     * Reports total progress against a whole session of which this run is
+     * one part, {@code bytesBefore} of {@code sessionBytes} being done already.
+     */
+    DownloadScheduler withinSession(long bytesBefore, long sessionBytes) {
+        received.set(bytesBefore);
+        this.sessionBytes = sessionBytes;
+        return this;
+    }
+
+    /**
+     * Fetches every job and returns once all workers have finished.
+     *
+     * @return the number of files received intact
+     */
+    int run(List<Job> jobs, int fileCount, DownloadListener listener) {
+        if (jobs.isEmpty())
+            return 0;
+        this.fileCount = fileCount;
+        this.listener = listener;
+
+        List<Job> ordered = new ArrayList<>(jobs);
+        Comparator<Job> bySize = Comparator.comparingLong(job -> job.size);
+        ordered.sort(strategy == Strategy.LARGEST_FIRST ? bySize.reversed() : bySize);
+        queue.addAll(ordered);
+        for (Job job : ordered)
+            totalBytes += job.size;
+        totalBytes = Math.max(totalBytes, sessionBytes);
+
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(poolSize, ordered.size()); i++) {
+            Thread worker = new Thread(this::work, "download-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        try {
+            for (Thread worker : workers)
+                worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return succeeded.get();
+    }
+
+    /** Takes files off the queue until it is empty. */
+    private void work() {
+        ClientSession session = null;
+        try {
+            Job next;
+            while ((next = queue.poll()) != null) {
+                Job job = next;
+                listener.onFileStarted(job.fileNum, fileCount, job.name, job.size);
+                long[] counted = { 0 };
+                try {
+                    boolean ok;
+                    if (splitThreshold > 0 && job.size >= splitThreshold) {
+                        // Don't hold a server thread idle while the range streams run
+                        closeQuietly(session);
+                        session = null;
+                        ok = new RangeDownloader(origin, job.name, job.size, job.rootHash)
+                                .download(downloadDir.resolve(job.name), total -> report(job, counted, total));
+                    } else {
+                        if (session == null)
+                            session = origin.openRangeConnection();
+                        ok = fetchWhole(session, job, counted);
+                    }
+                    if (ok) {
+                        succeeded.incrementAndGet();
+                        listener.onFileCompleted(job.fileNum, fileCount, job.name, job.size);
+                        continue;
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error downloading " + job.name + ": " + e.getMessage());
+                    closeQuietly(session);
+                    session = null;
+                }
+
+                // Take this file's bytes back out of the total and maybe retry
+                received.addAndGet(-counted[0]);
+                if (++job.attempts < MAX_ATTEMPTS)
+                    queue.add(job);
+            }
+        } finally {
+            closeQuietly(session);
+        }
+    }
+
+    /**
+     * Fetches one file whole (or the rest of a matching partial) into its
+     * .part file, then moves it into place. A partial is checked against
+     * the file's hash tree first, and resumed from its first damaged leaf.
+     *
+     * @return false if it does not match the hash tree root announced for it
+     */
+    private boolean fetchWhole(ClientSession session, Job job, long[] counted) throws IOException {
+        Path target = downloadDir.resolve(job.name);
+        Path part = PartialDownloads.partPath(target);
+        long offset = PartialDownloads.prepare(target, job.size, job.lastModified);
+        if (job.rootHash != null && offset >= Protocol.HASH_LEAF_SIZE)
+            offset = verifiedPrefix(session, job, part, offset);
+
+        IntegrityCheck check;
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(offset);
+            check = new IntegrityCheck(job.rootHash).resumeFrom(part, offset);
+            report(job, counted, offset);
+            session.fetchRange(job.name, offset, job.size - offset, (buffer, n, position) -> {
+                ClientSession.writeFully(channel, buffer, n, position);
+                check.update(buffer, n, position);
+                report(job, counted, counted[0] + n);
+            });
+        }
+        if (!check.verify(part, job.size)) {
+            System.err.println(job.name + " does not match the server's hash — discarding it");
+            PartialDownloads.discard(target);
+            return false;
+        }
+        PartialDownloads.complete(target);
+        return true;
+    }
+
+    /**
+     * How much of a partial can be kept: everything up to its first whole
+     * leaf that does not match the hash tree (the rest is checked with the
+     * whole file).
+     */
+    private static long verifiedPrefix(ClientSession session, Job job, Path part, long offset) throws IOException {
+        int leaves = (int) (offset / Protocol.HASH_LEAF_SIZE);
+        byte[] hashes = session.fetchHashes(job.name, job.size, job.rootHash, 0, leaves);
+        if (hashes == null)
+            return offset;
+        int damaged;
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.READ)) {
+            damaged = IntegrityCheck.firstMismatch(channel, job.size, 0, hashes);
+        }
+        if (damaged < 0)
+            return offset;
+        long kept = (long) damaged * Protocol.HASH_LEAF_SIZE;
+        System.out.println("Partial " + job.name + " is damaged past byte " + kept + " — resuming from there");
+        return kept;
+    }
+
+    /** Records that {@code fileBytes} of this job are on disk and notifies the listener. */
+    private void report(Job job, long[] counted, long fileBytes) {
+        long total = received.addAndGet(fileBytes - counted[0]);
+        counted[0] = fileBytes;
+        listener.onProgress(job.fileNum, fileCount, fileBytes, job.size);
+        listener.onTotalProgress(total, totalBytes);
+    }
+
+    private static void closeQuietly(ClientSession session) {
+        if (session != null)
+            session.close();
+    }
+}
@@ -0,0 +1,105 @@
+package client;
+
+import common.MerkleTree;
+import common.Protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+
+/**
+ * Checks a downloaded file against the root of its hash tree, announced
+ * by the server under CHECKSUM (see MerkleTree).
+ *
+ * Bytes are hashed as they are written, so a body that arrives in order
+ * costs no second pass. Once a write lands anywhere but straight after the
+ * last — a damaged frame fetched again later, or a file assembled from
+ * parallel ranges — hashing as it goes is given up and {@link #verify}
+ * reads the file back instead.
+ *
+ * Without an announced root every check passes. Not thread-safe.
+ */
+final class IntegrityCheck {
+
+    private final byte[] expected;
+    private MerkleTree.Builder tree;
+    private boolean inOrder = true;
+
+    /** @param expected the announced root, or null if there is none */
+    IntegrityCheck(byte[] expected) {
+        this.expected = expected;
+        this.tree = expected == null ? null : new MerkleTree.Builder();
+    }
+
+    /** Hashes the first {@code offset} bytes of a resumed file, which will not be written again. */
+    IntegrityCheck resumeFrom(Path file, long offset) throws IOException {
+        if (tree != null && offset > 0) {
+            try (InputStream in = Files.newInputStream(file)) {
+                digest(in, offset);
+            }
+            if (tree.position() != offset)
+                inOrder = false;
+        }
+        return this;
+    }
+
+    /** Notes that {@code n} bytes of {@code b} were written at file offset {@code position}. */
+    void update(byte[] b, int n, long position) {
+        if (tree == null || !inOrder)
+            return;
+        if (position != tree.position()) {
+            inOrder = false;
+            return;
+        }
+        tree.update(b, 0, n);
+    }
+
+    /** True if {@code file}, {@code size} bytes long, matches the announced root. */
+    boolean verify(Path file, long size) throws IOException {
+        if (expected == null)
+            return true;
+        if (!inOrder || tree.position() != size) {
+            tree = new MerkleTree.Builder();
+            try (InputStream in = Files.newInputStream(file)) {
+                digest(in, size);
+            }
+        }
+        return MessageDigest.isEqual(expected, MerkleTree.root(tree.leaves()));
+    }
+
+    /** Feeds up to {@code count} bytes of {@code in} to the tree. */
+    private void digest(InputStream in, long count) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        int n;
+        while (tree.position() < count
+                && (n = in.read(buffer, 0, (int) Math.min(buffer.length, count - tree.position()))) > 0)
+            tree.update(buffer, 0, n);
+    }
+
+    /**
+     * The first of the leaves {@code first, first + 1, ...} whose bytes in
+     * {@code file} do not match {@code hashes} (one per leaf), or -1 if
+     * they all do.
+     *
+     * @param size the whole file's size, as its last leaf may be short
+     */
+    static int firstMismatch(FileChannel file, long size, int first, byte[] hashes) throws IOException {
+        int count = hashes.length / MerkleTree.HASH_SIZE;
+        ByteBuffer leaf = ByteBuffer.allocate(Protocol.HASH_LEAF_SIZE);
+        for (int i = 0; i < count; i++) {
+            long position = (long) (first + i) * Protocol.HASH_LEAF_SIZE;
+            leaf.clear().limit((int) Math.min(leaf.capacity(), size - position));
+            while (leaf.hasRemaining())
+                if (file.read(leaf, position + leaf.position()) < 0)
+                    return first + i;
+            byte[] actual = MerkleTree.leafHash(leaf.array(), 0, leaf.limit());
+            if (!MessageDigest.isEqual(actual, MerkleTree.slice(hashes, i, 1)))
+                return first + i;
+        }
+        return -1;
+    }
+}
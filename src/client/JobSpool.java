@@ -0,0 +1,165 @@
+package client;
+
+import common.Protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The header-only files of a session, in the order they were announced.
+ *
+ * The first page of jobs is kept in memory; the rest are appended to a
+ * temporary file as they arrive, so a tree of 100,000 files costs one
+ * page of heap however long the manifest is. {@link #pages()} hands them
+ * back a page at a time.
+ */
+final class JobSpool implements Closeable {
+
+    private final int pageSize;
+    private final List<DownloadScheduler.Job> head = new ArrayList<>();
+    private Path spillFile;
+    private DataOutputStream spill;
+    private int size;
+    private long totalBytes;
+
+    JobSpool() {
+        this(Protocol.MANIFEST_PAGE_SIZE);
+    }
+
+    JobSpool(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    void add(DownloadScheduler.Job job) throws IOException {
+        if (head.size() < pageSize) {
+            head.add(job);
+        } else {
+            if (spill == null) {
+                spillFile = Files.createTempFile("lanshare-manifest", ".spool");
+                spillFile.toFile().deleteOnExit();
+                spill = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spillFile)));
+            }
+            write(spill, job);
+        }
+        size++;
+        totalBytes += job.size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Sum of the sizes of every job. */
+    long totalBytes() {
+        return totalBytes;
+    }
+
+    /** Every job at once, for downloads that need the whole set (multicast, swarm). */
+    List<DownloadScheduler.Job> all() throws IOException {
+        List<DownloadScheduler.Job> jobs = new ArrayList<>(size);
+        try (Pages pages = pages()) {
+            List<DownloadScheduler.Job> page;
+            while ((page = pages.next()) != null)
+                jobs.addAll(page);
+        }
+        return jobs;
+    }
+
+    /** Reads the jobs back, one page at a time. */
+    Pages pages() throws IOException {
+        if (spill != null)
+            spill.flush();
+        return new Pages();
+    }
+
+    /** Forgets every job and deletes the spill file. */
+    void clear() {
+        head.clear();
+        size = 0;
+        totalBytes = 0;
+        close();
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (spill != null)
+                spill.close();
+            if (spillFile != null)
+                Files.deleteIfExists(spillFile);
+        } catch (IOException e) {
+            System.err.println("Could not delete manifest spool: " + e.getMessage());
+        }
+        spill = null;
+        spillFile = null;
+    }
+
+    /** Sequential reader over the pages of a spool. */
+    final class Pages implements Closeable {
+        private boolean headDone;
+        private DataInputStream in;
+
+        /** The next page, or null after the last. */
+        List<DownloadScheduler.Job> next() throws IOException {
+            if (!headDone) {
+                headDone = true;
+                if (!head.isEmpty())
+                    return new ArrayList<>(head);
+            }
+            if (spillFile == null)
+                return null;
+            if (in == null)
+                in = new DataInputStream(new BufferedInputStream(Files.newInputStream(spillFile)));
+            List<DownloadScheduler.Job> page = new ArrayList<>(pageSize);
+            try {
+                while (page.size() < pageSize)
+                    page.add(read(in));
+            } catch (EOFException e) {
+                // end of the spool
+            }
+            return page.isEmpty() ? null : page;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null)
+                in.close();
+        }
+    }
+
+    private static void write(DataOutputStream out, DownloadScheduler.Job job) throws IOException {
+        out.writeInt(job.fileNum);
+        out.writeUTF(job.name);
+        out.writeLong(job.size);
+        out.writeLong(job.lastModified);
+        out.writeUTF(job.contentId == null ? "" : job.contentId);
+        out.writeByte(job.rootHash == null ? 0 : job.rootHash.length);
+        if (job.rootHash != null)
+            out.write(job.rootHash);
+    }
+
+    private static DownloadScheduler.Job read(DataInputStream in) throws IOException {
+        DownloadScheduler.Job job = new DownloadScheduler.Job(in.readInt(), in.readUTF(), in.readLong(), in.readLong());
+        String contentId = in.readUTF();
+        job.contentId = contentId.isEmpty() ? null : contentId;
+        int hashLength = in.readUnsignedByte();
+        if (hashLength > 0) {
+            job.rootHash = new byte[hashLength];
+            in.readFully(job.rootHash);
+        }
+        return job;
+    }
+}
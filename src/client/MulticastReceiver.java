@@ -0,0 +1,373 @@
+package client;
+
+import common.MulticastPacket;
+import common.SharedPath;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Receives a MulticastDistributor round into .part files.
+ *
+ * Joins the group as soon as the session has logged in, so it is listening
+ * before the round starts. Only datagrams from the session's server count:
+ * every server on the default group shares its port and round ids. An
+ * ANNOUNCE is taken up once the session's manifest lists that name with
+ * that size, which preallocates the file's .part; each DATA datagram is
+ * written at its own offset, so datagrams may arrive in any order. On END the receiver NACKs the sequences it is missing back
+ * to the sender; whatever is still missing when the session gets
+ * MULTICAST_DONE is fetched over TCP by ClientSession.
+ *
+ * System properties:
+ * - lanshare.multicastIf: interface to join on (default: the OS choice)
+ * - lanshare.multicastLoss: fraction of datagrams to drop on purpose, to
+ * exercise the repair paths (default 0)
+ */
+final class MulticastReceiver implements Closeable {
+
+    /** Socket receive buffer requested from the OS (4 MB) */
+    static final int RECEIVE_BUFFER = 4 * 1024 * 1024;
+
+    /** How often the receive loop checks whether it has been closed */
+    static final int POLL_MS = 250;
+
+    /** Progress is reported every this many datagrams per file */
+    static final int PROGRESS_EVERY = 64;
+
+    /** One announced file and the sequences received so far. */
+    static final class FileState {
+        final String name;
+        final long size;
+        final int sequences;
+        private final BitSet have;
+        private final FileChannel channel;
+        private int received;
+
+        FileState(String name, long size, FileChannel channel) {
+            this.name = name;
+            this.size = size;
+            this.sequences = MulticastPacket.sequenceCount(size);
+            this.have = new BitSet(sequences);
+            this.channel = channel;
+        }
+
+        synchronized boolean isComplete() {
+            return received == sequences;
+        }
+
+        /** File bytes held so far. */
+        synchronized long bytes() {
+            if (received == sequences)
+                return size;
+            long bytes = (long) received * MulticastPacket.PAYLOAD_SIZE;
+            if (sequences > 0 && have.get(sequences - 1))
+                bytes -= (long) sequences * MulticastPacket.PAYLOAD_SIZE - size;
+            return bytes;
+        }
+
+        /** Missing parts of the file as {offset, length} byte ranges. */
+        synchronized List<long[]> missingRanges() {
+            List<long[]> ranges = new ArrayList<>();
+            for (int[] range : missingSequences(Integer.MAX_VALUE)) {
+                long offset = (long) range[0] * MulticastPacket.PAYLOAD_SIZE;
+                long end = Math.min(size, (long) (range[0] + range[1]) * MulticastPacket.PAYLOAD_SIZE);
+                ranges.add(new long[] { offset, end - offset });
+            }
+            return ranges;
+        }
+
+        /** Missing sequences as {first, count} pairs, at most {@code max} of them. */
+        private synchronized List<int[]> missingSequences(int max) {
+            List<int[]> ranges = new ArrayList<>();
+            for (int seq = have.nextClearBit(0); seq < sequences && ranges.size() < max;) {
+                int next = have.nextSetBit(seq);
+                int end = next < 0 ? sequences : Math.min(next, sequences);
+                ranges.add(new int[] { seq, end - seq });
+                seq = have.nextClearBit(end);
+            }
+            return ranges;
+        }
+
+        /** Writes one DATA payload; returns false if it was a duplicate. */
+        private synchronized boolean write(int seq, ByteBuffer payload) throws IOException {
+            if (seq < 0 || seq >= sequences || have.get(seq))
+                return false;
+            long position = (long) seq * MulticastPacket.PAYLOAD_SIZE;
+            while (payload.hasRemaining())
+                position += channel.write(payload, position);
+            have.set(seq);
+            received++;
+            return true;
+        }
+    }
+
+    /** A file name and size heard in an ANNOUNCE. */
+    private static final class Announce {
+        final String name;
+        final long size;
+
+        Announce(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+    }
+
+    private final Path downloadDir;
+    private final InetAddress server;
+    private final InetSocketAddress group;
+    private final NetworkInterface iface;
+    private final MulticastSocket socket;
+    private final double loss = Double.parseDouble(System.getProperty("lanshare.multicastLoss", "0"));
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /** Files by name, shared with the session */
+    private final Map<String, FileState> files = new ConcurrentHashMap<>();
+
+    /** Files by (round, file index) — receive thread only */
+    private final Map<Long, FileState> announced = new HashMap<>();
+
+    /** ANNOUNCEs not yet matched to an expected file, by (round, file index) — receive thread only */
+    private final Map<Long, Announce> unclaimed = new HashMap<>();
+
+    private final Map<String, DownloadScheduler.Job> expected = new ConcurrentHashMap<>();
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private volatile DownloadListener listener;
+    private volatile int fileCount;
+    private volatile long totalBytes;
+
+    /**
+     * Joins the group given as "<address>:<port>" and starts receiving
+     * what {@code server} sends to it.
+     */
+    MulticastReceiver(String groupSpec, InetAddress server, Path downloadDir) throws IOException {
+        this.downloadDir = downloadDir;
+        this.server = server;
+        int colon = groupSpec.lastIndexOf(':');
+        if (colon < 0)
+            throw new IOException("Malformed multicast group: " + groupSpec);
+        try {
+            group = new InetSocketAddress(InetAddress.getByName(groupSpec.substring(0, colon)),
+                    Integer.parseInt(groupSpec.substring(colon + 1)));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed multicast group: " + groupSpec);
+        }
+
+        String ifName = System.getProperty("lanshare.multicastIf");
+        iface = ifName == null ? null : NetworkInterface.getByName(ifName);
+        if (ifName != null && iface == null)
+            throw new IOException("Unknown network interface: " + ifName);
+
+        // MulticastSocket enables SO_REUSEADDR, so several sessions on one
+        // machine can listen on the same group port
+        socket = new MulticastSocket(group.getPort());
+        try {
+            socket.setReceiveBufferSize(RECEIVE_BUFFER);
+            socket.setSoTimeout(POLL_MS);
+            if (iface != null)
+                socket.setNetworkInterface(iface);
+            socket.joinGroup(group, iface);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        thread = new Thread(this::receiveLoop, "multicast-receiver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Names the files this session is waiting for, so that progress for
+     * them is reported to {@code listener}.
+     */
+    void expect(List<DownloadScheduler.Job> jobs, int fileCount, DownloadListener listener) {
+        long total = 0;
+        for (DownloadScheduler.Job job : jobs) {
+            expected.put(job.name, job);
+            total += job.size;
+        }
+        this.fileCount = fileCount;
+        this.totalBytes = total;
+        this.listener = listener;
+    }
+
+    /** What arrived of {@code name}, or null if it was never announced. */
+    FileState state(String name) {
+        return files.get(name);
+    }
+
+    /** Distinct file bytes received by multicast. */
+    long receivedBytes() {
+        return receivedBytes.get();
+    }
+
+    /** Stops receiving and leaves the group; .part files are kept. */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            socket.leaveGroup(group, iface);
+        } catch (IOException ignored) {
+        }
+        socket.close();
+        for (FileState state : files.values()) {
+            try {
+                state.channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // ══════════════════════════════════════════════
+    // Receive loop
+    // ══════════════════════════════════════════════
+
+    private void receiveLoop() {
+        byte[] raw = new byte[MulticastPacket.MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(raw, raw.length);
+        MulticastPacket header = new MulticastPacket();
+
+        while (!closed) {
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                continue;
+            } catch (IOException e) {
+                if (!closed)
+                    System.err.println("Multicast receive failed: " + e.getMessage());
+                return;
+            }
+            if (!server.equals(packet.getAddress()))
+                continue; // another faculty PC on the same group
+            if (loss > 0 && ThreadLocalRandom.current().nextDouble() < loss)
+                continue;
+
+            ByteBuffer in = ByteBuffer.wrap(raw, 0, packet.getLength());
+            if (!header.parseHeader(in))
+                continue;
+            long key = ((long) header.round << 32) | (header.fileIndex & 0xFFFFFFFFL);
+
+            try {
+                switch (header.type) {
+                    case MulticastPacket.ANNOUNCE:
+                        onAnnounce(key, in);
+                        break;
+                    case MulticastPacket.DATA:
+                        onData(claim(key), in);
+                        break;
+                    case MulticastPacket.END:
+                        onEnd(claim(key), header, packet.getSocketAddress());
+                        break;
+                    default:
+                        break; // NACKs from other receivers
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Bad multicast datagram: " + e.getMessage());
+            }
+        }
+    }
+
+    private void onAnnounce(long key, ByteBuffer in) throws IOException {
+        if (announced.containsKey(key) || unclaimed.containsKey(key))
+            return; // repeated announcement
+        long size = in.getLong();
+        in.getInt(); // sequence count, derived from size
+        String name = MulticastPacket.readName(in);
+
+        // Same rule as the server: rounds carry top-level names only
+        if (!SharedPath.isSafe(name, false))
+            throw new IOException("rejected file name " + name);
+        unclaimed.put(key, new Announce(name, size));
+        claim(key);
+    }
+
+    /**
+     * The file announced under {@code key}, once the session expects that
+     * name with that size; null while it does not (or never will).
+     */
+    private FileState claim(long key) throws IOException {
+        FileState state = announced.get(key);
+        Announce announce = unclaimed.get(key);
+        if (state != null || announce == null)
+            return state;
+        String name = announce.name;
+        long size = announce.size;
+        DownloadScheduler.Job job = expected.get(name);
+        if (job == null || job.size != size)
+            return null;
+
+        // A later round of the same file (for sessions that joined late)
+        state = files.get(name);
+        if (state == null) {
+            Path target = downloadDir.resolve(name);
+            PartialDownloads.discard(target);
+            RandomAccessFile file = new RandomAccessFile(PartialDownloads.partPath(target).toFile(), "rw");
+            file.setLength(size);
+            state = new FileState(name, size, file.getChannel());
+            files.put(name, state);
+
+            DownloadListener l = listener;
+            if (l != null)
+                l.onFileStarted(job.fileNum, fileCount, name, size);
+        }
+        unclaimed.remove(key);
+        announced.put(key, state);
+        return state;
+    }
+
+    private void onData(FileState state, ByteBuffer in) throws IOException {
+        if (state == null)
+            return; // all announcements lost; TCP will fetch it
+        int seq = in.getInt();
+        int length = in.remaining();
+        if (!state.write(seq, in))
+            return;
+        long total = receivedBytes.addAndGet(length);
+
+        DownloadScheduler.Job job = expected.get(state.name);
+        DownloadListener l = listener;
+        if (job != null && l != null && (seq % PROGRESS_EVERY == 0 || state.isComplete())) {
+            l.onProgress(job.fileNum, fileCount, state.bytes(), state.size);
+            l.onTotalProgress(total, totalBytes);
+        }
+    }
+
+    /** Asks the sender to repeat what this receiver is missing. */
+    private void onEnd(FileState state, MulticastPacket header, SocketAddress sender) throws IOException {
+        if (state == null || state.isComplete())
+            return;
+        List<int[]> missing = state.missingSequences(MulticastPacket.MAX_NACK_RANGES);
+        ByteBuffer out = ByteBuffer.allocate(MulticastPacket.MAX_DATAGRAM);
+        MulticastPacket.putHeader(out, MulticastPacket.NACK, header.round, header.fileIndex);
+        out.putShort((short) missing.size());
+        for (int[] range : missing)
+            out.putInt(range[0]).putInt(range[1]);
+        out.flip();
+        socket.send(new DatagramPacket(out.array(), out.limit(), sender));
+    }
+}
@@ -0,0 +1,139 @@
+package client;
+
+import common.Protocol;
+import common.ResumePoint;
+import common.SharedPath;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * Partial files kept in the download folder between sessions.
+ *
+ * While a file is arriving it is written to "<name>.part", next to a
+ * "<name>.part.meta" sidecar recording which version of the file it is
+ * (server size and modification time). Only when the last byte is on disk
+ * is the .part renamed to its real name and the sidecar deleted, so a
+ * dropped connection leaves everything needed to ask for the remainder.
+ */
+final class PartialDownloads {
+
+    static final String PART_SUFFIX = ".part";
+    static final String META_SUFFIX = ".part.meta";
+
+    private PartialDownloads() {
+    }
+
+    static Path partPath(Path target) {
+        return target.resolveSibling(target.getFileName() + PART_SUFFIX);
+    }
+
+    static Path metaPath(Path target) {
+        return target.resolveSibling(target.getFileName() + META_SUFFIX);
+    }
+
+    /** True for .part files and their sidecars, which are not downloads yet. */
+    static boolean isPartial(Path path) {
+        String name = path.getFileName().toString();
+        return name.endsWith(PART_SUFFIX) || name.endsWith(META_SUFFIX);
+    }
+
+    /** Records which version of the file a new .part belongs to. */
+    static void writeMeta(Path target, long size, long lastModified) throws IOException {
+        Properties meta = new Properties();
+        meta.setProperty("name", target.getFileName().toString());
+        meta.setProperty("size", Long.toString(size));
+        meta.setProperty("lastModified", Long.toString(lastModified));
+        try (OutputStream out = Files.newOutputStream(metaPath(target))) {
+            meta.store(out, "LAN File Sharing partial download");
+        }
+    }
+
+    /** Promotes a finished .part to its real name and drops the sidecar. */
+    static void complete(Path target) throws IOException {
+        Files.move(partPath(target), target, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(metaPath(target));
+    }
+
+    /** Deletes a partial download that can no longer be resumed. */
+    static void discard(Path target) {
+        try {
+            Files.deleteIfExists(partPath(target));
+            Files.deleteIfExists(metaPath(target));
+        } catch (IOException e) {
+            System.err.println("Could not delete partial " + target.getFileName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Prepares {@code target}'s .part for a download of this version of the
+     * file: if a matching partial exists, returns its length so the caller
+     * can fetch only the rest; otherwise starts a fresh sidecar and returns 0.
+     */
+    static long prepare(Path target, long size, long lastModified) throws IOException {
+        Path part = partPath(target);
+        Path metaFile = metaPath(target);
+        if (Files.exists(part) && Files.exists(metaFile)) {
+            Properties meta = new Properties();
+            try (InputStream in = Files.newInputStream(metaFile)) {
+                meta.load(in);
+            }
+            long partLength = Files.size(part);
+            if (Long.toString(size).equals(meta.getProperty("size"))
+                    && Long.toString(lastModified).equals(meta.getProperty("lastModified"))
+                    && partLength <= size)
+                return partLength;
+        }
+        discard(target);
+        writeMeta(target, size, lastModified);
+        return 0;
+    }
+
+    /**
+     * Lists every resumable partial under {@code dir}, subfolders included
+     * (named as TREE paths): a sidecar plus a .part file. Unreadable
+     * sidecars are skipped, and at most MAX_RESUME_ENTRIES are listed.
+     */
+    static List<ResumePoint> list(Path dir) {
+        List<ResumePoint> points = new ArrayList<>();
+        if (!Files.isDirectory(dir))
+            return points;
+
+        try (Stream<Path> paths = Files.walk(dir)) {
+            Iterator<Path> metas = paths.filter(p -> p.getFileName().toString().endsWith(META_SUFFIX)).iterator();
+            while (metas.hasNext() && points.size() < Protocol.MAX_RESUME_ENTRIES) {
+                Path metaFile = metas.next();
+                Properties meta = new Properties();
+                try (InputStream in = Files.newInputStream(metaFile)) {
+                    meta.load(in);
+                    String fileName = meta.getProperty("name");
+                    if (!SharedPath.isSafe(fileName, false))
+                        throw new IOException("bad name " + fileName);
+                    Path target = metaFile.resolveSibling(fileName);
+                    Path part = partPath(target);
+                    if (!Files.exists(part))
+                        continue;
+                    points.add(new ResumePoint(SharedPath.of(dir, target),
+                            Long.parseLong(meta.getProperty("size")),
+                            Long.parseLong(meta.getProperty("lastModified")),
+                            Files.size(part)));
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Skipping unreadable " + metaFile.getFileName() + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Error scanning for partial downloads: " + e.getMessage());
+        }
+        return points;
+    }
+}
@@ -0,0 +1,178 @@
+package client;
+
+import common.SharedPath;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Fetches the files of a browsed share as they are wanted.
+ *
+ * Files asked for with {@link #request} (a double-click) go to the front
+ * of the queue. While nobody is waiting, the prefetcher guesses what will
+ * be opened next: files in the folder of the last request first, then the
+ * rest of the share newest first — today's slides before last term's —
+ * until BUDGET bytes have been prefetched. Files larger than the budget
+ * are only ever fetched on request.
+ *
+ * Everything is fetched on one thread, one file at a time, through
+ * {@link ClientSession#fetch}, so the cache and delta sync apply as they
+ * do to a full download.
+ */
+public final class Prefetcher {
+
+    /** Bytes fetched without being asked for, per session (256 MB) */
+    public static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+
+    private final ClientSession session;
+    private final Path downloadDir;
+    private final DownloadListener listener;
+    private final long budget;
+
+    /** Every file of the share, newest first */
+    private final List<DownloadScheduler.Job> byRecency;
+    private int cursor;
+
+    private final LinkedBlockingDeque<DownloadScheduler.Job> requests = new LinkedBlockingDeque<>();
+    private final Map<String, CompletableFuture<Boolean>> fetched = new ConcurrentHashMap<>();
+    private final Thread thread;
+
+    private volatile String hotFolder;
+    private volatile long prefetchedBytes;
+
+    /**
+     * @param files    the manifest returned by {@link ClientSession#browse}
+     * @param budget   bytes that may be prefetched unasked (0 = on request only)
+     * @param listener told about each file as it is fetched, on this
+     *                 prefetcher's thread
+     */
+    public Prefetcher(ClientSession session, Path downloadDir, List<DownloadScheduler.Job> files, long budget,
+            DownloadListener listener) {
+        this.session = session;
+        this.downloadDir = downloadDir;
+        this.listener = listener;
+        this.budget = budget;
+        byRecency = new ArrayList<>(files);
+        byRecency.sort(Comparator.comparingLong((DownloadScheduler.Job job) -> job.lastModified).reversed());
+        thread = new Thread(this::run, "prefetcher");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /** Stops after the file being fetched, if any; pending requests complete as failed. */
+    public void stop() {
+        thread.interrupt();
+        for (DownloadScheduler.Job job : requests)
+            future(job).complete(false);
+        requests.clear();
+    }
+
+    /**
+     * Fetches {@code job} ahead of any prefetching.
+     *
+     * @return completes with true once the file is in the download folder,
+     *         or false if it could not be fetched
+     */
+    public CompletableFuture<Boolean> request(DownloadScheduler.Job job) {
+        CompletableFuture<Boolean> result = future(job);
+        if (result.isDone() && !result.join()) {
+            // Failed before: let a new request try again
+            fetched.remove(job.name, result);
+            result = future(job);
+        }
+        if (!result.isDone()) {
+            hotFolder = folderOf(job.name);
+            requests.addFirst(job);
+        }
+        return result;
+    }
+
+    /** True once {@code name} has been fetched this session. */
+    public boolean isFetched(String name) {
+        CompletableFuture<Boolean> result = fetched.get(name);
+        return result != null && result.isDone() && result.join();
+    }
+
+    /** Bytes fetched so far without being requested. */
+    public long prefetchedBytes() {
+        return prefetchedBytes;
+    }
+
+    private CompletableFuture<Boolean> future(DownloadScheduler.Job job) {
+        return fetched.computeIfAbsent(job.name, name -> new CompletableFuture<>());
+    }
+
+    private void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                DownloadScheduler.Job job = requests.poll();
+                boolean asked = job != null;
+                if (job == null)
+                    job = nextGuess();
+                if (job == null) {
+                    job = requests.take(); // nothing left to guess: wait for a request
+                    asked = true;
+                }
+                if (future(job).isDone())
+                    continue;
+                boolean ok = fetch(job);
+                if (ok && !asked)
+                    prefetchedBytes += job.size;
+                future(job).complete(ok);
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    private boolean fetch(DownloadScheduler.Job job) {
+        Path target = downloadDir.resolve(job.name);
+        try {
+            if (Files.isRegularFile(target) && Files.size(target) == job.size
+                    && Files.getLastModifiedTime(target).toMillis() >= job.lastModified)
+                return true; // already fetched by an earlier session
+        } catch (IOException e) {
+            // fetch it again
+        }
+        return session.fetch(List.of(job), listener) == 1;
+    }
+
+    /** The next file worth fetching unasked, or null once the budget is spent. */
+    private DownloadScheduler.Job nextGuess() {
+        String folder = hotFolder;
+        if (folder != null) {
+            for (DownloadScheduler.Job job : byRecency) {
+                if (folder.equals(folderOf(job.name)) && fits(job))
+                    return job;
+            }
+            hotFolder = null; // nothing more worth taking from it
+        }
+        while (cursor < byRecency.size()) {
+            DownloadScheduler.Job job = byRecency.get(cursor++);
+            if (fits(job))
+                return job;
+        }
+        return null;
+    }
+
+    private boolean fits(DownloadScheduler.Job job) {
+        return !fetched.containsKey(job.name) && prefetchedBytes + job.size <= budget;
+    }
+
+    private static String folderOf(String name) {
+        int slash = name.lastIndexOf(SharedPath.SEPARATOR);
+        return slash < 0 ? "" : name.substring(0, slash);
+    }
+}
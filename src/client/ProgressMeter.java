@@ -0,0 +1,189 @@
+package client;
+
+import javax.swing.JProgressBar;
+import javax.swing.Timer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Download progress as the GUI shows it, sampled instead of pushed.
+ *
+ * A session reports progress for every buffer it writes: hundreds of
+ * thousands of calls for a large video. Posting an EDT event (and
+ * formatting its text) for each one kept a smart board's slow CPU busy
+ * repainting instead of downloading. Here the download threads only
+ * store byte counts in atomics; a Swing Timer on the EDT reads them
+ * FRAMES_PER_SECOND times a second and repaints what changed: each file's
+ * row, and the bar with a smoothed rate and, once the share's size is
+ * known, the time left.
+ *
+ * The reporting methods may be called from any thread; the rest is
+ * EDT-only.
+ */
+public final class ProgressMeter {
+
+    /** Repaints per second */
+    static final int FRAMES_PER_SECOND = 10;
+
+    /** Time constant of the smoothed rate (ms): long enough for a steady time left */
+    private static final double RATE_TAU_MS = 3000;
+
+    /** Shows a file's percentage in its row (called on the EDT). */
+    @FunctionalInterface
+    public interface RowView {
+        void show(int fileNum, int percent);
+    }
+
+    /** A file in flight: its size, bytes on disk so far and the percentage last shown. */
+    private static final class File {
+        final long size;
+        final AtomicLong bytes = new AtomicLong();
+        int shownPercent;
+
+        File(long size) {
+            this.size = size;
+        }
+    }
+
+    private final JProgressBar bar;
+    private final RowView rows;
+    private final Timer timer;
+
+    // ── Written by download threads ──
+    private final Map<Integer, File> active = new ConcurrentHashMap<>();
+    private final AtomicLong completedBytes = new AtomicLong();
+    private final AtomicInteger completedFiles = new AtomicInteger();
+    private volatile int fileCount;
+    private volatile long totalReceived;
+    /** Size of the whole share, once a pooled download reports it; -1 until then */
+    private volatile long totalBytes = -1;
+
+    // ── EDT only ──
+    private long lastReceived = -1;
+    private long lastTick;
+    private double rate;
+    private String shownText;
+
+    /**
+     * Starts sampling.
+     *
+     * @param bar  the overall bar, or null to show rows only
+     * @param rows where per-file percentages go
+     */
+    public ProgressMeter(JProgressBar bar, RowView rows) {
+        this.bar = bar;
+        this.rows = rows;
+        timer = new Timer(1000 / FRAMES_PER_SECOND, e -> tick());
+        timer.start();
+    }
+
+    // ──────────────────────────────────────────────
+    // Reporting (any thread)
+    // ──────────────────────────────────────────────
+
+    public void started(int fileNum, int fileCount, long fileSize) {
+        this.fileCount = fileCount;
+        active.put(fileNum, new File(fileSize));
+    }
+
+    public void progress(int fileNum, long bytesReceived) {
+        File file = active.get(fileNum);
+        if (file != null)
+            file.bytes.set(bytesReceived);
+    }
+
+    public void total(long bytesReceived, long totalBytes) {
+        totalReceived = bytesReceived;
+        this.totalBytes = totalBytes;
+    }
+
+    public void completed(int fileNum, long fileSize) {
+        if (active.remove(fileNum) != null) {
+            completedBytes.addAndGet(fileSize);
+            completedFiles.incrementAndGet();
+        }
+    }
+
+    // ──────────────────────────────────────────────
+    // Sampling (EDT)
+    // ──────────────────────────────────────────────
+
+    /** Stops sampling; whatever the caller shows next stays. */
+    public void stop() {
+        timer.stop();
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        long inFlight = 0;
+        long percents = 0;
+        for (Map.Entry<Integer, File> entry : active.entrySet()) {
+            File file = entry.getValue();
+            long bytes = file.bytes.get();
+            int percent = percent(bytes, file.size);
+            inFlight += bytes;
+            percents += percent;
+            if (percent != file.shownPercent) {
+                file.shownPercent = percent;
+                rows.show(entry.getKey(), percent);
+            }
+        }
+        if (bar == null)
+            return;
+
+        long total = totalBytes;
+        long received;
+        int overall;
+        if (total >= 0) {
+            received = totalReceived;
+            overall = percent(received, total);
+        } else {
+            received = completedBytes.get() + inFlight;
+            int files = fileCount;
+            overall = files == 0 ? 0 : (int) Math.min(100, (completedFiles.get() * 100L + percents) / files);
+        }
+        if (lastReceived >= 0) {
+            // A stalled download decays the rate (and stretches the time left)
+            double ms = (now - lastTick) / 1e6;
+            double instant = Math.max(0, received - lastReceived) / ms * 1000;
+            double alpha = rate == 0 ? 1 : 1 - Math.exp(-ms / RATE_TAU_MS);
+            rate += alpha * (instant - rate);
+        }
+        lastReceived = received;
+        lastTick = now;
+
+        StringBuilder text = new StringBuilder(64).append(Client.formatSize(received));
+        if (total >= 0)
+            text.append(" / ").append(Client.formatSize(total));
+        text.append("  (").append(overall).append("%)");
+        if (rate > 0) {
+            text.append("  ").append(Client.formatSize((long) rate)).append("/s");
+            if (total >= 0 && received < total)
+                text.append(", ").append(duration((long) ((total - received) / rate))).append(" left");
+        }
+        String shown = text.toString();
+        bar.setValue(overall);
+        if (!shown.equals(shownText)) {
+            shownText = shown;
+            bar.setString(shown);
+        }
+    }
+
+    private static int percent(long bytes, long size) {
+        return size <= 0 ? 100 : (int) Math.min(100, bytes * 100 / size);
+    }
+
+    /** "m:ss", or "h:mm:ss" from an hour up. */
+    static String duration(long seconds) {
+        long h = seconds / 3600;
+        long m = seconds / 60 % 60;
+        long s = seconds % 60;
+        StringBuilder text = new StringBuilder();
+        if (h > 0)
+            text.append(h).append(':').append(m < 10 ? "0" : "");
+        text.append(m).append(':').append(s < 10 ? "0" : "").append(s);
+        return text.toString();
+    }
+}
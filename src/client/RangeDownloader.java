@@ -0,0 +1,257 @@
+package client;
+
+import common.MerkleTree;
+import common.Protocol;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * Downloads one large file over several parallel range connections.
+ *
+ * The file is cut into CHUNK_SIZE pieces on a shared queue and written into
+ * a preallocated .part file with positional FileChannel.write, so workers
+ * never coordinate beyond taking the next chunk. A chunk whose connection
+ * fails goes back on the queue (minus what was already written).
+ *
+ * Under CHECKSUM the first worker fetches the file's leaf hashes (see
+ * MerkleTree), and every chunk is checked against them as soon as it
+ * lands; from its first damaged leaf on it goes back on the queue. Chunks
+ * start on leaf boundaries so that no leaf is shared by two of them.
+ *
+ * The number of streams adapts: it starts at INITIAL_STREAMS and, every
+ * SAMPLE_MS, another stream is added while each addition still raises
+ * aggregate throughput by at least GROWTH. Once a step stops helping —
+ * the link or the server is saturated — no more are added.
+ */
+final class RangeDownloader {
+
+    /** Bytes per range request (8 MB) */
+    static final int CHUNK_SIZE = 8 * 1024 * 1024;
+
+    static final int INITIAL_STREAMS = 2;
+    static final int MAX_STREAMS = 6;
+
+    /** Throughput sampling interval */
+    static final long SAMPLE_MS = 500;
+
+    /** Required gain per added stream (10%) */
+    static final double GROWTH = 1.10;
+
+    /** Failed connections tolerated before the download is abandoned */
+    static final int MAX_FAILURES = 3;
+
+    private final ClientSession origin;
+    private final String name;
+    private final long size;
+    private final byte[] rootHash;
+
+    /** Leaf hashes, checked against rootHash, once a worker has fetched them (guarded by this) */
+    private byte[] leaves;
+    private boolean leavesAsked;
+
+    private final ConcurrentLinkedDeque<long[]> chunks = new ConcurrentLinkedDeque<>();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicInteger liveWorkers = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final List<Thread> workers = new ArrayList<>();
+
+    private FileChannel channel;
+
+    /**
+     * @param origin the logged-in session whose server and credentials the
+     *               range connections reuse
+     * @param rootHash the root of the file's hash tree announced under
+     *                 CHECKSUM, or null
+     */
+    RangeDownloader(ClientSession origin, String name, long size, byte[] rootHash) {
+        this.origin = origin;
+        this.name = name;
+        this.size = size;
+        this.rootHash = rootHash;
+        for (long offset = 0; offset < size; offset += CHUNK_SIZE)
+            chunks.add(new long[] { offset, Math.min(CHUNK_SIZE, size - offset) });
+    }
+
+    /**
+     * Fetches the whole file into {@code target}, via its .part file.
+     *
+     * @param progress receives the running byte total, on the calling thread
+     * @return true if every byte arrived and the file was moved into place
+     */
+    boolean download(Path target, LongConsumer progress) {
+        PartialDownloads.discard(target);
+        Path part = PartialDownloads.partPath(target);
+        long start = System.nanoTime();
+
+        try (RandomAccessFile file = new RandomAccessFile(part.toFile(), "rw")) {
+            file.setLength(size);
+            channel = file.getChannel();
+
+            for (int i = 0; i < INITIAL_STREAMS && !chunks.isEmpty(); i++)
+                addWorker();
+            adapt(progress);
+            for (Thread worker : workers)
+                worker.join();
+        } catch (IOException e) {
+            System.err.println("Range download of " + name + " failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        progress.accept(received.get());
+        if (received.get() != size) {
+            System.err.println("Range download of " + name + " incomplete ("
+                    + received.get() + " of " + size + " bytes)");
+            PartialDownloads.discard(target);
+            return false;
+        }
+
+        try {
+            // Each chunk was checked as it landed if the leaves came; otherwise read the file back
+            if (leaves() == null && !new IntegrityCheck(rootHash).verify(part, size)) {
+                System.err.println(name + " does not match the server's hash — discarding it");
+                PartialDownloads.discard(target);
+                return false;
+            }
+            PartialDownloads.complete(target);
+        } catch (IOException e) {
+            System.err.println("Could not move " + name + " into place: " + e.getMessage());
+            return false;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Range download of %s: %d stream(s), %.1f MB/s%n",
+                name, workers.size(), size / seconds / (1024 * 1024));
+        return true;
+    }
+
+    /**
+     * Samples throughput until every stream has stopped with nothing left
+     * on the queue, adding streams while they still help. The byte count
+     * cannot tell when that is: a chunk that fails its leaf check is only
+     * taken back out of it after it has landed in full.
+     */
+    private void adapt(LongConsumer progress) throws InterruptedException {
+        double bestRate = 0;
+        boolean growing = true;
+        long lastBytes = 0;
+        long lastTime = System.nanoTime();
+
+        while (true) {
+            Thread.sleep(SAMPLE_MS);
+            long bytes = received.get();
+            long now = System.nanoTime();
+            progress.accept(bytes);
+
+            // Workers requeue before they stop, so once none is live the queue is final
+            if (liveWorkers.get() == 0) {
+                // Done, or requeued work is left: take it up on a fresh connection if allowed
+                if (chunks.isEmpty() || failures.get() >= MAX_FAILURES)
+                    return;
+                addWorker();
+            }
+
+            double rate = (bytes - lastBytes) / ((now - lastTime) / 1e9);
+            lastBytes = bytes;
+            lastTime = now;
+
+            if (growing && liveWorkers.get() < MAX_STREAMS && !chunks.isEmpty()) {
+                if (rate > bestRate * GROWTH) {
+                    bestRate = rate;
+                    addWorker();
+                } else {
+                    growing = false;
+                }
+            }
+        }
+    }
+
+    private void addWorker() {
+        liveWorkers.incrementAndGet();
+        Thread worker = new Thread(this::work, "range-" + name + "-" + workers.size());
+        worker.setDaemon(true);
+        workers.add(worker);
+        worker.start();
+    }
+
+    /**
+     * Puts the part of {@code chunk} after its first {@code kept} bytes back
+     * on the queue, and takes the {@code written - kept} bytes that will be
+     * fetched again back out of the total.
+     */
+    private void requeue(long[] chunk, long kept, long written) {
+        received.addAndGet(kept - written);
+        chunks.addFirst(new long[] { chunk[0] + kept, chunk[1] - kept });
+    }
+
+    /**
+     * The file's leaf hashes, fetched on {@code session} by the first
+     * worker to ask; null without a root hash, or if the server would not
+     * send them (the whole file is then checked once complete).
+     */
+    private synchronized byte[] leaves(ClientSession session) {
+        if (!leavesAsked && rootHash != null) {
+            leavesAsked = true;
+            try {
+                leaves = session.fetchHashes(name, size, rootHash, 0, MerkleTree.leafCount(size));
+            } catch (IOException e) {
+                System.err.println("No hash tree for " + name + " (" + e.getMessage() + ")");
+            }
+        }
+        return leaves;
+    }
+
+    private synchronized byte[] leaves() {
+        return leaves;
+    }
+
+    /** Takes chunks off the queue until it is empty or the connection fails. */
+    private void work() {
+        try (ClientSession session = origin.openRangeConnection()) {
+            long[] chunk;
+            while ((chunk = chunks.poll()) != null) {
+                // Bytes written from the chunk's start without a gap, and in all
+                long[] written = { 0, 0 };
+                try {
+                    long start = chunk[0];
+                    session.fetchRange(name, start, chunk[1], (buffer, n, position) -> {
+                        ClientSession.writeFully(channel, buffer, n, position);
+                        if (position == start + written[0])
+                            written[0] += n;
+                        written[1] += n;
+                        received.addAndGet(n);
+                    });
+                } catch (IOException e) {
+                    // Hand the unwritten tail, from a leaf boundary, to another stream
+                    requeue(chunk, written[0] - written[0] % Protocol.HASH_LEAF_SIZE, written[1]);
+                    throw e;
+                }
+                byte[] hashes = leaves(session);
+                if (hashes != null) {
+                    int first = (int) (chunk[0] / Protocol.HASH_LEAF_SIZE);
+                    int count = MerkleTree.leafCount(chunk[1]);
+                    int damaged = IntegrityCheck.firstMismatch(channel, size, first,
+                            MerkleTree.slice(hashes, first, count));
+                    if (damaged >= 0) {
+                        long good = (long) damaged * Protocol.HASH_LEAF_SIZE - chunk[0];
+                        requeue(chunk, good, chunk[1]);
+                        throw new IOException("bytes from " + (chunk[0] + good) + " do not match the hash tree");
+                    }
+                }
+            }
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            System.err.println("Range stream for " + name + " failed: " + e.getMessage());
+        } finally {
+            liveWorkers.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package client;
+
+import common.Protocol;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Finds the faculty PC by UDP broadcast when its hostname does not
+ * resolve. Shared by the GUI and command-line clients.
+ */
+final class ServerDiscovery {
+
+    /** How long to wait for the server's reply (ms) */
+    private static final int REPLY_TIMEOUT_MS = 2000;
+
+    private ServerDiscovery() {
+    }
+
+    /**
+     * Broadcasts a discovery request and waits for the first reply.
+     *
+     * @return the answering server's IP address and TCP port (Protocol.PORT
+     *         unless the reply names another), or null if none answered
+     */
+    static InetSocketAddress discover() {
+        System.out.println("Attempting UDP Auto-Discovery...");
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setBroadcast(true);
+            socket.setSoTimeout(REPLY_TIMEOUT_MS);
+
+            byte[] reqData = Protocol.DISCOVER_SERVER_REQUEST.getBytes();
+            DatagramPacket reqPacket = new DatagramPacket(
+                    reqData, reqData.length, InetAddress.getByName("255.255.255.255"), Protocol.DISCOVERY_PORT);
+            socket.send(reqPacket);
+
+            byte[] resBuffer = new byte[1024];
+            DatagramPacket resPacket = new DatagramPacket(resBuffer, resBuffer.length);
+            socket.receive(resPacket);
+
+            String response = new String(resPacket.getData(), 0, resPacket.getLength()).trim();
+            int port = parsePort(response);
+            if (port > 0) {
+                String serverIp = resPacket.getAddress().getHostAddress();
+                System.out.println("Auto-Discovery Successful! Server found at: " + serverIp
+                        + (port == Protocol.PORT ? "" : " port " + port));
+                return InetSocketAddress.createUnresolved(serverIp, port);
+            }
+
+        } catch (Exception e) {
+            System.err.println("Auto-Discovery failed: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /** @return the port a discovery reply advertises, or -1 if it is not one */
+    static int parsePort(String response) {
+        if (Protocol.DISCOVER_SERVER_RESPONSE.equals(response))
+            return Protocol.PORT;
+        String prefix = Protocol.DISCOVER_SERVER_RESPONSE + Protocol.DELIMITER;
+        if (!response.startsWith(prefix))
+            return -1;
+        try {
+            int port = Integer.parseInt(response.substring(prefix.length()));
+            return port > 0 && port <= 0xFFFF ? port : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
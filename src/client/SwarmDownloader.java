@@ -0,0 +1,447 @@
+package client;
+
+import common.LineIO;
+import common.Protocol;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a manifest chunk by chunk from other boards, using the server
+ * only for chunks no board has yet.
+ *
+ * Every file is cut into SWARM_CHUNK_SIZE chunks, queued in random order
+ * so that boards starting together fetch different chunks first. A worker
+ * looks at the next LOOKAHEAD chunks and takes the first one the tracker
+ * says another board holds. If none is held anywhere it fetches one from
+ * the server, but no more than SEED_STREAMS chunks per board are ever in
+ * flight from the server — the rest of the time the board waits briefly
+ * and asks again, so the faculty PC's upload is shared out instead of
+ * repeated for every board.
+ *
+ * Every chunk, from a peer or from the server, must match the server's
+ * SHA-256 before it is written, announced with HAVE and served onwards.
+ */
+final class SwarmDownloader {
+
+    /** Chunk fetches in flight per board */
+    static final int WORKERS = 4;
+
+    /** Chunk fetches per board that may go to the server at once */
+    static final int SEED_STREAMS = 1;
+
+    /** Queued chunks checked for a peer before falling back to the server */
+    static final int LOOKAHEAD = 8;
+
+    /** Pause before asking the tracker again when only the server has a chunk */
+    static final long IDLE_WAIT_MS = 50;
+
+    /** Attempts per chunk before its file is given up */
+    static final int MAX_ATTEMPTS = 3;
+
+    static final int PEER_CONNECT_MS = 2_000;
+    static final int PEER_TIMEOUT_MS = 10_000;
+
+    /** One file being assembled. */
+    private static final class FileJob {
+        final DownloadScheduler.Job job;
+        final Path target;
+        final List<byte[]> hashes;
+        final FileChannel channel;
+        final AtomicInteger remaining;
+        final AtomicLong bytes = new AtomicLong();
+        volatile boolean failed;
+
+        FileJob(DownloadScheduler.Job job, Path target, List<byte[]> hashes, FileChannel channel) {
+            this.job = job;
+            this.target = target;
+            this.hashes = hashes;
+            this.channel = channel;
+            this.remaining = new AtomicInteger(hashes.size());
+        }
+    }
+
+    /** One chunk still to fetch. */
+    private static final class Chunk {
+        final FileJob file;
+        final int index;
+        final long offset;
+        final int length;
+        int attempts;
+
+        Chunk(FileJob file, int index) {
+            this.file = file;
+            this.index = index;
+            this.offset = (long) index * Protocol.SWARM_CHUNK_SIZE;
+            this.length = (int) Math.min(Protocol.SWARM_CHUNK_SIZE, file.job.size - offset);
+        }
+    }
+
+    /** A chunk picked by a worker, with the boards that hold it (none: go to the server). */
+    private static final class Pick {
+        final Chunk chunk;
+        final List<InetSocketAddress> peers;
+
+        Pick(Chunk chunk, List<InetSocketAddress> peers) {
+            this.chunk = chunk;
+            this.peers = peers;
+        }
+    }
+
+    private final ClientSession origin;
+    private final Path downloadDir;
+    private final TrackerClient tracker;
+    private final SwarmPeer peer;
+    private final String token;
+
+    private final List<Chunk> pending = new ArrayList<>(); // guarded by this
+    private int seedsInUse; // guarded by this
+
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong peerBytes = new AtomicLong();
+    private final AtomicLong serverBytes = new AtomicLong();
+
+    private int fileCount;
+    private long totalBytes;
+    private DownloadListener listener;
+
+    /**
+     * @param origin the logged-in session whose server and credentials the
+     *               range connections reuse
+     * @param token  swarm token from the tracker, presented to peers
+     */
+    SwarmDownloader(ClientSession origin, Path downloadDir, TrackerClient tracker, SwarmPeer peer,
+            String token) {
+        this.origin = origin;
+        this.downloadDir = downloadDir;
+        this.tracker = tracker;
+        this.peer = peer;
+        this.token = token;
+    }
+
+    /**
+     * Fetches every job and returns once all chunks are in or given up.
+     *
+     * @return the number of files received intact
+     * @throws IOException if the tracker cannot describe the files
+     */
+    int run(List<DownloadScheduler.Job> jobs, int fileCount, DownloadListener listener) throws IOException {
+        this.fileCount = fileCount;
+        this.listener = listener;
+
+        for (DownloadScheduler.Job job : jobs) {
+            List<byte[]> hashes = tracker.chunkHashes(job.name);
+            if (hashes.size() != (job.size + Protocol.SWARM_CHUNK_SIZE - 1) / Protocol.SWARM_CHUNK_SIZE)
+                throw new IOException(job.name + " changed on the server (chunk count mismatch)");
+
+            Path target = downloadDir.resolve(job.name);
+            PartialDownloads.discard(target);
+            Path part = PartialDownloads.partPath(target);
+            RandomAccessFile file = new RandomAccessFile(part.toFile(), "rw");
+            file.setLength(job.size);
+
+            FileJob fileJob = new FileJob(job, target, hashes, file.getChannel());
+            peer.offer(job.name, job.size, part);
+            listener.onFileStarted(job.fileNum, fileCount, job.name, job.size);
+            totalBytes += job.size;
+            if (hashes.isEmpty())
+                finish(fileJob);
+            for (int i = 0; i < hashes.size(); i++)
+                pending.add(new Chunk(fileJob, i));
+        }
+        Collections.shuffle(pending);
+
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(WORKERS, pending.size()); i++) {
+            Thread worker = new Thread(this::work, "swarm-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        try {
+            for (Thread worker : workers)
+                worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return succeeded.get();
+    }
+
+    /** Chunk bytes that came from other boards. */
+    long peerBytes() {
+        return peerBytes.get();
+    }
+
+    /** Chunk bytes that came from the server. */
+    long serverBytes() {
+        return serverBytes.get();
+    }
+
+    // ══════════════════════════════════════════════
+    // Workers
+    // ══════════════════════════════════════════════
+
+    private void work() {
+        ClientSession server = null;
+        Map<InetSocketAddress, PeerLink> links = new HashMap<>();
+        byte[] buffer = new byte[Protocol.SWARM_CHUNK_SIZE];
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        try {
+            Pick pick;
+            while ((pick = next()) != null) {
+                Chunk chunk = pick.chunk;
+                boolean ok = false;
+
+                // Boards first, in the tracker's (random) order
+                for (InetSocketAddress address : pick.peers) {
+                    if (fetchFromPeer(links, address, chunk, buffer) && verify(sha256, chunk, buffer)) {
+                        peerBytes.addAndGet(chunk.length);
+                        ok = true;
+                        break;
+                    }
+                }
+
+                // The server is the seed of last resort
+                if (!ok) {
+                    try {
+                        if (server == null)
+                            server = origin.openRangeConnection();
+                        fetchFromServer(server, chunk, buffer);
+                        if (!verify(sha256, chunk, buffer))
+                            throw new IOException("server data does not match the chunk hash");
+                        serverBytes.addAndGet(chunk.length);
+                        ok = true;
+                    } catch (IOException e) {
+                        System.err.println("Chunk " + chunk.index + " of " + chunk.file.job.name
+                                + " failed: " + e.getMessage());
+                        closeQuietly(server);
+                        server = null;
+                    }
+                }
+                if (pick.peers.isEmpty())
+                    releaseSeed();
+
+                if (ok)
+                    store(chunk, buffer);
+                else
+                    retry(chunk);
+            }
+        } finally {
+            closeQuietly(server);
+            for (PeerLink link : links.values())
+                link.close();
+        }
+    }
+
+    /**
+     * Picks the next chunk: one a peer holds if any of the next LOOKAHEAD
+     * does, else one from the server if a seed stream is free. Waits while
+     * neither is possible; returns null once the queue is empty.
+     */
+    private Pick next() {
+        while (true) {
+            List<Chunk> candidates;
+            synchronized (this) {
+                if (pending.isEmpty())
+                    return null;
+                candidates = new ArrayList<>(pending.subList(0, Math.min(LOOKAHEAD, pending.size())));
+            }
+
+            for (Chunk chunk : candidates) {
+                List<InetSocketAddress> peers;
+                try {
+                    peers = tracker.whoHas(chunk.file.job.name, chunk.index);
+                } catch (IOException e) {
+                    peers = List.of(); // tracker gone: the server still serves
+                }
+                if (!peers.isEmpty()) {
+                    synchronized (this) {
+                        if (pending.remove(chunk))
+                            return new Pick(chunk, peers);
+                    }
+                }
+            }
+
+            synchronized (this) {
+                if (pending.isEmpty())
+                    return null;
+                if (seedsInUse < SEED_STREAMS) {
+                    seedsInUse++;
+                    return new Pick(pending.remove(0), List.of());
+                }
+            }
+            try {
+                Thread.sleep(IDLE_WAIT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    private synchronized void releaseSeed() {
+        seedsInUse--;
+    }
+
+    /** Puts a failed chunk back, or gives up its file after MAX_ATTEMPTS. */
+    private void retry(Chunk chunk) {
+        FileJob file = chunk.file;
+        if (++chunk.attempts < MAX_ATTEMPTS) {
+            synchronized (this) {
+                pending.add(chunk);
+            }
+            return;
+        }
+        if (file.failed)
+            return;
+        file.failed = true;
+        synchronized (this) {
+            pending.removeIf(c -> c.file == file);
+        }
+        closeQuietly(file.channel);
+        PartialDownloads.discard(file.target);
+        System.err.println("Giving up on " + file.job.name + " after " + MAX_ATTEMPTS + " attempts");
+    }
+
+    /** Writes a verified chunk, announces it, and completes its file when it was the last. */
+    private void store(Chunk chunk, byte[] buffer) {
+        FileJob file = chunk.file;
+        if (file.failed)
+            return;
+        try {
+            ByteBuffer src = ByteBuffer.wrap(buffer, 0, chunk.length);
+            long position = chunk.offset;
+            while (src.hasRemaining())
+                position += file.channel.write(src, position);
+        } catch (IOException e) {
+            System.err.println("Error writing " + file.job.name + ": " + e.getMessage());
+            retry(chunk);
+            return;
+        }
+
+        peer.addChunk(file.job.name, chunk.index);
+        try {
+            tracker.have(file.job.name, chunk.index);
+        } catch (IOException e) {
+            // not fatal: this board just won't be asked for the chunk
+        }
+
+        long fileBytes = file.bytes.addAndGet(chunk.length);
+        listener.onProgress(file.job.fileNum, fileCount, fileBytes, file.job.size);
+        listener.onTotalProgress(received.addAndGet(chunk.length), totalBytes);
+        if (file.remaining.decrementAndGet() == 0)
+            finish(file);
+    }
+
+    private void finish(FileJob file) {
+        try {
+            file.channel.close();
+            PartialDownloads.complete(file.target);
+            peer.moved(file.job.name, file.target);
+            succeeded.incrementAndGet();
+            listener.onFileCompleted(file.job.fileNum, fileCount, file.job.name, file.job.size);
+        } catch (IOException e) {
+            System.err.println("Could not move " + file.job.name + " into place: " + e.getMessage());
+        }
+    }
+
+    private boolean verify(MessageDigest sha256, Chunk chunk, byte[] buffer) {
+        sha256.update(buffer, 0, chunk.length);
+        return MessageDigest.isEqual(sha256.digest(), chunk.file.hashes.get(chunk.index));
+    }
+
+    private void fetchFromServer(ClientSession server, Chunk chunk, byte[] buffer) throws IOException {
+        server.fetchRange(chunk.file.job.name, chunk.offset, chunk.length,
+                (data, n, position) -> System.arraycopy(data, 0, buffer, (int) (position - chunk.offset), n));
+    }
+
+    /** Fetches a chunk from one board; false if it could not or would not send it. */
+    private boolean fetchFromPeer(Map<InetSocketAddress, PeerLink> links, InetSocketAddress address,
+            Chunk chunk, byte[] buffer) {
+        PeerLink link = links.get(address);
+        try {
+            if (link == null) {
+                link = new PeerLink(address);
+                links.put(address, link);
+            }
+            return link.fetch(token, chunk.file.job.name, chunk.index, buffer, chunk.length);
+        } catch (IOException e) {
+            if (link != null)
+                link.close();
+            links.remove(address);
+            return false;
+        }
+    }
+
+    private static void closeQuietly(ClientSession session) {
+        if (session != null)
+            session.close();
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /** A kept-open connection to another board's SwarmPeer. */
+    private static final class PeerLink {
+        private final Socket socket;
+        private final LineIO io;
+
+        PeerLink(InetSocketAddress address) throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(address, PEER_CONNECT_MS);
+                socket.setSoTimeout(PEER_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                io = new LineIO(socket.getInputStream(), socket.getOutputStream());
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /** @return false if the peer answered with an error (it keeps the connection) */
+        boolean fetch(String token, String name, int chunk, byte[] buffer, int length) throws IOException {
+            io.sendLine(Protocol.PEER_GET_PREFIX + token + Protocol.DELIMITER + chunk
+                    + Protocol.DELIMITER + name);
+            String reply = io.readLine();
+            if (reply == null)
+                throw new IOException("peer closed the connection");
+            if (!reply.equals(Protocol.RANGE_OK_PREFIX + length))
+                return false;
+            io.readFully(buffer, 0, length);
+            return true;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
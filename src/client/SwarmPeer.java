@@ -0,0 +1,223 @@
+package client;
+
+import common.LineIO;
+import common.Protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves verified chunks of this board's downloads to other boards.
+ *
+ * Listens on an ephemeral port that is announced to the tracker with JOIN.
+ * Each connection may send any number of
+ * ← PEER_GET:<token>:<chunk>:<name>
+ * → RANGE_OK:<length> [bytes] | ERROR:<message>
+ * Only files registered with {@link #offer} are visible, and only chunks
+ * that passed the hash check; the token from JOINED keeps boards of other
+ * sessions (or anyone else on the LAN) out.
+ */
+final class SwarmPeer implements Closeable {
+
+    /** Concurrent peer connections served; more are turned away */
+    static final int MAX_CONNECTIONS = 16;
+
+    /** Idle time after which a peer connection is dropped */
+    static final int IDLE_TIMEOUT_MS = 30_000;
+
+    /** One file this board can serve chunks of. */
+    private static final class SharedFile {
+        final long size;
+        volatile Path path;
+        private final BitSet verified = new BitSet();
+
+        SharedFile(long size, Path path) {
+            this.size = size;
+            this.path = path;
+        }
+
+        synchronized boolean has(int chunk) {
+            return verified.get(chunk);
+        }
+
+        synchronized void add(int chunk) {
+            verified.set(chunk);
+        }
+    }
+
+    private final ServerSocket listener;
+    private final Thread acceptor;
+    private final Semaphore slots = new Semaphore(MAX_CONNECTIONS);
+    private final Map<String, SharedFile> files = new ConcurrentHashMap<>();
+    private final AtomicLong uploaded = new AtomicLong();
+    private volatile byte[] token;
+
+    SwarmPeer() throws IOException {
+        listener = new ServerSocket();
+        listener.bind(new InetSocketAddress((InetAddress) null, 0));
+        acceptor = new Thread(this::acceptLoop, "swarm-peer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int port() {
+        return listener.getLocalPort();
+    }
+
+    /** Sets the swarm token from the tracker; requests are refused until then. */
+    void setToken(String token) {
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Makes a file's verified chunks available, read from {@code path}. */
+    void offer(String name, long size, Path path) {
+        files.put(name, new SharedFile(size, path));
+    }
+
+    void addChunk(String name, int chunk) {
+        SharedFile file = files.get(name);
+        if (file != null)
+            file.add(chunk);
+    }
+
+    /** Points a file at its final location once the .part has been moved. */
+    void moved(String name, Path path) {
+        SharedFile file = files.get(name);
+        if (file != null)
+            file.path = path;
+    }
+
+    /** Bytes served to other boards. */
+    long uploadedBytes() {
+        return uploaded.get();
+    }
+
+    @Override
+    public void close() {
+        try {
+            listener.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // ══════════════════════════════════════════════
+    // Serving
+    // ══════════════════════════════════════════════
+
+    private void acceptLoop() {
+        while (!listener.isClosed()) {
+            Socket socket;
+            try {
+                socket = listener.accept();
+            } catch (IOException e) {
+                return; // closed
+            }
+            if (!slots.tryAcquire()) {
+                closeQuietly(socket);
+                continue;
+            }
+            Thread worker = new Thread(() -> {
+                try {
+                    serve(socket);
+                } finally {
+                    slots.release();
+                    closeQuietly(socket);
+                }
+            }, "swarm-peer-conn");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setSoTimeout(IDLE_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            LineIO io = new LineIO(socket.getInputStream(), socket.getOutputStream());
+            byte[] buffer = new byte[Protocol.SWARM_CHUNK_SIZE];
+
+            String line;
+            while ((line = io.readLine()) != null) {
+                String[] parts = line.startsWith(Protocol.PEER_GET_PREFIX)
+                        ? line.substring(Protocol.PEER_GET_PREFIX.length()).split(Protocol.DELIMITER, 3)
+                        : new String[0];
+                byte[] expected = token;
+                if (parts.length != 3 || expected == null
+                        || !MessageDigest.isEqual(expected, parts[0].getBytes(StandardCharsets.UTF_8))) {
+                    io.sendLine(Protocol.ERROR_PREFIX + "Refused");
+                    return;
+                }
+
+                int chunk;
+                try {
+                    chunk = Integer.parseInt(parts[1]);
+                } catch (NumberFormatException e) {
+                    io.sendLine(Protocol.ERROR_PREFIX + "Malformed request");
+                    return;
+                }
+                SharedFile file = files.get(parts[2]);
+                if (file == null || chunk < 0 || !file.has(chunk)) {
+                    io.sendLine(Protocol.ERROR_PREFIX + "Chunk not held");
+                    continue;
+                }
+
+                long offset = (long) chunk * Protocol.SWARM_CHUNK_SIZE;
+                int length = (int) Math.min(Protocol.SWARM_CHUNK_SIZE, file.size - offset);
+                readChunk(file, offset, buffer, length);
+                io.writeLine(Protocol.RANGE_OK_PREFIX + length);
+                io.write(buffer, 0, length);
+                io.flush();
+                uploaded.addAndGet(length);
+            }
+        } catch (IOException e) {
+            // peer went away
+        }
+    }
+
+    /** Reads a chunk, following the file if it has just moved from .part to its final name. */
+    private static void readChunk(SharedFile file, long offset, byte[] buffer, int length) throws IOException {
+        Path path = file.path;
+        try {
+            readChunk(path, offset, buffer, length);
+        } catch (NoSuchFileException e) {
+            String name = path.getFileName().toString();
+            if (!name.endsWith(PartialDownloads.PART_SUFFIX))
+                throw e;
+            readChunk(path.resolveSibling(name.substring(0, name.length() - PartialDownloads.PART_SUFFIX.length())),
+                    offset, buffer, length);
+        }
+    }
+
+    private static void readChunk(Path path, long offset, byte[] buffer, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer dst = ByteBuffer.wrap(buffer, 0, length);
+            while (dst.hasRemaining()) {
+                if (channel.read(dst, offset + dst.position()) < 0)
+                    throw new IOException("chunk beyond end of file");
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package client;
+
+import common.Protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * A board's connection to the server's swarm tracker (see SwarmTracker).
+ *
+ * One TRACKER side connection carries every request, so the methods are
+ * synchronized and each waits for its own reply. The connection stays open
+ * for as long as the board is willing to seed; closing it withdraws the
+ * board from the swarm.
+ */
+final class TrackerClient implements Closeable {
+
+    private final ClientSession connection;
+
+    TrackerClient(ClientSession origin) throws IOException {
+        connection = origin.openTrackerConnection();
+    }
+
+    /**
+     * Registers this board's peer listener.
+     *
+     * @return the swarm token peers must present
+     */
+    synchronized String join(int port) throws IOException {
+        connection.sendRequest(Protocol.JOIN_PREFIX + port);
+        String reply = connection.readReply();
+        if (reply == null || !reply.startsWith(Protocol.JOINED_PREFIX))
+            throw new IOException("Tracker refused JOIN: " + reply);
+        String[] parts = reply.substring(Protocol.JOINED_PREFIX.length()).split(Protocol.DELIMITER, 2);
+        if (parts.length != 2)
+            throw new IOException("Malformed JOINED reply: " + reply);
+        return parts[1];
+    }
+
+    /** The server's SHA-256 of every SWARM_CHUNK_SIZE chunk of {@code name}. */
+    synchronized List<byte[]> chunkHashes(String name) throws IOException {
+        connection.sendRequest(Protocol.CHUNKS_PREFIX + name);
+        String reply = connection.readReply();
+        if (reply == null || !reply.startsWith(Protocol.CHUNKS_PREFIX))
+            throw new IOException("No chunk list for " + name + ": " + reply);
+
+        String[] parts = reply.substring(Protocol.CHUNKS_PREFIX.length()).split(Protocol.DELIMITER);
+        try {
+            if (parts.length != 2 || Integer.parseInt(parts[0]) != Protocol.SWARM_CHUNK_SIZE)
+                throw new IOException("Unsupported chunk list: " + reply);
+            int count = Integer.parseInt(parts[1]);
+            List<byte[]> hashes = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String line = connection.readReply();
+                if (line == null)
+                    throw new IOException("Chunk list for " + name + " ended early");
+                hashes.add(Base64.getDecoder().decode(line));
+            }
+            return hashes;
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed chunk list for " + name + ": " + e.getMessage());
+        }
+    }
+
+    /** Tells the tracker this board now holds a verified chunk. */
+    synchronized void have(String name, int chunk) throws IOException {
+        connection.sendRequest(Protocol.HAVE_PREFIX + chunk + Protocol.DELIMITER + name);
+    }
+
+    /** Other boards that hold {@code chunk} of {@code name}, possibly none. */
+    synchronized List<InetSocketAddress> whoHas(String name, int chunk) throws IOException {
+        connection.sendRequest(Protocol.WHO_HAS_PREFIX + chunk + Protocol.DELIMITER + name);
+        String reply = connection.readReply();
+        if (reply == null || !reply.startsWith(Protocol.PEERS_PREFIX))
+            throw new IOException("Unexpected tracker reply: " + reply);
+
+        List<InetSocketAddress> peers = new ArrayList<>();
+        String list = reply.substring(Protocol.PEERS_PREFIX.length());
+        if (list.isEmpty())
+            return peers;
+        for (String entry : list.split(",")) {
+            int colon = entry.lastIndexOf(':');
+            try {
+                peers.add(new InetSocketAddress(entry.substring(0, colon),
+                        Integer.parseInt(entry.substring(colon + 1))));
+            } catch (RuntimeException e) {
+                // skip a malformed entry
+            }
+        }
+        return peers;
+    }
+
+    @Override
+    public void close() {
+        connection.close();
+    }
+}
@@ -0,0 +1,133 @@
+package common;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * The content-defined chunks of one version of a file, in order: each
+ * chunk's length and SHA-256 (see ContentChunker).
+ *
+ * Encoded for the wire and for ChunkStore index files as ENTRY_SIZE bytes
+ * per chunk: a 4-byte big-endian length followed by the 32-byte hash.
+ */
+public final class ChunkRecipe {
+
+    /** Bytes in a SHA-256 */
+    public static final int HASH_SIZE = 32;
+
+    /** Bytes per chunk in the encoded form */
+    public static final int ENTRY_SIZE = 4 + HASH_SIZE;
+
+    private final int[] lengths;
+    private final long[] offsets;
+    private final byte[] hashes;
+    private final long size;
+
+    private ChunkRecipe(int[] lengths, byte[] hashes) {
+        this.lengths = lengths;
+        this.hashes = hashes;
+        this.offsets = new long[lengths.length];
+        long offset = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            offsets[i] = offset;
+            offset += lengths[i];
+        }
+        this.size = offset;
+    }
+
+    public int count() {
+        return lengths.length;
+    }
+
+    public int length(int chunk) {
+        return lengths[chunk];
+    }
+
+    public long offset(int chunk) {
+        return offsets[chunk];
+    }
+
+    public byte[] hash(int chunk) {
+        return Arrays.copyOfRange(hashes, chunk * HASH_SIZE, (chunk + 1) * HASH_SIZE);
+    }
+
+    /** Whether {@code digest} is the hash of {@code chunk}. */
+    public boolean matches(int chunk, byte[] digest) {
+        return digest.length == HASH_SIZE
+                && Arrays.equals(hashes, chunk * HASH_SIZE, (chunk + 1) * HASH_SIZE, digest, 0, HASH_SIZE);
+    }
+
+    /** Total file size. */
+    public long size() {
+        return size;
+    }
+
+    public byte[] encode() {
+        byte[] out = new byte[lengths.length * ENTRY_SIZE];
+        for (int i = 0; i < lengths.length; i++) {
+            int at = i * ENTRY_SIZE;
+            out[at] = (byte) (lengths[i] >>> 24);
+            out[at + 1] = (byte) (lengths[i] >>> 16);
+            out[at + 2] = (byte) (lengths[i] >>> 8);
+            out[at + 3] = (byte) lengths[i];
+            System.arraycopy(hashes, i * HASH_SIZE, out, at + 4, HASH_SIZE);
+        }
+        return out;
+    }
+
+    /**
+     * Decodes {@code length} bytes of {@link #encode()} output.
+     *
+     * @throws IOException if the data is not a whole number of valid entries
+     */
+    public static ChunkRecipe decode(byte[] data, int length) throws IOException {
+        if (length % ENTRY_SIZE != 0)
+            throw new IOException("Chunk recipe of " + length + " bytes is not a whole number of entries");
+        Builder builder = new Builder();
+        for (int at = 0; at < length; at += ENTRY_SIZE) {
+            int chunkLength = (data[at] & 0xFF) << 24 | (data[at + 1] & 0xFF) << 16
+                    | (data[at + 2] & 0xFF) << 8 | (data[at + 3] & 0xFF);
+            if (chunkLength <= 0 || chunkLength > ContentChunker.MAX_CHUNK)
+                throw new IOException("Invalid chunk length " + chunkLength);
+            builder.add(chunkLength, Arrays.copyOfRange(data, at + 4, at + ENTRY_SIZE));
+        }
+        return builder.build();
+    }
+
+    /** Names this exact content: Base64url of the SHA-256 of the encoded recipe. */
+    public String id() {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(encode());
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Collects chunks in file order. */
+    public static final class Builder {
+        private int[] lengths = new int[16];
+        private byte[] hashes = new byte[16 * HASH_SIZE];
+        private int count;
+
+        public Builder add(int length, byte[] hash) {
+            if (hash.length != HASH_SIZE)
+                throw new IllegalArgumentException("Not a SHA-256: " + hash.length + " bytes");
+            if (count == lengths.length) {
+                lengths = Arrays.copyOf(lengths, count * 2);
+                hashes = Arrays.copyOf(hashes, count * 2 * HASH_SIZE);
+            }
+            lengths[count] = length;
+            System.arraycopy(hash, 0, hashes, count * HASH_SIZE, HASH_SIZE);
+            count++;
+            return this;
+        }
+
+        public ChunkRecipe build() {
+            return new ChunkRecipe(Arrays.copyOf(lengths, count), Arrays.copyOf(hashes, count * HASH_SIZE));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content-defined chunking with a gear rolling hash.
+ *
+ * A chunk ends where the rolling hash of the last 64 bytes has its top
+ * 16 bits clear (once the chunk is at least MIN_CHUNK long), or at
+ * MAX_CHUNK. Boundaries therefore depend on the content around them, not
+ * on file offsets: editing one slide of a presentation changes the chunks
+ * around the edit, and every other chunk keeps its hash even though the
+ * bytes after the edit have moved. Chunks average about 80 KB.
+ *
+ * Server and client must chunk identically, so the gear table is derived
+ * from a fixed seed and must never change.
+ */
+public final class ContentChunker {
+
+    public static final int MIN_CHUNK = 16 * 1024;
+    public static final int MAX_CHUNK = 256 * 1024;
+
+    /** Boundary when these hash bits are all zero (1 in 65536 positions) */
+    private static final long BOUNDARY_MASK = 0xFFFF_0000_0000_0000L;
+
+    private static final long[] GEAR = new long[256];
+    static {
+        long seed = 0x4C41_4E53_4841_5245L; // SplitMix64
+        for (int i = 0; i < GEAR.length; i++) {
+            long z = (seed += 0x9E37_79B9_7F4A_7C15L);
+            z = (z ^ (z >>> 30)) * 0xBF58_476D_1CE4_E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D0_49BB_1331_11EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private ContentChunker() {
+    }
+
+    public static ChunkRecipe chunk(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return chunk(in);
+        }
+    }
+
+    /** Reads {@code in} to the end and returns its chunks. */
+    public static ChunkRecipe chunk(InputStream in) throws IOException {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+
+        ChunkRecipe.Builder recipe = new ChunkRecipe.Builder();
+        byte[] buffer = new byte[64 * 1024];
+        long hash = 0;
+        int length = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            int start = 0;
+            for (int i = 0; i < n; i++) {
+                hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+                if (++length >= MIN_CHUNK && ((hash & BOUNDARY_MASK) == 0 || length == MAX_CHUNK)) {
+                    sha256.update(buffer, start, i + 1 - start);
+                    recipe.add(length, sha256.digest());
+                    start = i + 1;
+                    length = 0;
+                    hash = 0;
+                }
+            }
+            sha256.update(buffer, start, n - start);
+        }
+        if (length > 0)
+            recipe.add(length, sha256.digest());
+        return recipe.build();
+    }
+}
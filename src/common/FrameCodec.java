@@ -0,0 +1,426 @@
+package common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Length-prefixed binary framing, used once FRAMED has been negotiated.
+ *
+ * Every message after the AUTH_SUCCESS line is a frame:
+ *
+ * +--------+--------+-------------------+-----------------+
+ * | type 1 | flags 1| length 4 (BE int) | payload ...     |
+ * +--------+--------+-------------------+-----------------+
+ *
+ * Control frames carry fixed binary payloads (an int count, a long size),
+ * so nothing is parsed out of strings, and DATA frames carry file bytes
+ * that are read straight into the caller's buffer (or, flagged
+ * FLAG_DEFLATE under COMPRESS, inflated into it; under CHECKSUM each is
+ * prefixed with a CRC32C). Frames share the
+ * LineIO read buffer the handshake lines came through, so nothing that
+ * arrived early is lost.
+ *
+ * Not thread-safe: one codec per connection.
+ */
+public final class FrameCodec {
+
+    /** Bytes in a frame header */
+    public static final int HEADER_SIZE = 6;
+
+    /** Largest control payload accepted (DATA frames are streamed, not buffered) */
+    public static final int MAX_CONTROL_PAYLOAD = 64 * 1024;
+
+    // ── Frame types ──
+    public static final byte T_FILE_COUNT = 1; // int count
+    public static final byte T_NO_FILES = 2; // empty
+    public static final byte T_ERROR = 3; // UTF-8 message
+    public static final byte T_FILE_INFO = 4; // long size, long mtime, long offset, UTF-8 name
+    public static final byte T_READY = 5; // empty
+    public static final byte T_DATA = 6; // file bytes
+    public static final byte T_FILE_RECEIVED = 7; // empty
+    public static final byte T_FILE_ERROR = 8; // empty
+    public static final byte T_ACK = 9; // int cumulative count
+    public static final byte T_TRANSFER_COMPLETE = 10; // empty
+    public static final byte T_RESUME = 11; // long offset, long size, long mtime, UTF-8 name
+    public static final byte T_GET_RANGE = 12; // long offset, long length, UTF-8 name
+    public static final byte T_MULTICAST_DONE = 13; // empty
+    public static final byte T_GET_RECIPE = 14; // UTF-8 name
+    public static final byte T_RECIPE = 15; // ChunkRecipe entries, FLAG_LAST on the final frame
+    public static final byte T_CONTENT_ID = 16; // UTF-8 content id of the next FILE_INFO
+    public static final byte T_FILE_HASH = 17; // hash tree root of the next FILE_INFO's file (CHECKSUM)
+    public static final byte T_GET_HASHES = 18; // long first leaf, long count, UTF-8 name (CHECKSUM)
+    public static final byte T_HASHES = 19; // leaf hashes, then their proof; FLAG_LAST on the final frame
+
+    // ── Flags ──
+    /** Set on the final DATA (or RECIPE, or HASHES) frame of a reply */
+    public static final byte FLAG_LAST = 0x01;
+    /** Set on a DATA frame whose payload is a zlib stream (COMPRESS) */
+    public static final byte FLAG_DEFLATE = 0x02;
+    /** Set on a DATA frame whose payload starts with the CRC32C of its file bytes (CHECKSUM) */
+    public static final byte FLAG_CRC = 0x04;
+
+    /** Bytes of the CRC32C ahead of a FLAG_CRC payload */
+    public static final int CRC_SIZE = 4;
+
+    private final LineIO io;
+    private final byte[] header = new byte[HEADER_SIZE];
+    private final byte[] scratch = new byte[8];
+    private final byte[] crcBytes = new byte[CRC_SIZE];
+
+    private byte type;
+    private byte flags;
+    private int length;
+    private int remaining;
+
+    // Inflating the current DATA frame (COMPRESS only; created on first use)
+    private Inflater inflater;
+    private byte[] deflated;
+    private boolean inflating;
+
+    // Checking DATA frames (CHECKSUM only; created on first use)
+    private CRC32C crc;
+    private int expectedCrc;
+
+    public FrameCodec(LineIO io) {
+        this.io = io;
+    }
+
+    // ──────────────────────────────────────────────
+    // Writing
+    // ──────────────────────────────────────────────
+
+    /** Buffers a frame header; the caller writes exactly {@code length} payload bytes next. */
+    public void writeHeader(byte type, byte flags, int length) throws IOException {
+        header[0] = type;
+        header[1] = flags;
+        putInt(header, 2, length);
+        io.write(header, 0, HEADER_SIZE);
+    }
+
+    /** Buffers a complete frame. */
+    public void writeFrame(byte type, byte flags, byte[] payload, int off, int len) throws IOException {
+        writeHeader(type, flags, len);
+        io.write(payload, off, len);
+    }
+
+    /**
+     * Buffers a DATA header flagged FLAG_CRC; the caller writes exactly
+     * {@code length} payload bytes next.
+     *
+     * @param crc CRC32C of the file bytes the payload carries (before deflating)
+     */
+    public void writeCheckedHeader(byte flags, int length, int crc) throws IOException {
+        writeHeader(T_DATA, (byte) (flags | FLAG_CRC), CRC_SIZE + length);
+        putInt(crcBytes, 0, crc);
+        io.write(crcBytes, 0, CRC_SIZE);
+    }
+
+    /** Buffers a complete DATA frame flagged FLAG_CRC. */
+    public void writeCheckedFrame(byte flags, byte[] payload, int off, int len, int crc) throws IOException {
+        writeCheckedHeader(flags, len, crc);
+        io.write(payload, off, len);
+    }
+
+    /** Buffers a frame with no payload. */
+    public void writeEmpty(byte type) throws IOException {
+        writeHeader(type, (byte) 0, 0);
+    }
+
+    /** Buffers a frame whose payload is one int. */
+    public void writeInt(byte type, int value) throws IOException {
+        putInt(scratch, 0, value);
+        writeFrame(type, (byte) 0, scratch, 0, 4);
+    }
+
+    /** Buffers a frame whose payload is UTF-8 text. */
+    public void writeText(byte type, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeFrame(type, (byte) 0, bytes, 0, bytes.length);
+    }
+
+    /** Buffers a FILE_INFO frame; mtime and offset are 0 unless RESUME is agreed. */
+    public void writeFileInfo(String name, long size, long lastModified, long offset) throws IOException {
+        writeLongsAndText(T_FILE_INFO, name, size, lastModified, offset);
+    }
+
+    /** Buffers a FILE_HASH frame, the hash tree root of the file announced next (CHECKSUM). */
+    public void writeFileHash(byte[] root) throws IOException {
+        writeFrame(T_FILE_HASH, (byte) 0, root, 0, root.length);
+    }
+
+    /** Buffers a RESUME frame describing one partial file. */
+    public void writeResume(ResumePoint point) throws IOException {
+        writeLongsAndText(T_RESUME, point.name, point.offset, point.size, point.lastModified);
+    }
+
+    /** Buffers a GET_RANGE frame (RANGES connections). */
+    public void writeGetRange(String name, long offset, long length) throws IOException {
+        writeLongsAndText(T_GET_RANGE, name, offset, length);
+    }
+
+    /** Buffers a GET_HASHES frame for leaves {@code [first, first + count)} (RANGES connections). */
+    public void writeGetHashes(String name, long first, long count) throws IOException {
+        writeLongsAndText(T_GET_HASHES, name, first, count);
+    }
+
+    /** Writes the long fields, then the text, as one frame. */
+    private void writeLongsAndText(byte type, String text, long... values) throws IOException {
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        writeHeader(type, (byte) 0, 8 * values.length + textBytes.length);
+        for (long value : values) {
+            putLong(scratch, 0, value);
+            io.write(scratch, 0, 8);
+        }
+        io.write(textBytes, 0, textBytes.length);
+    }
+
+    /** Sends everything buffered so far. */
+    public void flush() throws IOException {
+        io.flush();
+    }
+
+    // ──────────────────────────────────────────────
+    // Reading
+    // ──────────────────────────────────────────────
+
+    /**
+     * Reads the next frame header. Any unread payload of the previous frame
+     * is skipped first.
+     *
+     * @return the frame type
+     * @throws EOFException if the connection closed between frames
+     */
+    public byte readHeader() throws IOException {
+        skipPayload();
+        io.readFully(header, 0, HEADER_SIZE);
+        type = header[0];
+        flags = header[1];
+        length = getInt(header, 2);
+        if (length < 0)
+            throw new IOException("Corrupt frame header (length " + length + ")");
+        remaining = length;
+        inflating = false;
+        if (type == T_DATA && (flags & FLAG_CRC) != 0) {
+            if (length < CRC_SIZE)
+                throw new IOException("Corrupt frame header (checked DATA of length " + length + ")");
+            io.readFully(crcBytes, 0, CRC_SIZE);
+            remaining -= CRC_SIZE;
+            expectedCrc = getInt(crcBytes, 0);
+        }
+        return type;
+    }
+
+    /** Reads the next header and fails unless it has the expected type. */
+    public void expect(byte expected) throws IOException {
+        byte actual = readHeader();
+        if (actual != expected)
+            throw new IOException("Expected frame type " + expected + " but got " + actual);
+    }
+
+    public byte type() {
+        return type;
+    }
+
+    public byte flags() {
+        return flags;
+    }
+
+    public boolean isLast() {
+        return (flags & FLAG_LAST) != 0;
+    }
+
+    /** Payload length of the current frame. */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Reads up to {@code len} bytes of the current frame's payload.
+     *
+     * @return bytes read, or -1 once the payload is exhausted
+     */
+    public int readPayload(byte[] b, int off, int len) throws IOException {
+        if (remaining == 0)
+            return -1;
+        int n = io.read(b, off, Math.min(len, remaining));
+        if (n < 0)
+            throw new EOFException("Connection closed mid-frame");
+        remaining -= n;
+        return n;
+    }
+
+    /**
+     * Reads up to {@code len} file bytes of the current DATA frame,
+     * inflating it first if it is flagged FLAG_DEFLATE.
+     *
+     * @return bytes read, or -1 once the frame is exhausted
+     */
+    public int readData(byte[] b, int off, int len) throws IOException {
+        if ((flags & FLAG_DEFLATE) == 0)
+            return readPayload(b, off, len);
+        if (!inflating) {
+            if (remaining > Protocol.FRAME_DATA_SIZE)
+                throw new IOException("Compressed frame too large (" + remaining + " bytes)");
+            if (inflater == null) {
+                inflater = new Inflater();
+                deflated = new byte[Protocol.FRAME_DATA_SIZE];
+            }
+            int n = remaining;
+            io.readFully(deflated, 0, n);
+            remaining = 0;
+            inflater.reset();
+            inflater.setInput(deflated, 0, n);
+            inflating = true;
+        }
+        try {
+            if (inflater.finished())
+                return -1;
+            int room = (int) (Protocol.FRAME_DATA_SIZE - inflater.getBytesWritten());
+            int n = inflater.inflate(b, off, Math.min(len, room));
+            if (n == 0 && !inflater.finished())
+                throw new IOException(inflater.getBytesWritten() >= Protocol.FRAME_DATA_SIZE
+                        ? "Compressed frame inflates past " + Protocol.FRAME_DATA_SIZE + " bytes"
+                        : "Compressed frame is truncated");
+            return n == 0 ? -1 : n;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the whole current DATA frame into {@code b}, which must hold
+     * FRAME_DATA_SIZE bytes, and checks it against its CRC32C if it is
+     * flagged FLAG_CRC. A damaged frame is consumed all the same, so the
+     * next header can be read.
+     *
+     * @return the file bytes it carried, or -1 if they are damaged
+     * @throws IOException if the connection failed mid-frame
+     */
+    public int readCheckedData(byte[] b) throws IOException {
+        if ((flags & FLAG_DEFLATE) == 0 && remaining > b.length) {
+            skipPayload();
+            return -1;
+        }
+        int total = 0;
+        try {
+            int n;
+            while ((n = readData(b, total, b.length - total)) > 0)
+                total += n;
+        } catch (IOException e) {
+            if (!inflating)
+                throw e;
+            return -1; // the payload was read whole: only its content is bad
+        }
+        if ((flags & FLAG_CRC) != 0) {
+            if (crc == null)
+                crc = new CRC32C();
+            crc.reset();
+            crc.update(b, 0, total);
+            if ((int) crc.getValue() != expectedCrc)
+                return -1;
+        }
+        return total;
+    }
+
+    /** Frees the inflater, if COMPRESS ever needed one. */
+    public void end() {
+        if (inflater != null)
+            inflater.end();
+        inflater = null;
+    }
+
+    /** Reads an int payload (FILE_COUNT, ACK). */
+    public int readIntPayload() throws IOException {
+        requireLength(4);
+        io.readFully(scratch, 0, 4);
+        remaining = 0;
+        return getInt(scratch, 0);
+    }
+
+    /** Reads a UTF-8 text payload (ERROR). */
+    public String readTextPayload() throws IOException {
+        requireControlPayload();
+        byte[] bytes = new byte[remaining];
+        io.readFully(bytes, 0, bytes.length);
+        remaining = 0;
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Reads a binary payload (FILE_HASH). */
+    public byte[] readBytesPayload() throws IOException {
+        requireControlPayload();
+        byte[] bytes = new byte[remaining];
+        io.readFully(bytes, 0, bytes.length);
+        remaining = 0;
+        return bytes;
+    }
+
+    /** Reads one long field of a FILE_INFO/RESUME payload; call before {@link #readTextPayload()}. */
+    public long readLongField() throws IOException {
+        if (remaining < 8)
+            throw new IOException("Frame too short for a long field");
+        io.readFully(scratch, 0, 8);
+        remaining -= 8;
+        return getLong(scratch, 0);
+    }
+
+    /** Reads the rest of a RESUME frame whose header has just been read. */
+    public ResumePoint readResume() throws IOException {
+        long offset = readLongField();
+        long size = readLongField();
+        long lastModified = readLongField();
+        return new ResumePoint(readTextPayload(), size, lastModified, offset);
+    }
+
+    /** Discards whatever is left of the current payload. */
+    public void skipPayload() throws IOException {
+        byte[] sink = null;
+        while (remaining > 0) {
+            if (sink == null)
+                sink = new byte[Math.min(remaining, Protocol.BUFFER_SIZE)];
+            int n = io.read(sink, 0, Math.min(remaining, sink.length));
+            if (n < 0)
+                throw new EOFException("Connection closed mid-frame");
+            remaining -= n;
+        }
+    }
+
+    private void requireLength(int expected) throws IOException {
+        if (remaining != expected)
+            throw new IOException("Frame type " + type + " has length " + length + ", expected " + expected);
+    }
+
+    private void requireControlPayload() throws IOException {
+        if (remaining > MAX_CONTROL_PAYLOAD)
+            throw new IOException("Control frame too large (" + remaining + " bytes)");
+    }
+
+    // ──────────────────────────────────────────────
+    // Big-endian helpers
+    // ──────────────────────────────────────────────
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16)
+                | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    private static void putLong(byte[] b, int off, long v) {
+        putInt(b, off, (int) (v >>> 32));
+        putInt(b, off + 4, (int) v);
+    }
+
+    private static long getLong(byte[] b, int off) {
+        return ((long) getInt(b, off) << 32) | (getInt(b, off + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,133 @@
+package common;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Protocol version and feature negotiation.
+ *
+ * A version-2 client opens the connection with one extra line before its
+ * credentials:
+ *
+ * → HELLO:<version>:<FEATURE>,<FEATURE=value>,...
+ * ← HELLO:<agreed version>:<features the server accepted>
+ *
+ * A server sees "HELLO:" where an old client would send its username, so
+ * it can tell the two apart; old clients simply never send it and keep the
+ * original lock-step protocol. An old server treats the HELLO line as a
+ * username and answers AUTH_FAILED, and the client retries without it.
+ */
+public final class Handshake {
+
+    private final int version;
+    private final Map<String, String> features;
+
+    public Handshake(int version, Map<String, String> features) {
+        this.version = version;
+        this.features = features;
+    }
+
+    /** Builds a handshake offering the given feature tokens (no values). */
+    public static Handshake offer(int version, Collection<String> features) {
+        Map<String, String> map = new LinkedHashMap<>();
+        for (String f : features)
+            map.put(f, "");
+        return new Handshake(version, map);
+    }
+
+    /** True if a line received in the username slot is a HELLO. */
+    public static boolean isHello(String line) {
+        return line != null && line.startsWith(Protocol.HELLO_PREFIX);
+    }
+
+    /**
+     * Parses "HELLO:<version>:<features>".
+     *
+     * @throws IllegalArgumentException if the line is malformed
+     */
+    public static Handshake parse(String line) {
+        if (!isHello(line))
+            throw new IllegalArgumentException("Not a HELLO line: " + line);
+
+        String payload = line.substring(Protocol.HELLO_PREFIX.length());
+        int colon = payload.indexOf(Protocol.DELIMITER);
+        String versionPart = colon < 0 ? payload : payload.substring(0, colon);
+        String featurePart = colon < 0 ? "" : payload.substring(colon + 1);
+
+        int version;
+        try {
+            version = Integer.parseInt(versionPart.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad HELLO version: " + line);
+        }
+
+        Map<String, String> features = new LinkedHashMap<>();
+        for (String token : featurePart.split(",")) {
+            token = token.trim();
+            if (token.isEmpty())
+                continue;
+            int eq = token.indexOf('=');
+            if (eq < 0)
+                features.put(token, "");
+            else
+                features.put(token.substring(0, eq), token.substring(eq + 1));
+        }
+        return new Handshake(version, features);
+    }
+
+    /**
+     * Server side: agrees on the lower of both versions and keeps only the
+     * offered features this server supports (values are kept as sent).
+     */
+    public Handshake negotiate(int serverVersion, Set<String> supported) {
+        Map<String, String> agreed = new LinkedHashMap<>();
+        for (Map.Entry<String, String> e : features.entrySet()) {
+            if (supported.contains(e.getKey()))
+                agreed.put(e.getKey(), e.getValue());
+        }
+        return new Handshake(Math.min(version, serverVersion), agreed);
+    }
+
+    /** Returns a copy of this handshake with one more feature token. */
+    public Handshake with(String feature, String value) {
+        Map<String, String> copy = new LinkedHashMap<>(features);
+        copy.put(feature, value == null ? "" : value);
+        return new Handshake(version, copy);
+    }
+
+    public int version() {
+        return version;
+    }
+
+    public boolean has(String feature) {
+        return features.containsKey(feature);
+    }
+
+    /** The value sent with a FEATURE=value token, or null if absent/empty. */
+    public String value(String feature) {
+        String v = features.get(feature);
+        return v == null || v.isEmpty() ? null : v;
+    }
+
+    /** Formats this handshake as a HELLO line. */
+    public String toLine() {
+        StringBuilder sb = new StringBuilder(Protocol.HELLO_PREFIX).append(version).append(Protocol.DELIMITER);
+        boolean first = true;
+        for (Map.Entry<String, String> e : features.entrySet()) {
+            if (!first)
+                sb.append(',');
+            sb.append(e.getKey());
+            if (!e.getValue().isEmpty())
+                sb.append('=').append(e.getValue());
+            first = false;
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toLine();
+    }
+}
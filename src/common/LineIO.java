@@ -0,0 +1,200 @@
+package common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered line-and-bytes I/O over a socket's streams.
+ *
+ * Replaces the PrintWriter / BufferedReader pair on the connection path:
+ * - LineIO takes no monitor, so a virtual thread blocked in a socket read
+ * or write never pins its carrier thread. PrintWriter and BufferedReader
+ * block inside synchronized, which pins until JEP 491 (JDK 24).
+ * - Text lines and raw bytes share one read buffer, so bytes that arrive
+ * right behind a control line are never lost to a reader's read-ahead.
+ *
+ * Not thread-safe: each connection owns exactly one instance.
+ */
+public final class LineIO {
+
+    /** Longest line accepted from the peer (guards against garbage input) */
+    public static final int MAX_LINE = 8192;
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    private final InputStream in;
+    private final OutputStream out;
+
+    private final byte[] readBuf = new byte[Protocol.BUFFER_SIZE];
+    private int readPos;
+    private int readLimit;
+
+    private final byte[] writeBuf = new byte[Protocol.BUFFER_SIZE];
+    private int writePos;
+
+    public LineIO(InputStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    // ──────────────────────────────────────────────
+    // Reading
+    // ──────────────────────────────────────────────
+
+    /**
+     * Reads one line terminated by "\n" or "\r\n".
+     *
+     * @return the line without its terminator, or null at end of stream
+     */
+    public String readLine() throws IOException {
+        byte[] line = null;
+        int lineLen = 0;
+
+        while (true) {
+            if (readPos == readLimit && !fill()) {
+                if (lineLen == 0)
+                    return null;
+                return decode(line, lineLen);
+            }
+
+            int start = readPos;
+            while (readPos < readLimit && readBuf[readPos] != '\n')
+                readPos++;
+
+            int chunk = readPos - start;
+            if (lineLen + chunk > MAX_LINE)
+                throw new IOException("Line exceeds " + MAX_LINE + " bytes");
+
+            boolean found = readPos < readLimit;
+            if (found && line == null) {
+                // Common case: the whole line is already in the buffer
+                readPos++;
+                return decode(readBuf, start, chunk);
+            }
+
+            if (line == null)
+                line = new byte[MAX_LINE];
+            System.arraycopy(readBuf, start, line, lineLen, chunk);
+            lineLen += chunk;
+
+            if (found) {
+                readPos++;
+                return decode(line, lineLen);
+            }
+        }
+    }
+
+    /**
+     * Reads up to {@code len} bytes, serving buffered bytes first.
+     *
+     * @return bytes read, or -1 at end of stream
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (readPos < readLimit) {
+            int n = Math.min(len, readLimit - readPos);
+            System.arraycopy(readBuf, readPos, b, off, n);
+            readPos += n;
+            return n;
+        }
+        // Large reads bypass the buffer entirely
+        if (len >= readBuf.length)
+            return in.read(b, off, len);
+        if (!fill())
+            return -1;
+        return read(b, off, len);
+    }
+
+    /** Reads exactly {@code len} bytes or throws EOFException. */
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = read(b, off, len);
+            if (n < 0)
+                throw new EOFException("Connection closed mid-message");
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Number of bytes already buffered and readable without blocking. */
+    public int buffered() {
+        return readLimit - readPos;
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(readBuf, 0, readBuf.length);
+        if (n <= 0) {
+            readPos = readLimit = 0;
+            return false;
+        }
+        readPos = 0;
+        readLimit = n;
+        return true;
+    }
+
+    private static String decode(byte[] b, int len) {
+        return decode(b, 0, len);
+    }
+
+    private static String decode(byte[] b, int off, int len) {
+        if (len > 0 && b[off + len - 1] == '\r')
+            len--;
+        return new String(b, off, len, StandardCharsets.UTF_8);
+    }
+
+    // ──────────────────────────────────────────────
+    // Writing
+    // ──────────────────────────────────────────────
+
+    /** Writes a line and flushes it, like PrintWriter.println with autoflush. */
+    public void sendLine(String line) throws IOException {
+        writeLine(line);
+        flush();
+    }
+
+    /** Buffers a line without flushing. */
+    public void writeLine(String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        write(bytes, 0, bytes.length);
+        write(NEWLINE, 0, NEWLINE.length);
+    }
+
+    /** Buffers raw bytes; writes larger than the buffer go straight through. */
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= writeBuf.length) {
+            flushBuffer();
+            out.write(b, off, len);
+            return;
+        }
+        if (len > writeBuf.length - writePos)
+            flushBuffer();
+        System.arraycopy(b, off, writeBuf, writePos, len);
+        writePos += len;
+    }
+
+    /** Writes out any buffered bytes and flushes the underlying stream. */
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (writePos > 0) {
+            out.write(writeBuf, 0, writePos);
+            writePos = 0;
+        }
+    }
+
+    /** Closes both underlying streams. */
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package common;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The hash tree a file is identified by under CHECKSUM.
+ *
+ * The file is cut into HASH_LEAF_SIZE leaves (an empty file has one empty
+ * leaf). A leaf hash is SHA-256(0x00 || bytes); a parent is
+ * SHA-256(0x01 || left || right), the prefixes keeping a leaf from passing
+ * for a parent. Each level pairs its nodes from the left; an odd last node
+ * moves up unchanged. The top node is the root.
+ *
+ * Given the root, the hashes of any run of leaves can be checked with a
+ * proof of at most two sibling hashes per level, so a board can verify one
+ * range of a file (a resumed tail, a parallel chunk) without the rest.
+ *
+ * Hashes are passed around as flat arrays of HASH_SIZE-byte entries.
+ */
+public final class MerkleTree {
+
+    /** Bytes per hash (SHA-256) */
+    public static final int HASH_SIZE = 32;
+
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    private MerkleTree() {
+    }
+
+    /** Leaves of a file of {@code size} bytes. */
+    public static int leafCount(long size) {
+        return (int) Math.max(1, (size + Protocol.HASH_LEAF_SIZE - 1) / Protocol.HASH_LEAF_SIZE);
+    }
+
+    /** Hashes a file's bytes, fed in order, into its leaf hashes. Not thread-safe. */
+    public static final class Builder {
+        private final MessageDigest sha256 = newDigest();
+        private final ByteArrayOutputStream leaves = new ByteArrayOutputStream();
+        private long position;
+        private boolean open;
+
+        public void update(byte[] b, int off, int len) {
+            while (len > 0) {
+                if (!open)
+                    startLeaf();
+                int take = (int) Math.min(len, Protocol.HASH_LEAF_SIZE - position % Protocol.HASH_LEAF_SIZE);
+                sha256.update(b, off, take);
+                off += take;
+                len -= take;
+                position += take;
+                if (position % Protocol.HASH_LEAF_SIZE == 0)
+                    endLeaf();
+            }
+        }
+
+        /** Bytes fed so far. */
+        public long position() {
+            return position;
+        }
+
+        /** The leaf hashes of everything fed, the last leaf included however short. */
+        public byte[] leaves() {
+            if (!open && leaves.size() == 0)
+                startLeaf(); // an empty file still has a leaf
+            if (open)
+                endLeaf();
+            return leaves.toByteArray();
+        }
+
+        private void startLeaf() {
+            sha256.reset();
+            sha256.update(LEAF);
+            open = true;
+        }
+
+        private void endLeaf() {
+            leaves.writeBytes(sha256.digest());
+            open = false;
+        }
+    }
+
+    /** The hash of one leaf's bytes. */
+    public static byte[] leafHash(byte[] b, int off, int len) {
+        MessageDigest sha256 = newDigest();
+        sha256.update(LEAF);
+        sha256.update(b, off, len);
+        return sha256.digest();
+    }
+
+    /** The root over a file's leaf hashes. */
+    public static byte[] root(byte[] leaves) {
+        MessageDigest sha256 = newDigest();
+        byte[] level = leaves;
+        while (level.length > HASH_SIZE)
+            level = parents(sha256, level);
+        return level;
+    }
+
+    /**
+     * The sibling hashes that, with leaves {@code [first, first + count)},
+     * lead to the root: level by level from the leaves up, the left
+     * sibling of the run (if it has one) before the right.
+     */
+    public static byte[] proof(byte[] leaves, int first, int count) {
+        MessageDigest sha256 = newDigest();
+        ByteArrayOutputStream proof = new ByteArrayOutputStream();
+        byte[] level = leaves;
+        int lo = first;
+        int hi = first + count;
+        while (level.length > HASH_SIZE) {
+            int nodes = level.length / HASH_SIZE;
+            if (lo % 2 == 1)
+                proof.write(level, (lo - 1) * HASH_SIZE, HASH_SIZE);
+            if ((hi - 1) % 2 == 0 && hi < nodes)
+                proof.write(level, hi * HASH_SIZE, HASH_SIZE);
+            level = parents(sha256, level);
+            lo /= 2;
+            hi = (hi - 1) / 2 + 1;
+        }
+        return proof.toByteArray();
+    }
+
+    /**
+     * True if {@code hashes}, the leaf hashes {@code [first, first + count)}
+     * of a file with {@code leafCount} leaves, lead to {@code root} with
+     * exactly {@code proof}.
+     */
+    public static boolean verify(byte[] root, int leafCount, int first, byte[] hashes, byte[] proof) {
+        int count = hashes.length / HASH_SIZE;
+        if (count == 0 || hashes.length % HASH_SIZE != 0 || first < 0 || first + count > leafCount)
+            return false;
+        MessageDigest sha256 = newDigest();
+        byte[] level = hashes;
+        int nodes = leafCount;
+        int lo = first;
+        int hi = first + count;
+        int used = 0;
+        while (nodes > 1) {
+            boolean left = lo % 2 == 1;
+            boolean right = (hi - 1) % 2 == 0 && hi < nodes;
+            int need = (left ? 1 : 0) + (right ? 1 : 0);
+            if (used + need * HASH_SIZE > proof.length)
+                return false;
+            // The run with its siblings, starting on an even index
+            byte[] run = new byte[level.length + need * HASH_SIZE];
+            int at = 0;
+            if (left) {
+                System.arraycopy(proof, used, run, 0, HASH_SIZE);
+                used += HASH_SIZE;
+                at = HASH_SIZE;
+            }
+            System.arraycopy(level, 0, run, at, level.length);
+            if (right) {
+                System.arraycopy(proof, used, run, at + level.length, HASH_SIZE);
+                used += HASH_SIZE;
+            }
+            level = parents(sha256, run);
+            nodes = (nodes + 1) / 2;
+            lo /= 2;
+            hi = (hi - 1) / 2 + 1;
+        }
+        return used == proof.length && MessageDigest.isEqual(root, level);
+    }
+
+    /** The level above {@code level}: nodes paired from the left, an odd last one moved up as is. */
+    private static byte[] parents(MessageDigest sha256, byte[] level) {
+        int count = level.length / HASH_SIZE;
+        byte[] up = new byte[(count + 1) / 2 * HASH_SIZE];
+        for (int i = 0; i < count; i += 2) {
+            int at = i * HASH_SIZE;
+            if (i + 1 < count) {
+                sha256.update(NODE);
+                sha256.update(level, at, 2 * HASH_SIZE);
+                System.arraycopy(sha256.digest(), 0, up, i / 2 * HASH_SIZE, HASH_SIZE);
+            } else {
+                System.arraycopy(level, at, up, i / 2 * HASH_SIZE, HASH_SIZE);
+            }
+        }
+        return up;
+    }
+
+    /** Leaf hashes {@code [first, first + count)} of a flat array. */
+    public static byte[] slice(byte[] leaves, int first, int count) {
+        return Arrays.copyOfRange(leaves, first * HASH_SIZE, (first + count) * HASH_SIZE);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Datagram layout for multicast distribution (see MulticastDistributor).
+ *
+ * Every datagram starts with the same header:
+ *
+ * +---------+--------+----------+---------------+
+ * | magic 2 | type 1 | round 4  | file index 4  |
+ * +---------+--------+----------+---------------+
+ *
+ * followed by a type-specific body:
+ * - ANNOUNCE : long size, int sequence count, short name length, UTF-8 name
+ * - DATA : int sequence number, up to PAYLOAD_SIZE file bytes
+ * - END : int sequence count (the sender will now collect NACKs)
+ * - NACK : short range count, then (int first seq, int count) per range
+ *
+ * File bytes are cut into PAYLOAD_SIZE pieces; piece n covers bytes
+ * [n * PAYLOAD_SIZE, (n + 1) * PAYLOAD_SIZE). Sizes are chosen so a
+ * datagram fits an Ethernet MTU without IP fragmentation.
+ */
+public final class MulticastPacket {
+
+    public static final short MAGIC = 0x4C4D; // "LM"
+
+    public static final byte ANNOUNCE = 1;
+    public static final byte DATA = 2;
+    public static final byte END = 3;
+    public static final byte NACK = 4;
+
+    public static final int HEADER_SIZE = 11;
+
+    /** Largest datagram sent (1500-byte MTU minus IP and UDP headers) */
+    public static final int MAX_DATAGRAM = 1472;
+
+    /** File bytes per DATA datagram */
+    public static final int PAYLOAD_SIZE = 1400;
+
+    /** Ranges that fit in one NACK datagram */
+    public static final int MAX_NACK_RANGES = (MAX_DATAGRAM - HEADER_SIZE - 2) / 8;
+
+    // Header fields of the last datagram parsed
+    public byte type;
+    public int round;
+    public int fileIndex;
+
+    /** Number of DATA datagrams needed for a file of {@code size} bytes. */
+    public static int sequenceCount(long size) {
+        return (int) ((size + PAYLOAD_SIZE - 1) / PAYLOAD_SIZE);
+    }
+
+    /** Clears {@code buf} and writes a header into it. */
+    public static void putHeader(ByteBuffer buf, byte type, int round, int fileIndex) {
+        buf.clear();
+        buf.putShort(MAGIC).put(type).putInt(round).putInt(fileIndex);
+    }
+
+    /** Writes an ANNOUNCE body after the header. */
+    public static void putAnnounce(ByteBuffer buf, String name, long size) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        buf.putLong(size).putInt(sequenceCount(size)).putShort((short) nameBytes.length).put(nameBytes);
+    }
+
+    /**
+     * Reads the header of a received datagram (buffer flipped for reading)
+     * and leaves the buffer positioned at the body.
+     *
+     * @return false if the datagram is too short or not ours
+     */
+    public boolean parseHeader(ByteBuffer buf) {
+        if (buf.remaining() < HEADER_SIZE || buf.getShort() != MAGIC)
+            return false;
+        type = buf.get();
+        round = buf.getInt();
+        fileIndex = buf.getInt();
+        return true;
+    }
+
+    /** Reads the name at the end of an ANNOUNCE body (after size and count). */
+    public static String readName(ByteBuffer buf) {
+        int len = buf.getShort() & 0xFFFF;
+        byte[] nameBytes = new byte[Math.min(len, buf.remaining())];
+        buf.get(nameBytes);
+        return new String(nameBytes, StandardCharsets.UTF_8);
+    }
+}
@@ -44,6 +44,31 @@ public final class Protocol {
     /** Temporary download folder on the client side */
     public static final String TEMP_FOLDER = "C:\\TempClassFiles";
 
+    /**
+     * Encrypted client-side cache for CONTENT_ID and DELTA (see
+     * ChunkStore). Unlike TEMP_FOLDER it survives logout, so the next
+     * session can reuse it.
+     */
+    public static final String CHUNK_STORE_FOLDER = "C:\\ClassShareCache";
+
+    /** Disk space the cache may use before evicting (2 GB) */
+    public static final long CHUNK_STORE_LIMIT = 2L * 1024 * 1024 * 1024;
+
+    /**
+     * Server-side store of deflated copies of shared files (see
+     * CompressedCache), so a file every board fetches is compressed once.
+     */
+    public static final String COMPRESSED_CACHE_FOLDER = "C:\\ClassShareCompressed";
+
+    /** Disk space the compressed copies may use before evicting (2 GB) */
+    public static final long COMPRESSED_CACHE_LIMIT = 2L * 1024 * 1024 * 1024;
+
+    /**
+     * Server-side index of shared files' hash trees (see HashIndex), so
+     * each version of a file is hashed once rather than on every start.
+     */
+    public static final String HASH_INDEX_FOLDER = "C:\\ClassShareHashes";
+
     // ══════════════════════════════════════════════
     // Faculty Hostname Mappings — Add new faculty here
     // ══════════════════════════════════════════════
@@ -111,6 +136,129 @@ public final class Protocol {
         return null;
     }
 
+    // ══════════════════════════════════════════════
+    // Protocol Negotiation (see Handshake)
+    // ══════════════════════════════════════════════
+
+    /** Highest protocol version this build speaks (1 = original lock-step) */
+    public static final int PROTOCOL_VERSION = 2;
+
+    public static final String HELLO_PREFIX = "HELLO:";
+
+    /**
+     * Pipelined transfer: the server streams every FILE_INFO + body
+     * back-to-back, the client acknowledges with ACK:<files received>
+     * every ACK_WINDOW files and once more after TRANSFER_COMPLETE.
+     */
+    public static final String FEATURE_PIPELINE = "PIPELINE";
+
+    /**
+     * Binary framing (see FrameCodec) for everything after the AUTH_* line,
+     * instead of text lines interleaved with raw file bytes.
+     */
+    public static final String FEATURE_FRAMED = "FRAMED";
+
+    /** Largest DATA frame payload when FRAMED is in use (256 KB) */
+    public static final int FRAME_DATA_SIZE = 256 * 1024;
+
+    /** Bytes per leaf of a file's hash tree (1 MB, a whole number of DATA frames; see MerkleTree) */
+    public static final int HASH_LEAF_SIZE = 1024 * 1024;
+
+    /**
+     * Resumable downloads: after AUTH_SUCCESS the client lists its partial
+     * files (RESUME lines, ended by READY) and every FILE_INFO carries the
+     * file's modification time and the offset the body starts at.
+     */
+    public static final String FEATURE_RESUME = "RESUME";
+
+    /**
+     * Split large files: SPLIT=<bytes> in the main session's HELLO. Files of
+     * at least that size are announced by FILE_INFO but sent without a body;
+     * the client fetches them over parallel RANGES connections instead.
+     */
+    public static final String FEATURE_SPLIT = "SPLIT";
+
+    /** Offered by a side connection that will only issue GET_RANGE requests */
+    public static final String FEATURE_RANGES = "RANGES";
+
+    /** SPLIT threshold the client offers by default (64 MB) */
+    public static final long SPLIT_THRESHOLD = 64L * 1024 * 1024;
+
+    /**
+     * Manifest only: every FILE_INFO is sent without a body, and the client
+     * fetches the files itself over a pool of RANGES connections.
+     */
+    public static final String FEATURE_MANIFEST = "MANIFEST";
+
+    /**
+     * Multicast distribution: the server answers MULTICAST=<group>:<port>,
+     * announces every file without a body, and sends the share once per
+     * round as UDP multicast (see MulticastPacket). MULTICAST_DONE ends the
+     * round; anything still missing is then fetched over RANGES.
+     */
+    public static final String FEATURE_MULTICAST = "MULTICAST";
+
+    /**
+     * Peer swarming (opt-in): every file is announced without a body, as
+     * under MANIFEST, and the client fetches it in SWARM_CHUNK_SIZE chunks,
+     * from other boards where the tracker knows of one and from the server
+     * otherwise. Every chunk is checked against the server's SHA-256 list.
+     */
+    public static final String FEATURE_SWARM = "SWARM";
+
+    /** Offered by a side connection that will only talk to the swarm tracker */
+    public static final String FEATURE_TRACKER = "TRACKER";
+
+    /** Swarm chunk size (1 MB) */
+    public static final int SWARM_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Delta sync: files are announced without a body, as under MANIFEST,
+     * and RANGES connections also answer GET_RECIPE with the file's
+     * content-defined chunks (see ContentChunker). The client copies the
+     * chunks it already holds from its ChunkStore and fetches only the
+     * rest with GET_RANGE.
+     */
+    public static final String FEATURE_DELTA = "DELTA";
+
+    /**
+     * Content ids: every body-less FILE_INFO is preceded by
+     * CONTENT_ID:<id>, the id of the file's ChunkRecipe. A client that
+     * holds that content in its encrypted cache restores the file locally
+     * instead of fetching it.
+     */
+    public static final String FEATURE_CONTENT_ID = "CONTENT_ID";
+
+    /**
+     * Subfolders are shared too: names are relative paths joined by '/'
+     * (see SharedPath) and the client recreates the folders. Without it
+     * only the top level of the shared folder is listed.
+     */
+    public static final String FEATURE_TREE = "TREE";
+
+    /**
+     * Compressed bodies, only together with FRAMED: the server may send a
+     * DATA frame with FLAG_DEFLATE, its payload a zlib stream of at most
+     * FRAME_DATA_SIZE file bytes. Files that are already compressed (by
+     * extension, or by the entropy of their first block) are sent as
+     * plain DATA frames.
+     */
+    public static final String FEATURE_COMPRESS = "COMPRESS";
+
+    /**
+     * End-to-end integrity checks, only together with FRAMED: every DATA
+     * frame is flagged FLAG_CRC, its payload starting with the CRC32C of
+     * the file bytes it carries (after inflating), and FILE_INFO is
+     * preceded by FILE_HASH, the root of the file's hash tree (see
+     * MerkleTree), once the server has hashed it. Every DATA frame of a
+     * body or range but the last carries exactly FRAME_DATA_SIZE file
+     * bytes, so a client knows which bytes a damaged frame held and
+     * re-requests just those with GET_RANGE. RANGES connections also
+     * answer GET_HASHES with a run of leaf hashes and the proof that ties
+     * them to the root, so any range can be verified on its own.
+     */
+    public static final String FEATURE_CHECKSUM = "CHECKSUM";
+
     // ══════════════════════════════════════════════
     // Authentication Messages
     // ══════════════════════════════════════════════
@@ -130,6 +278,73 @@ public final class Protocol {
     public static final String FILE_ERROR = "FILE_ERROR";
     public static final String TRANSFER_COMPLETE = "TRANSFER_COMPLETE";
 
+    /** Announces the content of the next FILE_INFO (CONTENT_ID only): CONTENT_ID:<id> */
+    public static final String CONTENT_ID_PREFIX = "CONTENT_ID:";
+
+    /** Cumulative acknowledgement in pipelined mode: ACK:<files received> */
+    public static final String ACK_PREFIX = "ACK:";
+
+    /** Files between windowed ACKs sent by a pipelined client */
+    public static final int ACK_WINDOW = 32;
+
+    /** Unacknowledged files after which a pipelined server waits for an ACK */
+    public static final int MAX_UNACKED = 2 * ACK_WINDOW;
+
+    /** Partial file held by the client: RESUME:<offset>:<size>:<mtime>:<name> */
+    public static final String RESUME_PREFIX = "RESUME:";
+
+    /** Header-only files a client keeps in memory; the rest of the manifest is spooled to disk */
+    public static final int MANIFEST_PAGE_SIZE = 1024;
+
+    /** Most RESUME entries a server accepts in one session */
+    public static final int MAX_RESUME_ENTRIES = 1024;
+
+    /** Range request on a RANGES connection: GET_RANGE:<offset>:<length>:<name> */
+    public static final String GET_RANGE_PREFIX = "GET_RANGE:";
+
+    /** Reply to GET_RANGE, followed by exactly that many raw bytes: RANGE_OK:<length> */
+    public static final String RANGE_OK_PREFIX = "RANGE_OK:";
+
+    /** Chunk list of a file on a RANGES connection: GET_RECIPE:<name> */
+    public static final String GET_RECIPE_PREFIX = "GET_RECIPE:";
+
+    /** Reply to GET_RECIPE: RECIPE:<count>, then one <length>:<Base64 SHA-256> line per chunk */
+    public static final String RECIPE_PREFIX = "RECIPE:";
+
+    /** Sent once the multicast round this session joined has finished */
+    public static final String MULTICAST_DONE = "MULTICAST_DONE";
+
+    // ══════════════════════════════════════════════
+    // Swarm Tracker & Peer Messages (text lines)
+    // ══════════════════════════════════════════════
+
+    /** Registers the board's peer listener: JOIN:<port> */
+    public static final String JOIN_PREFIX = "JOIN:";
+
+    /** Reply to JOIN: JOINED:<peer id>:<swarm token> */
+    public static final String JOINED_PREFIX = "JOINED:";
+
+    /**
+     * Chunk hashes of a file: CHUNKS:<name>, answered by
+     * CHUNKS:<chunk size>:<count> and then one Base64 SHA-256 per line
+     */
+    public static final String CHUNKS_PREFIX = "CHUNKS:";
+
+    /** A verified chunk is now held by the sender: HAVE:<chunk>:<name> (no reply) */
+    public static final String HAVE_PREFIX = "HAVE:";
+
+    /** Which boards hold a chunk: WHO_HAS:<chunk>:<name> */
+    public static final String WHO_HAS_PREFIX = "WHO_HAS:";
+
+    /** Reply to WHO_HAS: PEERS:<host>:<port>,<host>:<port>... (may be empty) */
+    public static final String PEERS_PREFIX = "PEERS:";
+
+    /**
+     * Board-to-board chunk request: PEER_GET:<token>:<chunk>:<name>,
+     * answered like GET_RANGE with RANGE_OK:<length> and the bytes
+     */
+    public static final String PEER_GET_PREFIX = "PEER_GET:";
+
     // ══════════════════════════════════════════════
     // Session & Error Messages
     // ══════════════════════════════════════════════
@@ -144,5 +359,13 @@ public final class Protocol {
 
     public static final int DISCOVERY_PORT = 8888;
     public static final String DISCOVER_SERVER_REQUEST = "DISCOVER_LAN_FILE_SERVER_REQ";
+    /** Followed by ":<port>" when the server listens elsewhere than PORT */
     public static final String DISCOVER_SERVER_RESPONSE = "DISCOVER_LAN_FILE_SERVER_RES";
+
+    // ══════════════════════════════════════════════
+    // UDP Multicast Distribution
+    // ══════════════════════════════════════════════
+
+    /** Group used by --multicast without a value (organisation-local scope) */
+    public static final String DEFAULT_MULTICAST_GROUP = "239.255.50.50:5051";
 }
@@ -0,0 +1,65 @@
+package common;
+
+/**
+ * A partially downloaded file the client wants to continue: which file it
+ * was (name, size, modification time on the server) and how many bytes of
+ * it are already on disk.
+ *
+ * The server only honours the offset when size and modification time still
+ * match the shared file; otherwise the file is sent again from byte 0.
+ */
+public final class ResumePoint {
+
+    public final String name;
+    public final long size;
+    public final long lastModified;
+    public final long offset;
+
+    public ResumePoint(String name, long size, long lastModified, long offset) {
+        this.name = name;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.offset = offset;
+    }
+
+    /**
+     * The offset to resume a file of the given size and mtime from, or 0 if
+     * this entry describes a different version of it.
+     */
+    public long offsetFor(long fileSize, long fileLastModified) {
+        if (size != fileSize || lastModified != fileLastModified)
+            return 0;
+        return offset >= 0 && offset <= size ? offset : 0;
+    }
+
+    /** Formats this entry as RESUME:<offset>:<size>:<mtime>:<name>. */
+    public String toLine() {
+        return Protocol.RESUME_PREFIX + offset + Protocol.DELIMITER + size
+                + Protocol.DELIMITER + lastModified + Protocol.DELIMITER + name;
+    }
+
+    /**
+     * Parses a RESUME line. The name comes last and is taken whole.
+     *
+     * @throws IllegalArgumentException if the line is malformed
+     */
+    public static ResumePoint parse(String line) {
+        if (line == null || !line.startsWith(Protocol.RESUME_PREFIX))
+            throw new IllegalArgumentException("Not a RESUME line: " + line);
+
+        String[] parts = line.substring(Protocol.RESUME_PREFIX.length()).split(Protocol.DELIMITER, 4);
+        if (parts.length != 4 || parts[3].isEmpty())
+            throw new IllegalArgumentException("Malformed RESUME line: " + line);
+        try {
+            return new ResumePoint(parts[3], Long.parseLong(parts[1]),
+                    Long.parseLong(parts[2]), Long.parseLong(parts[0]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed RESUME line: " + line);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " @" + offset + "/" + size;
+    }
+}
@@ -0,0 +1,77 @@
+package common;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Names of shared files as they travel in FILE_INFO and range requests.
+ *
+ * A name is a plain file name, or under TREE a relative path whose
+ * segments are joined by '/' on every platform. Neither side trusts the
+ * other's names: a name is only used after {@link #isSafe} accepts it, and
+ * {@link #resolve} checks once more that the result stays inside the
+ * folder it was resolved against.
+ */
+public final class SharedPath {
+
+    /** Separator between segments of a TREE name */
+    public static final char SEPARATOR = '/';
+
+    /** Longest name accepted, in chars */
+    public static final int MAX_LENGTH = 1024;
+
+    private SharedPath() {
+    }
+
+    /**
+     * True if {@code name} cannot leave the folder it is resolved against:
+     * no empty, "." or ".." segments, no absolute paths, drive letters,
+     * backslashes or control characters, and '/' only if {@code nested}.
+     */
+    public static boolean isSafe(String name, boolean nested) {
+        if (name == null || name.isEmpty() || name.length() > MAX_LENGTH)
+            return false;
+        int segmentStart = 0;
+        for (int i = 0; i <= name.length(); i++) {
+            char c = i < name.length() ? name.charAt(i) : SEPARATOR;
+            if (c == SEPARATOR) {
+                if (i < name.length() && !nested)
+                    return false;
+                String segment = name.substring(segmentStart, i);
+                if (segment.isEmpty() || segment.equals(".") || segment.equals(".."))
+                    return false;
+                segmentStart = i + 1;
+            } else if (c == '\\' || c == ':' || c < 0x20 || c == 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Resolves a name accepted by {@link #isSafe} against {@code root}.
+     *
+     * @throws IOException if the name is unsafe or would leave {@code root}
+     */
+    public static Path resolve(Path root, String name, boolean nested) throws IOException {
+        if (!isSafe(name, nested))
+            throw new IOException("Unsafe file name: " + name);
+        Path base = root.toAbsolutePath().normalize();
+        Path resolved = base.resolve(name).normalize();
+        if (!resolved.startsWith(base) || resolved.equals(base))
+            throw new IOException("File name leaves the folder: " + name);
+        return resolved;
+    }
+
+    /** The TREE name of {@code file} relative to {@code root}. */
+    public static String of(Path root, Path file) {
+        Path relative = root.relativize(file);
+        StringBuilder name = new StringBuilder();
+        for (Path segment : relative) {
+            if (name.length() > 0)
+                name.append(SEPARATOR);
+            name.append(segment);
+        }
+        return name.toString();
+    }
+}
@@ -0,0 +1,67 @@
+package server;
+
+import common.ChunkRecipe;
+import common.ContentChunker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Content-defined chunk recipes of shared files, for DELTA clients.
+ *
+ * A recipe is computed on the first GET_RECIPE for a file and reused until
+ * the file's size or modification time changes, so a class of boards
+ * costs one pass over each file. The most recently used MAX_FILES recipes
+ * are kept.
+ */
+public class ChunkIndex {
+
+    /** Recipes kept in memory (a 300 MB file's recipe is about 140 KB) */
+    static final int MAX_FILES = 256;
+
+    private static final class Entry {
+        final long size;
+        final long lastModified;
+        final ChunkRecipe recipe;
+
+        Entry(long size, long lastModified, ChunkRecipe recipe) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.recipe = recipe;
+        }
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_FILES;
+        }
+    };
+
+    /** The recipe of {@code file} as it is now, chunking it if it is new or has changed. */
+    ChunkRecipe recipe(File file) throws IOException {
+        String key = file.getCanonicalPath();
+        long size = file.length();
+        long lastModified = file.lastModified();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.size == size && entry.lastModified == lastModified)
+                return entry.recipe;
+        }
+
+        // Chunk outside the lock so other files are not held up; two
+        // sessions asking at once may both chunk, which is harmless
+        long start = System.nanoTime();
+        ChunkRecipe recipe = ContentChunker.chunk(file.toPath());
+        if (recipe.size() != size || file.lastModified() != lastModified)
+            throw new IOException(file.getName() + " changed while it was being chunked");
+        Server.log("Delta: chunked " + file.getName() + " (" + recipe.count() + " chunk(s), "
+                + (System.nanoTime() - start) / 1_000_000 + " ms)");
+        synchronized (this) {
+            entries.put(key, new Entry(size, lastModified, recipe));
+        }
+        return recipe;
+    }
+}
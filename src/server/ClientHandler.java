@@ -1,15 +1,27 @@
 package server;
 
+import common.ChunkRecipe;
+import common.FrameCodec;
+import common.Handshake;
+import common.LineIO;
+import common.MerkleTree;
 import common.Protocol;
+import common.ResumePoint;
 import common.SecurityUtil;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
 
 /**
  * Handles a single client connection in its own thread.
@@ -17,34 +29,123 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Responsibilities:
  * 1. Authenticate the client using SHA-256 hashed credentials.
  * 2. List all files in the shared folder.
- * 3. Transfer each file using buffered streams (8 KB chunks).
+ * 3. Transfer each file with zero-copy transferTo (8 KB stream fallback).
  * 4. Enforce folder-level access restrictions — the client
- * can NEVER access paths outside Protocol.SHARED_FOLDER.
+ * can NEVER access paths outside the shared folder it was given.
  * 5. Clean up resources on completion or error.
  * 
  * Protocol (per connection):
+ * ← HELLO:<version>:<features> (optional, v2 clients — see Handshake)
+ * → HELLO:<version>:<agreed features>
  * ← username
  * ← hashedPassword
  * → AUTH_SUCCESS | AUTH_FAILED
  * → FILE_COUNT:<n> | NO_FILES
- * for each file:
+ * for each file (lock-step, the default):
  * → FILE_INFO:<name>:<size>
  * ← READY
  * → [raw bytes]
  * ← FILE_RECEIVED | FILE_ERROR
  * → TRANSFER_COMPLETE
+ *
+ * With PIPELINE agreed, every FILE_INFO + body is streamed back-to-back:
+ * → FILE_INFO:<name>:<size> [raw bytes] ... TRANSFER_COMPLETE
+ * ← ACK:<files received> (every ACK_WINDOW files, and once at the end)
+ *
+ * With RESUME agreed, the client first lists its partial files and each
+ * file header says where the body starts:
+ * ← RESUME:<offset>:<size>:<mtime>:<name> ... READY
+ * → FILE_INFO:<name>:<size>:<mtime>:<offset> [bytes from offset]
+ *
+ * With SPLIT=<bytes> agreed, files of at least that size get a FILE_INFO
+ * but no body (and no READY/FILE_RECEIVED exchange); the client fetches
+ * them over separate RANGES connections. MANIFEST does the same for every
+ * file. RANGES connections, after AUTH_SUCCESS, only do:
+ * ← GET_RANGE:<offset>:<length>:<name>
+ * → RANGE_OK:<length> [raw bytes] | ERROR:<message>
+ *
+ * DELTA does the same as MANIFEST; its clients also ask RANGES
+ * connections for a file's content-defined chunks (see ChunkIndex):
+ * ← GET_RECIPE:<name>
+ * → RECIPE:<count> + <length>:<hash> per chunk | ERROR:<message>
+ *
+ * With TREE agreed, files in subfolders are listed too, named by their
+ * path relative to the shared folder with '/' between segments (see
+ * SharedPath); without it only the top level is. Names in requests are
+ * looked up in the ManifestCache, so nothing outside the tree resolves.
+ *
+ * With CONTENT_ID agreed, each body-less FILE_INFO is preceded by
+ * → CONTENT_ID:<recipe id>
+ * so that the client can restore files it has cached without a transfer.
+ *
+ * With MULTICAST agreed (answered as MULTICAST=<group>:<port>), files are
+ * announced body-less as under MANIFEST; after TRANSFER_COMPLETE the
+ * session waits for the next MulticastDistributor round and then sends
+ * → MULTICAST_DONE
+ * after which the client fetches any gaps over RANGES connections.
+ *
+ * With SWARM agreed, files are likewise announced body-less; the client
+ * then opens a TRACKER connection (see SwarmTracker), which only does,
+ * in text lines:
+ * ← JOIN:<port> → JOINED:<peer id>:<token>
+ * ← CHUNKS:<name> → CHUNKS:<chunk size>:<count> + one hash per line
+ * ← HAVE:<chunk>:<name>
+ * ← WHO_HAS:<chunk>:<name> → PEERS:<host>:<port>,...
+ * and fetches chunks no other board has over RANGES connections.
+ *
+ * With FRAMED agreed, the same messages after AUTH_SUCCESS travel as
+ * FrameCodec frames and file bodies as DATA frames; either loop above
+ * can run over it. COMPRESS, only agreed with FRAMED, lets those DATA
+ * frames be deflated (see Compression), on range connections too.
+ * CHECKSUM, likewise, adds a CRC32C to every DATA frame and precedes
+ * FILE_INFO with the root of the file's hash tree once ManifestCache has
+ * hashed it; its RANGES connections also answer
+ * ← GET_HASHES <first leaf> <count> <name>
+ * → HASHES (those leaf hashes, then their proof; see MerkleTree) | ERROR
  */
 public class ClientHandler implements Runnable {
 
+    /** Handshake features this handler can honour */
+    static final Set<String> SUPPORTED_FEATURES = Set.of(Protocol.FEATURE_PIPELINE,
+            Protocol.FEATURE_FRAMED, Protocol.FEATURE_RESUME, Protocol.FEATURE_SPLIT,
+            Protocol.FEATURE_RANGES, Protocol.FEATURE_MANIFEST, Protocol.FEATURE_DELTA,
+            Protocol.FEATURE_CONTENT_ID, Protocol.FEATURE_TREE, Protocol.FEATURE_CHECKSUM);
+
+    /** Chunk recipes shared by every connection */
+    private static final ChunkIndex CHUNK_INDEX = new ChunkIndex();
+
     private final Socket socket;
     private final String sharedFolderPath;
     private final String facultyUsername;
     private final AtomicInteger activeClients;
 
-    private PrintWriter out;
-    private BufferedReader in;
+    /** Shared multicast sender, or null if the server has none */
+    private final MulticastDistributor multicast;
+
+    /** Swarm tracker, or null if the server does not coordinate peers */
+    private final SwarmTracker tracker;
+
+    private LineIO io;
     private String clientAddress;
 
+    /** Agreed protocol options; version 1 with no features for old clients */
+    private Handshake handshake = new Handshake(1, Map.of());
+
+    /** Frame codec once FRAMED is in effect, otherwise null (text lines) */
+    private FrameCodec codec;
+
+    /** Deflates DATA frames once COMPRESS is agreed, otherwise null */
+    private Compression compression;
+
+    /** What compression did for ranges that were not whole files */
+    private final Compression.Result compressedRanges = new Compression.Result();
+
+    /** Partial files the client holds, by name (RESUME only) */
+    private Map<String, ResumePoint> resumePoints = Map.of();
+
+    /** True from FILE_COUNT until every file is delivered; closing while open counts as aborted */
+    private boolean sessionOpen;
+
     /**
      * Constructs a new ClientHandler.
      *
@@ -55,10 +156,24 @@ public class ClientHandler implements Runnable {
      */
     public ClientHandler(Socket socket, String sharedFolderPath,
             String facultyUsername, AtomicInteger activeClients) {
+        this(socket, sharedFolderPath, facultyUsername, activeClients, null, null);
+    }
+
+    /**
+     * Constructs a ClientHandler that can offer MULTICAST and SWARM.
+     *
+     * @param multicast the server's distributor, or null to not offer it
+     * @param tracker   the server's swarm tracker, or null to not offer it
+     */
+    public ClientHandler(Socket socket, String sharedFolderPath,
+            String facultyUsername, AtomicInteger activeClients,
+            MulticastDistributor multicast, SwarmTracker tracker) {
         this.socket = socket;
         this.sharedFolderPath = sharedFolderPath;
         this.facultyUsername = facultyUsername;
         this.activeClients = activeClients;
+        this.multicast = multicast;
+        this.tracker = tracker;
         this.clientAddress = socket.getInetAddress().getHostAddress();
     }
 
@@ -68,14 +183,24 @@ public class ClientHandler implements Runnable {
             // Set a timeout so a misbehaving client cannot block a thread forever
             socket.setSoTimeout(Protocol.SOCKET_TIMEOUT_MS);
 
-            // Initialize I/O streams
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            // Initialize I/O streams. LineIO holds no monitors, so a handler
+            // running on a virtual thread never pins its carrier while blocked.
+            io = new LineIO(socket.getInputStream(), socket.getOutputStream());
 
             log("Client connected: " + clientAddress);
 
+            // ── Step 0: Optional version/feature negotiation ──
+            String firstLine = io.readLine();
+            if (Handshake.isHello(firstLine)) {
+                negotiate(firstLine);
+                firstLine = io.readLine();
+            }
+
             // ── Step 1: Authenticate ──────────────────────
-            if (!authenticateClient()) {
+            long authStart = System.nanoTime();
+            boolean authenticated = authenticateClient(firstLine);
+            ServerMetrics.authenticated(authStart, authenticated);
+            if (!authenticated) {
                 send(Protocol.AUTH_FAILED);
                 log("Authentication FAILED for " + clientAddress);
                 return;
@@ -83,13 +208,35 @@ public class ClientHandler implements Runnable {
             send(Protocol.AUTH_SUCCESS);
             log("Authentication PASSED for " + clientAddress);
 
+            if (handshake.has(Protocol.FEATURE_FRAMED))
+                codec = new FrameCodec(io);
+            if (handshake.has(Protocol.FEATURE_COMPRESS))
+                compression = new Compression(CompressedCache.forFolder(sharedFolderPath),
+                        handshake.has(Protocol.FEATURE_CHECKSUM));
+
+            // A side connection opened for parallel range fetches
+            if (handshake.has(Protocol.FEATURE_RANGES)) {
+                serveRanges();
+                return;
+            }
+
+            // A board's connection to the swarm tracker
+            if (handshake.has(Protocol.FEATURE_TRACKER)) {
+                serveTracker();
+                return;
+            }
+
+            if (handshake.has(Protocol.FEATURE_RESUME))
+                readResumePoints();
+
             // ── Step 2: Send files ────────────────────────
-            sendFiles();
+            if (sendFiles() && handshake.has(Protocol.FEATURE_MULTICAST))
+                awaitMulticastRound();
 
         } catch (SocketException e) {
             log("Client " + clientAddress + " disconnected unexpectedly: " + e.getMessage());
         } catch (IOException e) {
-            log("I/O error with client " + clientAddress + ": " + e.getMessage());
+            log(ServerLog.Level.WARN, "I/O error with client " + clientAddress + ": " + e.getMessage());
         } finally {
             cleanup();
         }
@@ -100,18 +247,59 @@ public class ClientHandler implements Runnable {
     // ──────────────────────────────────────────────
 
     /**
-     * Reads username + hashed password from the client and validates them.
+     * Answers a client HELLO with the version and features both sides support.
+     */
+    private void negotiate(String helloLine) throws IOException {
+        try {
+            Handshake offer = Handshake.parse(helloLine);
+            Set<String> supported = new HashSet<>(supportedFeatures());
+            // Multicast rounds are shared by every board, so they carry the top level only
+            if (offer.has(Protocol.FEATURE_MULTICAST) && supported.contains(Protocol.FEATURE_MULTICAST))
+                supported.remove(Protocol.FEATURE_TREE);
+            // Compressed and checked bodies are flagged DATA frames
+            if (!offer.has(Protocol.FEATURE_FRAMED)) {
+                supported.remove(Protocol.FEATURE_COMPRESS);
+                supported.remove(Protocol.FEATURE_CHECKSUM);
+            }
+            handshake = offer.negotiate(Protocol.PROTOCOL_VERSION, supported);
+            // The server, not the client, chooses the group
+            if (handshake.has(Protocol.FEATURE_MULTICAST))
+                handshake = handshake.with(Protocol.FEATURE_MULTICAST, multicast.groupSpec());
+        } catch (IllegalArgumentException e) {
+            log("Malformed handshake (" + e.getMessage() + ") — using protocol v1");
+        }
+        send(handshake.toLine());
+        log("Negotiated " + handshake);
+    }
+
+    /** SUPPORTED_FEATURES plus those backed by the server's optional services. */
+    private Set<String> supportedFeatures() {
+        if (multicast == null && tracker == null && !Compression.ENABLED)
+            return SUPPORTED_FEATURES;
+        Set<String> features = new HashSet<>(SUPPORTED_FEATURES);
+        if (Compression.ENABLED)
+            features.add(Protocol.FEATURE_COMPRESS);
+        if (multicast != null)
+            features.add(Protocol.FEATURE_MULTICAST);
+        if (tracker != null) {
+            features.add(Protocol.FEATURE_SWARM);
+            features.add(Protocol.FEATURE_TRACKER);
+        }
+        return features;
+    }
+
+    /**
+     * Reads the hashed password that follows the username and validates both.
      *
+     * @param username the username line already read from the client
      * @return true if authentication succeeds
      */
-    private boolean authenticateClient() throws IOException {
-        // Read credentials from client
-        String username = in.readLine();
+    private boolean authenticateClient(String username) throws IOException {
         if (username == null)
             return false;
         username = username.trim();
 
-        String hashedPassword = in.readLine();
+        String hashedPassword = io.readLine();
         if (hashedPassword == null)
             return false;
         hashedPassword = hashedPassword.trim();
@@ -134,101 +322,673 @@ public class ClientHandler implements Runnable {
 
     /**
      * Enumerates files in the shared folder and transfers each one.
+     *
+     * @return true if the session ended with every file sent (or announced)
      */
-    private void sendFiles() throws IOException {
-        Path sharedPath = Paths.get(sharedFolderPath);
-
-        // Safety check
-        if (!Files.exists(sharedPath) || !Files.isDirectory(sharedPath)) {
-            send(Protocol.ERROR_PREFIX + "Shared folder not available");
-            return;
+    private boolean sendFiles() throws IOException {
+        // The shared listing, kept current by the watcher — no directory scan
+        // here, and streamed straight from the snapshot every session shares
+        List<ManifestCache.Entry> files;
+        try {
+            ManifestCache.Snapshot manifest = ManifestCache.of(sharedFolderPath).snapshot();
+            files = handshake.has(Protocol.FEATURE_TREE) ? manifest.entries() : manifest.topLevel();
+        } catch (IOException e) {
+            sendError("Shared folder not available");
+            log("Shared folder not available: " + e.getMessage());
+            return false;
         }
-
-        // Collect only regular files (no subdirectories)
-        File[] files = sharedPath.toFile().listFiles(File::isFile);
-        if (files == null || files.length == 0) {
-            send(Protocol.NO_FILES);
+        if (files.isEmpty()) {
+            sendNoFiles();
             log("No files to send.");
-            return;
+            return false;
         }
 
         // Tell the client how many files are coming
-        send(Protocol.FILE_COUNT_PREFIX + files.length);
-        log("Preparing to send " + files.length + " file(s)");
+        sendFileCount(files.size());
+        sessionOpen = true;
+        log("Preparing to send " + files.size() + " file(s)");
+
+        if (handshake.has(Protocol.FEATURE_PIPELINE))
+            return sendFilesPipelined(files);
 
         int successCount = 0;
 
-        for (File file : files) {
+        for (ManifestCache.Entry file : files) {
             // ── Send file metadata ──
-            String fileInfo = Protocol.FILE_INFO_PREFIX + file.getName()
-                    + Protocol.DELIMITER + file.length();
-            send(fileInfo);
-            log("  → " + file.getName() + " (" + formatSize(file.length()) + ")");
+            long offset = resumeOffset(file);
+            writeFileInfo(file, offset);
+            flush();
+            logFileStart(file, offset);
+
+            // Split and manifest-only files are fetched over range connections
+            if (isSplit(file)) {
+                successCount++;
+                continue;
+            }
 
             // ── Wait for client READY signal ──
-            String clientResponse = in.readLine();
-            if (!Protocol.READY.equals(clientResponse)) {
+            String clientResponse = awaitReady();
+            if (clientResponse != null) {
                 log("Client not ready (received: " + clientResponse + "). Aborting transfers.");
                 break;
             }
 
             // ── Transfer the file ──
-            boolean ok = transferFile(file);
+            boolean ok = transferFile(file, offset);
 
             // ── Wait for client confirmation ──
-            String confirm = in.readLine();
-            if (ok && Protocol.FILE_RECEIVED.equals(confirm)) {
+            String confirm = awaitConfirm();
+            if (ok && confirm == null) {
                 successCount++;
             } else {
-                log("Client did not confirm receipt of " + file.getName()
+                log("Client did not confirm receipt of " + file.name
                         + " (response: " + confirm + ")");
                 break;
             }
         }
 
         // Signal transfer completion
-        send(Protocol.TRANSFER_COMPLETE);
-        log("Transfer session complete — " + successCount + "/" + files.length + " files sent.");
+        sendTransferComplete();
+        log("Transfer session complete — " + successCount + "/" + files.size() + " files sent.");
+        sessionOpen = successCount != files.size();
+        return !sessionOpen;
     }
 
     /**
-     * Streams a single file to the client over raw bytes.
-     * Uses an 8 KB buffer for efficient large-file handling.
+     * Pipelined mode: streams every file without waiting for READY or
+     * FILE_RECEIVED, so a folder of N files costs one round trip instead of
+     * 2N. The client's windowed ACKs bound how far ahead we may run.
+     */
+    private boolean sendFilesPipelined(List<ManifestCache.Entry> files) throws IOException {
+        int acked = 0;
+        int sent = 0;
+
+        for (ManifestCache.Entry file : files) {
+            // Too far ahead of the client — wait for its next window ACK
+            // (header-only files may still be sitting in the buffer)
+            if (sent - acked >= Protocol.MAX_UNACKED)
+                flush();
+            while (sent - acked >= Protocol.MAX_UNACKED) {
+                acked = readAck();
+                if (acked < 0) {
+                    log("Client aborted pipelined transfer after " + sent + " file(s)");
+                    return false;
+                }
+            }
+
+            long offset = resumeOffset(file);
+            writeFileInfo(file, offset);
+            logFileStart(file, offset);
+
+            // A short body would desynchronise the stream — drop the connection
+            if (!isSplit(file) && !transferFile(file, offset)) {
+                log("Aborting pipelined transfer at " + file.name);
+                return false;
+            }
+            sent++;
+        }
+        sendTransferComplete();
+
+        // Collect the remaining window ACKs up to the final cumulative one
+        while (acked < sent) {
+            int next = readAck();
+            if (next < 0)
+                break;
+            acked = next;
+        }
+        log("Transfer session complete — " + Math.max(acked, 0) + "/" + files.size()
+                + " files acknowledged (pipelined).");
+        sessionOpen = acked != files.size();
+        return !sessionOpen;
+    }
+
+    /**
+     * Reads one ACK:<n> line (or ACK frame).
      *
-     * @param file the file to transfer
-     * @return true if the entire file was sent
+     * @return the cumulative count, or -1 on FILE_ERROR, EOF or garbage
      */
-    private boolean transferFile(File file) {
-        long bytesSent = 0;
-        long fileSize = file.length();
+    private int readAck() throws IOException {
+        if (codec != null) {
+            byte type = codec.readHeader();
+            if (type != FrameCodec.T_ACK) {
+                log("Expected ACK frame, received type " + type);
+                return -1;
+            }
+            return codec.readIntPayload();
+        }
+        String line = io.readLine();
+        if (line == null || !line.startsWith(Protocol.ACK_PREFIX)) {
+            log("Expected ACK, received: " + line);
+            return -1;
+        }
+        try {
+            return Integer.parseInt(line.substring(Protocol.ACK_PREFIX.length()).trim());
+        } catch (NumberFormatException e) {
+            log("Malformed ACK: " + line);
+            return -1;
+        }
+    }
 
-        try (FileInputStream fis = new FileInputStream(file);
-                BufferedInputStream bis = new BufferedInputStream(fis, Protocol.BUFFER_SIZE)) {
+    /**
+     * Streams a single file to the client over raw bytes (or DATA frames).
+     * Uses zero-copy FileChannel.transferTo() when the socket has a channel,
+     * otherwise an 8 KB buffered copy loop (see FileSender).
+     *
+     * @param file   the file to transfer
+     * @param offset first byte to send (non-zero when resuming)
+     * @return true if the rest of the file was sent
+     */
+    private boolean transferFile(ManifestCache.Entry file, long offset) {
+        long fileSize = file.size;
 
-            OutputStream rawOut = socket.getOutputStream();
-            byte[] buffer = new byte[Protocol.BUFFER_SIZE];
-            int bytesRead;
+        try (FileChannel channel = file.open()) {
+            long start = System.nanoTime();
+            channel.position(offset);
+            long remaining = fileSize - offset;
+            LongConsumer progress = ServerLog.isLoggable(ServerLog.Level.DEBUG)
+                    ? sent -> log(ServerLog.Level.DEBUG,
+                            "    Sent " + formatSize(offset + sent) + " / " + formatSize(fileSize))
+                    : null;
+            long bytesSent;
+            if (compression != null) {
+                Compression.Result result = compression.sendFramed(file, channel, channel.position(),
+                        remaining, socket, codec, progress);
+                bytesSent = result.rawBytes;
+                if (bytesSent >= Compression.MIN_BYTES)
+                    log("    " + file.name + ": " + result);
+            } else if (handshake.has(Protocol.FEATURE_CHECKSUM)) {
+                bytesSent = FileSender.sendChecked(channel, channel.position(), remaining, socket, codec,
+                        file.blockCrcs(), progress);
+            } else if (codec != null) {
+                bytesSent = FileSender.sendFramed(channel, channel.position(), remaining, socket, codec, progress);
+            } else {
+                io.flush();
+                bytesSent = FileSender.send(channel, channel.position(), remaining, socket, progress);
+            }
 
-            while ((bytesRead = bis.read(buffer)) != -1) {
-                rawOut.write(buffer, 0, bytesRead);
-                bytesSent += bytesRead;
+            log("  ✓ Finished sending " + file.name);
+            if (bytesSent != remaining) {
+                ServerMetrics.transferFailed();
+                return false;
+            }
+            ServerMetrics.fileSent(bytesSent, start);
+            return true;
+
+        } catch (IOException e) {
+            ServerMetrics.transferFailed();
+            log(ServerLog.Level.WARN, "  ✗ Error transferring " + file.name + ": " + e.getMessage());
+            return false;
+        }
+    }
 
-                // Log progress every 1 MB
-                if (bytesSent % (1024 * 1024) < Protocol.BUFFER_SIZE) {
-                    log("    Sent " + formatSize(bytesSent) + " / " + formatSize(fileSize));
+    // ──────────────────────────────────────────────
+    // Split files & range connections
+    // ──────────────────────────────────────────────
+
+    /**
+     * True if {@code file} is announced without a body: every file under
+     * MANIFEST, MULTICAST or SWARM, or those at or above the SPLIT threshold.
+     */
+    private boolean isSplit(ManifestCache.Entry file) {
+        if (handshake.has(Protocol.FEATURE_MANIFEST) || handshake.has(Protocol.FEATURE_DELTA)
+                || handshake.has(Protocol.FEATURE_MULTICAST) || handshake.has(Protocol.FEATURE_SWARM))
+            return true;
+        String threshold = handshake.value(Protocol.FEATURE_SPLIT);
+        if (threshold == null)
+            return false;
+        try {
+            long min = Long.parseLong(threshold);
+            return min > 0 && file.size >= min;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Serves GET_RANGE requests until the client closes the connection.
+     * Each request is answered with RANGE_OK and the bytes (or DATA frames),
+     * or an ERROR if the name or range is not valid.
+     */
+    private void serveRanges() throws IOException {
+        // Each reply is a small header and then the body; don't let Nagle
+        // hold the header back waiting for a delayed ACK
+        socket.setTcpNoDelay(true);
+        int served = 0;
+        while (true) {
+            String name;
+            long offset;
+            long length;
+
+            if (codec != null) {
+                byte type;
+                try {
+                    type = codec.readHeader();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (type == FrameCodec.T_GET_RECIPE) {
+                    sendRecipe(codec.readTextPayload());
+                    continue;
+                }
+                if (type == FrameCodec.T_GET_HASHES && handshake.has(Protocol.FEATURE_CHECKSUM)) {
+                    long first = codec.readLongField();
+                    long count = codec.readLongField();
+                    sendHashes(codec.readTextPayload(), first, count);
+                    continue;
+                }
+                if (type != FrameCodec.T_GET_RANGE)
+                    throw new IOException("Expected GET_RANGE frame, received type " + type);
+                offset = codec.readLongField();
+                length = codec.readLongField();
+                name = codec.readTextPayload();
+            } else {
+                String line = io.readLine();
+                if (line == null)
+                    break;
+                if (line.startsWith(Protocol.GET_RECIPE_PREFIX)) {
+                    sendRecipe(line.substring(Protocol.GET_RECIPE_PREFIX.length()));
+                    continue;
+                }
+                String[] parts = line.startsWith(Protocol.GET_RANGE_PREFIX)
+                        ? line.substring(Protocol.GET_RANGE_PREFIX.length()).split(Protocol.DELIMITER, 3)
+                        : new String[0];
+                try {
+                    if (parts.length != 3)
+                        throw new NumberFormatException();
+                    offset = Long.parseLong(parts[0]);
+                    length = Long.parseLong(parts[1]);
+                    name = parts[2];
+                } catch (NumberFormatException e) {
+                    sendError("Malformed range request");
+                    log("Malformed range request: " + line);
+                    break;
                 }
             }
-            rawOut.flush();
 
-            log("  ✓ Finished sending " + file.getName());
-            return bytesSent == fileSize;
+            ManifestCache.Entry file = resolveSharedFile(name);
+            if (file == null || offset < 0 || offset > file.size || length < 0 || length > file.size - offset) {
+                sendError("Invalid range " + offset + "+" + length + " of " + name);
+                log("Rejected range " + offset + "+" + length + " of " + name);
+                continue;
+            }
 
+            if (!transferRange(file, offset, length))
+                break;
+            served++;
+        }
+        log("Range connection closed after " + served + " range(s)");
+        if (compressedRanges.rawBytes > 0)
+            log("    Partial ranges: " + compressedRanges);
+    }
+
+    /**
+     * Maps a client-supplied name to a regular file in the shared folder,
+     * or null. Only names in the current manifest resolve: top-level names
+     * and the '/'-separated paths TREE uses for subfolders, never "..",
+     * absolute paths or anything else SharedPath rejects.
+     */
+    private ManifestCache.Entry resolveSharedFile(String name) throws IOException {
+        return ManifestCache.of(sharedFolderPath).snapshot().get(name);
+    }
+
+    /** Answers GET_RECIPE with the content-defined chunks of a shared file. */
+    private void sendRecipe(String name) throws IOException {
+        ManifestCache.Entry file = resolveSharedFile(name);
+        ChunkRecipe recipe;
+        try {
+            recipe = file == null ? null : CHUNK_INDEX.recipe(file.file());
         } catch (IOException e) {
-            log("  ✗ Error transferring " + file.getName() + ": " + e.getMessage());
+            log(ServerLog.Level.WARN, "  ✗ Could not chunk " + name + ": " + e.getMessage());
+            recipe = null;
+        }
+        if (recipe == null) {
+            sendError("No recipe for " + name);
+            return;
+        }
+
+        if (codec != null) {
+            byte[] encoded = recipe.encode();
+            int offset = 0;
+            do {
+                int n = Math.min(Protocol.FRAME_DATA_SIZE, encoded.length - offset);
+                codec.writeFrame(FrameCodec.T_RECIPE,
+                        offset + n == encoded.length ? FrameCodec.FLAG_LAST : 0, encoded, offset, n);
+                offset += n;
+            } while (offset < encoded.length);
+            codec.flush();
+        } else {
+            io.writeLine(Protocol.RECIPE_PREFIX + recipe.count());
+            Base64.Encoder base64 = Base64.getEncoder();
+            for (int i = 0; i < recipe.count(); i++)
+                io.writeLine(recipe.length(i) + Protocol.DELIMITER + base64.encodeToString(recipe.hash(i)));
+            io.flush();
+        }
+    }
+
+    /** Answers GET_HASHES with a run of a file's leaf hashes and the proof tying them to its root. */
+    private void sendHashes(String name, long first, long count) throws IOException {
+        ManifestCache.Entry file = resolveSharedFile(name);
+        HashIndex.FileHashes hashes = file == null ? null : file.hashes();
+        if (hashes == null) {
+            sendError("No hashes for " + name + " yet");
+            return;
+        }
+        if (first < 0 || count <= 0 || first + count > hashes.leafCount()) {
+            sendError("Invalid leaves " + first + "+" + count + " of " + name);
+            return;
+        }
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        reply.writeBytes(MerkleTree.slice(hashes.leaves, (int) first, (int) count));
+        reply.writeBytes(MerkleTree.proof(hashes.leaves, (int) first, (int) count));
+        byte[] encoded = reply.toByteArray();
+        int offset = 0;
+        do {
+            int n = Math.min(Protocol.FRAME_DATA_SIZE, encoded.length - offset);
+            codec.writeFrame(FrameCodec.T_HASHES,
+                    offset + n == encoded.length ? FrameCodec.FLAG_LAST : 0, encoded, offset, n);
+            offset += n;
+        } while (offset < encoded.length);
+        codec.flush();
+    }
+
+    /** Sends one byte range of a file on a RANGES connection. */
+    private boolean transferRange(ManifestCache.Entry file, long offset, long length) {
+        try (FileChannel channel = file.open()) {
+            long start = System.nanoTime();
+            long bytesSent;
+            if (compression != null) {
+                Compression.Result result = compression.sendFramed(file, channel, offset, length, socket,
+                        codec, null);
+                bytesSent = result.rawBytes;
+                // Whole files are reported one by one, pieces (delta chunks) once per connection
+                if (offset == 0 && length == file.size) {
+                    if (length >= Compression.MIN_BYTES)
+                        log("    " + file.name + ": " + result);
+                } else {
+                    compressedRanges.add(result);
+                }
+            } else if (handshake.has(Protocol.FEATURE_CHECKSUM)) {
+                bytesSent = FileSender.sendChecked(channel, offset, length, socket, codec, file.blockCrcs(), null);
+            } else if (codec != null) {
+                bytesSent = FileSender.sendFramed(channel, offset, length, socket, codec, null);
+            } else {
+                io.sendLine(Protocol.RANGE_OK_PREFIX + length);
+                bytesSent = FileSender.send(channel, offset, length, socket, null);
+            }
+            if (tracker != null)
+                tracker.recordUpload(bytesSent);
+            if (bytesSent != length) {
+                ServerMetrics.transferFailed();
+                return false;
+            }
+            if (offset == 0 && length == file.size)
+                ServerMetrics.fileSent(bytesSent, start);
+            else
+                ServerMetrics.rangeSent(bytesSent);
+            return true;
+
+        } catch (IOException e) {
+            ServerMetrics.transferFailed();
+            log(ServerLog.Level.WARN, "  ✗ Error sending range of " + file.name + ": " + e.getMessage());
             return false;
         }
     }
 
+    // ──────────────────────────────────────────────
+    // Resume
+    // ──────────────────────────────────────────────
+
+    /**
+     * Reads the client's RESUME entries up to the READY that ends the list.
+     * Malformed entries are skipped; the list itself is capped.
+     */
+    private void readResumePoints() throws IOException {
+        Map<String, ResumePoint> points = new HashMap<>();
+        while (true) {
+            ResumePoint point;
+            if (codec != null) {
+                byte type = codec.readHeader();
+                if (type == FrameCodec.T_READY)
+                    break;
+                if (type != FrameCodec.T_RESUME)
+                    throw new IOException("Expected RESUME frame, received type " + type);
+                point = codec.readResume();
+            } else {
+                String line = io.readLine();
+                if (line == null)
+                    throw new EOFException("Client closed during resume list");
+                if (Protocol.READY.equals(line))
+                    break;
+                try {
+                    point = ResumePoint.parse(line);
+                } catch (IllegalArgumentException e) {
+                    log("Ignoring " + e.getMessage());
+                    continue;
+                }
+            }
+            if (points.size() >= Protocol.MAX_RESUME_ENTRIES)
+                throw new IOException("Too many RESUME entries");
+            points.put(point.name, point);
+        }
+        resumePoints = points;
+        if (!points.isEmpty())
+            log("Client holds " + points.size() + " partial file(s)");
+    }
+
+    /** Where to start sending {@code file}: the client's offset if it still matches, else 0. */
+    private long resumeOffset(ManifestCache.Entry file) {
+        if (isSplit(file))
+            return 0;
+        ResumePoint point = resumePoints.get(file.name);
+        return point == null ? 0 : point.offsetFor(file.size, file.lastModified);
+    }
+
+    private void logFileStart(ManifestCache.Entry file, long offset) {
+        if (isSplit(file))
+            log("  ⇉ " + file.name + " (" + formatSize(file.size) + ", by range)");
+        else if (offset > 0)
+            log("  ↻ " + file.name + " resuming at " + formatSize(offset)
+                    + " of " + formatSize(file.size));
+        else
+            log("  → " + file.name + " (" + formatSize(file.size) + ")");
+    }
+
+    // ──────────────────────────────────────────────
+    // Swarm tracker
+    // ──────────────────────────────────────────────
+
+    /**
+     * Serves a board's tracker connection until it closes, then forgets the
+     * board. The connection idles while the board seeds, so no read timeout.
+     */
+    private void serveTracker() throws IOException {
+        socket.setSoTimeout(0);
+        socket.setTcpNoDelay(true);
+        int peerId = 0;
+        try {
+            String line;
+            while ((line = io.readLine()) != null) {
+                if (line.startsWith(Protocol.JOIN_PREFIX) && peerId == 0) {
+                    int port = Integer.parseInt(line.substring(Protocol.JOIN_PREFIX.length()).trim());
+                    peerId = tracker.join(new InetSocketAddress(socket.getInetAddress(), port));
+                    send(Protocol.JOINED_PREFIX + peerId + Protocol.DELIMITER + tracker.token());
+                    log("Swarm: peer #" + peerId + " listening on port " + port
+                            + " (" + tracker.peerCount() + " peer(s))");
+                } else if (line.startsWith(Protocol.CHUNKS_PREFIX)) {
+                    sendChunkList(line.substring(Protocol.CHUNKS_PREFIX.length()));
+                } else if (line.startsWith(Protocol.HAVE_PREFIX)) {
+                    String[] parts = line.substring(Protocol.HAVE_PREFIX.length()).split(Protocol.DELIMITER, 2);
+                    if (parts.length == 2)
+                        tracker.have(peerId, parts[1], Integer.parseInt(parts[0]));
+                } else if (line.startsWith(Protocol.WHO_HAS_PREFIX)) {
+                    String[] parts = line.substring(Protocol.WHO_HAS_PREFIX.length()).split(Protocol.DELIMITER, 2);
+                    StringBuilder reply = new StringBuilder(Protocol.PEERS_PREFIX);
+                    if (parts.length == 2) {
+                        List<InetSocketAddress> holders = tracker.whoHas(peerId, parts[1], Integer.parseInt(parts[0]));
+                        for (InetSocketAddress holder : holders) {
+                            if (reply.length() > Protocol.PEERS_PREFIX.length())
+                                reply.append(',');
+                            reply.append(holder.getAddress().getHostAddress())
+                                    .append(Protocol.DELIMITER).append(holder.getPort());
+                        }
+                    }
+                    send(reply.toString());
+                } else {
+                    send(Protocol.ERROR_PREFIX + "Unknown tracker request");
+                    log("Unknown tracker request: " + line);
+                    break;
+                }
+            }
+        } catch (NumberFormatException e) {
+            send(Protocol.ERROR_PREFIX + "Malformed tracker request");
+            log("Malformed tracker request: " + e.getMessage());
+        } finally {
+            if (peerId != 0) {
+                tracker.leave(peerId);
+                log("Swarm: peer #" + peerId + " left (" + tracker.peerCount() + " peer(s))");
+            }
+        }
+    }
+
+    /** Answers CHUNKS:<name> with the chunk size, count and one hash per line. */
+    private void sendChunkList(String name) throws IOException {
+        ManifestCache.Entry file = resolveSharedFile(name);
+        if (file == null) {
+            send(Protocol.ERROR_PREFIX + "No such file " + name);
+            return;
+        }
+        SwarmTracker.ChunkList chunks = tracker.chunks(file);
+        io.writeLine(Protocol.CHUNKS_PREFIX + Protocol.SWARM_CHUNK_SIZE + Protocol.DELIMITER
+                + chunks.hashes.size());
+        for (String hash : chunks.hashes)
+            io.writeLine(hash);
+        flush();
+    }
+
+    // ──────────────────────────────────────────────
+    // Multicast
+    // ──────────────────────────────────────────────
+
+    /**
+     * Waits for the next multicast round to finish, then tells the client
+     * to repair whatever it is still missing over RANGES connections.
+     */
+    private void awaitMulticastRound() throws IOException {
+        log("Waiting for multicast round on " + multicast.groupSpec());
+        try {
+            multicast.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (codec != null) {
+            codec.writeEmpty(FrameCodec.T_MULTICAST_DONE);
+            codec.flush();
+        } else {
+            send(Protocol.MULTICAST_DONE);
+        }
+    }
+
+    // ──────────────────────────────────────────────
+    // Messages (text lines, or frames once FRAMED is agreed)
+    // ──────────────────────────────────────────────
+
+    private void sendError(String message) throws IOException {
+        if (codec != null) {
+            codec.writeText(FrameCodec.T_ERROR, message);
+            codec.flush();
+        } else {
+            send(Protocol.ERROR_PREFIX + message);
+        }
+    }
+
+    private void sendNoFiles() throws IOException {
+        if (codec != null) {
+            codec.writeEmpty(FrameCodec.T_NO_FILES);
+            codec.flush();
+        } else {
+            send(Protocol.NO_FILES);
+        }
+    }
+
+    private void sendFileCount(int count) throws IOException {
+        if (codec != null) {
+            codec.writeInt(FrameCodec.T_FILE_COUNT, count);
+            codec.flush();
+        } else {
+            send(Protocol.FILE_COUNT_PREFIX + count);
+        }
+    }
+
+    /** Buffers a file header; the body follows without a flush in between. */
+    private void writeFileInfo(ManifestCache.Entry file, long offset) throws IOException {
+        byte[] root = file.rootHash();
+        if (handshake.has(Protocol.FEATURE_CHECKSUM) && root != null)
+            codec.writeFileHash(root);
+        if (handshake.has(Protocol.FEATURE_CONTENT_ID) && isSplit(file))
+            writeContentId(file);
+        String name = file.name;
+        long size = file.size;
+        boolean resume = handshake.has(Protocol.FEATURE_RESUME);
+        long lastModified = resume ? file.lastModified : 0;
+
+        if (codec != null) {
+            codec.writeFileInfo(name, size, lastModified, offset);
+        } else if (resume) {
+            io.writeLine(Protocol.FILE_INFO_PREFIX + name + Protocol.DELIMITER + size
+                    + Protocol.DELIMITER + lastModified + Protocol.DELIMITER + offset);
+        } else {
+            io.writeLine(Protocol.FILE_INFO_PREFIX + name + Protocol.DELIMITER + size);
+        }
+    }
+
+    /** Buffers the CONTENT_ID of a body-less file; skipped if the file cannot be chunked. */
+    private void writeContentId(ManifestCache.Entry file) throws IOException {
+        String id;
+        try {
+            id = CHUNK_INDEX.recipe(file.file()).id();
+        } catch (IOException e) {
+            log(ServerLog.Level.WARN, "  ✗ No content id for " + file.name + ": " + e.getMessage());
+            return;
+        }
+        if (codec != null)
+            codec.writeText(FrameCodec.T_CONTENT_ID, id);
+        else
+            io.writeLine(Protocol.CONTENT_ID_PREFIX + id);
+    }
+
+    private void sendTransferComplete() throws IOException {
+        if (codec != null) {
+            codec.writeEmpty(FrameCodec.T_TRANSFER_COMPLETE);
+            codec.flush();
+        } else {
+            send(Protocol.TRANSFER_COMPLETE);
+        }
+    }
+
+    private void flush() throws IOException {
+        io.flush();
+    }
+
+    /** Waits for READY; returns null if it arrived, else what came instead. */
+    private String awaitReady() throws IOException {
+        return await(FrameCodec.T_READY, Protocol.READY);
+    }
+
+    /** Waits for FILE_RECEIVED; returns null if it arrived, else what came instead. */
+    private String awaitConfirm() throws IOException {
+        return await(FrameCodec.T_FILE_RECEIVED, Protocol.FILE_RECEIVED);
+    }
+
+    private String await(byte frameType, String line) throws IOException {
+        if (codec != null) {
+            byte type = codec.readHeader();
+            return type == frameType ? null : "frame type " + type;
+        }
+        String received = io.readLine();
+        return line.equals(received) ? null : String.valueOf(received);
+    }
+
     // ──────────────────────────────────────────────
     // Cleanup
     // ──────────────────────────────────────────────
@@ -237,15 +997,19 @@ public class ClientHandler implements Runnable {
      * Closes all resources and decrements the active-client counter.
      */
     private void cleanup() {
+        if (sessionOpen)
+            ServerMetrics.sessionAborted();
+        if (compression != null)
+            compression.end();
+        if (codec != null)
+            codec.end();
         try {
-            if (in != null)
-                in.close();
-            if (out != null)
-                out.close();
+            if (io != null)
+                io.close();
             if (socket != null && !socket.isClosed())
                 socket.close();
         } catch (IOException e) {
-            log("Cleanup error: " + e.getMessage());
+            log(ServerLog.Level.WARN, "Cleanup error: " + e.getMessage());
         } finally {
             activeClients.decrementAndGet();
             log("Client " + clientAddress + " disconnected (active: " + activeClients.get() + ")");
@@ -257,23 +1021,42 @@ public class ClientHandler implements Runnable {
     // ──────────────────────────────────────────────
 
     /** Sends a single-line message to the client. */
-    private void send(String message) {
-        out.println(message);
+    private void send(String message) throws IOException {
+        io.sendLine(message);
     }
 
     /** Logs a message with timestamp via the Server logger. */
     private void log(String message) {
-        Server.log("[" + clientAddress + "] " + message);
+        log(ServerLog.Level.INFO, message);
     }
 
-    /** Formats a byte count into a human-readable string. */
-    private static String formatSize(long bytes) {
+    private void log(ServerLog.Level level, String message) {
+        if (ServerLog.isLoggable(level))
+            ServerLog.log(level, "[" + clientAddress + "] " + message);
+    }
+
+    /**
+     * Formats a byte count into a human-readable string ("1.5 MB"), with
+     * integer arithmetic rather than String.format, as it runs per log line.
+     */
+    static String formatSize(long bytes) {
         if (bytes < 1024)
             return bytes + " B";
         if (bytes < 1024 * 1024)
-            return String.format("%.1f KB", bytes / 1024.0);
+            return scaled(bytes, 10, 1, " KB");
         if (bytes < 1024 * 1024 * 1024)
-            return String.format("%.1f MB", bytes / (1024.0 * 1024));
-        return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+            return scaled(bytes, 20, 1, " MB");
+        return scaled(bytes, 30, 2, " GB");
+    }
+
+    /** {@code bytes / 2^shift}, rounded half up to {@code decimals} places. */
+    private static String scaled(long bytes, int shift, int decimals, String unit) {
+        long factor = decimals == 1 ? 10 : 100;
+        long fixed = (bytes * factor + (1L << (shift - 1))) >> shift;
+        long fraction = fixed % factor;
+        StringBuilder text = new StringBuilder(16).append(fixed / factor).append('.');
+        if (decimals == 2 && fraction < 10)
+            text.append('0');
+        return text.append(fraction).append(unit).toString();
     }
 }
@@ -0,0 +1,459 @@
+package server;
+
+import common.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Deflated copies of shared files, so a file thirty boards fetch is
+ * compressed once rather than thirty times.
+ *
+ * A copy holds one version of a file — it is keyed by path, size and
+ * mtime, so an edited file simply misses — as the deflated payloads of its
+ * FRAME_DATA_SIZE blocks back to back, followed by a table of their
+ * lengths and the CRC32Cs CHECKSUM frames carry. Blocks that did not
+ * shrink are left out and sent from the shared file itself. A copy is
+ * built by the first handler to need it while any others wait for that
+ * one build, or earlier by a background thread as soon as the watched
+ * folder reports a new or changed file.
+ * Past the quota the least recently sent copies are deleted; recency
+ * survives a restart through the copies' mtimes.
+ *
+ * Handlers send cached payloads with FileSender.send, so a compressed body
+ * goes out zero-copy just as a plain one does.
+ *
+ * Set lanshare.compressCache to move the folder and
+ * lanshare.compressCacheBytes to change the quota (0 turns the cache off).
+ */
+final class CompressedCache {
+
+    private static final int MAGIC = 0x4C535A32; // "LSZ2"
+    private static final String SUFFIX = ".z";
+    private static final String PARTIAL = ".tmp";
+    private static final int BLOCK = Protocol.FRAME_DATA_SIZE;
+
+    private static CompressedCache shared;
+    private static boolean sharedOpened;
+
+    /** One version of a file, compressed. */
+    static final class Copy {
+        final Path path;
+        /** Payload length of each block, or -1 where the block is sent raw */
+        final int[] lengths;
+        /** Where each block's payload starts in the copy */
+        final long[] offsets;
+        /** CRC32C of each block before deflating */
+        final int[] crcs;
+        /** Payload bytes, i.e. where the table starts */
+        final long packedSize;
+
+        Copy(Path path, int[] lengths, int[] crcs) {
+            this.path = path;
+            this.lengths = lengths;
+            this.crcs = crcs;
+            this.offsets = new long[lengths.length];
+            long offset = 0;
+            for (int i = 0; i < lengths.length; i++) {
+                offsets[i] = offset;
+                offset += Math.max(0, lengths[i]);
+            }
+            this.packedSize = offset;
+        }
+    }
+
+    private final Path folder;
+    private final long limit;
+
+    /** Copies by file name; null for files that do not compress. One future per file, so each is built once. */
+    private final Map<String, CompletableFuture<Copy>> copies = new ConcurrentHashMap<>();
+
+    /** Copies on disk, least recently used first, to their size (guarded by itself) */
+    private final LinkedHashMap<String, Long> lru = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes;
+
+    private final Set<ManifestCache> watched = ConcurrentHashMap.newKeySet();
+    private final ExecutorService warmer;
+    private final AtomicReference<ManifestCache.Snapshot> pending = new AtomicReference<>();
+
+    /** Used by the warmer thread only */
+    private final Compression warmerCompression = new Compression(null, false);
+
+    private CompressedCache(Path folder, long limit) throws IOException {
+        this.folder = folder;
+        this.limit = limit;
+        Files.createDirectories(folder);
+
+        Map<Path, BasicFileAttributes> found = new LinkedHashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(PARTIAL))
+                    Files.deleteIfExists(file); // a build cut short
+                else if (name.endsWith(SUFFIX))
+                    found.put(file, Files.readAttributes(file, BasicFileAttributes.class));
+            }
+        }
+        List<Path> byUse = new ArrayList<>(found.keySet());
+        byUse.sort(Comparator.comparing(file -> found.get(file).lastModifiedTime()));
+        for (Path file : byUse) {
+            long size = found.get(file).size();
+            lru.put(file.getFileName().toString(), size);
+            usedBytes += size;
+        }
+
+        warmer = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "compress-warm");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        evict();
+        Server.log("Compressed cache: " + lru.size() + " cop" + (lru.size() == 1 ? "y" : "ies") + ", "
+                + ClientHandler.formatSize(usedBytes) + " of " + ClientHandler.formatSize(limit) + " in " + folder);
+    }
+
+    /**
+     * The server's cache, precompressing {@code folderPath} in the
+     * background from now on.
+     *
+     * @return null if the cache is turned off or its folder cannot be used
+     */
+    static CompressedCache forFolder(String folderPath) {
+        CompressedCache cache = shared();
+        if (cache != null)
+            cache.watch(folderPath);
+        return cache;
+    }
+
+    private static synchronized CompressedCache shared() {
+        if (!sharedOpened) {
+            sharedOpened = true;
+            long limit = Long.getLong("lanshare.compressCacheBytes", Protocol.COMPRESSED_CACHE_LIMIT);
+            Path folder = Paths.get(System.getProperty("lanshare.compressCache", Protocol.COMPRESSED_CACHE_FOLDER));
+            if (limit > 0) {
+                try {
+                    shared = new CompressedCache(folder, limit);
+                } catch (IOException e) {
+                    Server.log("Compressed cache: cannot use " + folder + " (" + e.getMessage()
+                            + ") — compressing per session");
+                }
+            }
+        }
+        return shared;
+    }
+
+    // ──────────────────────────────────────────────
+    // Lookup
+    // ──────────────────────────────────────────────
+
+    /**
+     * The compressed copy of {@code file}, built now with
+     * {@code compression} if there is none yet.
+     *
+     * @return null if the file does not compress, is too large to cache,
+     *         or could not be read
+     */
+    Copy get(ManifestCache.Entry file, Compression compression) {
+        return lookup(file, compression, true);
+    }
+
+    /**
+     * Opens a copy for sending.
+     *
+     * @return null if it has been evicted since it was looked up
+     */
+    FileChannel open(Copy copy) throws IOException {
+        try {
+            return FileChannel.open(copy.path, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private Copy lookup(ManifestCache.Entry file, Compression compression, boolean use) {
+        if (!cacheable(file))
+            return null;
+        String name = fileName(file);
+        CompletableFuture<Copy> mine = new CompletableFuture<>();
+        CompletableFuture<Copy> existing = copies.putIfAbsent(name, mine);
+        if (existing != null) {
+            Copy copy = existing.join();
+            if (copy != null && use)
+                touch(name);
+            return copy;
+        }
+
+        Copy copy = null;
+        try {
+            copy = load(name, file);
+            if (copy == null)
+                copy = build(name, file, compression);
+            else if (use)
+                touch(name);
+        } catch (IOException e) {
+            Server.log("Compressed cache: cannot compress " + file.name + ": " + e.getMessage());
+            copies.remove(name, mine); // let a later request try again
+        } finally {
+            mine.complete(copy);
+        }
+        return copy;
+    }
+
+    /** Files worth a copy: large enough to compress, and small enough not to flush the rest out. */
+    private boolean cacheable(ManifestCache.Entry file) {
+        return file.size >= Compression.MIN_BYTES && file.size <= limit / 4
+                && Compression.skipReason(file.name) == null;
+    }
+
+    /** Copies are named by a hash of what they are a copy of. */
+    private static String fileName(ManifestCache.Entry file) {
+        String key = file.path().toAbsolutePath() + "\0" + file.size + "\0" + file.lastModified;
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, 16) + SUFFIX;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    // ──────────────────────────────────────────────
+    // Copy files
+    // ──────────────────────────────────────────────
+
+    /*
+     * A copy is the non-negative-length payloads in block order, then the
+     * table: long file size, int block count, one int length per block
+     * (-1 = raw), one int CRC32C per block, long table offset, int MAGIC.
+     */
+
+    /** Reads the table of a copy left by an earlier run, or returns null if there is none. */
+    private Copy load(String name, ManifestCache.Entry file) throws IOException {
+        synchronized (lru) {
+            if (!lru.containsKey(name))
+                return null;
+        }
+        Path path = folder.resolve(name);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer trailer = ByteBuffer.allocate(Long.BYTES + Integer.BYTES);
+            if (size >= trailer.capacity())
+                readFully(channel, trailer, size - trailer.capacity());
+            long tableOffset = trailer.getLong(0);
+            int blocks = (int) ((file.size + BLOCK - 1) / BLOCK);
+            long tableSize = Long.BYTES + Integer.BYTES + 2L * blocks * Integer.BYTES;
+            if (trailer.getInt(Long.BYTES) == MAGIC && tableOffset + tableSize + trailer.capacity() == size) {
+                ByteBuffer table = ByteBuffer.allocate((int) tableSize);
+                readFully(channel, table, tableOffset);
+                if (table.getLong(0) == file.size && table.getInt(Long.BYTES) == blocks) {
+                    int[] lengths = new int[blocks];
+                    int[] crcs = new int[blocks];
+                    table.position(Long.BYTES + Integer.BYTES);
+                    for (int i = 0; i < blocks; i++)
+                        lengths[i] = table.getInt();
+                    for (int i = 0; i < blocks; i++)
+                        crcs[i] = table.getInt();
+                    Copy copy = new Copy(path, lengths, crcs);
+                    if (copy.packedSize == tableOffset)
+                        return copy;
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // deleted behind our back
+        }
+        Server.log("Compressed cache: discarding unreadable copy " + name);
+        remove(name);
+        return null;
+    }
+
+    /**
+     * Compresses {@code file} block by block into a new copy.
+     *
+     * @return null if its first block looks compressed already
+     * @throws IOException if it cannot be read, or changed while being read
+     */
+    private Copy build(String name, ManifestCache.Entry file, Compression compression) throws IOException {
+        long start = System.nanoTime();
+        int blocks = (int) ((file.size + BLOCK - 1) / BLOCK);
+        int[] lengths = new int[blocks];
+        int[] crcs = new int[blocks];
+        Path partial = folder.resolve(name + PARTIAL);
+        Path path = folder.resolve(name);
+        long packedSize = 0;
+        try {
+            try (FileChannel in = file.open();
+                    FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (int i = 0; i < blocks; i++) {
+                    int len = (int) Math.min(BLOCK, file.size - (long) i * BLOCK);
+                    compression.readBlock(in, (long) i * BLOCK, len);
+                    if (i == 0 && compression.blockEntropy(len) > Compression.MAX_ENTROPY)
+                        return null;
+                    crcs[i] = compression.blockCrc(len);
+                    lengths[i] = compression.deflateBlock(len);
+                    if (lengths[i] >= 0) {
+                        writeFully(out, compression.packed(lengths[i]));
+                        packedSize += lengths[i];
+                    }
+                }
+                ByteBuffer table = ByteBuffer.allocate(Long.BYTES + Integer.BYTES
+                        + 2 * blocks * Integer.BYTES + Long.BYTES + Integer.BYTES);
+                table.putLong(file.size).putInt(blocks);
+                for (int length : lengths)
+                    table.putInt(length);
+                for (int crc : crcs)
+                    table.putInt(crc);
+                table.putLong(packedSize).putInt(MAGIC).flip();
+                writeFully(out, table);
+            }
+            Path source = file.path();
+            if (Files.size(source) != file.size || Files.getLastModifiedTime(source).toMillis() != file.lastModified)
+                throw new IOException("changed while being compressed");
+            Files.move(partial, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+
+        long size = Files.size(path);
+        synchronized (lru) {
+            Long old = lru.put(name, size);
+            usedBytes += size - (old == null ? 0 : old);
+        }
+        Server.log(String.format("Compressed cache: %s %s -> %s in %.0f ms", file.name,
+                ClientHandler.formatSize(file.size), ClientHandler.formatSize(packedSize),
+                (System.nanoTime() - start) / 1e6));
+        evict();
+        return new Copy(path, lengths, crcs);
+    }
+
+    /** Marks a copy as just used, in memory and (for the next run) on disk. */
+    private void touch(String name) {
+        synchronized (lru) {
+            lru.get(name);
+        }
+        try {
+            Files.setLastModifiedTime(folder.resolve(name), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // only the order after a restart suffers
+        }
+    }
+
+    /** Deletes the least recently used copies until the rest fit the quota. */
+    private void evict() {
+        List<String> victims = new ArrayList<>();
+        synchronized (lru) {
+            long used = usedBytes;
+            Iterator<Map.Entry<String, Long>> oldest = lru.entrySet().iterator();
+            while (used > limit && oldest.hasNext()) {
+                Map.Entry<String, Long> entry = oldest.next();
+                victims.add(entry.getKey());
+                used -= entry.getValue();
+            }
+        }
+        int evicted = 0;
+        for (String name : victims)
+            if (remove(name))
+                evicted++;
+        if (evicted > 0) {
+            long used;
+            synchronized (lru) {
+                used = usedBytes;
+            }
+            Server.log("Compressed cache: evicted " + evicted + " cop" + (evicted == 1 ? "y" : "ies") + ", "
+                    + ClientHandler.formatSize(used) + " in use");
+        }
+    }
+
+    /** Deletes a copy; false if it could not be (still being sent, on Windows), so it stays listed. */
+    private boolean remove(String name) {
+        copies.remove(name);
+        try {
+            Files.deleteIfExists(folder.resolve(name));
+        } catch (IOException e) {
+            return false;
+        }
+        synchronized (lru) {
+            Long size = lru.remove(name);
+            if (size != null)
+                usedBytes -= size;
+        }
+        return true;
+    }
+
+    /** Bytes of copies on disk. */
+    long usedBytes() {
+        synchronized (lru) {
+            return usedBytes;
+        }
+    }
+
+    // ──────────────────────────────────────────────
+    // Background warming
+    // ──────────────────────────────────────────────
+
+    /** Precompresses the files of {@code folderPath} now and whenever its manifest changes. */
+    private void watch(String folderPath) {
+        ManifestCache manifest;
+        try {
+            manifest = ManifestCache.of(folderPath);
+            if (!watched.add(manifest))
+                return;
+            manifest.addListener(this::warm);
+            warm(manifest.snapshot());
+        } catch (IOException e) {
+            Server.log("Compressed cache: cannot list " + folderPath + ": " + e.getMessage());
+        }
+    }
+
+    /** Queues a pass over {@code snapshot}; passes not yet started are replaced by the newest. */
+    private void warm(ManifestCache.Snapshot snapshot) {
+        if (pending.getAndSet(snapshot) == null)
+            warmer.execute(() -> {
+                ManifestCache.Snapshot next = pending.getAndSet(null);
+                for (ManifestCache.Entry file : next.entries()) {
+                    if (pending.get() != null)
+                        break; // changed again: start over on the newer listing
+                    if (cacheable(file) && !copies.containsKey(fileName(file)))
+                        lookup(file, warmerCompression, false);
+                }
+            });
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("unexpected end of copy");
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+}
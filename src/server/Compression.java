@@ -0,0 +1,343 @@
+package server;
+
+import common.FrameCodec;
+import common.Protocol;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+
+/**
+ * Sends file bodies as deflated DATA frames on a COMPRESS connection.
+ *
+ * Each frame is compressed on its own (FRAME_DATA_SIZE is far larger than
+ * deflate's 32 KB window, so little is lost) and goes out raw instead
+ * whenever deflating did not make it smaller. Files that are compressed
+ * already are not tried at all: those with a PRECOMPRESSED extension, and
+ * those whose first block has more than MAX_ENTROPY bits per byte. They
+ * keep the zero-copy path of FileSender.sendFramed, as do bodies under
+ * MIN_BYTES, where a frame header costs more than deflate could save.
+ *
+ * Bodies made of whole blocks — every whole file, and every range of
+ * whole blocks a side connection asks for — are sent from the
+ * CompressedCache instead, so each file is deflated once however many
+ * boards fetch it. Other ranges (delta chunks, resumed files) are
+ * deflated as they go out.
+ *
+ * Under CHECKSUM every frame carries the CRC32C of its file bytes; for a
+ * deflated frame it is taken before deflating, so it also covers the
+ * client's inflater.
+ *
+ * Set lanshare.compress=false to stop the server agreeing to COMPRESS, and
+ * lanshare.compressLevel to trade ratio for CPU (default BEST_SPEED).
+ *
+ * One instance per connection; not thread-safe.
+ */
+final class Compression {
+
+    /** Whether COMPRESS may be agreed at all */
+    static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("lanshare.compress"));
+
+    static final int LEVEL = Integer.getInteger("lanshare.compressLevel", Deflater.BEST_SPEED);
+
+    /** Formats that are compressed already; deflating them only costs CPU */
+    static final Set<String> PRECOMPRESSED = Set.of("mp4", "m4v", "mkv", "avi", "mov", "webm", "wmv",
+            "mp3", "m4a", "aac", "ogg", "flac", "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "jar", "pptx", "docx", "xlsx",
+            "odp", "odt", "ods", "epub");
+
+    /** Bodies smaller than this are sent as is (4 KB) */
+    static final int MIN_BYTES = 4096;
+
+    /** First blocks with more bits of entropy per byte than this are sent as is */
+    static final double MAX_ENTROPY = 7.5;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Whether deflate time can be the sending thread's CPU time, which a
+     * thread descheduled mid-block does not inflate. Where the JVM cannot
+     * measure it, or not for the current thread (a virtual thread on JDK
+     * 21+), elapsed time is used and logged as such.
+     */
+    static final boolean CPU_CLOCK = THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+
+    /** What one body cost and saved. */
+    static final class Result {
+        /** File bytes sent */
+        long rawBytes;
+        /** Payload bytes on the wire */
+        long wireBytes;
+        /** Time spent in the Deflater: CPU time, unless {@link #elapsed} */
+        long deflateNanos;
+        /** deflateNanos is elapsed time: the sending thread had no CPU clock */
+        boolean elapsed;
+        /** Why the body was not compressed, or null if it was */
+        String skipped;
+        /** Sent from the CompressedCache rather than deflated now */
+        boolean cached;
+
+        double ratio() {
+            return wireBytes == 0 ? 1 : (double) rawBytes / wireBytes;
+        }
+
+        /** Adds another body's figures to these (skipped bodies count as sent raw). */
+        void add(Result other) {
+            rawBytes += other.rawBytes;
+            wireBytes += other.wireBytes;
+            deflateNanos += other.deflateNanos;
+            elapsed |= other.elapsed;
+        }
+
+        @Override
+        public String toString() {
+            if (skipped != null)
+                return "sent uncompressed (" + skipped + ")";
+            return String.format("%s -> %s (%.1fx), %s", ClientHandler.formatSize(rawBytes),
+                    ClientHandler.formatSize(wireBytes), ratio(), cached ? "from the compressed cache"
+                            : String.format("%.1f ms %s deflating", deflateNanos / 1e6, elapsed ? "elapsed" : "CPU"));
+        }
+    }
+
+    private final CompressedCache cache;
+    private final boolean checksums;
+    private final Deflater deflater = new Deflater(LEVEL);
+    private final CRC32C crc = new CRC32C();
+    private final byte[] raw = new byte[Protocol.FRAME_DATA_SIZE];
+    private final byte[] packed = new byte[Protocol.FRAME_DATA_SIZE];
+
+    /**
+     * @param cache     where whole-block bodies are sent from (null to
+     *                  deflate every body as it goes out)
+     * @param checksums whether frames carry CRC32Cs (CHECKSUM agreed)
+     */
+    Compression(CompressedCache cache, boolean checksums) {
+        this.cache = cache;
+        this.checksums = checksums;
+    }
+
+    /** Why a file of this name is never compressed, or null. */
+    static String skipReason(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot < name.lastIndexOf('/'))
+            return null;
+        String extension = name.substring(dot + 1).toLowerCase(Locale.ROOT);
+        return PRECOMPRESSED.contains(extension) ? "." + extension + " is compressed already" : null;
+    }
+
+    /** Shannon entropy of the first {@code n} bytes, in bits per byte (0 to 8). */
+    static double entropy(byte[] b, int n) {
+        if (n == 0)
+            return 0;
+        int[] counts = new int[256];
+        for (int i = 0; i < n; i++)
+            counts[b[i] & 0xFF]++;
+        double bits = 0;
+        for (int count : counts) {
+            if (count == 0)
+                continue;
+            double p = (double) count / n;
+            bits -= p * Math.log(p) / Math.log(2);
+        }
+        return bits;
+    }
+
+    /**
+     * Sends a byte range of {@code entry} as DATA frames, the last one
+     * flagged FLAG_LAST, deflating frames where that helps.
+     *
+     * @param file {@code entry}, opened
+     * @throws IOException if the file shrank — the frame stream would be corrupt
+     */
+    Result sendFramed(ManifestCache.Entry entry, FileChannel file, long position, long count, Socket socket,
+            FrameCodec codec, LongConsumer progress) throws IOException {
+        Result result = new Result();
+        result.skipped = count < MIN_BYTES ? "under " + ClientHandler.formatSize(MIN_BYTES) : skipReason(entry.name);
+        if (result.skipped != null) {
+            result.rawBytes = result.wireBytes = sendPlain(entry, file, position, count, socket, codec, progress);
+            return result;
+        }
+
+        if (cache != null && wholeBlocks(entry.size, position, count)) {
+            CompressedCache.Copy copy = cache.get(entry, this);
+            FileChannel packedFile = copy == null ? null : cache.open(copy);
+            if (packedFile != null) {
+                try (packedFile) {
+                    return sendCopy(copy, packedFile, file, position, count, socket, codec, progress);
+                }
+            }
+        }
+
+        long sent = 0;
+        long nextReport = FileSender.ZERO_COPY_CHUNK;
+        boolean cpuClock = cpuTime() >= 0;
+        result.elapsed = !cpuClock;
+        do {
+            int len = (int) Math.min(raw.length, count - sent);
+            readBlock(file, position + sent, len);
+            boolean last = sent + len >= count;
+
+            if (sent == 0 && blockEntropy(len) > MAX_ENTROPY) {
+                // Looks compressed already: send this block as is, and the rest zero-copy
+                result.skipped = String.format("entropy %.2f bits/byte", blockEntropy(len));
+                writeBlock(codec, last ? FrameCodec.FLAG_LAST : 0, raw, len, len);
+                codec.flush();
+                if (!last)
+                    len += sendPlain(entry, file, position + len, count - len, socket, codec, null);
+                result.rawBytes = result.wireBytes = len;
+                if (progress != null)
+                    progress.accept(len);
+                return result;
+            }
+
+            long start = cpuClock ? cpuTime() : System.nanoTime();
+            int packedLength = deflateBlock(len);
+            boolean smaller = packedLength >= 0;
+            result.deflateNanos += (cpuClock ? cpuTime() : System.nanoTime()) - start;
+
+            byte flags = last ? FrameCodec.FLAG_LAST : 0;
+            if (smaller)
+                writeBlock(codec, (byte) (flags | FrameCodec.FLAG_DEFLATE), packed, packedLength, len);
+            else
+                writeBlock(codec, flags, raw, len, len);
+            codec.flush();
+            sent += len;
+            result.rawBytes += len;
+            result.wireBytes += smaller ? packedLength : len;
+
+            if (progress != null && (sent >= nextReport || last)) {
+                progress.accept(sent);
+                nextReport = sent + FileSender.ZERO_COPY_CHUNK;
+            }
+        } while (sent < count);
+        return result;
+    }
+
+    /** Sends a range as plain DATA frames, zero-copy where possible. */
+    private long sendPlain(ManifestCache.Entry entry, FileChannel file, long position, long count, Socket socket,
+            FrameCodec codec, LongConsumer progress) throws IOException {
+        return checksums
+                ? FileSender.sendChecked(file, position, count, socket, codec, entry.blockCrcs(), progress)
+                : FileSender.sendFramed(file, position, count, socket, codec, progress);
+    }
+
+    /** Buffers one DATA frame whose payload encodes the first {@code rawLength} bytes of the block buffer. */
+    private void writeBlock(FrameCodec codec, byte flags, byte[] payload, int length, int rawLength)
+            throws IOException {
+        if (checksums)
+            codec.writeCheckedFrame(flags, payload, 0, length, blockCrc(rawLength));
+        else
+            codec.writeFrame(FrameCodec.T_DATA, flags, payload, 0, length);
+    }
+
+    /** True if the range starts on a block boundary and ends on one or at the end of the file. */
+    private static boolean wholeBlocks(long fileSize, long position, long count) {
+        long end = position + count;
+        return position % Protocol.FRAME_DATA_SIZE == 0 && (end == fileSize || end % Protocol.FRAME_DATA_SIZE == 0);
+    }
+
+    /** Sends a whole-block range from a cached copy: deflated blocks from the copy, the rest from the file. */
+    private Result sendCopy(CompressedCache.Copy copy, FileChannel packedFile, FileChannel file, long position,
+            long count, Socket socket, FrameCodec codec, LongConsumer progress) throws IOException {
+        Result result = new Result();
+        result.cached = true;
+        long sent = 0;
+        long nextReport = FileSender.ZERO_COPY_CHUNK;
+        for (int block = (int) (position / Protocol.FRAME_DATA_SIZE); sent < count; block++) {
+            int len = (int) Math.min(Protocol.FRAME_DATA_SIZE, count - sent);
+            boolean last = sent + len >= count;
+            byte flags = last ? FrameCodec.FLAG_LAST : 0;
+            int packedLength = copy.lengths[block];
+            int payload = packedLength < 0 ? len : packedLength;
+            if (packedLength >= 0)
+                flags |= FrameCodec.FLAG_DEFLATE;
+            if (checksums)
+                codec.writeCheckedHeader(flags, payload, copy.crcs[block]);
+            else
+                codec.writeHeader(FrameCodec.T_DATA, flags, payload);
+            codec.flush();
+            long n = packedLength < 0
+                    ? FileSender.send(file, position + sent, len, socket, null)
+                    : FileSender.send(packedFile, copy.offsets[block], packedLength, socket, null);
+            if (n != payload)
+                throw new IOException("File shrank while sending (block " + block + ")");
+            result.wireBytes += payload;
+            sent += len;
+            result.rawBytes += len;
+
+            if (progress != null && (sent >= nextReport || last)) {
+                progress.accept(sent);
+                nextReport = sent + FileSender.ZERO_COPY_CHUNK;
+            }
+        }
+        return result;
+    }
+
+    /** Frees the deflater's native memory. */
+    void end() {
+        deflater.end();
+    }
+
+    // ──────────────────────────────────────────────
+    // Blocks (shared with CompressedCache)
+    // ──────────────────────────────────────────────
+
+    /** Reads {@code len} bytes of the file into the block buffer. */
+    void readBlock(FileChannel file, long position, int len) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(raw, 0, len);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("File shrank while sending (" + buffer.position() + " of " + len
+                        + " bytes of a block)");
+        }
+    }
+
+    /** CRC32C of the block last read. */
+    int blockCrc(int len) {
+        crc.reset();
+        crc.update(raw, 0, len);
+        return (int) crc.getValue();
+    }
+
+    /** Entropy of the block last read, in bits per byte. */
+    double blockEntropy(int len) {
+        return entropy(raw, len);
+    }
+
+    /** The current thread's CPU time in ns, or -1 if it cannot be measured (see CPU_CLOCK). */
+    private static long cpuTime() {
+        if (!CPU_CLOCK)
+            return -1;
+        try {
+            return THREADS.getCurrentThreadCpuTime();
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Deflates the block last read.
+     *
+     * @return the deflated length, or -1 if it did not shrink
+     */
+    int deflateBlock(int len) {
+        deflater.reset();
+        deflater.setInput(raw, 0, len);
+        deflater.finish();
+        int packedLength = deflater.deflate(packed, 0, packed.length);
+        return deflater.finished() && packedLength < len ? packedLength : -1;
+    }
+
+    /** The block last deflated. */
+    ByteBuffer packed(int length) {
+        return ByteBuffer.wrap(packed, 0, length);
+    }
+}
@@ -0,0 +1,232 @@
+package server;
+
+import common.FrameCodec;
+import common.Protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Streams file contents onto a client socket.
+ *
+ * Two send paths are available:
+ * - Zero-copy: FileChannel.transferTo() straight into the socket's
+ * SocketChannel. On Linux this maps to sendfile(2) and on Windows to
+ * TransmitFile, so the bytes never enter the JVM heap.
+ * - Stream copy: the classic read-into-byte[] / write-to-OutputStream loop.
+ *
+ * The zero-copy path is used whenever the socket was accepted through a
+ * ServerSocketChannel (so socket.getChannel() is non-null). If the channel
+ * is missing, or transferTo() fails part-way, sending continues from the
+ * current position using the stream loop.
+ *
+ * Set the system property lanshare.zeroCopy=false to force the stream path.
+ */
+public final class FileSender {
+
+    /** Whether the zero-copy path may be used at all */
+    public static final boolean ZERO_COPY_ENABLED = !"false"
+            .equalsIgnoreCase(System.getProperty("lanshare.zeroCopy"));
+
+    /** Bytes handed to a single transferTo() call (1 MB, also the progress step) */
+    static final int ZERO_COPY_CHUNK = 1024 * 1024;
+
+    private FileSender() {
+    }
+
+    /**
+     * Sends {@code count} bytes of the file starting at {@code position}.
+     * Any buffered control text must be flushed by the caller first.
+     *
+     * @param file     an open channel on the file to send
+     * @param position the first byte to send
+     * @param count    the number of bytes to send
+     * @param socket   the connected client socket
+     * @param progress receives the running byte total roughly once per MB
+     *                 (may be null)
+     * @return the number of bytes actually written to the socket
+     */
+    public static long send(FileChannel file, long position, long count,
+            Socket socket, LongConsumer progress) throws IOException {
+        long sent = 0;
+        SocketChannel channel = socket.getChannel();
+
+        if (ZERO_COPY_ENABLED && channel != null && channel.isBlocking()) {
+            long[] done = { 0 };
+            try {
+                long moved = sendZeroCopy(file, position, count, channel, n -> {
+                    done[0] = n;
+                    if (progress != null)
+                        progress.accept(n);
+                });
+                if (moved < count && position + moved < file.size())
+                    Server.log("Zero-copy stalled after " + moved + " bytes, falling back to stream copy");
+            } catch (IOException e) {
+                // A reset peer is not something the stream loop can fix
+                if (!channel.isOpen() || socket.isOutputShutdown())
+                    throw e;
+                Server.log("Zero-copy send failed after " + done[0]
+                        + " bytes, falling back to stream copy: " + e.getMessage());
+            }
+            sent = done[0];
+            if (sent == count || position + sent >= file.size())
+                return sent;
+        }
+
+        return sent + sendStream(file, position + sent, count - sent,
+                socket.getOutputStream(), progress, sent);
+    }
+
+    /**
+     * Sends a byte range as a run of FRAME_DATA_SIZE DATA frames, the last
+     * one flagged FLAG_LAST (an empty file becomes one empty last frame).
+     * Each payload still goes out through {@link #send}, so framing keeps
+     * the zero-copy path.
+     *
+     * @return bytes of file data sent
+     * @throws IOException if the file shrank — the frame stream would be corrupt
+     */
+    public static long sendFramed(FileChannel file, long position, long count,
+            Socket socket, FrameCodec codec, LongConsumer progress) throws IOException {
+        long sent = 0;
+        long nextReport = ZERO_COPY_CHUNK;
+        do {
+            int len = (int) Math.min(Protocol.FRAME_DATA_SIZE, count - sent);
+            boolean last = sent + len >= count;
+            codec.writeHeader(FrameCodec.T_DATA, last ? FrameCodec.FLAG_LAST : 0, len);
+            codec.flush();
+
+            long n = send(file, position + sent, len, socket, null);
+            if (n != len)
+                throw new IOException("File shrank while sending (" + (sent + n) + " of " + count + " bytes)");
+            sent += len;
+
+            if (progress != null && (sent >= nextReport || last)) {
+                progress.accept(sent);
+                nextReport = sent + ZERO_COPY_CHUNK;
+            }
+        } while (sent < count);
+        return sent;
+    }
+
+    /**
+     * As {@link #sendFramed}, with every frame flagged FLAG_CRC (CHECKSUM).
+     * A frame that is a whole block of the file takes its CRC32C from
+     * {@code blockCrcs} and still goes out zero-copy; any other (a resumed
+     * offset, a delta chunk, a file not hashed yet) is read into memory to
+     * be checksummed and is sent from there.
+     *
+     * @param blockCrcs CRC32C of each FRAME_DATA_SIZE block of the file
+     *                  (see ManifestCache.Entry), or null
+     */
+    public static long sendChecked(FileChannel file, long position, long count, Socket socket,
+            FrameCodec codec, int[] blockCrcs, LongConsumer progress) throws IOException {
+        int block = Protocol.FRAME_DATA_SIZE;
+        long fileSize = file.size();
+        byte[] buffer = null;
+        CRC32C crc = null;
+        long sent = 0;
+        long nextReport = ZERO_COPY_CHUNK;
+        do {
+            int len = (int) Math.min(block, count - sent);
+            long at = position + sent;
+            boolean last = sent + len >= count;
+            byte flags = last ? FrameCodec.FLAG_LAST : 0;
+
+            if (blockCrcs != null && at % block == 0 && (len == block || at + len == fileSize)
+                    && at / block < blockCrcs.length) {
+                codec.writeCheckedHeader(flags, len, blockCrcs[(int) (at / block)]);
+                codec.flush();
+                if (send(file, at, len, socket, null) != len)
+                    throw new IOException("File shrank while sending (" + sent + " of " + count + " bytes)");
+            } else {
+                if (buffer == null) {
+                    buffer = new byte[(int) Math.min(block, count)];
+                    crc = new CRC32C();
+                }
+                ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, len);
+                while (wrapped.hasRemaining()) {
+                    if (file.read(wrapped, at + wrapped.position()) < 0)
+                        throw new IOException("File shrank while sending (" + (sent + wrapped.position())
+                                + " of " + count + " bytes)");
+                }
+                crc.reset();
+                crc.update(buffer, 0, len);
+                codec.writeCheckedFrame(flags, buffer, 0, len, (int) crc.getValue());
+                codec.flush();
+            }
+            sent += len;
+
+            if (progress != null && (sent >= nextReport || last)) {
+                progress.accept(sent);
+                nextReport = sent + ZERO_COPY_CHUNK;
+            }
+        } while (sent < count);
+        return sent;
+    }
+
+    /**
+     * Sends a byte range with FileChannel.transferTo(). The target channel
+     * must be in blocking mode.
+     *
+     * @return bytes written; short of {@code count} if the file shrank or
+     *         transferTo stopped moving bytes before EOF, in which case
+     *         {@link #send} copies the rest with {@link #sendStream}
+     */
+    public static long sendZeroCopy(FileChannel file, long position, long count,
+            SocketChannel target, LongConsumer progress) throws IOException {
+        long sent = 0;
+        while (sent < count) {
+            long chunk = Math.min(ZERO_COPY_CHUNK, count - sent);
+            long n = file.transferTo(position + sent, chunk, target);
+            if (n <= 0) {
+                // 0 at EOF: the file was truncated under us. 0 before it: this
+                // file or socket will not transfer, and asking again only spins
+                break;
+            }
+            sent += n;
+            if (progress != null)
+                progress.accept(sent);
+        }
+        return sent;
+    }
+
+    /**
+     * Sends a byte range through a heap buffer and the socket OutputStream.
+     *
+     * @param alreadySent bytes already sent for this file, added to the
+     *                    values passed to {@code progress}
+     * @return bytes written by this call
+     */
+    public static long sendStream(FileChannel file, long position, long count,
+            OutputStream out, LongConsumer progress, long alreadySent) throws IOException {
+        byte[] buffer = new byte[Protocol.BUFFER_SIZE];
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        long sent = 0;
+        long nextReport = ZERO_COPY_CHUNK;
+
+        while (sent < count) {
+            wrapped.clear();
+            wrapped.limit((int) Math.min(buffer.length, count - sent));
+            int n = file.read(wrapped, position + sent);
+            if (n == -1)
+                break;
+
+            out.write(buffer, 0, n);
+            sent += n;
+
+            if (progress != null && sent >= nextReport) {
+                progress.accept(alreadySent + sent);
+                nextReport += ZERO_COPY_CHUNK;
+            }
+        }
+        out.flush();
+        return sent;
+    }
+}
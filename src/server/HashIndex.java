@@ -0,0 +1,222 @@
+package server;
+
+import common.MerkleTree;
+import common.Protocol;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Hash trees of a shared folder's files, kept on disk so that a restarted
+ * server does not read every shared file again to hash it.
+ *
+ * Each folder has one index file, named by a hash of the folder's path,
+ * holding an append-only run of records: the file's name, size and mtime,
+ * then its leaf hashes and block CRC32Cs. A record stands for that version
+ * of the file only; once the listing shows a different size or mtime the
+ * record is dead. Dead records, records superseded by later ones and a
+ * record cut short by a crash are dropped by rewriting the file when it
+ * is opened. A 4 GB video costs about 200 KB of index.
+ *
+ * Set lanshare.hashIndex to move the folder.
+ */
+final class HashIndex {
+
+    private static final int MAGIC = 0x4C534831; // "LSH1", at the start of every record
+    private static final String SUFFIX = ".idx";
+    private static final String PARTIAL = ".tmp";
+
+    /** What the hasher learns about one version of a file. */
+    static final class FileHashes {
+        /** Leaf hashes, HASH_SIZE bytes each (see MerkleTree) */
+        final byte[] leaves;
+        final byte[] root;
+        /** CRC32C of each FRAME_DATA_SIZE block (for CHECKSUM frames) */
+        final int[] blockCrcs;
+
+        FileHashes(byte[] leaves, int[] blockCrcs) {
+            this.leaves = leaves;
+            this.root = MerkleTree.root(leaves);
+            this.blockCrcs = blockCrcs;
+        }
+
+        int leafCount() {
+            return leaves.length / MerkleTree.HASH_SIZE;
+        }
+    }
+
+    private static final class Record {
+        final long size;
+        final long lastModified;
+        final FileHashes hashes;
+
+        Record(long size, long lastModified, FileHashes hashes) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hashes = hashes;
+        }
+    }
+
+    private final Path path;
+    private final Map<String, Record> records = new HashMap<>();
+    private FileChannel out;
+
+    /** Records in the file that no longer count (guarded by this) */
+    private int garbage;
+
+    private HashIndex(Path path) throws IOException {
+        this.path = path;
+        if (Files.exists(path))
+            load();
+    }
+
+    /**
+     * The index of {@code folder}, read from disk.
+     *
+     * @return null if the index folder cannot be used (files are then
+     *         hashed again on every start)
+     */
+    static HashIndex open(Path folder) {
+        Path dir = Paths.get(System.getProperty("lanshare.hashIndex", Protocol.HASH_INDEX_FOLDER));
+        try {
+            Files.createDirectories(dir);
+            return new HashIndex(dir.resolve(fileName(folder)));
+        } catch (IOException e) {
+            Server.log("Hash index: cannot use " + dir + " (" + e.getMessage() + ") — hashing on every start");
+            return null;
+        }
+    }
+
+    private static String fileName(Path folder) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256")
+                    .digest(folder.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, 16) + SUFFIX;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /** The hashes recorded for this version of {@code name}, or null. */
+    synchronized FileHashes get(String name, long size, long lastModified) {
+        Record record = records.get(name);
+        return record != null && record.size == size && record.lastModified == lastModified
+                ? record.hashes : null;
+    }
+
+    /** Records the hashes of one version of {@code name}, on disk straight away. */
+    synchronized void put(String name, long size, long lastModified, FileHashes hashes) {
+        if (records.put(name, new Record(size, lastModified, hashes)) != null)
+            garbage++;
+        try {
+            if (out == null)
+                out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            ByteBuffer record = ByteBuffer.wrap(encode(name, records.get(name)));
+            while (record.hasRemaining())
+                out.write(record);
+        } catch (IOException e) {
+            Server.log("Hash index: cannot write " + path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Forgets every record the listing no longer matches, and rewrites the
+     * file if it holds anything that no longer counts.
+     */
+    synchronized void retain(ManifestCache.Snapshot snapshot) {
+        for (Iterator<Map.Entry<String, Record>> it = records.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Record> next = it.next();
+            ManifestCache.Entry file = snapshot.get(next.getKey());
+            Record record = next.getValue();
+            if (file == null || file.size != record.size || file.lastModified != record.lastModified) {
+                it.remove();
+                garbage++;
+            }
+        }
+        if (garbage == 0)
+            return;
+        Path partial = path.resolveSibling(path.getFileName() + PARTIAL);
+        try {
+            try (DataOutputStream rewritten = new DataOutputStream(Files.newOutputStream(partial))) {
+                for (Map.Entry<String, Record> next : records.entrySet())
+                    rewritten.write(encode(next.getKey(), next.getValue()));
+            }
+            if (out != null)
+                out.close();
+            out = null;
+            Files.move(partial, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Server.log("Hash index: " + records.size() + " file(s), dropped " + garbage + " stale record(s)");
+            garbage = 0;
+        } catch (IOException e) {
+            Server.log("Hash index: cannot rewrite " + path + ": " + e.getMessage());
+        }
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (true) {
+                int magic;
+                try {
+                    magic = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (magic != MAGIC) {
+                    garbage++;
+                    break;
+                }
+                String name = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                int leafCount = in.readInt();
+                if (leafCount != MerkleTree.leafCount(size)) {
+                    garbage++;
+                    break;
+                }
+                byte[] leaves = new byte[leafCount * MerkleTree.HASH_SIZE];
+                in.readFully(leaves);
+                int[] crcs = new int[in.readInt()];
+                for (int i = 0; i < crcs.length; i++)
+                    crcs[i] = in.readInt();
+                if (records.put(name, new Record(size, lastModified, new FileHashes(leaves, crcs))) != null)
+                    garbage++;
+            }
+        } catch (EOFException e) {
+            garbage++; // a record cut short
+        }
+    }
+
+    private static byte[] encode(String name, Record record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(MAGIC);
+        data.writeUTF(name);
+        data.writeLong(record.size);
+        data.writeLong(record.lastModified);
+        data.writeInt(record.hashes.leafCount());
+        data.write(record.hashes.leaves);
+        data.writeInt(record.hashes.blockCrcs.length);
+        for (int crc : record.hashes.blockCrcs)
+            data.writeInt(crc);
+        return bytes.toByteArray();
+    }
+}
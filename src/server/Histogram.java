@@ -0,0 +1,143 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-bucket latency histogram that any number of threads can record
+ * into without locking (see ServerMetrics).
+ *
+ * Buckets are log-linear, as in HdrHistogram: each power of two is split
+ * into SUB_BUCKETS equal slices, so a recorded value lands in a bucket no
+ * wider than 1/SUB_BUCKETS of it (6.25%) and every long fits in BUCKETS
+ * counters, allocated once. Recording is a leading-zero count, a shift
+ * and one atomic increment, plus a LongAdder and a LongAccumulator for
+ * the mean and the exact maximum. Reads copy the counters, so a
+ * percentile may miss values recorded while it is being computed.
+ */
+public final class Histogram implements HistogramMXBean {
+
+    /** Slices per power of two (a power of two itself) */
+    static final int SUB_BUCKETS = 16;
+    private static final int SUB_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+
+    /** Values below 2 * SUB_BUCKETS get a bucket each; then SUB_BUCKETS per power of two up to 2^63 */
+    static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final String unit;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /** @param unit what recorded values measure, e.g. "ns" or "KB/s" */
+    public Histogram(String unit) {
+        this.unit = unit;
+    }
+
+    /** Records one value; negative values count as 0. */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.getAndIncrement(bucket(value));
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /** Records the time since {@code startNanos}, a System.nanoTime() reading. */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /** The bucket holding {@code value} (non-negative). */
+    static int bucket(long value) {
+        int exponent = 63 - Long.numberOfLeadingZeros(value | SUB_BUCKETS);
+        int shift = exponent - SUB_BITS;
+        return (shift << SUB_BITS) + (int) (value >>> shift);
+    }
+
+    /** The largest value that falls in {@code bucket}. */
+    static long highestIn(int bucket) {
+        int shift = Math.max(0, (bucket >> SUB_BITS) - 1);
+        long lowest = (long) (bucket - (shift << SUB_BITS)) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * The value below which {@code fraction} of the recorded values fall,
+     * as the upper edge of its bucket (never above the maximum); 0 if
+     * nothing has been recorded.
+     */
+    public long percentile(double fraction) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(highestIn(i), max.get());
+        }
+        return max.get();
+    }
+
+    // ──────────────────────────────────────────────
+    // HistogramMXBean
+    // ──────────────────────────────────────────────
+
+    @Override
+    public String getUnit() {
+        return unit;
+    }
+
+    @Override
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += counts.get(i);
+        return total;
+    }
+
+    @Override
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+
+    @Override
+    public long getP50() {
+        return percentile(0.50);
+    }
+
+    @Override
+    public long getP90() {
+        return percentile(0.90);
+    }
+
+    @Override
+    public long getP99() {
+        return percentile(0.99);
+    }
+
+    @Override
+    public long getP999() {
+        return percentile(0.999);
+    }
+
+    /** "count=…, p50=…, p99=…, max=… unit", for log lines. */
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", p50=" + getP50() + ", p99=" + getP99() + ", max=" + getMax() + " " + unit;
+    }
+}
@@ -0,0 +1,25 @@
+package server;
+
+/**
+ * A Histogram as JMX clients see it, under lanshare:type=Histogram (see
+ * ServerMetrics). Values are in {@link #getUnit()}; percentiles are the
+ * upper edge of the bucket they fall in.
+ */
+public interface HistogramMXBean {
+
+    String getUnit();
+
+    long getCount();
+
+    double getMean();
+
+    long getMax();
+
+    long getP50();
+
+    long getP90();
+
+    long getP99();
+
+    long getP999();
+}
@@ -0,0 +1,538 @@
+package server;
+
+import common.MerkleTree;
+import common.Protocol;
+import common.SharedPath;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.function.Consumer;
+
+/**
+ * The files of a shared folder and its subfolders, kept current by a
+ * WatchService.
+ *
+ * The tree is walked once; after that only the paths named in watch
+ * events are stat'ed again (a new subfolder is walked and watched too),
+ * and a new immutable Snapshot is published in a volatile field. Sessions
+ * read the current snapshot without locking and without touching the
+ * disk, so thirty boards logging in at once cost no directory scans at
+ * all. Events are collected until the folder has been quiet for
+ * SETTLE_MS, so a file being copied in is re-stat'ed once rather than on
+ * every write.
+ *
+ * Files are named by their path relative to the shared folder, joined by
+ * '/' (see SharedPath); names SharedPath would reject are left out. Each
+ * file's hash tree is computed in the background after it appears or
+ * changes, or read from the HashIndex if this version of it was hashed
+ * before; until then {@link Entry#rootHash()} is null. If the tree cannot
+ * be watched, every {@link #snapshot()} walks it again.
+ */
+public final class ManifestCache {
+
+    /** Quiet period before a burst of events is applied */
+    static final long SETTLE_MS = 100;
+
+    /** One cache per folder, shared by every connection and engine */
+    private static final Map<Path, ManifestCache> CACHES = new ConcurrentHashMap<>();
+
+    /** A shared file as it was when last stat'ed. */
+    public static final class Entry {
+        /** Path relative to the shared folder, '/'-separated */
+        public final String name;
+        public final long size;
+        public final long lastModified;
+        private final Path root;
+
+        /** Set once by the hasher; null until then */
+        private volatile HashIndex.FileHashes hashes;
+
+        Entry(Path root, String name, BasicFileAttributes attributes) {
+            this.root = root;
+            this.name = name;
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+        }
+
+        /** True for files directly in the shared folder. */
+        public boolean isTopLevel() {
+            return name.indexOf(SharedPath.SEPARATOR) < 0;
+        }
+
+        public Path path() {
+            return root.resolve(name);
+        }
+
+        public File file() {
+            return path().toFile();
+        }
+
+        /**
+         * Opens the file for reading.
+         *
+         * @throws IOException if it no longer matches this entry (the
+         *                     watcher has not reported the change yet),
+         *                     so stale sizes never go out with new bytes
+         */
+        public FileChannel open() throws IOException {
+            Path path = path();
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            if (channel.size() != size || Files.getLastModifiedTime(path).toMillis() != lastModified) {
+                channel.close();
+                throw new IOException(name + " changed since it was listed");
+            }
+            return channel;
+        }
+
+        /** Root of the file's hash tree (see MerkleTree), or null if not computed yet. */
+        public byte[] rootHash() {
+            HashIndex.FileHashes known = hashes;
+            return known == null ? null : known.root;
+        }
+
+        /** CRC32C of each FRAME_DATA_SIZE block of the file, or null if not computed yet. */
+        public int[] blockCrcs() {
+            HashIndex.FileHashes known = hashes;
+            return known == null ? null : known.blockCrcs;
+        }
+
+        /** Leaf hashes, root and block CRCs, or null if not computed yet. */
+        HashIndex.FileHashes hashes() {
+            return hashes;
+        }
+
+        boolean sameAs(Entry other) {
+            return other != null && size == other.size && lastModified == other.lastModified;
+        }
+    }
+
+    /** An immutable listing, in name order. */
+    public static final class Snapshot {
+        private final List<Entry> entries;
+        private final List<Entry> topLevel;
+        private final Map<String, Entry> byName;
+        private final long totalSize;
+
+        Snapshot(NavigableMap<String, Entry> sorted) {
+            List<Entry> all = new ArrayList<>(sorted.size());
+            List<Entry> top = new ArrayList<>();
+            long total = 0;
+            for (Entry entry : sorted.values()) {
+                all.add(entry);
+                if (entry.isTopLevel())
+                    top.add(entry);
+                total += entry.size;
+            }
+            this.entries = Collections.unmodifiableList(all);
+            this.topLevel = Collections.unmodifiableList(top);
+            this.byName = Collections.unmodifiableMap(sorted);
+            this.totalSize = total;
+        }
+
+        /** Every file in the tree. */
+        public List<Entry> entries() {
+            return entries;
+        }
+
+        /** Only the files directly in the shared folder. */
+        public List<Entry> topLevel() {
+            return topLevel;
+        }
+
+        /** The regular file of that name in the tree, or null. */
+        public Entry get(String name) {
+            return byName.get(name);
+        }
+
+        public int size() {
+            return entries.size();
+        }
+
+        public long totalSize() {
+            return totalSize;
+        }
+    }
+
+    private final Path folder;
+    private final WatchService watcher;
+    private volatile boolean watching;
+    private volatile Snapshot snapshot;
+
+    /** Watched folders by key (watch thread only, once started) */
+    private final Map<WatchKey, Path> watched = new HashMap<>();
+
+    /** Told of each snapshot published */
+    private final List<Consumer<Snapshot>> listeners = new CopyOnWriteArrayList<>();
+
+    /** Entries still to be hashed (guarded by itself) */
+    private final List<Entry> unhashed = new ArrayList<>();
+
+    /** Hashes from earlier runs, or null */
+    private final HashIndex index;
+
+    private ManifestCache(Path folder) throws IOException {
+        this.folder = folder;
+        WatchService service = null;
+        try {
+            service = folder.getFileSystem().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            Server.log("Manifest: cannot watch " + folder + " (" + e.getMessage() + ") — listing per session");
+        }
+        this.watcher = service;
+        this.watching = service != null;
+        this.index = watching ? HashIndex.open(folder) : null;
+        // Each folder is registered before it is listed, so nothing slips between them
+        publish(scan(null));
+        if (index != null)
+            index.retain(snapshot);
+
+        if (watching) {
+            Thread watch = new Thread(this::watch, "manifest-watch");
+            watch.setDaemon(true);
+            watch.start();
+            Thread hash = new Thread(this::hash, "manifest-hash");
+            hash.setDaemon(true);
+            hash.setPriority(Thread.MIN_PRIORITY);
+            hash.start();
+        }
+    }
+
+    /**
+     * The cache for {@code folderPath}, created and filled on first use.
+     *
+     * @throws IOException if the folder cannot be listed
+     */
+    public static ManifestCache of(String folderPath) throws IOException {
+        Path folder = Paths.get(folderPath).toAbsolutePath().normalize();
+        ManifestCache cache = CACHES.get(folder);
+        if (cache != null)
+            return cache;
+        synchronized (CACHES) {
+            cache = CACHES.get(folder);
+            if (cache == null) {
+                cache = new ManifestCache(folder);
+                CACHES.put(folder, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Calls {@code listener} with every snapshot published from now on, on
+     * the thread that published it; it must not block.
+     */
+    public void addListener(Consumer<Snapshot> listener) {
+        listeners.add(listener);
+    }
+
+    /** The tree as of the last change seen. */
+    public Snapshot snapshot() throws IOException {
+        if (!watching)
+            publish(scan(snapshot));
+        return snapshot;
+    }
+
+    // ──────────────────────────────────────────────
+    // Listing
+    // ──────────────────────────────────────────────
+
+    /** Walks the whole tree, keeping entries from {@code previous} whose size and mtime still match. */
+    private Snapshot scan(Snapshot previous) throws IOException {
+        long start = System.nanoTime();
+        if (watching)
+            unwatchAll();
+        NavigableMap<String, Entry> sorted = new TreeMap<>();
+        walk(folder, sorted, previous);
+        Snapshot next = new Snapshot(sorted);
+        ServerMetrics.MANIFEST_BUILD.recordSince(start);
+        return next;
+    }
+
+    /** Re-stats only the changed paths, walking any folder that is new. */
+    private Snapshot update(Snapshot previous, Set<Path> changed) throws IOException {
+        long start = System.nanoTime();
+        NavigableMap<String, Entry> sorted = new TreeMap<>();
+        for (Entry entry : previous.entries())
+            sorted.put(entry.name, entry);
+        Set<Path> folders = new HashSet<>(watched.values());
+        for (Path path : changed) {
+            String name = SharedPath.of(folder, path);
+            BasicFileAttributes attributes = attributes(path);
+            if (attributes == null || !attributes.isRegularFile()) {
+                // Gone, or replaced by a folder: forget it and anything below it
+                sorted.remove(name);
+                sorted.subMap(name + SharedPath.SEPARATOR, name + (char) (SharedPath.SEPARATOR + 1)).clear();
+            }
+            if (attributes == null)
+                continue;
+            if (attributes.isDirectory()) {
+                if (!folders.contains(path))
+                    walk(path, sorted, null);
+            } else if (attributes.isRegularFile() && SharedPath.isSafe(name, true)) {
+                Entry entry = new Entry(folder, name, attributes);
+                if (!entry.sameAs(sorted.get(name)))
+                    sorted.put(name, entry);
+            }
+        }
+        Snapshot next = new Snapshot(sorted);
+        ServerMetrics.MANIFEST_BUILD.recordSince(start);
+        return next;
+    }
+
+    /** Adds every regular file under {@code start}, watching each folder on the way. */
+    private void walk(Path start, NavigableMap<String, Entry> sorted, Snapshot previous) throws IOException {
+        int[] skipped = { 0 };
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(folder) && !SharedPath.isSafe(SharedPath.of(folder, dir), true)) {
+                    skipped[0]++;
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                if (watching)
+                    register(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile())
+                    return FileVisitResult.CONTINUE;
+                String name = SharedPath.of(folder, file);
+                if (!SharedPath.isSafe(name, true)) {
+                    skipped[0]++;
+                    return FileVisitResult.CONTINUE;
+                }
+                Entry entry = new Entry(folder, name, attrs);
+                Entry old = previous == null ? null : previous.get(name);
+                sorted.put(name, entry.sameAs(old) ? old : entry);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                // The shared folder itself must be readable; anything below may vanish or be locked
+                if (file.equals(folder))
+                    throw e;
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (skipped[0] > 0)
+            Server.log("Manifest: skipped " + skipped[0] + " name(s) that cannot be shared safely");
+    }
+
+    private void register(Path dir) throws IOException {
+        try {
+            WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watched.put(key, dir);
+        } catch (IOException e) {
+            if (dir.equals(folder))
+                throw e;
+            // e.g. the OS limit on watches: keep the listing correct by walking per session
+            Server.log("Manifest: cannot watch " + dir + " (" + e.getMessage() + ") — listing per session");
+            stopWatching();
+        }
+    }
+
+    private void unwatchAll() {
+        for (WatchKey key : watched.keySet())
+            key.cancel();
+        watched.clear();
+    }
+
+    private void stopWatching() {
+        watching = false;
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            // already unusable
+        }
+    }
+
+    /** A path's attributes, not following links, or null if it is gone. */
+    private static BasicFileAttributes attributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void publish(Snapshot next) {
+        snapshot = next;
+        synchronized (unhashed) {
+            unhashed.clear();
+            for (Entry entry : next.entries())
+                if (entry.hashes == null)
+                    unhashed.add(entry);
+            unhashed.notifyAll();
+        }
+        for (Consumer<Snapshot> listener : listeners)
+            listener.accept(next);
+    }
+
+    // ──────────────────────────────────────────────
+    // Background threads
+    // ──────────────────────────────────────────────
+
+    /** Applies watch events until the shared folder goes away. */
+    private void watch() {
+        try {
+            while (watching) {
+                WatchKey key = watcher.take();
+                Set<Path> changed = new HashSet<>();
+                boolean overflow = false;
+                // Keep collecting until the tree has been quiet for a moment
+                while (key != null) {
+                    Path dir = watched.get(key);
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                            overflow = true;
+                        else if (dir != null)
+                            changed.add(dir.resolve((Path) event.context()));
+                    }
+                    if (!key.reset()) {
+                        watched.remove(key);
+                        if (folder.equals(dir)) {
+                            Server.log("Manifest: " + folder + " is no longer watched — listing per session");
+                            stopWatching();
+                            return;
+                        }
+                    }
+                    key = watcher.poll(SETTLE_MS, TimeUnit.MILLISECONDS);
+                }
+
+                Snapshot current = snapshot;
+                Snapshot next;
+                try {
+                    next = overflow ? scan(current) : update(current, changed);
+                } catch (IOException e) {
+                    Server.log("Manifest: cannot list " + folder + ": " + e.getMessage());
+                    continue;
+                }
+                publish(next);
+                Server.log("Manifest: " + folder.getFileName() + " changed — " + next.size() + " file(s)");
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stop watching; snapshot() now walks the tree itself
+        } finally {
+            // Still usable: without the watcher every call walks the tree,
+            // and the next of() tries to watch it afresh
+            watching = false;
+            CACHES.remove(folder, this);
+            synchronized (unhashed) {
+                unhashed.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Hashes new and changed files, one at a time, at low priority: the
+     * leaves of each file's hash tree and, in the same pass, a CRC32C of
+     * each of its FRAME_DATA_SIZE blocks (for CHECKSUM). Files the index
+     * knows in this version are not read at all.
+     */
+    private void hash() {
+        CRC32C crc = new CRC32C();
+        int block = Protocol.FRAME_DATA_SIZE;
+        byte[] buffer = new byte[64 * 1024];
+        int hashed = 0;
+        int indexed = 0;
+        long hashedBytes = 0;
+        while (true) {
+            Entry entry;
+            synchronized (unhashed) {
+                while (unhashed.isEmpty()) {
+                    if (hashed + indexed > 0) {
+                        Server.log("Manifest: hashed " + hashed + " file(s), "
+                                + ClientHandler.formatSize(hashedBytes) + "; " + indexed + " from the index");
+                        hashed = indexed = 0;
+                        hashedBytes = 0;
+                    }
+                    if (!watching)
+                        return;
+                    try {
+                        unhashed.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                entry = unhashed.remove(unhashed.size() - 1);
+            }
+            if (entry.hashes != null)
+                continue;
+            HashIndex.FileHashes known = index == null ? null
+                    : index.get(entry.name, entry.size, entry.lastModified);
+            if (known != null) {
+                entry.hashes = known;
+                indexed++;
+                continue;
+            }
+            MerkleTree.Builder tree = new MerkleTree.Builder();
+            crc.reset();
+            int[] crcs = new int[(int) ((entry.size + block - 1) / block)];
+            long position = 0;
+            Path path = entry.path();
+            try (InputStream in = Files.newInputStream(path)) {
+                int n;
+                while ((n = in.read(buffer)) != -1 && position + n <= entry.size) {
+                    tree.update(buffer, 0, n);
+                    for (int off = 0; off < n;) {
+                        int take = (int) Math.min(n - off, block - position % block);
+                        crc.update(buffer, off, take);
+                        off += take;
+                        position += take;
+                        if (position % block == 0 || position == entry.size) {
+                            crcs[(int) ((position - 1) / block)] = (int) crc.getValue();
+                            crc.reset();
+                        }
+                    }
+                }
+                // A file rewritten meanwhile gets a new entry (and hash) from the watcher
+                BasicFileAttributes now = attributes(path);
+                if (n == -1 && position == entry.size && now != null && now.size() == entry.size
+                        && now.lastModifiedTime().toMillis() == entry.lastModified) {
+                    entry.hashes = new HashIndex.FileHashes(tree.leaves(), crcs);
+                    if (index != null)
+                        index.put(entry.name, entry.size, entry.lastModified, entry.hashes);
+                    hashed++;
+                    hashedBytes += entry.size;
+                }
+            } catch (NoSuchFileException e) {
+                // deleted; the watcher drops it
+            } catch (IOException e) {
+                Server.log("Manifest: cannot hash " + entry.name + ": " + e.getMessage());
+            }
+        }
+    }
+}
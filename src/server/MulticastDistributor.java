@@ -0,0 +1,332 @@
+package server;
+
+import common.MulticastPacket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends the shared folder once per round as UDP multicast, so a class of
+ * 40 boards costs the faculty uplink one copy instead of 40.
+ *
+ * Sessions that agreed MULTICAST call {@link #join()} once their file list
+ * has been sent. The first join opens a round; others joining within
+ * GATHER_MS ride along, and later ones wait for the next round. For each
+ * file a round sends:
+ *
+ * 1. ANNOUNCE (repeated), then every DATA datagram, paced to the
+ * configured rate so receivers' socket buffers are not overrun.
+ * 2. END, then NACKs are collected until NACK_WINDOW_MS passes quietly.
+ * The union of all missing sequences is re-multicast once — a piece lost
+ * by ten boards is repaired with one datagram. This repeats up to
+ * MAX_REPAIR_ROUNDS times.
+ *
+ * Whatever a receiver still lacks after that is fetched over TCP (RANGES)
+ * once the session gets MULTICAST_DONE.
+ */
+public class MulticastDistributor implements Closeable {
+
+    /** How long a new round waits for more sessions to join */
+    static final long GATHER_MS = 2000;
+
+    static final int ANNOUNCE_REPEATS = 3;
+    static final int END_REPEATS = 2;
+
+    /**
+     * Quiet period that ends NACK collection for one repair pass. Every
+     * file pays it once, so it is kept close to a few LAN round trips.
+     */
+    static final long NACK_WINDOW_MS = 50;
+
+    /** Upper bound on one NACK collection pass */
+    static final long NACK_MAX_WAIT_MS = 1000;
+
+    static final int MAX_REPAIR_ROUNDS = 8;
+
+    /** Default send rate (40 MB/s — comfortably below gigabit) */
+    public static final long DEFAULT_RATE = 40L * 1024 * 1024;
+
+    private final String sharedFolderPath;
+    private final InetSocketAddress group;
+    private final long bytesPerSecond;
+    private final MulticastSocket socket;
+    private final Thread thread;
+
+    private final Object lock = new Object();
+    private Round pending;
+    private int nextRound = 1;
+    private volatile boolean closed;
+
+    private final AtomicLong dataBytes = new AtomicLong();
+    private final AtomicLong repairBytes = new AtomicLong();
+
+    // Pacing state for the current send burst
+    private long paceStart;
+    private long pacedBytes;
+
+    /** Sessions waiting on one multicast pass over the share. */
+    private static final class Round {
+        final int id;
+        final long startAt;
+        final CountDownLatch done = new CountDownLatch(1);
+        int members;
+
+        Round(int id, long startAt) {
+            this.id = id;
+            this.startAt = startAt;
+        }
+    }
+
+    /**
+     * @param group          multicast group and port to send to
+     * @param iface          interface to send on, or null for the OS default
+     * @param bytesPerSecond send rate for DATA datagrams
+     */
+    public MulticastDistributor(String sharedFolderPath, InetSocketAddress group,
+            NetworkInterface iface, long bytesPerSecond) throws IOException {
+        this.sharedFolderPath = sharedFolderPath;
+        this.group = group;
+        this.bytesPerSecond = bytesPerSecond > 0 ? bytesPerSecond : DEFAULT_RATE;
+
+        socket = new MulticastSocket(0);
+        if (iface != null)
+            socket.setNetworkInterface(iface);
+        socket.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        socket.setTimeToLive(1); // one subnet: the classroom LAN
+
+        thread = new Thread(this::loop, "multicast-distributor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** The group as announced in the handshake: "<address>:<port>". */
+    public String groupSpec() {
+        return group.getAddress().getHostAddress() + ":" + group.getPort();
+    }
+
+    /**
+     * Blocks until a multicast round that includes the caller has finished.
+     */
+    public void join() throws InterruptedException {
+        Round round;
+        synchronized (lock) {
+            if (closed)
+                return;
+            if (pending == null) {
+                pending = new Round(nextRound++, System.currentTimeMillis() + GATHER_MS);
+                lock.notifyAll();
+            }
+            round = pending;
+            round.members++;
+        }
+        round.done.await();
+    }
+
+    /** DATA bytes sent in first passes, across all rounds. */
+    public long dataBytes() {
+        return dataBytes.get();
+    }
+
+    /** DATA bytes re-sent in answer to NACKs, across all rounds. */
+    public long repairBytes() {
+        return repairBytes.get();
+    }
+
+    @Override
+    public void close() {
+        Round waiting;
+        synchronized (lock) {
+            closed = true;
+            waiting = pending;
+            pending = null;
+            lock.notifyAll();
+        }
+        if (waiting != null)
+            waiting.done.countDown();
+        thread.interrupt();
+        socket.close();
+    }
+
+    // ──────────────────────────────────────────────
+    // Rounds
+    // ──────────────────────────────────────────────
+
+    private void loop() {
+        while (!closed) {
+            Round round;
+            try {
+                synchronized (lock) {
+                    while (pending == null && !closed)
+                        lock.wait();
+                    round = pending;
+                }
+                if (round == null)
+                    return;
+
+                long wait = round.startAt - System.currentTimeMillis();
+                if (wait > 0)
+                    Thread.sleep(wait);
+                synchronized (lock) {
+                    if (pending == round)
+                        pending = null; // later joiners open the next round
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                runRound(round);
+            } catch (IOException e) {
+                if (!closed)
+                    Server.log("Multicast round " + round.id + " failed: " + e.getMessage());
+            } finally {
+                round.done.countDown();
+            }
+        }
+    }
+
+    private void runRound(Round round) throws IOException {
+        List<ManifestCache.Entry> files = ManifestCache.of(sharedFolderPath).snapshot().topLevel();
+
+        Server.log("Multicast round " + round.id + ": " + files.size() + " file(s) to "
+                + round.members + " client(s) on " + groupSpec());
+        long repairBefore = repairBytes.get();
+        for (int i = 0; i < files.size() && !closed; i++)
+            sendFile(round.id, i, files.get(i));
+        Server.log("Multicast round " + round.id + " complete (repairs: "
+                + ClientHandler.formatSize(repairBytes.get() - repairBefore) + ")");
+    }
+
+    /** Announces, sends and repairs one file. */
+    private void sendFile(int round, int fileIndex, ManifestCache.Entry file) throws IOException {
+        long size = file.size;
+        int sequences = MulticastPacket.sequenceCount(size);
+        ByteBuffer buf = ByteBuffer.allocate(MulticastPacket.MAX_DATAGRAM);
+
+        try (FileChannel channel = file.open()) {
+            for (int i = 0; i < ANNOUNCE_REPEATS; i++) {
+                MulticastPacket.putHeader(buf, MulticastPacket.ANNOUNCE, round, fileIndex);
+                MulticastPacket.putAnnounce(buf, file.name, size);
+                send(buf);
+            }
+
+            startPacing();
+            for (int seq = 0; seq < sequences && !closed; seq++)
+                dataBytes.addAndGet(sendData(buf, channel, round, fileIndex, seq));
+
+            for (int pass = 0; pass < MAX_REPAIR_ROUNDS && !closed; pass++) {
+                for (int i = 0; i < END_REPEATS; i++) {
+                    MulticastPacket.putHeader(buf, MulticastPacket.END, round, fileIndex);
+                    buf.putInt(sequences);
+                    send(buf);
+                }
+
+                BitSet missing = collectNacks(round, fileIndex, sequences);
+                if (!missing.isEmpty())
+                    Server.log("Multicast: re-sending " + missing.cardinality() + " datagram(s) of "
+                            + file.name);
+                if (missing.isEmpty())
+                    return;
+
+                startPacing();
+                for (int seq = missing.nextSetBit(0); seq >= 0 && !closed; seq = missing.nextSetBit(seq + 1))
+                    repairBytes.addAndGet(sendData(buf, channel, round, fileIndex, seq));
+            }
+            Server.log("Multicast: giving up repairs of " + file.name + " — receivers will use TCP");
+        }
+    }
+
+    /** Sends DATA datagram {@code seq}; returns its payload size. */
+    private int sendData(ByteBuffer buf, FileChannel channel, int round, int fileIndex, int seq)
+            throws IOException {
+        MulticastPacket.putHeader(buf, MulticastPacket.DATA, round, fileIndex);
+        buf.putInt(seq);
+        int bodyStart = buf.position();
+        long offset = (long) seq * MulticastPacket.PAYLOAD_SIZE;
+        buf.limit(bodyStart + MulticastPacket.PAYLOAD_SIZE);
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, offset + buf.position() - bodyStart);
+            if (n < 0)
+                break;
+        }
+        int payload = buf.position() - bodyStart;
+        send(buf);
+        pace(payload);
+        return payload;
+    }
+
+    /**
+     * Gathers NACKs for one file until the channel has been quiet for
+     * NACK_WINDOW_MS, and returns the union of requested sequences.
+     */
+    private BitSet collectNacks(int round, int fileIndex, int sequences) throws IOException {
+        BitSet missing = new BitSet(sequences);
+        byte[] raw = new byte[MulticastPacket.MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(raw, raw.length);
+        MulticastPacket header = new MulticastPacket();
+        long deadline = System.currentTimeMillis() + NACK_MAX_WAIT_MS;
+
+        while (true) {
+            long remaining = Math.min(NACK_WINDOW_MS, deadline - System.currentTimeMillis());
+            if (remaining <= 0)
+                break;
+            socket.setSoTimeout((int) remaining);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                break;
+            }
+
+            ByteBuffer in = ByteBuffer.wrap(raw, 0, packet.getLength());
+            if (!header.parseHeader(in) || header.type != MulticastPacket.NACK
+                    || header.round != round || header.fileIndex != fileIndex
+                    || in.remaining() < 2)
+                continue;
+
+            int ranges = in.getShort() & 0xFFFF;
+            for (int r = 0; r < ranges && in.remaining() >= 8; r++) {
+                int first = in.getInt();
+                int count = in.getInt();
+                if (first >= 0 && count > 0 && first < sequences)
+                    missing.set(first, (int) Math.min((long) first + count, sequences));
+            }
+        }
+        return missing;
+    }
+
+    private void send(ByteBuffer buf) throws IOException {
+        buf.flip();
+        socket.send(new DatagramPacket(buf.array(), buf.arrayOffset(), buf.limit(), group));
+    }
+
+    // ──────────────────────────────────────────────
+    // Pacing
+    // ──────────────────────────────────────────────
+
+    private void startPacing() {
+        paceStart = System.nanoTime();
+        pacedBytes = 0;
+    }
+
+    /** Sleeps as needed to keep the burst at bytesPerSecond. */
+    private void pace(int bytes) {
+        pacedBytes += bytes;
+        long due = paceStart + pacedBytes * 1_000_000_000L / bytesPerSecond;
+        long ahead = due - System.nanoTime();
+        if (ahead > 1_000_000L)
+            LockSupport.parkNanos(ahead);
+    }
+}
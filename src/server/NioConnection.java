@@ -0,0 +1,382 @@
+package server;
+
+import common.Handshake;
+import common.Protocol;
+import common.SecurityUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Per-connection state for the non-blocking engine (see NioServer).
+ *
+ * Drives the same conversation as ClientHandler, but as an explicit state
+ * machine that is advanced whenever the selector reports the channel
+ * readable or writable:
+ *
+ * AUTH_USER → AUTH_PASS → (WAIT_READY → SENDING → WAIT_CONFIRM)* → CLOSING
+ *
+ * A HELLO from a v2 client is answered with no features, so those clients
+ * fall back to lock-step mode on this engine.
+ *
+ * Control lines are queued as ByteBuffers; file bodies are written with
+ * non-blocking FileChannel.transferTo(), which may accept only part of a
+ * file per call — the position is simply kept until the next OP_WRITE.
+ */
+final class NioConnection {
+
+    /** Longest control line accepted from a client before it is dropped */
+    private static final int MAX_LINE = 4096;
+
+    private enum State {
+        AUTH_USER, AUTH_PASS, WAIT_READY, SENDING, WAIT_CONFIRM, CLOSING
+    }
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final String sharedFolderPath;
+    private final String facultyUsername;
+    private final String clientAddress;
+
+    private final ByteBuffer readBuf = ByteBuffer.allocate(MAX_LINE);
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+
+    private State state = State.AUTH_USER;
+    private long lastActivity = System.currentTimeMillis();
+    private String username;
+    /** When the username line arrived (System.nanoTime()) */
+    private long authStart;
+
+    // File transfer progress
+    private List<ManifestCache.Entry> files;
+    private int fileIndex;
+    private int successCount;
+    private FileChannel fileChannel;
+    private long filePosition;
+    private long fileSize;
+    private long fileStart;
+    /** True from FILE_COUNT until every file is confirmed (see ServerMetrics) */
+    private boolean sessionOpen;
+
+    NioConnection(SocketChannel channel, SelectionKey key,
+            String sharedFolderPath, String facultyUsername) {
+        this.channel = channel;
+        this.key = key;
+        this.sharedFolderPath = sharedFolderPath;
+        this.facultyUsername = facultyUsername;
+        this.clientAddress = channel.socket().getInetAddress().getHostAddress();
+    }
+
+    // ──────────────────────────────────────────────
+    // Selector callbacks
+    // ──────────────────────────────────────────────
+
+    /** Reads whatever is available and processes every complete line. */
+    void onReadable() throws IOException {
+        int n = channel.read(readBuf);
+        if (n == -1) {
+            if (state != State.CLOSING)
+                log("Client " + clientAddress + " disconnected unexpectedly");
+            state = State.CLOSING;
+            writeQueue.clear();
+            return;
+        }
+        if (n > 0)
+            lastActivity = System.currentTimeMillis();
+
+        processLines();
+        if (!readBuf.hasRemaining()) {
+            log("Control line too long from " + clientAddress + " — closing");
+            state = State.CLOSING;
+            writeQueue.clear();
+        }
+        updateInterest();
+    }
+
+    /** Flushes queued control lines, then continues any file body. */
+    void onWritable() throws IOException {
+        while (!writeQueue.isEmpty()) {
+            ByteBuffer head = writeQueue.peek();
+            channel.write(head);
+            if (head.hasRemaining()) {
+                updateInterest();
+                return;
+            }
+            writeQueue.poll();
+        }
+
+        if (state == State.SENDING) {
+            long n = fileChannel.transferTo(filePosition, fileSize - filePosition, channel);
+            if (n > 0) {
+                filePosition += n;
+                lastActivity = System.currentTimeMillis();
+            } else if (filePosition >= fileChannel.size()) {
+                // File shrank while being sent — stop here, the client will notice
+                fileSize = filePosition;
+            }
+            if (filePosition >= fileSize) {
+                finishFile();
+                processLines();
+            }
+        }
+        updateInterest();
+    }
+
+    /** True once the connection has nothing left to do and can be closed. */
+    boolean isDone() {
+        return state == State.CLOSING && writeQueue.isEmpty();
+    }
+
+    /** True if the client has been silent for longer than the socket timeout. */
+    boolean isIdle(long now) {
+        return now - lastActivity > Protocol.SOCKET_TIMEOUT_MS;
+    }
+
+    String clientAddress() {
+        return clientAddress;
+    }
+
+    /** Releases the file channel (the socket is closed by the event loop). */
+    void close() {
+        if (state == State.SENDING)
+            ServerMetrics.transferFailed();
+        if (sessionOpen)
+            ServerMetrics.sessionAborted();
+        sessionOpen = false;
+        closeFile();
+        state = State.CLOSING;
+    }
+
+    // ──────────────────────────────────────────────
+    // State machine
+    // ──────────────────────────────────────────────
+
+    /** Handles buffered lines for as long as the current state consumes input. */
+    private void processLines() throws IOException {
+        String line;
+        while (state != State.SENDING && state != State.CLOSING && (line = nextLine()) != null) {
+            onLine(line);
+        }
+    }
+
+    private void onLine(String line) throws IOException {
+        switch (state) {
+            case AUTH_USER:
+                if (Handshake.isHello(line)) {
+                    // This engine only speaks the lock-step protocol, so it
+                    // agrees on the client's version but accepts no features
+                    negotiate(line);
+                    break;
+                }
+                username = line.trim();
+                authStart = System.nanoTime();
+                state = State.AUTH_PASS;
+                break;
+
+            case AUTH_PASS:
+                authenticate(line.trim());
+                break;
+
+            case WAIT_READY:
+                if (Protocol.READY.equals(line)) {
+                    startFile();
+                } else {
+                    log("Client not ready (received: " + line + "). Aborting transfers.");
+                    completeSession();
+                }
+                break;
+
+            case WAIT_CONFIRM:
+                if (Protocol.FILE_RECEIVED.equals(line)) {
+                    successCount++;
+                    fileIndex++;
+                    announceNextFile();
+                } else {
+                    log("Client did not confirm receipt of " + files.get(fileIndex).name
+                            + " (response: " + line + ")");
+                    completeSession();
+                }
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    private void negotiate(String helloLine) {
+        Handshake agreed;
+        try {
+            agreed = Handshake.parse(helloLine).negotiate(Protocol.PROTOCOL_VERSION, Set.of());
+        } catch (IllegalArgumentException e) {
+            agreed = new Handshake(1, Map.of());
+        }
+        send(agreed.toLine());
+        log("Negotiated " + agreed);
+    }
+
+    private void authenticate(String hashedPassword) {
+        log("Auth attempt — user: " + username);
+
+        boolean ok;
+        if (!facultyUsername.equals(username)) {
+            log("Rejected: username '" + username + "' does not match this server (" + facultyUsername + ")");
+            ok = false;
+        } else {
+            ok = SecurityUtil.authenticate(username, hashedPassword);
+        }
+        ServerMetrics.authenticated(authStart, ok);
+
+        if (!ok) {
+            send(Protocol.AUTH_FAILED);
+            log("Authentication FAILED for " + clientAddress);
+            state = State.CLOSING;
+            return;
+        }
+        send(Protocol.AUTH_SUCCESS);
+        log("Authentication PASSED for " + clientAddress);
+        listFiles();
+    }
+
+    private void listFiles() {
+        try {
+            files = ManifestCache.of(sharedFolderPath).snapshot().topLevel();
+        } catch (IOException e) {
+            send(Protocol.ERROR_PREFIX + "Shared folder not available");
+            state = State.CLOSING;
+            return;
+        }
+        if (files.isEmpty()) {
+            send(Protocol.NO_FILES);
+            log("No files to send.");
+            state = State.CLOSING;
+            return;
+        }
+
+        send(Protocol.FILE_COUNT_PREFIX + files.size());
+        sessionOpen = true;
+        log("Preparing to send " + files.size() + " file(s)");
+        fileIndex = 0;
+        announceNextFile();
+    }
+
+    private void announceNextFile() {
+        if (fileIndex >= files.size()) {
+            completeSession();
+            return;
+        }
+        ManifestCache.Entry file = files.get(fileIndex);
+        send(Protocol.FILE_INFO_PREFIX + file.name + Protocol.DELIMITER + file.size);
+        log("  → " + file.name + " (" + ClientHandler.formatSize(file.size) + ")");
+        state = State.WAIT_READY;
+    }
+
+    private void startFile() throws IOException {
+        ManifestCache.Entry file = files.get(fileIndex);
+        try {
+            fileChannel = file.open();
+        } catch (IOException e) {
+            ServerMetrics.transferFailed();
+            log(ServerLog.Level.WARN, "  ✗ Error transferring " + file.name + ": " + e.getMessage());
+            // Same as the blocking engine: the client gets nothing and the
+            // missing confirmation ends the session
+            completeSession();
+            return;
+        }
+        fileSize = file.size;
+        filePosition = 0;
+        fileStart = System.nanoTime();
+        state = State.SENDING;
+        if (fileSize == 0)
+            finishFile();
+    }
+
+    private void finishFile() {
+        ManifestCache.Entry file = files.get(fileIndex);
+        if (fileSize == file.size)
+            ServerMetrics.fileSent(fileSize, fileStart);
+        else
+            ServerMetrics.transferFailed();
+        log("  ✓ Finished sending " + file.name);
+        closeFile();
+        state = State.WAIT_CONFIRM;
+    }
+
+    private void completeSession() {
+        send(Protocol.TRANSFER_COMPLETE);
+        log("Transfer session complete — " + successCount + "/" + files.size() + " files sent.");
+        sessionOpen = successCount != files.size();
+        state = State.CLOSING;
+    }
+
+    // ──────────────────────────────────────────────
+    // Buffers
+    // ──────────────────────────────────────────────
+
+    /** Extracts the next '\n'-terminated line from readBuf, or null. */
+    private String nextLine() {
+        readBuf.flip();
+        int start = readBuf.position();
+        for (int i = start; i < readBuf.limit(); i++) {
+            if (readBuf.get(i) == '\n') {
+                int end = i;
+                if (end > start && readBuf.get(end - 1) == '\r')
+                    end--;
+                String line = new String(readBuf.array(), start, end - start, StandardCharsets.UTF_8);
+                readBuf.position(i + 1);
+                readBuf.compact();
+                return line;
+            }
+        }
+        readBuf.position(start);
+        readBuf.compact();
+        return null;
+    }
+
+    private void send(String message) {
+        writeQueue.add(ByteBuffer.wrap((message + System.lineSeparator()).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void updateInterest() {
+        if (!key.isValid())
+            return;
+        int ops = 0;
+        if (!writeQueue.isEmpty() || state == State.SENDING)
+            ops |= SelectionKey.OP_WRITE;
+        if (state != State.CLOSING && state != State.SENDING)
+            ops |= SelectionKey.OP_READ;
+        key.interestOps(ops);
+    }
+
+    /** Registers initial interest once the key is attached. */
+    void start() {
+        updateInterest();
+        log("Client connected: " + clientAddress);
+    }
+
+    private void closeFile() {
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } catch (IOException ignored) {
+            }
+            fileChannel = null;
+        }
+    }
+
+    private void log(String message) {
+        log(ServerLog.Level.INFO, message);
+    }
+
+    private void log(ServerLog.Level level, String message) {
+        if (ServerLog.isLoggable(level))
+            ServerLog.log(level, "[" + clientAddress + "] " + message);
+    }
+}
@@ -0,0 +1,236 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking server engine built on ServerSocketChannel + Selector.
+ *
+ * One acceptor (the calling thread) hands each new connection to one of a
+ * small, fixed number of event-loop threads in round-robin order. Each loop
+ * owns a Selector and advances the NioConnection state machine of its
+ * channels, so hundreds of smart boards can download at once without a
+ * thread per client.
+ *
+ * Selected with: java server.Server [faculty] --engine=nio
+ */
+final class NioServer {
+
+    /** How often each loop wakes up to look for idle connections (ms) */
+    private static final long IDLE_CHECK_MS = 1000;
+
+    private final String sharedFolderPath;
+    private final String facultyUsername;
+    private final AtomicInteger activeClients;
+    private final AtomicInteger totalConnections;
+    private final EventLoop[] loops;
+
+    private volatile ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    NioServer(String sharedFolderPath, String facultyUsername,
+            AtomicInteger activeClients, AtomicInteger totalConnections, int loopCount) {
+        this.sharedFolderPath = sharedFolderPath;
+        this.facultyUsername = facultyUsername;
+        this.activeClients = activeClients;
+        this.totalConnections = totalConnections;
+        this.loops = new EventLoop[loopCount];
+    }
+
+    /** Binds the port (0 for an ephemeral one); call before {@link #run()}. */
+    void bind(int port) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        serverChannel = channel;
+    }
+
+    /** The bound port, or -1 before {@link #bind}. */
+    int localPort() {
+        ServerSocketChannel channel = serverChannel;
+        return channel == null ? -1 : channel.socket().getLocalPort();
+    }
+
+    /**
+     * Starts the event loops and runs the accept loop on the calling
+     * thread until {@link #stop()} is called.
+     */
+    void run() throws IOException {
+        running = true;
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(Selector.open());
+            Thread t = new Thread(loops[i], "nio-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        Server.log("NIO engine started with " + loops.length + " event loop(s)");
+
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel client = serverChannel.accept();
+                ServerMetrics.connectionAccepted();
+                int connNum = totalConnections.incrementAndGet();
+                activeClients.incrementAndGet();
+
+                Server.log("Connection #" + connNum + " from "
+                        + client.socket().getInetAddress().getHostAddress()
+                        + " (active clients: " + activeClients.get() + ")");
+
+                loops[next].register(client);
+                next = (next + 1) % loops.length;
+            } catch (IOException e) {
+                if (running) {
+                    Server.log("ERROR accepting connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /** Closes the listening channel and every event loop. */
+    void stop() {
+        running = false;
+        try {
+            if (serverChannel != null)
+                serverChannel.close();
+        } catch (IOException e) {
+            Server.log("Error closing server channel: " + e.getMessage());
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null)
+                loop.shutdown();
+        }
+    }
+
+    // ──────────────────────────────────────────────
+    // Event loop
+    // ──────────────────────────────────────────────
+
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /** Called from the acceptor thread; the loop does the actual registration. */
+        void register(SocketChannel client) {
+            pending.add(client);
+            selector.wakeup();
+        }
+
+        /** Wakes the loop so it notices running == false and closes its channels. */
+        void shutdown() {
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastIdleCheck = System.currentTimeMillis();
+            try {
+                while (running && selector.isOpen()) {
+                    selector.select(IDLE_CHECK_MS);
+                    registerPending();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        handle(key);
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastIdleCheck >= IDLE_CHECK_MS) {
+                        closeIdle(now);
+                        lastIdleCheck = now;
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running)
+                    Server.log("Event loop error: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys())
+                    closeConnection(key);
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel client;
+            while ((client = pending.poll()) != null) {
+                try {
+                    client.configureBlocking(false);
+                    client.socket().setTcpNoDelay(true);
+                    SelectionKey key = client.register(selector, 0);
+                    NioConnection conn = new NioConnection(client, key, sharedFolderPath, facultyUsername);
+                    key.attach(conn);
+                    conn.start();
+                } catch (IOException e) {
+                    Server.log("ERROR registering connection: " + e.getMessage());
+                    closeQuietly(client);
+                    activeClients.decrementAndGet();
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            NioConnection conn = (NioConnection) key.attachment();
+            if (conn == null)
+                return;
+            try {
+                if (key.isValid() && key.isReadable())
+                    conn.onReadable();
+                if (key.isValid() && key.isWritable())
+                    conn.onWritable();
+                if (conn.isDone())
+                    closeConnection(key);
+            } catch (IOException e) {
+                Server.log("[" + conn.clientAddress() + "] I/O error: " + e.getMessage());
+                closeConnection(key);
+            }
+        }
+
+        private void closeIdle(long now) {
+            for (SelectionKey key : selector.keys()) {
+                NioConnection conn = (NioConnection) key.attachment();
+                if (conn != null && conn.isIdle(now)) {
+                    Server.log("[" + conn.clientAddress() + "] Timed out — closing");
+                    closeConnection(key);
+                }
+            }
+        }
+
+        private void closeConnection(SelectionKey key) {
+            NioConnection conn = (NioConnection) key.attachment();
+            if (conn == null)
+                return;
+            key.attach(null);
+            key.cancel();
+            conn.close();
+            closeQuietly((SocketChannel) key.channel());
+            activeClients.decrementAndGet();
+            Server.log("Client " + conn.clientAddress() + " disconnected (active: " + activeClients.get() + ")");
+        }
+
+        private void closeQuietly(SocketChannel channel) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
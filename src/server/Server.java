@@ -4,16 +4,22 @@ import common.Protocol;
 import common.SecurityUtil;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -23,15 +29,27 @@ import java.util.concurrent.atomic.AtomicInteger;
  * to classroom Smart Board clients over LAN using TCP sockets.
  * 
  * Features:
- * - Multi-threaded client handling via a thread pool
+ * - Multi-threaded client handling via a thread pool, one virtual thread
+ * per client (--engine=virtual), or a non-blocking Selector engine
+ * (--engine=nio) for hundreds of concurrent clients
  * - SHA-256 authenticated access
  * - Restricted to a single shared folder (no directory traversal)
  * - Graceful shutdown via JVM shutdown hook
  * - DHCP-compatible (uses hostnames, not static IPs)
+ * - Optional UDP multicast distribution (--multicast) so one send reaches
+ * every board; sessions wait for each round, so prefer --engine=virtual
+ * - Optional peer swarming (--swarm): boards fetch chunks from each other,
+ * with this server as tracker and seed of last resort (also best with
+ * --engine=virtual, as each board keeps a tracker connection open)
+ * - Counters and latency histograms over JMX (see ServerMetrics)
  * 
  * Usage:
- * java server.Server [faculty1|faculty2]
- * If no argument is given, defaults to "faculty1".
+ * java server.Server [faculty1|faculty2] [--engine=blocking|virtual|nio]
+ * [--max-clients=N] [--multicast[=group:port]] [--multicast-if=name]
+ * [--swarm] [--port=N] [--folder=path]
+ * If no argument is given, defaults to "faculty1". The port and folder
+ * default to Protocol.PORT and Protocol.SHARED_FOLDER; another port is
+ * advertised in discovery replies.
  */
 public class Server {
 
@@ -39,19 +57,44 @@ public class Server {
     // Configuration
     // ──────────────────────────────────────────────
 
-    /** Maximum concurrent client threads */
+    /** Maximum concurrent client threads (blocking engine default) */
     private static final int MAX_THREADS = 10;
 
-    /** Timestamp formatter for log output */
-    private static final DateTimeFormatter LOG_FMT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    /** Default concurrency limit for the virtual-thread engine */
+    private static final int VIRTUAL_MAX_CLIENTS = 1000;
+
+    /** Event-loop threads used by the NIO engine */
+    private static final int NIO_LOOPS = Math.max(2, Runtime.getRuntime().availableProcessors());
 
     // ──────────────────────────────────────────────
     // Instance state
     // ──────────────────────────────────────────────
 
+    /** How accepted connections are served */
+    public enum Engine {
+        /** One ClientHandler per connection on a fixed thread pool */
+        BLOCKING,
+        /** One ClientHandler per connection on its own virtual thread */
+        VIRTUAL,
+        /** Selector-driven NioConnection state machines on a few event loops */
+        NIO
+    }
+
     private final String facultyUsername;
-    private ServerSocket serverSocket;
+    private final Engine engine;
+    private final int maxClients;
+    /** TCP port to listen on (0 = ephemeral, see localPort()) */
+    private int port = Protocol.PORT;
+    private String sharedFolder = Protocol.SHARED_FOLDER;
+    private volatile ServerSocket serverSocket;
     private ExecutorService threadPool;
+    private Semaphore clientPermits;
+    private volatile NioServer nioServer;
+    private String multicastGroup;
+    private String multicastInterface;
+    private MulticastDistributor multicast;
+    private boolean swarm;
+    private SwarmTracker tracker;
     private volatile boolean running = false;
     private final AtomicInteger activeClients = new AtomicInteger(0);
     private final AtomicInteger totalConnections = new AtomicInteger(0);
@@ -62,7 +105,75 @@ public class Server {
      * @param facultyUsername "faculty1" or "faculty2"
      */
     public Server(String facultyUsername) {
+        this(facultyUsername, Engine.BLOCKING);
+    }
+
+    /**
+     * Constructs a new Server for the given faculty using the given engine.
+     *
+     * @param facultyUsername "faculty1" or "faculty2"
+     * @param engine          BLOCKING (thread pool) or NIO (selector)
+     */
+    public Server(String facultyUsername, Engine engine) {
+        this(facultyUsername, engine, 0);
+    }
+
+    /**
+     * Constructs a new Server with an explicit concurrency limit.
+     *
+     * @param facultyUsername "faculty1" or "faculty2"
+     * @param engine          BLOCKING, VIRTUAL or NIO
+     * @param maxClients      pool size (BLOCKING) or semaphore permits
+     *                        (VIRTUAL); 0 selects the engine's default.
+     *                        Ignored by NIO.
+     */
+    public Server(String facultyUsername, Engine engine, int maxClients) {
         this.facultyUsername = facultyUsername;
+        this.engine = engine;
+        if (maxClients > 0)
+            this.maxClients = maxClients;
+        else
+            this.maxClients = engine == Engine.VIRTUAL ? VIRTUAL_MAX_CLIENTS : MAX_THREADS;
+    }
+
+    /**
+     * Offers SWARM to clients, with this server as tracker and seed.
+     * Must be called before start(); ignored by the NIO engine.
+     */
+    public void enableSwarm() {
+        swarm = true;
+    }
+
+    /**
+     * Offers MULTICAST to clients, sending the share to {@code groupSpec}.
+     * Must be called before start(); ignored by the NIO engine.
+     *
+     * @param groupSpec     "<address>:<port>" of the multicast group
+     * @param interfaceName network interface to send on, or null for the
+     *                      OS default
+     */
+    public void enableMulticast(String groupSpec, String interfaceName) {
+        this.multicastGroup = groupSpec;
+        this.multicastInterface = interfaceName;
+    }
+
+    /** Sets the TCP port; 0 binds an ephemeral one. Must be called before start(). */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /** Sets the folder to share. Must be called before start(). */
+    public void setSharedFolder(String folder) {
+        this.sharedFolder = folder;
+    }
+
+    /** The port accepting connections, or -1 until start() has bound it. */
+    public int localPort() {
+        NioServer nio = nioServer;
+        if (nio != null)
+            return nio.localPort();
+        ServerSocket socket = serverSocket;
+        return socket == null ? -1 : socket.getLocalPort();
     }
 
     // ──────────────────────────────────────────────
@@ -77,12 +188,37 @@ public class Server {
         try {
             // Step 1 — Ensure the shared folder is ready
             validateSharedFolder();
+            ServerMetrics.register(activeClients::get);
+
+            if (engine == Engine.NIO) {
+                if (multicastGroup != null)
+                    log("Multicast is not available with the NIO engine — ignoring --multicast");
+                if (swarm)
+                    log("Swarming is not available with the NIO engine — ignoring --swarm");
+                startNio();
+                return;
+            }
 
-            // Step 2 — Create the thread pool
-            threadPool = Executors.newFixedThreadPool(MAX_THREADS);
-
-            // Step 3 — Bind the server socket
-            serverSocket = new ServerSocket(Protocol.PORT);
+            if (multicastGroup != null)
+                multicast = startMulticast(multicastGroup, multicastInterface, sharedFolder);
+            if (swarm)
+                tracker = new SwarmTracker(sharedFolder);
+
+            // Compress new and changed files before the first board asks
+            if (Compression.ENABLED)
+                CompressedCache.forFolder(sharedFolder);
+
+            // Step 2 — Create the thread pool (or virtual-thread executor,
+            // where the semaphore rather than the pool bounds concurrency)
+            threadPool = newHandlerExecutor(engine, maxClients);
+            if (engine == Engine.VIRTUAL)
+                clientPermits = new Semaphore(maxClients);
+
+            // Step 3 — Bind the server socket. Opened through a channel so that
+            // accepted sockets carry a SocketChannel for zero-copy sends.
+            ServerSocket socket = ServerSocketChannel.open().socket();
+            socket.bind(new InetSocketAddress(port));
+            serverSocket = socket;
             running = true;
 
             // Step 3.5 — Start UDP Discovery Listener
@@ -94,7 +230,20 @@ public class Server {
             // Step 5 — Accept loop
             while (running) {
                 try {
-                    Socket clientSocket = serverSocket.accept();
+                    // Past the limit, new clients wait in the TCP backlog
+                    if (clientPermits != null)
+                        clientPermits.acquire();
+
+                    Socket clientSocket;
+                    try {
+                        clientSocket = serverSocket.accept();
+                    } catch (IOException e) {
+                        if (clientPermits != null)
+                            clientPermits.release();
+                        throw e;
+                    }
+                    long accepted = System.nanoTime();
+                    ServerMetrics.connectionAccepted();
                     int connNum = totalConnections.incrementAndGet();
                     activeClients.incrementAndGet();
 
@@ -105,15 +254,29 @@ public class Server {
                     // Delegate to a handler thread
                     ClientHandler handler = new ClientHandler(
                             clientSocket,
-                            Protocol.SHARED_FOLDER,
+                            sharedFolder,
                             facultyUsername,
-                            activeClients);
-                    threadPool.submit(handler);
+                            activeClients,
+                            multicast,
+                            tracker);
+                    Semaphore permits = clientPermits;
+                    threadPool.submit(() -> {
+                        ServerMetrics.QUEUE_WAIT.recordSince(accepted);
+                        try {
+                            handler.run();
+                        } finally {
+                            if (permits != null)
+                                permits.release();
+                        }
+                    });
 
                 } catch (IOException e) {
                     if (running) {
                         log("ERROR accepting connection: " + e.getMessage());
                     }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
             }
 
@@ -125,13 +288,71 @@ public class Server {
         }
     }
 
+    /** True if this JVM has virtual threads (Java 21+), so VIRTUAL really uses them. */
+    public static boolean hasVirtualThreads() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates the executor that runs ClientHandlers for the given engine.
+     * VIRTUAL uses Executors.newVirtualThreadPerTaskExecutor() (Java 21+),
+     * looked up reflectively so the project still builds on older JDKs,
+     * where it falls back to an unbounded cached platform-thread pool.
+     *
+     * @param engine     BLOCKING or VIRTUAL
+     * @param maxClients fixed pool size for BLOCKING
+     */
+    public static ExecutorService newHandlerExecutor(Engine engine, int maxClients) {
+        if (engine != Engine.VIRTUAL)
+            return Executors.newFixedThreadPool(maxClients);
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log("Virtual threads need Java 21+ (running " + System.getProperty("java.version")
+                    + ") — using a cached platform-thread pool instead");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Runs the non-blocking engine; returns when the server is stopped.
+     */
+    private void startNio() throws IOException {
+        NioServer nio = new NioServer(sharedFolder, facultyUsername,
+                activeClients, totalConnections, NIO_LOOPS);
+        nio.bind(port);
+        nioServer = nio;
+        running = true;
+
+        new Thread(this::listenForDiscovery).start();
+        printBanner();
+
+        nio.run();
+    }
+
     /**
      * Stops the server gracefully: closes the socket and shuts down the thread
-     * pool.
+     * pool (or the NIO event loops).
      */
     public void stop() {
         running = false;
 
+        if (nioServer != null) {
+            nioServer.stop();
+            nioServer = null;
+        }
+
+        if (multicast != null) {
+            multicast.close();
+            multicast = null;
+        }
+
         // Close the server socket
         if (serverSocket != null && !serverSocket.isClosed()) {
             try {
@@ -141,12 +362,17 @@ public class Server {
             }
         }
 
+        // Unblock an accept loop waiting for a free client slot
+        if (clientPermits != null)
+            clientPermits.release();
+
         // Shut down the thread pool
         if (threadPool != null && !threadPool.isShutdown()) {
             threadPool.shutdownNow();
         }
 
         log("Server stopped. Total connections served: " + totalConnections.get());
+        log("Metrics: " + ServerMetrics.summary());
     }
 
     // ──────────────────────────────────────────────
@@ -158,24 +384,54 @@ public class Server {
      * Throws IOException if the path exists but is not a writable directory.
      */
     private void validateSharedFolder() throws IOException {
-        Path path = Paths.get(Protocol.SHARED_FOLDER);
+        Path path = Paths.get(sharedFolder);
 
         if (!Files.exists(path)) {
-            log("Shared folder not found — creating: " + Protocol.SHARED_FOLDER);
+            log("Shared folder not found — creating: " + sharedFolder);
             Files.createDirectories(path);
             log("Shared folder created.");
         }
 
         if (!Files.isDirectory(path)) {
-            throw new IOException("Path is not a directory: " + Protocol.SHARED_FOLDER);
+            throw new IOException("Path is not a directory: " + sharedFolder);
         }
         if (!Files.isReadable(path)) {
-            throw new IOException("Folder is not readable: " + Protocol.SHARED_FOLDER);
+            throw new IOException("Folder is not readable: " + sharedFolder);
         }
 
-        // Count files in the folder
-        long fileCount = Files.list(path).filter(Files::isRegularFile).count();
-        log("Shared folder validated — " + fileCount + " file(s) available.");
+        // The first listing fills the manifest every session will use
+        ManifestCache.Snapshot manifest = ManifestCache.of(sharedFolder).snapshot();
+        log("Shared folder validated — " + manifest.size() + " file(s) available ("
+                + ClientHandler.formatSize(manifest.totalSize()) + ").");
+    }
+
+    /**
+     * Creates the multicast distributor for "<address>:<port>" on the named
+     * interface (or the default one), sending {@code folder}.
+     */
+    private static MulticastDistributor startMulticast(String groupSpec, String interfaceName, String folder)
+            throws IOException {
+        int colon = groupSpec.lastIndexOf(':');
+        if (colon < 0)
+            throw new IOException("Multicast group must be <address>:<port>: " + groupSpec);
+        InetAddress address = InetAddress.getByName(groupSpec.substring(0, colon));
+        if (!address.isMulticastAddress())
+            throw new IOException("Not a multicast address: " + address.getHostAddress());
+        int port;
+        try {
+            port = Integer.parseInt(groupSpec.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid multicast port in " + groupSpec);
+        }
+
+        NetworkInterface iface = null;
+        if (interfaceName != null) {
+            iface = NetworkInterface.getByName(interfaceName);
+            if (iface == null)
+                throw new IOException("Unknown network interface: " + interfaceName);
+        }
+        return new MulticastDistributor(folder,
+                new InetSocketAddress(address, port), iface, MulticastDistributor.DEFAULT_RATE);
     }
 
     /**
@@ -185,28 +441,39 @@ public class Server {
         InetAddress local = InetAddress.getLocalHost();
         String border = "═".repeat(50);
 
-        System.out.println();
-        System.out.println("╔" + border + "╗");
-        System.out.println("║   LAN FILE SHARING SERVER — STARTED             ║");
-        System.out.println("╠" + border + "╣");
-        System.out.printf("║  Faculty    : %-35s║%n", facultyUsername);
-        System.out.printf("║  Port       : %-35d║%n", Protocol.PORT);
-        System.out.printf("║  IP Address : %-35s║%n", local.getHostAddress());
-        System.out.printf("║  Hostname   : %-35s║%n", local.getHostName());
-        System.out.printf("║  Shared Dir : %-35s║%n", Protocol.SHARED_FOLDER);
-        System.out.printf("║  Max Clients: %-35d║%n", MAX_THREADS);
-        System.out.println("╠" + border + "╣");
-        System.out.println("║  Waiting for connections...                      ║");
-        System.out.println("║  Press Ctrl+C to stop the server.                ║");
-        System.out.println("╚" + border + "╝");
-        System.out.println();
+        // Printed in one piece, after the startup lines, so no log line lands inside it
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        out.println();
+        out.println("╔" + border + "╗");
+        out.println("║   LAN FILE SHARING SERVER — STARTED             ║");
+        out.println("╠" + border + "╣");
+        out.printf("║  Faculty    : %-35s║%n", facultyUsername);
+        out.printf("║  Port       : %-35d║%n", localPort());
+        out.printf("║  IP Address : %-35s║%n", local.getHostAddress());
+        out.printf("║  Hostname   : %-35s║%n", local.getHostName());
+        out.printf("║  Shared Dir : %-35s║%n", sharedFolder);
+        out.printf("║  Engine     : %-35s║%n", engine == Engine.NIO
+                ? "nio (" + NIO_LOOPS + " event loops)" : engine.name().toLowerCase());
+        out.printf("║  Max Clients: %-35s║%n", engine == Engine.NIO ? "unbounded" : maxClients);
+        out.printf("║  Zero-copy  : %-35s║%n", FileSender.ZERO_COPY_ENABLED ? "enabled" : "disabled");
+        out.printf("║  Multicast  : %-35s║%n", multicast != null ? multicast.groupSpec() : "off");
+        out.printf("║  Swarm      : %-35s║%n", tracker != null ? "tracker + seed" : "off");
+        out.println("╠" + border + "╣");
+        out.println("║  Waiting for connections...                      ║");
+        out.println("║  Press Ctrl+C to stop the server.                ║");
+        out.println("╚" + border + "╝");
+        out.println();
+        ServerLog.flush();
+        System.out.print(text);
+        System.out.flush();
     }
 
     /**
-     * Logs a timestamped message to stdout.
+     * Logs a timestamped message to stdout, from the ServerLog writer thread.
      */
     static void log(String message) {
-        System.out.println("[" + LocalDateTime.now().format(LOG_FMT) + "] " + message);
+        ServerLog.info(message);
     }
 
     // ──────────────────────────────────────────────
@@ -215,7 +482,8 @@ public class Server {
 
     /**
      * Listens for UDP broadcast packets from clients and responds with
-     * the server's IP address.
+     * the server's IP address, and its TCP port if that is not
+     * Protocol.PORT (older clients only understand the bare reply).
      */
     private void listenForDiscovery() {
         try (java.net.DatagramSocket socket = new java.net.DatagramSocket(Protocol.DISCOVERY_PORT,
@@ -233,7 +501,9 @@ public class Server {
                 if (Protocol.DISCOVER_SERVER_REQUEST.equals(message)) {
                     log("Received discovery request from " + packet.getAddress().getHostAddress());
 
-                    byte[] response = Protocol.DISCOVER_SERVER_RESPONSE.getBytes();
+                    int tcpPort = localPort();
+                    byte[] response = (tcpPort == Protocol.PORT || tcpPort < 0 ? Protocol.DISCOVER_SERVER_RESPONSE
+                            : Protocol.DISCOVER_SERVER_RESPONSE + Protocol.DELIMITER + tcpPort).getBytes();
                     java.net.DatagramPacket sendPacket = new java.net.DatagramPacket(
                             response, response.length, packet.getAddress(), packet.getPort());
                     socket.send(sendPacket);
@@ -256,6 +526,52 @@ public class Server {
     public static void main(String[] args) {
         String username = null;
 
+        // ── Options (--engine=..., --max-clients=..., --multicast..., --swarm, --port=..., --folder=...) ──
+        Engine engine = Engine.BLOCKING;
+        int maxClients = 0;
+        String multicastGroup = null;
+        String multicastInterface = null;
+        boolean swarm = false;
+        int port = Protocol.PORT;
+        String folder = Protocol.SHARED_FOLDER;
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                try {
+                    engine = Engine.valueOf(arg.substring("--engine=".length()).trim().toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    System.err.println("ERROR: Unknown engine in '" + arg + "' (use blocking, virtual or nio)");
+                    System.exit(1);
+                }
+            } else if (arg.startsWith("--max-clients=")) {
+                try {
+                    maxClients = Integer.parseInt(arg.substring("--max-clients=".length()).trim());
+                } catch (NumberFormatException e) {
+                    System.err.println("ERROR: Invalid number in '" + arg + "'");
+                    System.exit(1);
+                }
+            } else if (arg.equals("--multicast")) {
+                multicastGroup = Protocol.DEFAULT_MULTICAST_GROUP;
+            } else if (arg.startsWith("--multicast=")) {
+                multicastGroup = arg.substring("--multicast=".length()).trim();
+            } else if (arg.equals("--swarm")) {
+                swarm = true;
+            } else if (arg.startsWith("--multicast-if=")) {
+                multicastInterface = arg.substring("--multicast-if=".length()).trim();
+            } else if (arg.startsWith("--port=")) {
+                try {
+                    port = Integer.parseInt(arg.substring("--port=".length()).trim());
+                } catch (NumberFormatException e) {
+                    System.err.println("ERROR: Invalid number in '" + arg + "'");
+                    System.exit(1);
+                }
+            } else if (arg.startsWith("--folder=")) {
+                folder = arg.substring("--folder=".length()).trim();
+            } else {
+                positional.add(arg);
+            }
+        }
+
         // ── Priority 1: Auto-detect hostname → match to faculty ──
         try {
             String detectedHostname = InetAddress.getLocalHost().getHostName();
@@ -272,8 +588,8 @@ public class Server {
         }
 
         // ── Priority 2: Command-line argument ──
-        if (username == null && args.length > 0) {
-            username = args[0].trim();
+        if (username == null && !positional.isEmpty()) {
+            username = positional.get(0).trim();
         }
 
         // ── Priority 3: GUI chooser (fallback) ──
@@ -310,12 +626,19 @@ public class Server {
             System.exit(1);
         }
 
-        Server server = new Server(username);
+        Server server = new Server(username, engine, maxClients);
+        server.setPort(port);
+        server.setSharedFolder(folder);
+        if (multicastGroup != null)
+            server.enableMulticast(multicastGroup, multicastInterface);
+        if (swarm)
+            server.enableSwarm();
 
         // Register graceful shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             log("Shutdown signal received...");
             server.stop();
+            ServerLog.flush();
         }));
 
         // Start serving
@@ -0,0 +1,310 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The server's log: callers hand a line to a ring buffer and return, and
+ * one background thread formats and writes them.
+ *
+ * Every session thread used to print its own lines, timestamp formatted
+ * and all, holding System.out's lock while the console caught up; thirty
+ * boards downloading at once queued behind it. Now a caller only claims a
+ * slot with one CAS and stores the time, level and message there. The
+ * writer prefixes each line with a timestamp re-formatted only when the
+ * second changes, and writes what it has drained in one go.
+ *
+ * If the writer falls a whole buffer behind, DEBUG and INFO lines are
+ * dropped (and counted in the log) rather than slowing a transfer; WARN
+ * and ERROR lines wait for room.
+ *
+ * Settings:
+ * - lanshare.logLevel: DEBUG, INFO (default), WARN, ERROR or OFF
+ * - lanshare.logFile: also append to this file, rolled over at about
+ * lanshare.logFileBytes (10 MB) into .1, .2, ... keeping
+ * lanshare.logFiles (5) old files
+ */
+public final class ServerLog {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    /** Lines the buffer holds (a power of two) */
+    static final int CAPACITY = 1 << 16;
+    private static final int MASK = CAPACITY - 1;
+
+    /** Bytes formatted before the writer writes them out */
+    private static final int BATCH_BYTES = 64 * 1024;
+
+    private static final DateTimeFormatter STAMP_FMT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private static volatile Level threshold = parseLevel(System.getProperty("lanshare.logLevel"));
+
+    // ── Ring buffer: slot i holds sequence s when sequences[i] == s + 1 ──
+
+    /** Per slot: the sequence it is free for, or that sequence + 1 once filled */
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final long[] times = new long[CAPACITY];
+    private static final Level[] levels = new Level[CAPACITY];
+    private static final String[] messages = new String[CAPACITY];
+
+    /** Next sequence a caller will claim */
+    private static final AtomicLong tail = new AtomicLong();
+    /** Lines written out so far (writer thread only; read by flush) */
+    private static volatile long written;
+
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile boolean sleeping;
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++)
+            sequences.set(i, i);
+        writer = new Thread(ServerLog::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(ServerLog::flush, "log-flush"));
+    }
+
+    private ServerLog() {
+    }
+
+    /** True if lines at {@code level} are written; check before building a costly message. */
+    public static boolean isLoggable(Level level) {
+        return level != Level.OFF && level.compareTo(threshold) >= 0;
+    }
+
+    public static void setLevel(Level level) {
+        threshold = level;
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    public static void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    /** Queues a line for the writer, unless {@code level} is filtered out. */
+    public static void log(Level level, String message) {
+        if (!isLoggable(level))
+            return;
+        long time = System.currentTimeMillis();
+        long sequence;
+        int slot;
+        while (true) {
+            sequence = tail.get();
+            slot = (int) (sequence & MASK);
+            long free = sequences.get(slot);
+            if (free == sequence) {
+                if (tail.compareAndSet(sequence, sequence + 1))
+                    break;
+            } else if (free < sequence) {
+                // The writer has not read this slot's last line yet
+                if (level.compareTo(Level.WARN) < 0 || !writer.isAlive()) {
+                    dropped.increment();
+                    return;
+                }
+                wakeWriter();
+                Thread.yield();
+            }
+            // else another caller claimed it first
+        }
+        times[slot] = time;
+        levels[slot] = level;
+        messages[slot] = message;
+        sequences.set(slot, sequence + 1);
+        if (sleeping)
+            wakeWriter();
+    }
+
+    /** Waits (up to a second) until every line queued so far is written. */
+    public static void flush() {
+        long until = tail.get();
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        while (written < until && writer.isAlive() && System.nanoTime() < deadline) {
+            wakeWriter();
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    private static void wakeWriter() {
+        LockSupport.unpark(writer);
+    }
+
+    // ──────────────────────────────────────────────
+    // Writer
+    // ──────────────────────────────────────────────
+
+    private static void drain() {
+        PrintStream console = System.out;
+        RollingFile file = RollingFile.fromProperties();
+        StringBuilder batch = new StringBuilder(BATCH_BYTES + 1024);
+        long stampSecond = Long.MIN_VALUE;
+        String stamp = "";
+        ZoneId zone = ZoneId.systemDefault();
+        long next = 0;
+        while (true) {
+            int slot = (int) (next & MASK);
+            if (sequences.get(slot) == next + 1) {
+                long time = times[slot];
+                Level level = levels[slot];
+                String message = messages[slot];
+                messages[slot] = null;
+                sequences.set(slot, next + CAPACITY);
+                next++;
+
+                long second = Math.floorDiv(time, 1000);
+                if (second != stampSecond) {
+                    stampSecond = second;
+                    stamp = "[" + LocalDateTime.ofInstant(Instant.ofEpochSecond(second), zone).format(STAMP_FMT)
+                            + "] ";
+                }
+                batch.append(stamp);
+                if (level != Level.INFO)
+                    batch.append(level).append(' ');
+                batch.append(message).append(System.lineSeparator());
+                if (batch.length() < BATCH_BYTES)
+                    continue;
+            }
+            long lost = dropped.sumThenReset();
+            if (lost > 0)
+                batch.append(stamp).append("WARN ").append(lost).append(" log line(s) dropped: the log fell behind")
+                        .append(System.lineSeparator());
+            if (batch.length() > 0) {
+                byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+                batch.setLength(0);
+                console.write(bytes, 0, bytes.length);
+                console.flush();
+                if (file != null)
+                    file.write(bytes);
+                written = next;
+                continue;
+            }
+            // Nothing queued: sleep until a caller wakes us
+            sleeping = true;
+            if (sequences.get((int) (next & MASK)) != next + 1)
+                LockSupport.park(ServerLog.class);
+            sleeping = false;
+        }
+    }
+
+    private static Level parseLevel(String name) {
+        if (name == null)
+            return Level.INFO;
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown lanshare.logLevel '" + name + "' — logging at INFO");
+            return Level.INFO;
+        }
+    }
+
+    /** A log file that is renamed to .1 (and older ones shifted) once it reaches its size limit. */
+    private static final class RollingFile {
+        private final Path path;
+        private final long limit;
+        private final int keep;
+        private OutputStream out;
+        private long size;
+
+        private RollingFile(Path path, long limit, int keep) {
+            this.path = path;
+            this.limit = limit;
+            this.keep = keep;
+        }
+
+        /** The file named by lanshare.logFile, or null if none is set or it cannot be opened. */
+        static RollingFile fromProperties() {
+            String name = System.getProperty("lanshare.logFile");
+            if (name == null || name.isBlank())
+                return null;
+            RollingFile file = new RollingFile(Paths.get(name), Long.getLong("lanshare.logFileBytes",
+                    10L * 1024 * 1024), Math.max(0, Integer.getInteger("lanshare.logFiles", 5)));
+            try {
+                file.open();
+                return file;
+            } catch (IOException e) {
+                System.err.println("Cannot open log file " + name + ": " + e.getMessage());
+                return null;
+            }
+        }
+
+        private void open() throws IOException {
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null)
+                Files.createDirectories(parent);
+            out = Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            size = Files.size(path);
+        }
+
+        void write(byte[] bytes) {
+            try {
+                if (out == null)
+                    open();
+                if (size > 0 && size + bytes.length > limit)
+                    roll();
+                out.write(bytes);
+                out.flush();
+                size += bytes.length;
+            } catch (IOException e) {
+                // Keep logging to the console; retry the file with the next batch
+                System.err.println("Cannot write log file " + path + ": " + e.getMessage());
+                closeQuietly();
+            }
+        }
+
+        private void roll() throws IOException {
+            closeQuietly();
+            if (keep == 0) {
+                Files.deleteIfExists(path);
+            } else {
+                Files.deleteIfExists(older(keep));
+                for (int i = keep - 1; i >= 1; i--)
+                    if (Files.exists(older(i)))
+                        Files.move(older(i), older(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                Files.move(path, older(1), StandardCopyOption.REPLACE_EXISTING);
+            }
+            open();
+        }
+
+        private Path older(int generation) {
+            return path.resolveSibling(path.getFileName() + "." + generation);
+        }
+
+        private void closeQuietly() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+                out = null;
+            }
+        }
+    }
+}
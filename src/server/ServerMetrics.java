@@ -0,0 +1,223 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for every engine, readable over JMX
+ * (jconsole, VisualVM, or any JMX agent) while the server runs.
+ *
+ * Sessions record straight into static LongAdders and Histograms, so the
+ * transfer path pays a few uncontended atomic adds per file and never a
+ * lock. Server.start() registers them once per JVM:
+ * - lanshare:type=Server,name=Metrics — the counters (ServerMetricsMXBean)
+ * - lanshare:type=Histogram,name=... — AuthLatency, ManifestBuild,
+ * QueueWait, FileTransferTime (ns) and FileThroughput (KB/s)
+ *
+ * Queue wait is the time a blocking or virtual-engine connection spends
+ * between accept and its handler starting; the NIO engine has no
+ * executor and records none. -Dlanshare.jmx=false skips registration
+ * (values are still recorded, and logged when the server stops).
+ */
+public final class ServerMetrics implements ServerMetricsMXBean {
+
+    /** From the username line to the verdict, credential check included */
+    static final Histogram AUTH_LATENCY = new Histogram("ns");
+    /** Listing or re-listing the share (see ManifestCache) */
+    static final Histogram MANIFEST_BUILD = new Histogram("ns");
+    /** From accept to the handler running on the executor */
+    static final Histogram QUEUE_WAIT = new Histogram("ns");
+    /** Sending one file body, from first byte to last */
+    static final Histogram FILE_TRANSFER_TIME = new Histogram("ns");
+    /** Per file of at least THROUGHPUT_MIN_BYTES, bytes sent over FILE_TRANSFER_TIME */
+    static final Histogram FILE_THROUGHPUT = new Histogram("KB/s");
+
+    /** Smaller bodies are over before the rate means anything */
+    static final long THROUGHPUT_MIN_BYTES = 64 * 1024;
+
+    private static final LongAdder accepted = new LongAdder();
+    private static final LongAdder authFailures = new LongAdder();
+    private static final LongAdder bytesSent = new LongAdder();
+    private static final LongAdder filesSent = new LongAdder();
+    private static final LongAdder rangesSent = new LongAdder();
+    private static final LongAdder failedTransfers = new LongAdder();
+    private static final LongAdder abortedSessions = new LongAdder();
+
+    // ── Accept rate: per-second slots, each (second << COUNT_BITS) | count ──
+
+    /** Whole seconds the accept rate is averaged over */
+    static final int RATE_SECONDS = 10;
+    private static final int SLOTS = 16;
+    private static final int COUNT_BITS = 24;
+    private static final long ORIGIN = System.nanoTime();
+    private static final AtomicLongArray acceptSlots = new AtomicLongArray(SLOTS);
+
+    private static volatile IntSupplier activeClients = () -> 0;
+    private static boolean registered;
+
+    private ServerMetrics() {
+    }
+
+    // ──────────────────────────────────────────────
+    // Recording
+    // ──────────────────────────────────────────────
+
+    /** A connection was accepted. */
+    static void connectionAccepted() {
+        accepted.increment();
+        long second = second();
+        int slot = (int) (second & (SLOTS - 1));
+        long seen;
+        long next;
+        do {
+            seen = acceptSlots.get(slot);
+            next = seen >>> COUNT_BITS == second ? seen + 1 : second << COUNT_BITS | 1;
+        } while (!acceptSlots.compareAndSet(slot, seen, next));
+    }
+
+    /** Records how long authentication took since {@code startNanos}, and whether it failed. */
+    static void authenticated(long startNanos, boolean ok) {
+        AUTH_LATENCY.recordSince(startNanos);
+        if (!ok)
+            authFailures.increment();
+    }
+
+    /**
+     * A file body of {@code bytes} was sent, starting at {@code startNanos}:
+     * on a session, or as one range covering the whole file.
+     */
+    static void fileSent(long bytes, long startNanos) {
+        long nanos = Math.max(1, System.nanoTime() - startNanos);
+        FILE_TRANSFER_TIME.record(nanos);
+        if (bytes >= THROUGHPUT_MIN_BYTES)
+            FILE_THROUGHPUT.record((long) (bytes * (1e9 / 1024) / nanos));
+        bytesSent.add(bytes);
+        filesSent.increment();
+    }
+
+    /** Part of a file, {@code bytes} long, was sent on a RANGES connection. */
+    static void rangeSent(long bytes) {
+        bytesSent.add(bytes);
+        rangesSent.increment();
+    }
+
+    /** A file body or range could not be sent in full. */
+    static void transferFailed() {
+        failedTransfers.increment();
+    }
+
+    /** A session ended before every announced file was delivered. */
+    static void sessionAborted() {
+        abortedSessions.increment();
+    }
+
+    private static long second() {
+        return (System.nanoTime() - ORIGIN) / 1_000_000_000L;
+    }
+
+    // ──────────────────────────────────────────────
+    // JMX
+    // ──────────────────────────────────────────────
+
+    /**
+     * Registers the MBeans with the platform MBean server, once per JVM;
+     * {@code active} supplies the ActiveClients attribute.
+     */
+    static synchronized void register(IntSupplier active) {
+        activeClients = active;
+        if (registered || "false".equalsIgnoreCase(System.getProperty("lanshare.jmx")))
+            return;
+        registered = true;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new ServerMetrics(), new ObjectName("lanshare:type=Server,name=Metrics"));
+            for (Map.Entry<String, Histogram> histogram : histograms().entrySet())
+                server.registerMBean(histogram.getValue(),
+                        new ObjectName("lanshare:type=Histogram,name=" + histogram.getKey()));
+            Server.log("Metrics: JMX MBeans registered under lanshare:*");
+        } catch (JMException | SecurityException e) {
+            ServerLog.log(ServerLog.Level.WARN, "Metrics: JMX registration failed: " + e.getMessage());
+        }
+    }
+
+    private static Map<String, Histogram> histograms() {
+        Map<String, Histogram> histograms = new LinkedHashMap<>();
+        histograms.put("AuthLatency", AUTH_LATENCY);
+        histograms.put("ManifestBuild", MANIFEST_BUILD);
+        histograms.put("QueueWait", QUEUE_WAIT);
+        histograms.put("FileTransferTime", FILE_TRANSFER_TIME);
+        histograms.put("FileThroughput", FILE_THROUGHPUT);
+        return histograms;
+    }
+
+    /** One line of totals and file transfer percentiles, for the shutdown log. */
+    static String summary() {
+        return filesSent.sum() + " file(s) and " + rangesSent.sum() + " range(s), "
+                + ClientHandler.formatSize(bytesSent.sum()) + " sent; " + failedTransfers.sum()
+                + " failed, " + abortedSessions.sum() + " session(s) aborted, " + authFailures.sum()
+                + " auth failure(s); file time p50 " + FILE_TRANSFER_TIME.getP50() / 1_000_000
+                + " ms, p99 " + FILE_TRANSFER_TIME.getP99() / 1_000_000 + " ms";
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    @Override
+    public double getAcceptRate() {
+        // The current second is still filling, so count the RATE_SECONDS before it
+        long now = second();
+        long total = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            long slot = acceptSlots.get(i);
+            long age = now - (slot >>> COUNT_BITS);
+            if (slot != 0 && age >= 1 && age <= RATE_SECONDS)
+                total += slot & ((1L << COUNT_BITS) - 1);
+        }
+        return (double) total / RATE_SECONDS;
+    }
+
+    @Override
+    public int getActiveClients() {
+        return activeClients.getAsInt();
+    }
+
+    @Override
+    public long getAuthFailures() {
+        return authFailures.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getFilesSent() {
+        return filesSent.sum();
+    }
+
+    @Override
+    public long getRangesSent() {
+        return rangesSent.sum();
+    }
+
+    @Override
+    public long getFailedTransfers() {
+        return failedTransfers.sum();
+    }
+
+    @Override
+    public long getAbortedSessions() {
+        return abortedSessions.sum();
+    }
+}
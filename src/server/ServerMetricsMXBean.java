@@ -0,0 +1,29 @@
+package server;
+
+/**
+ * The server's counters as JMX clients see them, under
+ * lanshare:type=Server,name=Metrics (see ServerMetrics). Latencies are
+ * separate HistogramMXBeans.
+ */
+public interface ServerMetricsMXBean {
+
+    long getAcceptedConnections();
+
+    /** Connections accepted per second over the last few seconds */
+    double getAcceptRate();
+
+    int getActiveClients();
+
+    long getAuthFailures();
+
+    long getBytesSent();
+
+    long getFilesSent();
+
+    /** Ranges that were part of a file; whole-file ranges count as files */
+    long getRangesSent();
+
+    long getFailedTransfers();
+
+    long getAbortedSessions();
+}
@@ -0,0 +1,217 @@
+package server;
+
+import common.Protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracker for peer swarming between smart boards.
+ *
+ * Boards in a SWARM session open a TRACKER side connection, JOIN with the
+ * port of their peer listener, and report each verified chunk with HAVE.
+ * Other boards ask WHO_HAS before falling back to the server, so once a
+ * few boards hold a chunk the faculty PC stops sending it. A board's
+ * entries are dropped when its tracker connection closes.
+ *
+ * The tracker also publishes the SHA-256 of every chunk (CHUNKS), computed
+ * from the shared file and cached by its manifest name until the file
+ * changes — boards accept a chunk from a peer only if it matches. Each
+ * file is hashed once however many boards ask at the same time, and
+ * hashing one file never holds up CHUNKS for another.
+ */
+public class SwarmTracker {
+
+    /** Most peers returned for one WHO_HAS */
+    static final int MAX_PEERS_PER_REPLY = 4;
+
+    private final String sharedFolderPath;
+    private final String token;
+    private final AtomicInteger nextPeerId = new AtomicInteger(1);
+
+    /** Registered peer listeners, by peer id */
+    private final Map<Integer, InetSocketAddress> peers = new ConcurrentHashMap<>();
+
+    /** Peer ids holding each chunk, keyed "<chunk>:<name>" */
+    private final Map<String, Set<Integer>> holders = new ConcurrentHashMap<>();
+
+    /** Chunk hashes by manifest name, completed once hashed */
+    private final Map<String, CompletableFuture<ChunkList>> chunkLists = new ConcurrentHashMap<>();
+
+    /** Range bytes the server itself sent while the tracker was running */
+    private final AtomicLong uploadBytes = new AtomicLong();
+
+    /** SHA-256 of each chunk of one version of a file. */
+    static final class ChunkList {
+        final long size;
+        final long lastModified;
+        final List<String> hashes;
+
+        ChunkList(long size, long lastModified, List<String> hashes) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hashes = hashes;
+        }
+    }
+
+    public SwarmTracker(String sharedFolderPath) {
+        this.sharedFolderPath = sharedFolderPath;
+        byte[] secret = new byte[16];
+        new SecureRandom().nextBytes(secret);
+        this.token = Base64.getUrlEncoder().withoutPadding().encodeToString(secret);
+    }
+
+    /** Secret that boards must present to each other; only logged-in boards learn it. */
+    String token() {
+        return token;
+    }
+
+    /** Registers a board's peer listener and returns its peer id. */
+    int join(InetSocketAddress listener) {
+        int id = nextPeerId.getAndIncrement();
+        peers.put(id, listener);
+        return id;
+    }
+
+    /** Forgets a board and every chunk it announced. */
+    void leave(int peerId) {
+        if (peers.remove(peerId) == null)
+            return;
+        for (Set<Integer> ids : holders.values())
+            ids.remove(peerId);
+    }
+
+    void have(int peerId, String name, int chunk) {
+        if (peers.containsKey(peerId))
+            holders.computeIfAbsent(chunk + ":" + name, k -> ConcurrentHashMap.newKeySet()).add(peerId);
+    }
+
+    /**
+     * Up to MAX_PEERS_PER_REPLY boards holding a chunk, other than the one
+     * asking, in random order so requests spread over all holders.
+     */
+    List<InetSocketAddress> whoHas(int askingPeer, String name, int chunk) {
+        Set<Integer> ids = holders.get(chunk + ":" + name);
+        List<InetSocketAddress> found = new ArrayList<>();
+        if (ids == null)
+            return found;
+        for (Integer id : ids) {
+            InetSocketAddress address = peers.get(id);
+            if (id != askingPeer && address != null)
+                found.add(address);
+        }
+        Collections.shuffle(found);
+        return found.size() > MAX_PEERS_PER_REPLY ? found.subList(0, MAX_PEERS_PER_REPLY) : found;
+    }
+
+    /**
+     * Chunk hashes of a shared file, hashing it on first request and again
+     * whenever its size or modification time changes. Callers asking for
+     * a file that is being hashed wait for that result.
+     */
+    ChunkList chunks(ManifestCache.Entry file) throws IOException {
+        while (true) {
+            CompletableFuture<ChunkList> known = chunkLists.get(file.name);
+            if (known == null || known.isDone() && !matches(known, file)) {
+                CompletableFuture<ChunkList> mine = new CompletableFuture<>();
+                if (known == null ? chunkLists.putIfAbsent(file.name, mine) != null
+                        : !chunkLists.replace(file.name, known, mine))
+                    continue; // another session got there first
+                return hashInto(mine, file);
+            }
+            try {
+                ChunkList list = known.get();
+                if (list.size == file.size && list.lastModified == file.lastModified)
+                    return list;
+                // An older version finished hashing; loop to replace it
+            } catch (ExecutionException e) {
+                // The hashing session has already dropped the failed entry
+                throw new IOException("Could not hash " + file.name + ": " + e.getCause().getMessage(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while hashing " + file.name);
+            }
+        }
+    }
+
+    /** Whether a finished future holds the chunk list of this version of {@code file}. */
+    private static boolean matches(CompletableFuture<ChunkList> done, ManifestCache.Entry file) {
+        ChunkList list = done.getNow(null);
+        return list != null && list.size == file.size && list.lastModified == file.lastModified;
+    }
+
+    private ChunkList hashInto(CompletableFuture<ChunkList> future, ManifestCache.Entry file) throws IOException {
+        try {
+            long start = System.nanoTime();
+            ChunkList list = hash(file);
+            future.complete(list);
+            Server.log("Swarm: hashed " + file.name + " (" + list.hashes.size() + " chunk(s), "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms)");
+            return list;
+        } catch (IOException | RuntimeException e) {
+            chunkLists.remove(file.name, future);
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private static ChunkList hash(ManifestCache.Entry file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+
+        List<String> hashes = new ArrayList<>();
+        byte[] buffer = new byte[Protocol.SWARM_CHUNK_SIZE];
+        long size = 0;
+        try (FileChannel channel = file.open(); InputStream in = Channels.newInputStream(channel)) {
+            int filled;
+            do {
+                filled = 0;
+                int n;
+                while (filled < buffer.length && (n = in.read(buffer, filled, buffer.length - filled)) != -1)
+                    filled += n;
+                if (filled > 0) {
+                    digest.update(buffer, 0, filled);
+                    hashes.add(Base64.getEncoder().encodeToString(digest.digest()));
+                    size += filled;
+                }
+            } while (filled == buffer.length);
+        }
+        return new ChunkList(size, file.lastModified, hashes);
+    }
+
+    /** Counts bytes the faculty PC sent on range connections. */
+    void recordUpload(long bytes) {
+        uploadBytes.addAndGet(bytes);
+    }
+
+    /** Range bytes sent by the server since it started — what peers did not take over. */
+    public long uploadBytes() {
+        return uploadBytes.get();
+    }
+
+    /** Boards currently registered. */
+    public int peerCount() {
+        return peers.size();
+    }
+}